@@ -40,6 +40,34 @@ public interface Directory
 		public Either<Exception,File> file();
 	}
 
+	/**
+	 * Changes to a {@link Directory} which are applied together by {@link #commit()}.
+	 *
+	 * Committing a batch creates one new version of the directory (and so saves its parent
+	 * directories once), rather than one version per change.
+	 */
+	public interface Batch
+	{
+		/** Store a {@link File} using a relative name. */
+		public Batch save(String name, File file);
+
+		/** Save some data now, and store it using a relative name when committed. */
+		public Batch save(String name, ByteBuffer data);
+
+		/** Store a nested {@link Directory} using a relative name. */
+		public Batch save(String name, Directory directory);
+
+		/** Remove an entry, which must exist when the batch is committed. */
+		public Batch remove(String name);
+
+		/**
+		 * Apply all of the changes, or none of them if any change fails.
+		 *
+		 * @return   the directory (with changes applied) or the first Exception
+		 */
+		public Either<Exception,Directory> commit();
+	}
+
 	/** The name of the immutable directory which represents the current directory state. */
 	public URI snapshotName();
 
@@ -87,4 +115,7 @@ public interface Directory
 	 *           or an Exception if the specified entry does not exist
 	 */
 	public Either<Exception,Directory> remove(String name);
+
+	/** Start a {@link Batch} of changes to this directory. */
+	public Batch batch();
 }
@@ -55,6 +55,9 @@ public interface KernelInterface
 	/** Open a file on the local machine (e.g. a photo to upload). */
 	public Either<Exception,File> openLocalFile();
 
+	/** Open several files on the local machine (e.g. photos to import). */
+	public Either<Exception,Iterable<File>> openLocalFiles();
+
 	/** Save data into a local file. */
 	public Either<Exception,File> saveLocalFile(File file);
 
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.core.crypto;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+
+/**
+ * Per-thread {@link Cipher} objects.
+ *
+ * {@link Cipher#getInstance} searches the installed providers and allocates a new cipher, which
+ * can cost more than encrypting a block, and {@link Cipher#init} re-derives the key schedule.
+ * Ciphers are not thread-safe, so rather than sharing them, each thread keeps a few of its own,
+ * keyed by transformation, operation, key and IV. A cipher is left initialized after each
+ * operation, so using the same key again costs nothing extra; a new key re-initializes the
+ * least-recently used cipher of the same transformation.
+ *
+ * A borrowed cipher must be finished with (by {@link Cipher#doFinal}) before the same thread
+ * borrows another; if an operation fails part-way through, {@link #discard} the cipher.
+ */
+public final class CipherPool
+{
+	/** Ciphers that have been created (rather than reused) by all threads. */
+	public static long created() { return created.get(); }
+
+	/** Don't reuse a cipher (e.g. because an operation failed, leaving it in an unknown state). */
+	public static void discard(Cipher cipher)
+	{
+		Iterator<Cipher> i = pool.get().values().iterator();
+		while (i.hasNext())
+			if (i.next() == cipher) i.remove();
+	}
+
+	/**
+	 * Borrow a cipher.
+	 *
+	 * @param iv      the IV, or null for an all-zero IV (or none, in ECB mode)
+	 */
+	static Cipher get(String transformation, int opmode, SecretKeySpec key, byte[] iv)
+		throws GeneralSecurityException
+	{
+		Map<Key,Cipher> ciphers = pool.get();
+		Key k = new Key(transformation, opmode, key, iv);
+
+		Cipher cipher = ciphers.get(k);
+		if (cipher != null) return cipher;
+
+		// Re-initialize a cipher that we haven't used for a while, if there's a suitable one.
+		if (ciphers.size() >= MAX_PER_THREAD)
+		{
+			Iterator<Map.Entry<Key,Cipher>> i = ciphers.entrySet().iterator();
+			Map.Entry<Key,Cipher> eldest = i.next();
+			i.remove();
+
+			if (eldest.getKey().transformation.equals(transformation))
+				cipher = eldest.getValue();
+		}
+
+		if (cipher == null)
+		{
+			cipher = Cipher.getInstance(transformation);
+			created.incrementAndGet();
+		}
+
+		IvParameterSpec spec = (iv == null) ? zeroIV(cipher) : new IvParameterSpec(iv);
+		try { cipher.init(opmode, key, spec); }
+		catch (GeneralSecurityException e)
+		{
+			discard(cipher);
+			throw e;
+		}
+
+		ciphers.put(k, cipher);
+		return cipher;
+	}
+
+
+	/** The block size of a transformation's cipher (without initializing one). */
+	static int blockSize(String transformation) throws GeneralSecurityException
+	{
+		Integer size = blockSizes.get(transformation);
+		if (size == null)
+		{
+			size = Cipher.getInstance(transformation).getBlockSize();
+			blockSizes.put(transformation, size);
+		}
+
+		return size;
+	}
+
+	/**
+	 * An all-zero IV, or null for ECB mode. We use convergent keys (one per block), so the IV
+	 * needn't be unique.
+	 */
+	static IvParameterSpec zeroIV(Cipher cipher)
+	{
+		if (cipher.getAlgorithm().toUpperCase().contains("/ECB/")) return null;
+		return new IvParameterSpec(new byte[cipher.getBlockSize()]);
+	}
+
+
+	/** What a cipher has been initialized with. */
+	private static final class Key
+	{
+		Key(String transformation, int opmode, SecretKeySpec key, byte[] iv)
+		{
+			this.transformation = transformation;
+			this.opmode = opmode;
+			this.key = key;
+			this.iv = (iv == null) ? null : iv.clone();
+		}
+
+		@Override public int hashCode()
+		{
+			return transformation.hashCode() ^ opmode ^ key.hashCode() ^ Arrays.hashCode(iv);
+		}
+
+		@Override public boolean equals(Object o)
+		{
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+
+			return transformation.equals(k.transformation) && (opmode == k.opmode)
+				&& key.equals(k.key) && Arrays.equals(iv, k.iv);
+		}
+
+		private final String transformation;
+		private final int opmode;
+		private final SecretKeySpec key;
+		private final byte[] iv;
+	}
+
+	/** How many initialized ciphers each thread keeps. */
+	private static final int MAX_PER_THREAD = 8;
+
+	private static final AtomicLong created = new AtomicLong();
+
+	private static final Map<String,Integer> blockSizes =
+		new ConcurrentHashMap<String,Integer>();
+
+	/** Each thread's ciphers, from least- to most-recently used. */
+	private static final ThreadLocal<Map<Key,Cipher>> pool = new ThreadLocal<Map<Key,Cipher>>()
+	{
+		@Override protected Map<Key,Cipher> initialValue()
+		{
+			return new LinkedHashMap<Key,Cipher>(16, 0.75f, true);
+		}
+	};
+
+	private CipherPool() {}
+}
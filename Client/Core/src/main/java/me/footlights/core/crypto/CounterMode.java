@@ -0,0 +1,215 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.core.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+
+import me.footlights.core.Preferences;
+
+
+/**
+ * Block ciphertext in counter (CTR) mode, with a per-block nonce.
+ *
+ * The ciphertext starts with a header: four magic bytes, then a random nonce that fills all but
+ * the last four bytes of the initial counter block. The rest is the block, encrypted with
+ * the counter starting at zero; it is the same length as the plaintext.
+ *
+ * Unlike CBC, every cipher block can be computed independently, so large blocks can be split
+ * into segments and encrypted in parallel: a segment starting at byte N of the plaintext
+ * starts its counter at N / (cipher block size).
+ */
+public final class CounterMode
+{
+	/** Does this ciphertext look like CTR-mode ciphertext? Doesn't affect the buffer's position. */
+	public static boolean matches(ByteBuffer ciphertext)
+	{
+		if (ciphertext.remaining() < MAGIC.length) return false;
+
+		for (int i = 0; i < MAGIC.length; i++)
+			if (ciphertext.get(ciphertext.position() + i) != MAGIC[i]) return false;
+
+		return true;
+	}
+
+	/**
+	 * Encrypt plaintext segments.
+	 *
+	 * @param length    total length of the plaintext segments
+	 * @param pool      used to encrypt large plaintexts in parallel (or null); tasks on this pool
+	 *                  must not themselves call this method with the same pool
+	 *
+	 * @return          header and ciphertext, ready to read
+	 */
+	public static ByteBuffer encrypt(SecretKey key, ByteBuffer[] plaintext, int length,
+			ExecutorService pool)
+		throws GeneralSecurityException
+	{
+		String transformation = transformation(key);
+		int blockSize = CipherPool.blockSize(transformation);
+
+		byte[] nonce = new byte[blockSize - COUNTER_BYTES];
+		random().nextBytes(nonce);
+
+		int header = MAGIC.length + nonce.length;
+		final byte[] out = new byte[header + length];
+		System.arraycopy(MAGIC, 0, out, 0, MAGIC.length);
+		System.arraycopy(nonce, 0, out, MAGIC.length, nonce.length);
+
+		// Gather the plaintext into place; we then encrypt it where it lies.
+		int offset = header;
+		for (ByteBuffer segment : plaintext)
+		{
+			int bytes = segment.remaining();
+			segment.duplicate().get(out, offset, bytes);
+			offset += bytes;
+		}
+
+		if ((pool == null) || (length < 2 * SEGMENT_BYTES))
+			crypt(key, transformation, Cipher.ENCRYPT_MODE, nonce, 0, out, header, length);
+
+		else
+		{
+			List<Future<Void>> segments = new ArrayList<Future<Void>>();
+			for (int start = SEGMENT_BYTES; start < length; start += SEGMENT_BYTES)
+				segments.add(pool.submit(segment(key, transformation, nonce, start / blockSize,
+					out, header + start, Math.min(SEGMENT_BYTES, length - start))));
+
+			// Do the first segment ourselves while the pool works on the rest.
+			crypt(key, transformation, Cipher.ENCRYPT_MODE, nonce, 0, out, header, SEGMENT_BYTES);
+
+			for (Future<Void> f : segments)
+			{
+				try { f.get(); }
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new GeneralSecurityException("Interrupted while encrypting block", e);
+				}
+				catch (ExecutionException e)
+				{
+					if (e.getCause() instanceof GeneralSecurityException)
+						throw (GeneralSecurityException) e.getCause();
+
+					throw new GeneralSecurityException("Error encrypting block", e.getCause());
+				}
+			}
+		}
+
+		return ByteBuffer.wrap(out);
+	}
+
+	/** Decrypt CTR-mode ciphertext (including its header). */
+	public static ByteBuffer decrypt(SecretKey key, ByteBuffer ciphertext)
+		throws GeneralSecurityException
+	{
+		if (!matches(ciphertext))
+			throw new GeneralSecurityException("Not CTR-mode ciphertext (bad magic)");
+
+		String transformation = transformation(key);
+		byte[] nonce = new byte[CipherPool.blockSize(transformation) - COUNTER_BYTES];
+
+		ByteBuffer in = ciphertext.duplicate();
+		int header = MAGIC.length + nonce.length;
+		if (in.remaining() <= header)
+			throw new GeneralSecurityException("CTR-mode ciphertext too short to decrypt");
+
+		in.position(in.position() + MAGIC.length);
+		in.get(nonce);
+
+		byte[] out = new byte[in.remaining()];
+		in.get(out);
+		crypt(key, transformation, Cipher.DECRYPT_MODE, nonce, 0, out, 0, out.length);
+
+		return ByteBuffer.wrap(out);
+	}
+
+
+	/** Encrypt or decrypt, in place, part of a buffer that starts at a given counter value. */
+	private static void crypt(SecretKey key, String transformation, int opmode, byte[] nonce,
+			int counter, byte[] buffer, int offset, int length)
+		throws GeneralSecurityException
+	{
+		byte[] iv = new byte[nonce.length + COUNTER_BYTES];
+		System.arraycopy(nonce, 0, iv, 0, nonce.length);
+		ByteBuffer.wrap(iv, nonce.length, COUNTER_BYTES).putInt(counter);
+
+		Cipher cipher = CipherPool.get(transformation, opmode, key.keySpec, iv);
+		try { cipher.doFinal(buffer, offset, length, buffer, offset); }
+		catch (GeneralSecurityException e)
+		{
+			CipherPool.discard(cipher);
+			throw e;
+		}
+	}
+
+	private static Callable<Void> segment(final SecretKey key, final String transformation,
+			final byte[] nonce, final int counter, final byte[] buffer, final int offset,
+			final int length)
+	{
+		return new Callable<Void>()
+		{
+			@Override public Void call() throws GeneralSecurityException
+			{
+				crypt(key, transformation, Cipher.ENCRYPT_MODE, nonce, counter,
+					buffer, offset, length);
+				return null;
+			}
+		};
+	}
+
+	private static String transformation(SecretKey key)
+	{
+		return key.getAlgorithm() + "/CTR/NoPadding";
+	}
+
+	private static SecureRandom random() throws GeneralSecurityException
+	{
+		SecureRandom r = rng.get();
+		if (r == null)
+		{
+			r = SecureRandom.getInstance(
+				Preferences.getDefaultPreferences().getString("crypto.prng").get());
+			rng.set(r);
+		}
+
+		return r;
+	}
+
+
+	/** The magic bytes at the beginning of CTR-mode ciphertext. */
+	private static final byte[] MAGIC = new byte[] { (byte) 0xF0, (byte) 0x07, (byte) 0xC7, 0x12 };
+
+	/** Bytes of the initial counter block that count (the rest is the nonce). */
+	private static final int COUNTER_BYTES = 4;
+
+	/** How much plaintext to hand to each task when encrypting in parallel. */
+	static final int SEGMENT_BYTES = 64 * 1024;
+
+	/** Nonce generators: {@link SecureRandom} is thread-safe, but contended when shared. */
+	private static final ThreadLocal<SecureRandom> rng = new ThreadLocal<SecureRandom>();
+
+	private CounterMode() {}
+}
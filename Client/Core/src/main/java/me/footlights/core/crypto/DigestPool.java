@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.core.crypto;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Per-thread {@link MessageDigest} objects.
+ *
+ * {@link MessageDigest#getInstance} searches the installed providers every time it's called,
+ * which costs more than hashing a small block. Digests aren't thread-safe, so each thread keeps
+ * an idle one per algorithm: {@link #acquire} takes it (or creates one, if it's in use) and
+ * {@link #release} puts it back, reset, for the next caller.
+ */
+final class DigestPool
+{
+	/** Digests that have been created (rather than reused) by all threads. */
+	static long created() { return created.get(); }
+
+	/** Take a reset digest; nobody else will use it until it is {@link #release}d. */
+	static MessageDigest acquire(String algorithm) throws NoSuchAlgorithmException
+	{
+		MessageDigest digest = idle.get().remove(algorithm);
+		if (digest != null) return digest;
+
+		created.incrementAndGet();
+		return MessageDigest.getInstance(algorithm);
+	}
+
+	/** Reset a digest and make it available to the calling thread again. */
+	static void release(String algorithm, MessageDigest digest)
+	{
+		digest.reset();
+		idle.get().put(algorithm, digest);
+	}
+
+	/** Check that an algorithm exists (without creating a digest, if we've seen it before). */
+	static void check(String algorithm) throws NoSuchAlgorithmException
+	{
+		release(algorithm, acquire(algorithm));
+	}
+
+
+	private static final AtomicLong created = new AtomicLong();
+
+	/** Each thread's idle digests, by the algorithm name used to request them. */
+	private static final ThreadLocal<Map<String,MessageDigest>> idle =
+		new ThreadLocal<Map<String,MessageDigest>>()
+		{
+			@Override protected Map<String,MessageDigest> initialValue()
+			{
+				return new HashMap<String,MessageDigest>();
+			}
+		};
+
+	private DigestPool() {}
+}
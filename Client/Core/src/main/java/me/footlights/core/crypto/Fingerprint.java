@@ -15,11 +15,19 @@
  */
 package me.footlights.core.crypto;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -29,7 +37,6 @@ import org.apache.commons.codec.binary.Base32;
 import org.apache.commons.codec.binary.Hex;
 
 import me.footlights.core.HasBytes;
-import me.footlights.core.Preconditions;
 import me.footlights.core.Preferences;
 import me.footlights.core.ConfigurationError;
 import me.footlights.core.ProgrammerError;
@@ -53,6 +60,27 @@ public class Fingerprint
 			.build();
 	}
 
+	/** The fingerprint of everything left in a (blocking) channel, which is read to the end. */
+	public static Fingerprint of(ReadableByteChannel channel) throws IOException
+	{
+		return Fingerprint.newBuilder()
+			.update(channel)
+			.build();
+	}
+
+	/**
+	 * The fingerprint of whatever content has been fed into a {@link MessageDigest} (e.g. by a
+	 * {@link java.security.DigestInputStream}), which is reset.
+	 */
+	public static Fingerprint of(MessageDigest digest)
+	{
+		try { return new Fingerprint(new Key(algorithmId(digest.getAlgorithm()), digest.digest())); }
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new ProgrammerError("Digest with unknown algorithm: " + digest, e);
+		}
+	}
+
 	public static Option<Fingerprint> unapply(String s)
 	{
 		try { return Option.apply(decode(new URI(s))); }
@@ -93,126 +121,285 @@ public class Fingerprint
 	public static Fingerprint decode(String algorithmName, String hash)
 		throws NoSuchAlgorithmException
 	{
-		MessageDigest algorithm = MessageDigest.getInstance(algorithmName);
-		final URI uri;
-		try { uri = new URI("urn", algorithmName + ":" + hash, null); }
-		catch (URISyntaxException e) { throw new IllegalArgumentException(e); }
-
-		return new Fingerprint(algorithm,
-				ByteBuffer.wrap(new Base32().decode(hash.getBytes())),
-				uri);
+		return new Fingerprint(
+			new Key(algorithmId(algorithmName), new Base32().decode(hash.getBytes())));
 	}
 
 	public static Builder newBuilder() { return new Builder(Preferences.getDefaultPreferences()); }
 
-	public URI toURI() { return uri; }
-	public String encode() { return uri.toString(); }
+	/**
+	 * A compact, binary name for a {@link Fingerprint}: the hash and a small algorithm ID, with
+	 * a precomputed hash code. Cheaper than a {@link Fingerprint} to keep in (large) maps.
+	 */
+	public static final class Key
+	{
+		/** The {@link Fingerprint} that this key names (its text form is computed on demand). */
+		public Fingerprint fingerprint() { return new Fingerprint(this); }
+
+		@Override public int hashCode() { return hashCode; }
+		@Override public boolean equals(Object o)
+		{
+			if (o == this) return true;
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+
+			return (hashCode == k.hashCode) && (algorithm == k.algorithm)
+				&& Arrays.equals(hash, k.hash);
+		}
 
-	public MessageDigest getAlgorithm() { return algorithm; }
+		@Override public String toString() { return fingerprint().encode(); }
 
-	public boolean matches(ByteBuffer b) { return (0 == bytes.compareTo(b)); }
-	public boolean matches(byte[] b) { return matches(ByteBuffer.wrap(b)); }
+		private Key(byte algorithm, byte[] hash)
+		{
+			this.algorithm = algorithm;
+			this.hash = hash;
+
+			// Hashes are uniformly distributed, so the first few bytes make a fine hash code.
+			int h = 0;
+			for (int i = 0; i < Math.min(4, hash.length); i++) h = (h << 8) | (hash[i] & 0xff);
+			this.hashCode = h ^ algorithm;
+		}
+
+		private final byte algorithm;
+		private final byte[] hash;
+		private final int hashCode;
+	}
+
+	public Key key() { return key; }
 
-	public ByteBuffer getBytes() { return bytes.asReadOnlyBuffer(); }
-	public byte[] copyBytes()
+	public URI toURI()
 	{
-		byte[] copy = new byte[bytes.remaining()];
-		bytes.mark();
-		bytes.get(copy);
-		bytes.reset();
-		return copy;
+		try { return new URI("urn", algorithmName() + ":" + base32(), null); }
+		catch (URISyntaxException e)
+		{
+			throw new ProgrammerError("Failed to make URI for Fingerprint", e);
+		}
+	}
+
+	public String encode()
+	{
+		String s = encoded;
+		if (s == null) encoded = s = "urn:" + algorithmName() + ":" + base32();
+		return s;
 	}
 
+	/** A new instance of the algorithm that computed this fingerprint. */
+	public MessageDigest getAlgorithm()
+	{
+		String algorithm = algorithmName();
+		try { return MessageDigest.getInstance(algorithm); }
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new ProgrammerError("Fingerprint algorithm '" + algorithm + "' has vanished", e);
+		}
+	}
+
+	public boolean matches(ByteBuffer b) { return (0 == ByteBuffer.wrap(key.hash).compareTo(b)); }
+	public boolean matches(byte[] b) { return matches(ByteBuffer.wrap(b)); }
+
+	public ByteBuffer getBytes() { return ByteBuffer.wrap(key.hash).asReadOnlyBuffer(); }
+	public byte[] copyBytes() { return key.hash.clone(); }
+
+	/**
+	 * Builds a {@link Fingerprint}, either from content set all at once or from content fed in
+	 * incrementally with {@link #update}.
+	 *
+	 * Content is hashed as it is given to the builder, straight out of whatever buffers or
+	 * channels it is in: nothing is copied or flattened, and no buffer's position is moved.
+	 * The {@link MessageDigest} comes from a per-thread pool and goes back to it on
+	 * {@link #build}, after which the builder can be used again.
+	 */
 	public static class Builder
 	{
 		public Fingerprint build()
 		{
-			Preconditions.notNull(bytes);
-
-			ByteBuffer hash = ByteBuffer.wrap(algorithm.digest(bytes));
+			MessageDigest d = digest();
+			byte[] hash = d.digest();
 
-			final URI uri;
-			try
-			{
-				uri = new URI("urn",
-						algorithm.getAlgorithm().toLowerCase() + ":" +
-						new String(new Base32().encode(hash.array())), null);
-			}
-			catch (URISyntaxException e)
-			{
-				throw new ProgrammerError("Failed to make URI for Fingerprint", e);
-			}
+			digest = null;
+			DigestPool.release(algorithm, d);
 
-			return new Fingerprint(algorithm, hash, uri);
+			return new Fingerprint(new Key(algorithmId, hash));
 		}
 
+		/** Choose the hash algorithm; this must be done before any content is hashed. */
 		public Builder setAlgorithm(String a) throws NoSuchAlgorithmException
 		{
-			algorithm = MessageDigest.getInstance(a);
+			if (digest != null)
+				throw new IllegalStateException("Can't change algorithm after hashing content");
+
+			algorithmId = algorithmId(a);
+			algorithm = a;
 			return this;
 		}
 
-		public Builder setContent(byte[] b) { bytes = b; return this; }
+		public Builder setContent(byte[] b) { return reset().update(b); }
 		public Builder setContent(HasBytes h) { return setContent(h.getBytes()); }
-		public Builder setContent(ByteBuffer b)
+		public Builder setContent(ByteBuffer b) { return reset().update(b); }
+
+		/** Fingerprint several buffers' worth of content, as if they were concatenated. */
+		public Builder setContent(Iterable<ByteBuffer> b) { return reset().update(b); }
+
+		/** Forget any content that has been hashed so far. */
+		public Builder reset()
 		{
-			if (b.isReadOnly())
+			if (digest != null)
 			{
-				bytes = new byte[b.remaining()];
-				b.get(bytes);
+				DigestPool.release(algorithm, digest);
+				digest = null;
 			}
-			else bytes = b.array();
 
 			return this;
 		}
-		
-		private Builder(Preferences preferences)
+
+		/** Hash more content. */
+		public Builder update(byte[] b)
 		{
-			try
+			digest().update(b);
+			return this;
+		}
+
+		/** Hash a buffer's remaining content (heap, direct or mapped). */
+		public Builder update(ByteBuffer b)
+		{
+			digest().update(b.duplicate());
+			return this;
+		}
+
+		public Builder update(Iterable<ByteBuffer> buffers)
+		{
+			for (ByteBuffer b : buffers) update(b);
+			return this;
+		}
+
+		/**
+		 * Hash everything left in a (blocking) channel, reading it to the end.
+		 *
+		 * Large regions of {@link FileChannel}s are memory-mapped rather than read.
+		 */
+		public Builder update(ReadableByteChannel channel) throws IOException
+		{
+			MessageDigest d = digest();
+
+			if (channel instanceof FileChannel)
+			{
+				FileChannel file = (FileChannel) channel;
+				long end = file.size();
+				if (end - file.position() >= MAP_THRESHOLD)
+				{
+					for (long pos = file.position(); pos < end; pos += MAP_BYTES)
+						d.update(file.map(FileChannel.MapMode.READ_ONLY, pos,
+							Math.min(MAP_BYTES, end - pos)));
+
+					file.position(end);
+					return this;
+				}
+			}
+
+			ByteBuffer buffer = ByteBuffer.allocate(READ_BYTES);
+			while (channel.read(buffer) >= 0)
 			{
-				algorithm = MessageDigest.getInstance(
-					preferences.getString("crypto.hash.algorithm").get());
+				buffer.flip();
+				d.update(buffer);
+				buffer.clear();
 			}
+
+			return this;
+		}
+
+
+		private Builder(Preferences preferences)
+		{
+			algorithm = preferences.getString("crypto.hash.algorithm").get();
+
+			try { algorithmId = algorithmId(algorithm); }
 			catch (NoSuchAlgorithmException e)
 			{
 				throw new ConfigurationError("Invalid hash algorithm: " + e);
 			}
 		}
 
-		private MessageDigest algorithm;
-		private byte[] bytes;
+		/** The digest that content is being fed into (borrowed from the pool on first use). */
+		private MessageDigest digest()
+		{
+			if (digest == null)
+			{
+				try { digest = DigestPool.acquire(algorithm); }
+				catch (NoSuchAlgorithmException e)
+				{
+					throw new ProgrammerError("Checked hash algorithm '" + algorithm
+						+ "' has vanished", e);
+				}
+			}
+
+			return digest;
+		}
+
+		/** Files at least this big are hashed via memory mappings rather than reads. */
+		private static final long MAP_THRESHOLD = 256 * 1024;
+
+		/** How much of a file to map at once. */
+		private static final long MAP_BYTES = 64 * 1024 * 1024;
+
+		/** How much to read from a channel at once. */
+		private static final int READ_BYTES = 64 * 1024;
+
+		private String algorithm;
+		private byte algorithmId;
+		private MessageDigest digest;
 	}
 
 
-	@Override public String toString() { return uri.toString(); }
-	@Override public int hashCode() { return bytes.duplicate().getInt(); }
+	@Override public String toString() { return encode(); }
+	@Override public int hashCode() { return key.hashCode; }
 	@Override public boolean equals(Object o)
 	{
 		if (!(o instanceof Fingerprint)) return false;
-		Fingerprint f = (Fingerprint) o;
-
-		if (!algorithm.getAlgorithm().toLowerCase()
-				.equals(f.algorithm.getAlgorithm().toLowerCase()))
-			return false;
-		if (bytes.compareTo(f.bytes) != 0) return false;
-
-		return true;
+		return key.equals(((Fingerprint) o).key);
 	}
 
-	String hex() { return Hex.encodeHexString(bytes.array()); }
+	String hex() { return Hex.encodeHexString(key.hash); }
+
+	private String algorithmName() { return algorithms.get(key.algorithm); }
+	private String base32() { return new String(new Base32().encode(key.hash)); }
 
-	private Fingerprint(MessageDigest hashAlgorithm, ByteBuffer fingerprintBytes, URI uri)
+	/**
+	 * The ID of a hash algorithm (which is checked the first time we see it). IDs are only
+	 * meaningful within this process: they are never stored.
+	 */
+	private static byte algorithmId(String name) throws NoSuchAlgorithmException
 	{
-		Preconditions.check(uri.getScheme().equals("urn"));
+		name = name.toLowerCase();
+		Byte id = algorithmIds.get(name);
+		if (id != null) return id;
+
+		DigestPool.check(name);
+		synchronized (algorithms)
+		{
+			id = algorithmIds.get(name);
+			if (id != null) return id;
+
+			if (algorithms.size() > Byte.MAX_VALUE)
+				throw new NoSuchAlgorithmException("Too many hash algorithms; can't add " + name);
 
-		this.algorithm = hashAlgorithm;
-		this.bytes = fingerprintBytes;
-		this.uri = uri;
+			id = (byte) algorithms.size();
+			algorithms.add(name);
+			algorithmIds.put(name, id);
+		}
+
+		return id;
 	}
 
-	private MessageDigest algorithm;
-	private ByteBuffer bytes;
-	private URI uri;
+	private Fingerprint(Key key) { this.key = key; }
+
+	private final Key key;
+
+	/** The text form of the fingerprint, computed on demand. */
+	private volatile String encoded;
+
+	/** Hash algorithm names (in lower case), indexed by ID. */
+	private static final List<String> algorithms = new CopyOnWriteArrayList<String>();
+	private static final Map<String,Byte> algorithmIds = new ConcurrentHashMap<String,Byte>();
 
 	private static Logger log = Logger.getLogger(Fingerprint.class.getCanonicalName());
 }
@@ -19,6 +19,8 @@ import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.crypto.Cipher;
 
@@ -141,14 +143,42 @@ public class Link implements FootlightsPrimitive
 		if (ciphertext.remaining() == 0)
 			throw new GeneralSecurityException("Nothing to decrypt!");
 
-		if (cipher == null)
-			cipher = key.newCipherBuilder()
-				.setOperation(SecretKey.Operation.DECRYPT)
-				.build();
+		if (!CounterMode.matches(ciphertext)) return decryptLegacy(ciphertext);
+
+		// There's a tiny chance that legacy ciphertext starts with the same magic bytes.
+		Exception ctrFailure;
+		try { return Block.parse(CounterMode.decrypt(key, ciphertext)); }
+		catch (GeneralSecurityException e) { ctrFailure = e; }
+		catch (FormatException e) { ctrFailure = e; }
+
+		log.log(Level.FINE, "Unable to decrypt CTR-mode block; trying legacy format", ctrFailure);
+		try { return decryptLegacy(ciphertext); }
+		catch (GeneralSecurityException e)
+		{
+			// It's far more likely to be a damaged CTR-mode block than a legacy one.
+			throw new GeneralSecurityException(
+				"Unable to decrypt CTR-mode block (nor as legacy: " + e.getMessage() + ")",
+				ctrFailure);
+		}
+	}
+
+	/** Decrypt a block encrypted with the default mode and an all-zero IV. */
+	private Block decryptLegacy(ByteBuffer ciphertext) throws GeneralSecurityException
+	{
+		Cipher cipher = key.newCipherBuilder()
+			.setOperation(SecretKey.Operation.DECRYPT)
+			.borrow();
 
 		int toDecrypt = cipher.getOutputSize(ciphertext.remaining());
 		ByteBuffer plaintext = ByteBuffer.allocate(toDecrypt);
-		int bytes = cipher.doFinal(ciphertext.asReadOnlyBuffer(), plaintext);
+		final int bytes;
+		try { bytes = cipher.doFinal(ciphertext.asReadOnlyBuffer(), plaintext); }
+		catch (GeneralSecurityException e)
+		{
+			CipherPool.discard(cipher);
+			throw e;
+		}
+
 		if (bytes != toDecrypt)
 			throw new GeneralSecurityException(
 				"Decrypted wrong number of bytes; expected " + toDecrypt + ", got " + bytes);
@@ -264,6 +294,8 @@ public class Link implements FootlightsPrimitive
 		return true;
 	}
 
+	@Override public int hashCode() { return fingerprint.hashCode(); }
+
 
 	/** The magic bytes at the beginning of a {@link Link}. */
 	private static byte[] MAGIC = new byte[] { 'L', 'I', 'N', 'K', '\r', '\n' };
@@ -271,14 +303,14 @@ public class Link implements FootlightsPrimitive
 	/** Character set used for byte<->String translation. */
 	private static final String ASCII = "ascii";
 
+	private static final Logger log = Logger.getLogger(Link.class.getCanonicalName());
+
 	/** Name of the block. */
 	private final Fingerprint fingerprint;
 
 	/** Key to decrypt the linked block (or null) */
 	private final SecretKey key;
 
-	/** Cipher used to decrypt the linked block. */
-	private Cipher cipher;
 
 	/** Raw byte representation */
 	private ByteBuffer raw;
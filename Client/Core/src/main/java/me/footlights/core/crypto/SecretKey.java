@@ -26,7 +26,6 @@ import java.security.SecureRandom;
 
 import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.commons.codec.binary.Hex;
@@ -127,17 +126,21 @@ public class SecretKey
 			throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
 			       InvalidAlgorithmParameterException
 		{
-			String fullAlgorithm = keySpec.getAlgorithm() + "/" + mode + "/" + padding;
-			Cipher cipher = Cipher.getInstance(fullAlgorithm);
-
-			IvParameterSpec iv = null;
-			if (!mode.equals("ECB")) iv = new IvParameterSpec(new byte[cipher.getBlockSize()]);
-
-			cipher.init(operation.opcode(), keySpec, iv);
+			Cipher cipher = Cipher.getInstance(transformation());
+			cipher.init(operation.opcode(), keySpec, CipherPool.zeroIV(cipher));
 
 			return cipher;
 		}
 
+		/**
+		 * Borrow an initialized cipher from the calling thread's {@link CipherPool}, rather than
+		 * creating a new one. It must not be kept or shared with other threads.
+		 */
+		public Cipher borrow() throws GeneralSecurityException
+		{
+			return CipherPool.get(transformation(), operation.opcode(), keySpec, null);
+		}
+
 		public CipherBuilder parseAlgorithm(String a)
 		{
 			String[] parts = a.split("/");
@@ -162,6 +165,11 @@ public class SecretKey
 
 		private CipherBuilder() {}
 
+		private String transformation()
+		{
+			return keySpec.getAlgorithm() + "/" + mode + "/" + padding;
+		}
+
 		private Operation operation = Operation.ENCRYPT;
 		private String mode = preferences.getString("crypto.sym.mode").get();
 		private String padding = preferences.getString("crypto.sym.padding").get();
@@ -15,7 +15,9 @@
  */
 package me.footlights.core.data;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.security.*;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -25,10 +27,17 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
 
 import javax.crypto.Cipher;
 
+import scala.Option;
+
+import me.footlights.core.ConfigurationError;
 import me.footlights.core.Preconditions;
+import me.footlights.core.Preferences;
+import me.footlights.core.crypto.CipherPool;
+import me.footlights.core.crypto.CounterMode;
 import me.footlights.core.crypto.Fingerprint;
 import me.footlights.core.crypto.Link;
 import me.footlights.core.crypto.SecretKey;
@@ -40,6 +49,24 @@ import me.footlights.core.crypto.SecretKey;
  */
 public class Block implements FootlightsPrimitive
 {
+	/** Preference: how to encrypt new blocks ("legacy" or "ctr"); see {@link Format}. */
+	public static final String FORMAT_KEY = "crypto.block.format";
+
+	/**
+	 * Block encryption formats. Blocks in any format can be decrypted, whatever the preference.
+	 */
+	public enum Format
+	{
+		/** The default symmetric mode and padding, with an all-zero IV. */
+		LEGACY,
+
+		/**
+		 * Counter mode, with a per-block nonce in a ciphertext header; large blocks can be
+		 * encrypted in parallel. See {@link CounterMode}.
+		 */
+		CTR,
+	}
+
 	public static class Builder
 	{
 		/** How much room is left in this {@link Block}-to-be? */
@@ -54,12 +81,20 @@ public class Block implements FootlightsPrimitive
 			return remaining;
 		}
 
-		public Builder addLink(Link link) { links.add(link); return this; }
+		public Builder addLink(Link link) { links.add(link); raw = null; return this; }
 
 		public Builder addContent(byte[] content) { return addContent(ByteBuffer.wrap(content)); }
+
+		/**
+		 * Add some content to the {@link Block}-to-be.
+		 *
+		 * The content is not copied: the resulting {@link Block} shares it with the caller, so
+		 * it must not be modified after it has been added.
+		 */
 		public Builder addContent(ByteBuffer content)
 		{
 			this.content.add(content.asReadOnlyBuffer());
+			raw = null;
 			return this;
 		}
 
@@ -70,6 +105,7 @@ public class Block implements FootlightsPrimitive
 		public Builder setDesiredSize(int bytes)
 		{
 			this.desiredSize = bytes;
+			raw = null;
 			return this;
 		}
 
@@ -129,24 +165,23 @@ public class Block implements FootlightsPrimitive
 			bytes.position(bytes.position() + dataLength);
 			padding = bytes.slice();
 
+			// We already have the raw bytes of the block; there's no need to re-assemble them.
+			ByteBuffer whole = bytes.duplicate();
+			whole.position(startPosition);
+			raw = whole.slice().asReadOnlyBuffer();
+
 			return this;
 		}
 
+		/**
+		 * Build the {@link Block}.
+		 *
+		 * Content buffers are not flattened or copied: the {@link Block} keeps them as a list of
+		 * slices, which are gathered directly into a cipher or a {@link GatheringByteChannel}.
+		 */
 		public Block build() throws FormatException
 		{
-			final ByteBuffer flattened;
-			if (content.size() == 1) flattened = content.get(0);
-			else
-			{
-				int contentSize = 0;
-				for (ByteBuffer b : content) contentSize += b.remaining();
-
-				flattened = ByteBuffer.allocate(contentSize);
-				for (ByteBuffer b : content) flattened.put(b);
-				flattened.flip();
-			}
-
-			return new Block(links, flattened, padding, desiredSize, fingerprintBuilder);
+			return new Block(links, content, padding, desiredSize, fingerprintBuilder, raw);
 		}
 
 		private Builder() {}
@@ -156,6 +191,9 @@ public class Block implements FootlightsPrimitive
 		private List<ByteBuffer> content = new ArrayList<ByteBuffer>();
 		private ByteBuffer padding;
 		private Fingerprint.Builder fingerprintBuilder = Fingerprint.newBuilder();
+
+		/** Raw bytes of a parsed block (if any). */
+		private ByteBuffer raw;
 	}
 
 	public static Builder newBuilder() { return new Builder(); }
@@ -167,10 +205,52 @@ public class Block implements FootlightsPrimitive
 	}
 
 	public List<Link> links() { return links; }
-	public ByteBuffer content() { return content.asReadOnlyBuffer(); }
+	public ByteBuffer content() { return flatContent().asReadOnlyBuffer(); }
 	public Fingerprint name() { return fingerprint; }
 
+	/**
+	 * Write the raw bytes of the {@link Block} to a {@link GatheringByteChannel}.
+	 *
+	 * The header, links, content and padding are handed to the channel as a single gathering
+	 * write, without first being assembled into one contiguous buffer.
+	 *
+	 * @return the number of bytes written
+	 */
+	public long writeTo(GatheringByteChannel channel) throws IOException
+	{
+		ByteBuffer[] buffers = segments();
+
+		long written = 0;
+		while (written < totalLength) written += channel.write(buffers);
+
+		return written;
+	}
+
+	/**
+	 * Encrypt the block in the format chosen by the {@link #FORMAT_KEY} preference.
+	 *
+	 * @throws ConfigurationError   if the preference names an unknown format
+	 */
 	public EncryptedBlock encrypt() throws GeneralSecurityException
+	{
+		return encrypt(null);
+	}
+
+	/**
+	 * Encrypt the block in the format chosen by the {@link #FORMAT_KEY} preference.
+	 *
+	 * @param pool    if the format allows it, large blocks are split into segments which are
+	 *                encrypted on this pool (ignored if null)
+	 *
+	 * @throws ConfigurationError   if the preference names an unknown format
+	 */
+	public EncryptedBlock encrypt(ExecutorService pool) throws GeneralSecurityException
+	{
+		return encrypt(preferredFormat(Preferences.getDefaultPreferences()), pool);
+	}
+
+	public EncryptedBlock encrypt(Format format, ExecutorService pool)
+		throws GeneralSecurityException
 	{
 		SecretKey.Generator keygen = SecretKey.newGenerator();
 
@@ -183,16 +263,16 @@ public class Block implements FootlightsPrimitive
 				.setBytes(secret)
 				.generate();
 
-		Cipher cipher = key
-			.newCipherBuilder()
-			.setOperation(SecretKey.Operation.ENCRYPT)
-			.build();
-
-		int len = cipher.getOutputSize(bytes.remaining());
-		ByteBuffer ciphertext = ByteBuffer.allocate(len);
+		ByteBuffer ciphertext;
+		switch (format)
+		{
+			case CTR:
+				ciphertext = CounterMode.encrypt(key, segments(), totalLength, pool);
+				break;
 
-		cipher.doFinal(bytes.asReadOnlyBuffer(), ciphertext);
-		ciphertext.flip();
+			default:
+				ciphertext = encryptLegacy(key);
+		}
 
 		Fingerprint ciphertextName = Fingerprint.newBuilder().setContent(ciphertext).build();
 		Link link = Link.newBuilder()
@@ -206,10 +286,50 @@ public class Block implements FootlightsPrimitive
 			.build();
 	}
 
+	/** Encrypt with the default mode and an all-zero IV (the original block format). */
+	private ByteBuffer encryptLegacy(SecretKey key) throws GeneralSecurityException
+	{
+		Cipher cipher = key
+			.newCipherBuilder()
+			.setOperation(SecretKey.Operation.ENCRYPT)
+			.borrow();
+
+		// Feed the block's segments straight into the cipher: this is the only copy we make.
+		int len = cipher.getOutputSize(totalLength);
+		ByteBuffer ciphertext = ByteBuffer.allocate(len);
+
+		try
+		{
+			for (ByteBuffer segment : segments()) cipher.update(segment, ciphertext);
+			cipher.doFinal(ByteBuffer.allocate(0), ciphertext);
+		}
+		catch (GeneralSecurityException e)
+		{
+			CipherPool.discard(cipher);
+			throw e;
+		}
+		ciphertext.flip();
+
+		return ciphertext;
+	}
+
+	/** The format named by the {@link #FORMAT_KEY} preference (or LEGACY, if it isn't set). */
+	static Format preferredFormat(Preferences prefs) throws ConfigurationError
+	{
+		Option<String> name = prefs.getString(FORMAT_KEY);
+		if (name.isEmpty()) return Format.LEGACY;
+
+		try { return Format.valueOf(name.get().toUpperCase()); }
+		catch (IllegalArgumentException e)
+		{
+			throw new ConfigurationError("Unknown block format '" + name.get() + "'");
+		}
+	}
+
 
 	// FootlightsPrimitive implementation
-	public int bytes()            { return bytes.remaining(); }
-	public ByteBuffer getBytes()  { return bytes.asReadOnlyBuffer(); }
+	public int bytes()            { return totalLength; }
+	public ByteBuffer getBytes()  { return rawBytes().asReadOnlyBuffer(); }
 
 	// Object overrides
 	@Override public boolean equals(Object o)
@@ -222,10 +342,8 @@ public class Block implements FootlightsPrimitive
 
 		if (!fingerprint.equals(other.fingerprint)) return false;
 		if (!links.equals(other.links)) return false;
-
-		if ((content == null) ^ (other.content == null)) return false;
-		if ((content != null) && !content.equals(other.content))
-			return false;
+		if (contentLength != other.contentLength) return false;
+		if (!flatContent().equals(other.flatContent())) return false;
 
 		return true;
 	}
@@ -237,7 +355,7 @@ public class Block implements FootlightsPrimitive
 		buf.append("Block { ");
 		buf.append(links.size());
 		buf.append(" links, ");
-		buf.append((content == null) ? 0 : content.limit());
+		buf.append(contentLength);
 		buf.append(" B of content }");
 
 		return buf.toString();
@@ -307,6 +425,7 @@ public class Block implements FootlightsPrimitive
 	/**
 	 * Private constructor; use {@link #parse} or {@link #newBuilder}.
 	 *
+	 * @param content     Slices of user content, which are not copied.
 	 * @param padding     Random padding at the end of the block. If null,
 	 *                    the constructor will generate random padding. If
 	 *                    non-null, the padding must be of precisely the
@@ -314,20 +433,29 @@ public class Block implements FootlightsPrimitive
 	 *                    of a power of two: <b>only</b> do this when parsing
 	 *                    an existing, correctly-padded block.
 	 * @param desiredSize The desired block size, or 0 for "automatically size to a power of 2"
+	 * @param raw         The raw bytes that the block was parsed from (or null)
 	 */
-	private Block(List<Link> links, ByteBuffer content, ByteBuffer padding,
-			int desiredSize, Fingerprint.Builder fingerprintBuilder)
+	private Block(List<Link> links, List<ByteBuffer> content, ByteBuffer padding,
+			int desiredSize, Fingerprint.Builder fingerprintBuilder, ByteBuffer raw)
 		throws FormatException
 	{
 		Preconditions.notNull(links, content, fingerprintBuilder);
 
 		this.links    = Collections.unmodifiableList(links);
 
+		List<ByteBuffer> slices = new ArrayList<ByteBuffer>(content.size());
+		for (ByteBuffer b : content) slices.add(b.asReadOnlyBuffer());
+		this.content = Collections.unmodifiableList(slices);
+
+		int contentLength = 0;
+		for (ByteBuffer b : slices) contentLength += b.remaining();
+		this.contentLength = contentLength;
+
 		// How many bytes do we need for the raw byte representation?
 		int byteCount = MINIMUM_BYTES;
 		for (Link link : links) byteCount += link.bytes();
 		int dataOffset = byteCount;
-		byteCount += content.remaining();
+		byteCount += contentLength;
 		if (padding != null) byteCount += padding.remaining();
 
 		// Do we want the block to be a particular size?
@@ -351,57 +479,103 @@ public class Block implements FootlightsPrimitive
 			totalLength = (1 << N);
 		}
 
-		// Allocate serialized version, write header information
-		ByteBuffer rawBytes = ByteBuffer.allocate(totalLength);
-		rawBytes.put(MAGIC);
-		rawBytes.put(N);
-		rawBytes.put((byte) links.size());
-		rawBytes.putInt(dataOffset);
-		rawBytes.putInt(content.remaining());
-
-		// Write links
-		for (Link link : links) rawBytes.put(link.getBytes().asReadOnlyBuffer());
+		if ((desiredSize != 0) && (totalLength != desiredSize))
+			throw new FormatException(
+				"Built block of incorrect size: wanted " + desiredSize
+				 + "B, was " + totalLength + "B");
 
-		// The 'content' buffer can share the 'bytes' backing array
-		this.content = rawBytes.slice().asReadOnlyBuffer();
-		this.content.limit(content.remaining());
-		rawBytes.put(content);
+		int paddingLength = totalLength - dataOffset - contentLength;
+		if (paddingLength < 0)
+			throw new FormatException(
+				"Unable to fit " + dataOffset + " + " + contentLength + "B of header and content"
+				 + " into a " + totalLength + "B block");
+
+		// Write header information
+		ByteBuffer header = ByteBuffer.allocate(MINIMUM_BYTES);
+		header.put(MAGIC);
+		header.put(N);
+		header.put((byte) links.size());
+		header.putInt(dataOffset);
+		header.putInt(contentLength);
+		header.flip();
+		this.header = header.asReadOnlyBuffer();
 
 		if (padding == null)
 		{
-			padding = ByteBuffer.allocate(rawBytes.remaining());
+			padding = ByteBuffer.allocate(paddingLength);
 			random.nextBytes(padding.array());
 		}
 
-		// The padding buffer can also share rawBytes' backing array, but make
-		// sure it's the correct length first.
-		if (padding.remaining() != rawBytes.remaining())
+		// Make sure that the padding is the correct length.
+		if (padding.remaining() != paddingLength)
 			throw new IllegalArgumentException(
 				"Supplied padding length is incorrect (" + padding.remaining()
-				+ "B, should be " + rawBytes.remaining() + "B)");
-
-		this.padding = rawBytes.slice().asReadOnlyBuffer();
-		this.padding.limit(padding.remaining());
-		rawBytes.put(padding);
+				+ "B, should be " + paddingLength + "B)");
 
-		// That's the last of the raw bytes.
-		rawBytes.rewind();
-
-		if ((desiredSize != 0) && (rawBytes.remaining() != desiredSize))
-			throw new FormatException(
-				"Built block of incorrect size: wanted " + desiredSize
-				 + "B, was " + rawBytes.remaining() + "B");
-
-		this.bytes = rawBytes;
-		if ((desiredSize != 0) && (desiredSize != this.bytes.limit()))
-			throw new IllegalArgumentException(
-				"Unable to construct a " + desiredSize + "B block; is it a power of 2?"
-				 + " The nearest possible block size is " + this.bytes.limit() + "B.");
+		this.padding = padding.asReadOnlyBuffer();
+		this.totalLength = totalLength;
+		this.bytes = raw;
 
 		// Now that our raw bytes have been completely determined, calculate
 		// the block's name (based on a fingerprint of its contents).
 		if (fingerprintBuilder == null) fingerprintBuilder = Fingerprint.newBuilder();
-		this.fingerprint = fingerprintBuilder.setContent(bytes).build();
+		this.fingerprint = fingerprintBuilder.setContent(Arrays.asList(segments())).build();
+	}
+
+
+	/**
+	 * The raw bytes of the block, as a list of buffers which may be gathered together:
+	 * header, links, content and padding.
+	 *
+	 * Each call returns fresh buffers, which the caller may consume.
+	 */
+	private ByteBuffer[] segments()
+	{
+		ByteBuffer raw = bytes;
+		if (raw != null) return new ByteBuffer[] { raw.duplicate() };
+
+		ByteBuffer[] segments = new ByteBuffer[2 + links.size() + content.size()];
+		int i = 0;
+
+		segments[i++] = header.duplicate();
+		for (Link link : links) segments[i++] = link.getBytes();
+		for (ByteBuffer b : content) segments[i++] = b.duplicate();
+		segments[i++] = padding.duplicate();
+
+		return segments;
+	}
+
+	/** The user content, flattened into a single buffer if it isn't already. */
+	private ByteBuffer flatContent()
+	{
+		if (content.size() == 1) return content.get(0);
+
+		synchronized (this)
+		{
+			if (flattened == null)
+			{
+				ByteBuffer b = ByteBuffer.allocate(contentLength);
+				for (ByteBuffer c : content) b.put(c.duplicate());
+				b.flip();
+				flattened = b.asReadOnlyBuffer();
+			}
+
+			return flattened;
+		}
+	}
+
+	/** The raw bytes of the block, assembled into a single buffer if they aren't already. */
+	private synchronized ByteBuffer rawBytes()
+	{
+		if (bytes == null)
+		{
+			ByteBuffer b = ByteBuffer.allocate(totalLength);
+			for (ByteBuffer segment : segments()) b.put(segment);
+			b.flip();
+			bytes = b.asReadOnlyBuffer();
+		}
+
+		return bytes;
 	}
 
 
@@ -419,9 +593,18 @@ public class Block implements FootlightsPrimitive
 
 	private final Fingerprint fingerprint;
 	private final List<Link> links;
-	private final ByteBuffer content;
+	private final ByteBuffer header;
+	private final List<ByteBuffer> content;
+	private final int contentLength;
 	private final ByteBuffer padding;
+	private final int totalLength;
 
-	/** Raw byte version of the block */
-	private final ByteBuffer bytes;
+	/** Content, flattened into a single buffer on demand. */
+	private ByteBuffer flattened;
+
+	/**
+	 * Raw byte version of the block (assembled on demand). Volatile because {@link #segments()}
+	 * reads it without holding the lock that {@link #rawBytes()} assigns it under.
+	 */
+	private volatile ByteBuffer bytes;
 }
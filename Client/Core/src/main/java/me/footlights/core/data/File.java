@@ -17,20 +17,34 @@ package me.footlights.core.data;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import scala.Option;
+import scala.concurrent.forkjoin.ForkJoinPool;
+import scala.concurrent.forkjoin.RecursiveTask;
 
 import me.footlights.core.crypto.Link;
 import me.footlights.core.data.store.Stat;
+import me.footlights.core.data.store.Store;
 
 
 /**
@@ -45,7 +59,47 @@ public class File implements me.footlights.api.File
 		List<Block> plaintext = new ArrayList<Block>(ciphertext.size());
 		for (EncryptedBlock e : ciphertext) plaintext.add(e.plaintext());
 
-		return new File(header, plaintext, ciphertext);
+		return new File(header, plaintext, ciphertext, Collections.<EncryptedBlock>emptyList());
+	}
+
+	/**
+	 * Open a {@link File} whose content lives in a {@link Store}.
+	 *
+	 * Content blocks are only retrieved and decrypted when a reader reaches them, so opening a
+	 * file costs the same no matter how big it is. Headers written before files recorded their
+	 * length cannot be read this way; their (at most {@link FileHeader#LINKS_PER_BLOCK}) blocks
+	 * are retrieved up front.
+	 */
+	public static File from(EncryptedBlock header, Store store)
+		throws GeneralSecurityException, IOException
+	{
+		return from(header, store, Option.<ReadAhead>apply(null));
+	}
+
+	/**
+	 * Open a {@link File} whose content lives in a {@link Store}, retrieving blocks before a
+	 * sequential reader gets to them.
+	 */
+	public static File from(EncryptedBlock header, Store store, Option<ReadAhead> readAhead)
+		throws GeneralSecurityException, IOException
+	{
+		FileHeader parsed = FileHeader.parse(header.plaintext());
+		if (parsed.length() >= 0)
+			return new File(header, new StoredContent(parsed, store, readAhead), parsed.length(),
+				Collections.<EncryptedBlock>emptyList(), Collections.<EncryptedBlock>emptyList());
+
+		// Legacy files need all of their blocks now, so retrieve them together.
+		List<EncryptedBlock> ciphertext = new ArrayList<EncryptedBlock>(parsed.links().size());
+		List<Option<EncryptedBlock>> blocks = store.retrieveCiphertext(parsed.links());
+		for (int i = 0; i < blocks.size(); i++)
+		{
+			if (blocks.get(i).isEmpty())
+				throw new IOException("Block " + parsed.links().get(i) + " not in " + store);
+
+			ciphertext.add(blocks.get(i).get());
+		}
+
+		return from(header, ciphertext);
 	}
 
 	public static MutableFile newBuilder() { return new MutableFile(); }
@@ -78,6 +132,18 @@ public class File implements me.footlights.api.File
 			return this;
 		}
 
+		/**
+		 * Build, encrypt and fingerprint blocks on a {@link ForkJoinPool} when freezing.
+		 *
+		 * The order of the resulting blocks is the same as for a sequential freeze; the size of
+		 * the pool bounds how many cores the work can use.
+		 */
+		public MutableFile setEncryptionPool(ForkJoinPool pool)
+		{
+			this.pool = pool;
+			return this;
+		}
+
 		/**
 		 * Produce a proper {@link File} by fixing the current contents of this
 		 * {@link MutableFile}.
@@ -89,29 +155,465 @@ public class File implements me.footlights.api.File
 					Block.newBuilder().setDesiredSize(desiredBlockSize).remaining());
 
 			// Next, create {@link EncryptedBlock} objects.
-			List<EncryptedBlock> ciphertext = new ArrayList<EncryptedBlock>(chunked.size());
+			List<EncryptedBlock> ciphertext;
+			if (pool == null) ciphertext = encrypt(chunked, desiredBlockSize);
+			else
+			{
+				try
+				{
+					ciphertext = pool.invoke(new EncryptionTask(
+						new ArrayList<ByteBuffer>(chunked), desiredBlockSize));
+				}
+				catch (EncryptionTask.Failure f)
+				{
+					Throwable cause = f.getCause();
+					while (cause instanceof EncryptionTask.Failure) cause = cause.getCause();
 
-			for (ByteBuffer b : chunked)
-				ciphertext.add(
-					Block.newBuilder()
-						.addContent(b)
-						.setDesiredSize(desiredBlockSize)
-						.build()
-						.encrypt());
+					if (cause instanceof FormatException) throw (FormatException) cause;
+					else throw (GeneralSecurityException) cause;
+				}
+			}
 
-			// Finally, create the header. TODO: just embed links in all the blocks.
-			Block.Builder header = Block.newBuilder();
-			for (EncryptedBlock b : ciphertext) header.addLink(b.link());
+			// Finally, create the header (and any indirect blocks that it needs).
+			final List<EncryptedBlock> indirect = new ArrayList<EncryptedBlock>();
+			FileHeader.Builder header = new FileHeader.Builder(new FileHeader.BlockSink()
+				{
+					@Override public void store(EncryptedBlock block) { indirect.add(block); }
+				});
+
+			List<Block> plaintext = new ArrayList<Block>(ciphertext.size());
+			for (EncryptedBlock b : ciphertext)
+			{
+				plaintext.add(b.plaintext());
+				header.add(b.link(), b.plaintext().content().remaining());
+			}
 
-			return File.from(header.build().encrypt(), ciphertext);
+			int chunkSize = Block.newBuilder().setDesiredSize(desiredBlockSize).remaining();
+			return new File(header.build(chunkSize), plaintext, ciphertext, indirect);
 		}
 
 		private MutableFile() {}
 
 		private Iterable<ByteBuffer> content = new ArrayList<ByteBuffer>();
 		private int desiredBlockSize = 4096;
+		private ForkJoinPool pool;
+	}
+
+	public static Writer newWriter(Store store) { return new Writer(store); }
+
+	/**
+	 * Writes a {@link File} into a {@link Store} as its content arrives.
+	 *
+	 * Content is chunked, encrypted and stored block by block, so only a window of in-flight
+	 * blocks is ever held in memory, no matter how big the file is. Once the {@link Writer} has
+	 * been closed, {@link #link()} names the new file.
+	 */
+	public static final class Writer implements WritableByteChannel
+	{
+		/**
+		 * Encrypt blocks on an {@link ExecutorService} rather than the writing thread.
+		 *
+		 * Blocks are still stored in order, from the writing thread.
+		 */
+		public Writer setEncryptionPool(ExecutorService pool)
+		{
+			this.pool = pool;
+			return this;
+		}
+
+		/** How many blocks may be waiting for encryption at once (when using a pool). */
+		public Writer setWindow(int blocks)
+		{
+			if (blocks < 1) throw new IllegalArgumentException("Window must be at least 1 block");
+			this.window = blocks;
+			return this;
+		}
+
+		Writer setDesiredBlockSize(int size)
+		{
+			if (chunk != null || written > 0)
+				throw new IllegalStateException("Cannot change block size after writing");
+
+			this.desiredBlockSize = size;
+			return this;
+		}
+
+		@Override public int write(ByteBuffer src) throws IOException
+		{
+			if (!open) throw new ClosedChannelException();
+
+			int count = 0;
+			while (src.hasRemaining())
+			{
+				if (chunk == null) chunk = ByteBuffer.allocate(chunkSize());
+
+				int bytes = Math.min(src.remaining(), chunk.remaining());
+				ByteBuffer slice = src.duplicate();
+				slice.limit(slice.position() + bytes);
+				chunk.put(slice);
+				src.position(src.position() + bytes);
+				count += bytes;
+
+				if (!chunk.hasRemaining()) submit();
+			}
+
+			written += count;
+			return count;
+		}
+
+		@Override public boolean isOpen() { return open; }
+
+		/** Store any remaining content, followed by the file's header. */
+		@Override public void close() throws IOException
+		{
+			if (!open) return;
+			open = false;
+
+			try
+			{
+				if ((chunk != null) && (chunk.position() > 0)) submit();
+				while (!pending.isEmpty()) complete();
+
+				EncryptedBlock encrypted = header.build(chunkSize());
+				store.store(encrypted);
+				link = encrypted.link();
+			}
+			catch (GeneralSecurityException e) { throw new IOException(e); }
+			finally
+			{
+				for (Future<EncryptedBlock> f : pending) f.cancel(true);
+				pending.clear();
+				chunk = null;
+			}
+		}
+
+		/** A link to the new {@link File}. */
+		public Link link()
+		{
+			if (link == null) throw new IllegalStateException("Writer has not been closed");
+			return link;
+		}
+
+		/** Number of bytes written so far. */
+		public long length() { return written; }
+
+
+		/** Encrypt the current chunk, possibly in the background. */
+		private void submit() throws IOException
+		{
+			chunk.flip();
+			final ByteBuffer content = chunk;
+			final int blockSize = desiredBlockSize;
+			chunk = null;
+
+			Callable<EncryptedBlock> encrypt = new Callable<EncryptedBlock>()
+			{
+				@Override public EncryptedBlock call()
+					throws FormatException, GeneralSecurityException
+				{
+					return Block.newBuilder()
+						.addContent(content)
+						.setDesiredSize(blockSize)
+						.build()
+						.encrypt();
+				}
+			};
+
+			if (pool == null)
+			{
+				try { finish(encrypt.call()); }
+				catch (IOException e) { throw e; }
+				catch (Exception e) { throw new IOException(e); }
+				return;
+			}
+
+			while (pending.size() >= window) complete();
+			pending.add(pool.submit(encrypt));
+		}
+
+		/** Wait for the oldest in-flight block to be encrypted, then store it. */
+		private void complete() throws IOException
+		{
+			try { finish(pending.remove().get()); }
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while encrypting file content");
+			}
+			catch (ExecutionException e)
+			{
+				if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+				else throw new IOException(e.getCause());
+			}
+			catch (GeneralSecurityException e) { throw new IOException(e); }
+		}
+
+		private void finish(EncryptedBlock block) throws GeneralSecurityException, IOException
+		{
+			store.store(block);
+			header.add(block.link(), block.plaintext().content().remaining());
+		}
+
+		private int chunkSize()
+		{
+			return Block.newBuilder().setDesiredSize(desiredBlockSize).remaining();
+		}
+
+		private Writer(final Store store)
+		{
+			this.store = store;
+			this.header = new FileHeader.Builder(new FileHeader.BlockSink()
+				{
+					@Override public void store(EncryptedBlock block) { store.store(block); }
+				});
+		}
+
+		private final Store store;
+		private final FileHeader.Builder header;
+		private final Queue<Future<EncryptedBlock>> pending =
+			new ArrayDeque<Future<EncryptedBlock>>();
+
+		private ExecutorService pool;
+		private int window = 16;
+		private int desiredBlockSize = 4096;
+
+		private ByteBuffer chunk;
+		private long written;
+		private boolean open = true;
+		private Link link;
+	}
+
+	/** Build and encrypt one {@link Block} per chunk of content, in order. */
+	private static List<EncryptedBlock> encrypt(Collection<ByteBuffer> chunks, int blockSize)
+		throws FormatException, GeneralSecurityException
+	{
+		List<EncryptedBlock> ciphertext = new ArrayList<EncryptedBlock>(chunks.size());
+
+		for (ByteBuffer b : chunks)
+			ciphertext.add(
+				Block.newBuilder()
+					.addContent(b)
+					.setDesiredSize(blockSize)
+					.build()
+					.encrypt());
+
+		return ciphertext;
+	}
+
+	/**
+	 * Encrypts a run of chunks by splitting it in half until the pieces are small enough to
+	 * encrypt sequentially, then joining the results back together in their original order.
+	 */
+	private static class EncryptionTask extends RecursiveTask<List<EncryptedBlock>>
+	{
+		/** Carries a checked exception out of {@link #compute()}. */
+		static class Failure extends RuntimeException
+		{
+			Failure(Exception cause) { super(cause); }
+			private static final long serialVersionUID = 1L;
+		}
+
+		EncryptionTask(List<ByteBuffer> chunks, int blockSize)
+		{
+			this.chunks = chunks;
+			this.blockSize = blockSize;
+		}
+
+		@Override protected List<EncryptedBlock> compute()
+		{
+			if (chunks.size() <= SEQUENTIAL_THRESHOLD)
+			{
+				try { return encrypt(chunks, blockSize); }
+				catch (FormatException e) { throw new Failure(e); }
+				catch (GeneralSecurityException e) { throw new Failure(e); }
+			}
+
+			int middle = chunks.size() / 2;
+			EncryptionTask first = new EncryptionTask(chunks.subList(0, middle), blockSize);
+			EncryptionTask second =
+				new EncryptionTask(chunks.subList(middle, chunks.size()), blockSize);
+
+			second.fork();
+			List<EncryptedBlock> result = new ArrayList<EncryptedBlock>(chunks.size());
+			result.addAll(first.compute());
+			result.addAll(second.join());
+
+			return result;
+		}
+
+		/** Runs of blocks shorter than this are not worth splitting up. */
+		private static final int SEQUENTIAL_THRESHOLD = 4;
+
+		private final List<ByteBuffer> chunks;
+		private final int blockSize;
+		private static final long serialVersionUID = 1L;
+	}
+
+	/** Retrieve and decrypt a block that must be in a {@link Store}. */
+	private static Block retrieve(Store store, Link link) throws IOException
+	{
+		Option<Block> block;
+		try { block = store.decrypt(link); }
+		catch (GeneralSecurityException e) { throw new IOException(e); }
+
+		if (block.isEmpty()) throw new IOException("Block " + link + " not in " + store);
+		return block.get();
+	}
+
+
+	/**
+	 * The content blocks of a {@link File}, in order, along with the table that maps byte offsets
+	 * within the file to blocks.
+	 */
+	private abstract static class Content
+	{
+		/** The number of content blocks. */
+		abstract int size() throws IOException;
+
+		/** A decrypted content block. */
+		abstract Block get(int index) throws IOException;
+
+		/** The offset within the file of a block's first byte. */
+		abstract long start(int index);
+
+		/** The index of the block which contains a byte offset within the file. */
+		abstract int indexOf(long offset);
+
+		/**
+		 * The same content, as seen by one sequential reader: it may be worth retrieving
+		 * blocks ahead of that reader, but not ahead of any other.
+		 */
+		Content forReader() { return this; }
+
+		/** The reader is finished with this content. */
+		void close() {}
+	}
+
+	/** Content that has already been decrypted (e.g. because we just encrypted it). */
+	private static final class ResidentContent extends Content
+	{
+		ResidentContent(Collection<Block> plaintext)
+		{
+			this.plaintext = new ArrayList<Block>(plaintext);
+			this.offsets = new long[plaintext.size() + 1];
+
+			for (int i = 0; i < this.plaintext.size(); i++)
+				offsets[i + 1] = offsets[i] + this.plaintext.get(i).content().remaining();
+		}
+
+		@Override int size() { return plaintext.size(); }
+		@Override Block get(int index) { return plaintext.get(index); }
+		@Override long start(int index) { return offsets[index]; }
+
+		@Override int indexOf(long offset)
+		{
+			// offsets[i] <= offset < offsets[i + 1]
+			int i = Arrays.binarySearch(offsets, 0, plaintext.size(), offset);
+			return (i >= 0) ? i : (-i - 2);
+		}
+
+		/** Length of the file is the total length of all blocks. */
+		long length() { return offsets[plaintext.size()]; }
+
+		private final List<Block> plaintext;
+		private final long[] offsets;
+	}
+
+	/**
+	 * Content that is retrieved from a {@link Store} and decrypted when asked for.
+	 *
+	 * Every block but the last holds the same amount of content (recorded in the header), so
+	 * offsets can be mapped to blocks without retrieving anything.
+	 */
+	private static final class StoredContent extends Content
+	{
+		StoredContent(FileHeader header, Store store, Option<ReadAhead> readAhead)
+		{
+			this.header = header;
+			this.store = store;
+			this.readAhead = readAhead;
+		}
+
+		@Override int size() throws IOException { return links().size(); }
+
+		@Override Block get(int index) throws IOException { return get(index, null); }
+
+		@Override long start(int index) { return (long) index * header.blockContentSize(); }
+		@Override int indexOf(long offset) { return (int) (offset / header.blockContentSize()); }
+
+		/** Each reader gets its own read-ahead window, so readers don't cancel each other's. */
+		@Override Content forReader()
+		{
+			if (readAhead.isEmpty()) return this;
+
+			return new Content()
+			{
+				@Override int size() throws IOException { return StoredContent.this.size(); }
+				@Override Block get(int index) throws IOException
+				{
+					return StoredContent.this.get(index, window());
+				}
+
+				@Override long start(int index) { return StoredContent.this.start(index); }
+				@Override int indexOf(long offset) { return StoredContent.this.indexOf(offset); }
+
+				@Override synchronized void close()
+				{
+					if (window != null) window.close();
+					window = null;
+				}
+
+				private synchronized ReadAhead.Window window() throws IOException
+				{
+					if (window == null) window = readAhead.get().open(store, links());
+					return window;
+				}
+
+				private ReadAhead.Window window;
+			};
+		}
+
+		/** Retrieve and decrypt a block, through a reader's read-ahead window (if it has one). */
+		private Block get(int index, ReadAhead.Window window) throws IOException
+		{
+			Link link = links().get(index);
+			if (window == null) return retrieve(store, link);
+
+			Option<ByteBuffer> ciphertext = window.get(index);
+			if (ciphertext.isEmpty()) throw new IOException("Block " + link + " not in " + store);
+
+			try { return link.decrypt(ciphertext.get()); }
+			catch (GeneralSecurityException e) { throw new IOException(e); }
+		}
+
+		/** Links to content, found by walking any indirect blocks the first time we need them. */
+		private synchronized List<Link> links() throws IOException
+		{
+			if (links == null)
+			{
+				try
+				{
+					links = header.contentLinks(new FileHeader.BlockSource()
+						{
+							@Override public Block get(Link link) throws IOException
+							{
+								return retrieve(store, link);
+							}
+						});
+				}
+				catch (GeneralSecurityException e) { throw new IOException(e); }
+			}
+
+			return links;
+		}
+
+		private final FileHeader header;
+		private final Store store;
+		private final Option<ReadAhead> readAhead;
+		private List<Link> links;
 	}
 
+
 	@Override public URI name() { return stat.name().toURI(); }
 	public Stat stat() { return stat; }
 
@@ -124,13 +626,18 @@ public class File implements me.footlights.api.File
 	 */
 	@Override public ByteBuffer copyContents() throws IOException
 	{
-		int len = 0;
-		for (Block b : plaintext) len += b.content().remaining();
+		if (stat.length() > Integer.MAX_VALUE)
+			throw new IOException(this + " is too big to copy into one buffer");
 
-		ByteBuffer buffer = ByteBuffer.allocateDirect(len);
+		ByteBuffer buffer = ByteBuffer.allocateDirect((int) stat.length());
 
-		for (Block b : plaintext)
-			buffer.put(b.content().asReadOnlyBuffer());
+		Content blocks = content.forReader();
+		try
+		{
+			for (int i = 0; i < blocks.size(); i++)
+				buffer.put(blocks.get(i).content());
+		}
+		finally { blocks.close(); }
 
 		buffer.flip();
 		return buffer;
@@ -138,53 +645,118 @@ public class File implements me.footlights.api.File
 
 
 	/**
-	 * Get a {@link ReadableByteChannel} for the {@link File}.
+	 * Read a {@link File} from any position, retrieving and decrypting only the blocks that
+	 * cover what is actually read.
 	 *
-	 * For now, this is a wrapper around {@link #getInputStream()}; in the future, it should be
-	 * the other way around (if we keep {@link #getInputStream()} at all).
+	 * This has the same {@link #position()}, {@link #position(long)} and {@link #size()} methods
+	 * as Java 7's SeekableByteChannel, but it can't implement that interface until we stop
+	 * supporting Java 6 (i.e. Android).
 	 */
-	public ReadableByteChannel getChannel() { return Channels.newChannel(getInputStream()); }
+	public final class Reader implements ReadableByteChannel
+	{
+		@Override public int read(ByteBuffer dst) throws IOException
+		{
+			if (!open) throw new ClosedChannelException();
+			if (position >= size()) return (dst.hasRemaining() ? -1 : 0);
+
+			int count = 0;
+			while (dst.hasRemaining() && (position < size()))
+			{
+				int index = blocks.indexOf(position);
+				if (index >= blocks.size())
+					throw new IOException(
+						File.this + " has " + blocks.size() + " blocks, but header claims more");
+
+				if (index != currentIndex)
+				{
+					current = blocks.get(index).content();
+					currentIndex = index;
+				}
+
+				// Don't trust the header: stored blocks can hold less than it says they do.
+				long offset = position - blocks.start(index);
+				if (offset >= current.remaining())
+					throw new IOException("Block " + index + " of " + File.this
+						+ " shorter than header claims (" + current.remaining() + " B)");
+
+				ByteBuffer slice = current.duplicate();
+				slice.position((int) offset);
+				if (slice.remaining() > dst.remaining())
+					slice.limit(slice.position() + dst.remaining());
+
+				count += slice.remaining();
+				position += slice.remaining();
+				dst.put(slice);
+			}
+
+			return count;
+		}
+
+		/** The current position within the {@link File}. */
+		public long position() { return position; }
+
+		/** Move to a new position; positions beyond the end of the file are at EOF. */
+		public Reader position(long newPosition)
+		{
+			if (newPosition < 0) throw new IllegalArgumentException("Negative position");
+			position = newPosition;
+			return this;
+		}
+
+		/** The length of the {@link File}. */
+		public long size() { return stat.length(); }
+
+		@Override public boolean isOpen() { return open; }
+		@Override public void close()
+		{
+			open = false;
+			current = null;
+			blocks.close();
+		}
+
+		private Reader() {}
+
+		/** The file's content, read ahead (if at all) for this reader alone. */
+		private final Content blocks = content.forReader();
+
+		/** The most recently-read block, which is where the next read is likely to start. */
+		private ByteBuffer current;
+		private int currentIndex = -1;
+
+		private long position;
+		private boolean open = true;
+	}
+
+	/** Get a (random-access) {@link ReadableByteChannel} for the {@link File}. */
+	public Reader getChannel() { return new Reader(); }
 
 	/**
 	 * The content of the file, transformed into an {@link InputStream}.
+	 *
+	 * Blocks are only retrieved and decrypted once the stream reaches them.
 	 */
 	@Override public InputStream getInputStream()
 	{
-		final ByteBuffer[] buffers = new ByteBuffer[plaintext.size()];
-		for (int i = 0; i < buffers.length; i++)
-			buffers[i] = plaintext.get(i).content();
+		final Reader reader = getChannel();
 
 		return new InputStream()
 		{
 			@Override public int available()
 			{
-				int total = 0;
-				for (int i = blockIndex; i < buffers.length; i++)
-					total += buffers[i].remaining();
-
-				return total;
+				return (int) Math.max(0, Math.min(Integer.MAX_VALUE,
+					reader.size() - reader.position()));
 			}
 
-			@Override public int read(byte[] buffer, int offset, int len)
+			@Override public int read(byte[] buffer, int offset, int len) throws IOException
 			{
-				if (len == 0) return 0;
-				if (blockIndex >= plaintext.size()) return -1;
-
-				int pos = offset;
-				while ((pos < (offset + len)) && (blockIndex < buffers.length))
-				{
-					int leftToRead = len - (pos - offset);
-					ByteBuffer next = buffers[blockIndex];
-
-					int bytes = Math.min(leftToRead, next.remaining());
-					next.get(buffer, pos, bytes);
-					pos += bytes;
-
-					if (next.remaining() == 0) blockIndex++;
-					if (pos == offset) return -1;
-				}
+				return reader.read(ByteBuffer.wrap(buffer, offset, len));
+			}
 
-				return (pos - offset);
+			@Override public long skip(long n)
+			{
+				long skipped = Math.max(0, Math.min(n, reader.size() - reader.position()));
+				reader.position(reader.position() + skipped);
+				return skipped;
 			}
 
 			/** This is a horrendously inefficient way of reading data. Don't! */
@@ -201,16 +773,21 @@ public class File implements me.footlights.api.File
 				return data[0];
 			}
 
-
-			private int blockIndex;
+			@Override public void close() { reader.close(); }
 		};
 	}
 
 
-	/** Encrypted blocks to be saved in a {@link Store}. */
+	/**
+	 * Encrypted blocks to be saved in a {@link Store}.
+	 *
+	 * A {@link File} that was opened from a {@link Store} is already there, so only its header
+	 * is included.
+	 */
 	public List<EncryptedBlock> toSave()
 	{
 		LinkedList<EncryptedBlock> everything = new LinkedList<EncryptedBlock>(ciphertext);
+		everything.addAll(indirect);
 		everything.push(header);
 
 		return everything;
@@ -229,49 +806,61 @@ public class File implements me.footlights.api.File
 	 */
 	List<ByteBuffer> content() throws IOException
 	{
-		List<ByteBuffer> content = new ArrayList<ByteBuffer>(plaintext.size());
-		for (Block b : plaintext) content.add(b.content());
+		Content blocks = content.forReader();
+		try
+		{
+			List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(blocks.size());
+			for (int i = 0; i < blocks.size(); i++) buffers.add(blocks.get(i).content());
 
-		return content;
+			return buffers;
+		}
+		finally { blocks.close(); }
 	}
 
+	/** Two files are the same if their headers (which link to all of their content) are. */
 	@Override public boolean equals(Object o)
 	{
 		if (o == null) return false;
 		if (!(o instanceof File)) return false;
 
 		File f = (File) o;
-		if (!this.header.equals(f.header)) return false;
-		if (!this.plaintext.equals(f.plaintext)) return false;
-		if (!this.ciphertext.equals(f.ciphertext)) return false;
-
-		return true;
+		return this.header.equals(f.header);
 	}
 
 	@Override
 	public String toString()
 	{
-		return "Encrypted File [ " + header.name() + ", " + plaintext.size() + " blocks, " +
-			stat.length() + " B ]";
+		return "Encrypted File [ " + header.name() + ", " + stat.length() + " B ]";
 	}
 
 
 	/** Default constructor; produces an anonymous file */
-	private File(EncryptedBlock header,
-		Collection<Block> plaintext, Collection<EncryptedBlock> ciphertext)
+	private File(EncryptedBlock header, Collection<Block> plaintext,
+		Collection<EncryptedBlock> ciphertext, Collection<EncryptedBlock> indirect)
+	{
+		this(header, new ResidentContent(plaintext), ciphertext, indirect);
+	}
+
+	private File(EncryptedBlock header, ResidentContent content,
+		Collection<EncryptedBlock> ciphertext, Collection<EncryptedBlock> indirect)
+	{
+		this(header, content, content.length(), ciphertext, indirect);
+	}
+
+	private File(EncryptedBlock header, Content content, long length,
+		Collection<EncryptedBlock> ciphertext, Collection<EncryptedBlock> indirect)
 	{
 		this.header = header;
-		this.plaintext = new ArrayList<Block>(plaintext);
+		this.content = content;
 		this.ciphertext = new ArrayList<EncryptedBlock>(ciphertext);
-
-		long len = 0;
-		for (Block b : plaintext) len += b.content().remaining();
-		this.stat = Stat.apply(header.name(), len);
+		this.indirect = new ArrayList<EncryptedBlock>(indirect);
+		this.stat = Stat.apply(header.name(), length);
 	}
 
 
 	private final EncryptedBlock header;
-	private final List<Block> plaintext;
+	private final Content content;
 	private final List<EncryptedBlock> ciphertext;
+	private final List<EncryptedBlock> indirect;
 	private final Stat stat;
 }
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.core.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import me.footlights.core.crypto.Link;
+
+
+/**
+ * The header block of a {@link File}, which links to the file's content.
+ *
+ * A {@link Block} can only hold {@link #LINKS_PER_BLOCK} links, so the links to a large file's
+ * content blocks are arranged in a tree: the header links to "indirect" blocks, which link to
+ * more indirect blocks and, eventually, to content. All content is at the same depth.
+ *
+ * Headers also record the length of the file and the size of its content blocks, so we can
+ * map byte offsets to blocks without fetching the whole file. Headers without this information
+ * (written before it existed) link directly to content.
+ */
+final class FileHeader
+{
+	/** Somewhere to retrieve (and decrypt) linked blocks from. */
+	interface BlockSource
+	{
+		Block get(Link link) throws IOException, GeneralSecurityException;
+	}
+
+	/** Somewhere to put blocks as soon as they are encrypted. */
+	interface BlockSink
+	{
+		void store(EncryptedBlock block);
+	}
+
+
+	/**
+	 * Accumulates links to content blocks, emitting indirect blocks as soon as they are full so
+	 * that only O(depth) links are ever held in memory.
+	 */
+	static final class Builder
+	{
+		Builder(BlockSink sink) { this.sink = sink; }
+
+		/** Add the next content block. */
+		Builder add(Link link, int contentBytes) throws GeneralSecurityException, FormatException
+		{
+			length += contentBytes;
+			add(0, link);
+			return this;
+		}
+
+		/**
+		 * Finish the tree of links and produce the (encrypted) header.
+		 *
+		 * @param blockContentSize    how much content each block holds (except the last)
+		 */
+		EncryptedBlock build(int blockContentSize)
+			throws GeneralSecurityException, FormatException
+		{
+			// Flush partially-full levels until the top level fits in the header.
+			int depth = 0;
+			while (depth < levels.size() - 1)
+			{
+				List<Link> level = levels.get(depth);
+				if (!level.isEmpty()) add(depth + 1, emit(level));
+				depth++;
+			}
+
+			ByteBuffer metadata = ByteBuffer.allocate(METADATA_BYTES);
+			metadata.put(MAGIC);
+			metadata.put((byte) depth);
+			metadata.putLong(length);
+			metadata.putInt(blockContentSize);
+			metadata.flip();
+
+			Block.Builder header = Block.newBuilder().addContent(metadata);
+			if (levels.size() > depth)
+				for (Link link : levels.get(depth)) header.addLink(link);
+
+			return header.build().encrypt();
+		}
+
+		/** The total length of the content added so far. */
+		long length() { return length; }
+
+		private void add(int depth, Link link) throws GeneralSecurityException, FormatException
+		{
+			while (levels.size() <= depth) levels.add(new ArrayList<Link>(LINKS_PER_BLOCK));
+
+			List<Link> level = levels.get(depth);
+			if (level.size() == LINKS_PER_BLOCK) add(depth + 1, emit(level));
+
+			level.add(link);
+		}
+
+		/** Emit an indirect block that links to (and clears) a level's worth of links. */
+		private Link emit(List<Link> level) throws GeneralSecurityException, FormatException
+		{
+			Block.Builder indirect = Block.newBuilder().addContent(INDIRECT_MAGIC);
+			for (Link link : level) indirect.addLink(link);
+			level.clear();
+
+			EncryptedBlock encrypted = indirect.build().encrypt();
+			sink.store(encrypted);
+			return encrypted.link();
+		}
+
+		private final BlockSink sink;
+		private final List<List<Link>> levels = new ArrayList<List<Link>>();
+		private long length;
+	}
+
+
+	/** Parse a decrypted header {@link Block}. */
+	static FileHeader parse(Block header) throws FormatException
+	{
+		ByteBuffer content = header.content();
+		if (content.remaining() == 0) return new FileHeader(header.links(), 0, -1, -1);
+
+		byte[] magic = new byte[MAGIC.length];
+		if (content.remaining() < METADATA_BYTES)
+			throw new FormatException("File header metadata too short");
+
+		content.get(magic);
+		if (!Arrays.equals(MAGIC, magic))
+			throw new FormatException("Invalid file header magic");
+
+		int depth = content.get();
+		long length = content.getLong();
+		int blockContentSize = content.getInt();
+		if ((depth < 0) || (length < 0) || (blockContentSize < 0))
+			throw new FormatException(
+				"Invalid file header (depth " + depth + ", length " + length + ", block size "
+				 + blockContentSize + ")");
+
+		// Offsets are mapped to blocks by dividing by the block size, so it had better be real.
+		if ((length > 0) && (blockContentSize == 0))
+			throw new FormatException("File header claims " + length + " B in empty blocks");
+
+		long capacity = capacity(header.links().size(), depth, blockContentSize, length);
+		if (length > capacity)
+			throw new FormatException("File header claims " + length + " B, but its "
+				+ header.links().size() + " links (depth " + depth + ") to blocks of "
+				+ blockContentSize + " B can only hold " + capacity + " B");
+
+		return new FileHeader(header.links(), depth, length, blockContentSize);
+	}
+
+	/**
+	 * How much content the blocks under some links can hold, or at least enough to show that
+	 * they can hold {@code length} bytes (so that we don't overflow on absurdly deep trees).
+	 */
+	private static long capacity(int links, int depth, int blockContentSize, long length)
+	{
+		long capacity = (long) links * blockContentSize;
+		for (int i = 0; (i < depth) && (capacity < length); i++)
+			capacity = (capacity > Long.MAX_VALUE / LINKS_PER_BLOCK)
+				? Long.MAX_VALUE : capacity * LINKS_PER_BLOCK;
+
+		return capacity;
+	}
+
+
+	/** Links from the header itself (to content if {@link #depth()} is 0). */
+	List<Link> links() { return links; }
+
+	/** How many levels of indirect blocks lie between the header and content. */
+	int depth() { return depth; }
+
+	/** The length of the file, or -1 if the header does not record it. */
+	long length() { return length; }
+
+	/** The size of every content block but the last, or -1 if the header does not record it. */
+	int blockContentSize() { return blockContentSize; }
+
+	/** Links to all of the file's content blocks, in order. */
+	List<Link> contentLinks(BlockSource source) throws GeneralSecurityException, IOException
+	{
+		List<Link> current = links;
+		for (int i = 0; i < depth; i++)
+		{
+			List<Link> next = new ArrayList<Link>(current.size() * LINKS_PER_BLOCK);
+			for (Link link : current) next.addAll(indirectLinks(source.get(link)));
+			current = next;
+		}
+
+		return current;
+	}
+
+	/** The links in an indirect block. */
+	static List<Link> indirectLinks(Block indirect) throws FormatException
+	{
+		ByteBuffer content = indirect.content();
+		byte[] magic = new byte[INDIRECT_MAGIC.length];
+		if (content.remaining() != magic.length)
+			throw new FormatException("Invalid indirect block (wrong content length)");
+
+		content.get(magic);
+		if (!Arrays.equals(INDIRECT_MAGIC, magic))
+			throw new FormatException("Invalid indirect block magic");
+
+		return indirect.links();
+	}
+
+
+	private FileHeader(List<Link> links, int depth, long length, int blockContentSize)
+	{
+		this.links = Collections.unmodifiableList(links);
+		this.depth = depth;
+		this.length = length;
+		this.blockContentSize = blockContentSize;
+	}
+
+
+	/** The most links that a header or indirect block holds (link counts are signed bytes). */
+	static final int LINKS_PER_BLOCK = Byte.MAX_VALUE;
+
+	/** Magic bytes at the start of header metadata: "FOOTFILE" in hexaleet. */
+	private static final byte[] MAGIC = new byte[] { (byte) 0xF0, 0x07, (byte) 0xF1, 0x1E };
+
+	/** Content of indirect blocks. */
+	private static final byte[] INDIRECT_MAGIC = new byte[] { (byte) 0xF0, 0x07, (byte) 0xF1, 0x1D };
+
+	/** Magic, depth, length and block content size. */
+	private static final int METADATA_BYTES = MAGIC.length + 1 + 8 + 4;
+
+	private final List<Link> links;
+	private final int depth;
+	private final long length;
+	private final int blockContentSize;
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.core.data;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import scala.Option;
+
+import me.footlights.core.Preferences;
+import me.footlights.core.crypto.Link;
+import me.footlights.core.data.store.Store;
+
+
+/**
+ * Retrieves the blocks of a {@link File} from a {@link Store} before a sequential reader needs
+ * them, so that it doesn't wait a full round trip at every block boundary.
+ *
+ * One {@link ReadAhead} (and its threads) can be shared by every file read from a store; each
+ * reader of a file gets its own {@link Window}, so readers at different offsets don't cancel
+ * each other's retrievals.
+ */
+public final class ReadAhead
+{
+	/** Preference: how many blocks to retrieve ahead of the reader (0 disables read-ahead). */
+	public static final String WINDOW_KEY = "store.readahead.blocks";
+
+	/** Preference: how many blocks may be retrieved at once. */
+	public static final String THREADS_KEY = "store.readahead.threads";
+
+	/** Configure read-ahead from {@link Preferences}; returns None if it is disabled. */
+	public static Option<ReadAhead> create(Preferences prefs)
+	{
+		int window = prefs.getInt(WINDOW_KEY).get();
+		int threads = prefs.getInt(THREADS_KEY).get();
+		if ((window <= 0) || (threads <= 0)) return Option.apply(null);
+
+		return Option.apply(new ReadAhead(window, Executors.newFixedThreadPool(threads,
+			new ThreadFactory()
+			{
+				@Override public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "ReadAhead");
+					t.setDaemon(true);
+					return t;
+				}
+			})));
+	}
+
+	public ReadAhead(int window, ExecutorService pool)
+	{
+		if (window < 1) throw new IllegalArgumentException("Read-ahead window must be >= 1");
+
+		this.window = window;
+		this.pool = pool;
+	}
+
+
+	/** Reads which found their block already retrieved. */
+	public long hits() { return hits.get(); }
+
+	/** Reads which had to wait for their block. */
+	public long misses() { return misses.get(); }
+
+	/** Total time that readers have spent waiting for blocks. */
+	public long stallTime(TimeUnit unit)
+	{
+		return unit.convert(stallNanos.get(), TimeUnit.NANOSECONDS);
+	}
+
+	@Override public String toString()
+	{
+		return "ReadAhead { window: " + window + ", hits: " + hits + ", misses: " + misses
+			+ ", stalled: " + stallTime(TimeUnit.MILLISECONDS) + " ms }";
+	}
+
+
+	/** Start reading ahead through a file's content blocks, on behalf of one reader. */
+	Window open(Store store, List<Link> links) { return new Window(store, links); }
+
+	/** The blocks of one file that are being retrieved ahead of one of its readers. */
+	final class Window
+	{
+		/** Retrieve a block's ciphertext, and start retrieving the blocks that follow it. */
+		Option<ByteBuffer> get(int index) throws IOException
+		{
+			Future<Option<ByteBuffer>> block;
+			synchronized (this)
+			{
+				block = pending.remove(index);
+
+				// Forget about blocks that the reader has skipped past (or away from).
+				Iterator<Map.Entry<Integer,Future<Option<ByteBuffer>>>> i =
+					pending.entrySet().iterator();
+				while (i.hasNext())
+				{
+					Map.Entry<Integer,Future<Option<ByteBuffer>>> e = i.next();
+					if ((e.getKey() < index) || (e.getKey() > index + window))
+					{
+						e.getValue().cancel(false);
+						i.remove();
+					}
+				}
+
+				int end = Math.min(links.size() - 1, index + window);
+				for (int next = index + 1; next <= end; next++)
+					if (!pending.containsKey(next))
+						pending.put(next, pool.submit(retrieve(links.get(next))));
+			}
+
+			if ((block != null) && block.isDone())
+			{
+				hits.incrementAndGet();
+				return result(block);
+			}
+
+			misses.incrementAndGet();
+			long start = System.nanoTime();
+			try
+			{
+				if (block == null) return store.retrieve(links.get(index).fingerprint());
+				else return result(block);
+			}
+			finally { stallNanos.addAndGet(System.nanoTime() - start); }
+		}
+
+		/** Stop retrieving blocks for a reader that has finished. */
+		synchronized void close()
+		{
+			for (Future<Option<ByteBuffer>> f : pending.values()) f.cancel(false);
+			pending.clear();
+		}
+
+		private Callable<Option<ByteBuffer>> retrieve(final Link link)
+		{
+			return new Callable<Option<ByteBuffer>>()
+			{
+				@Override public Option<ByteBuffer> call()
+				{
+					return store.retrieve(link.fingerprint());
+				}
+			};
+		}
+
+		private Option<ByteBuffer> result(Future<Option<ByteBuffer>> block) throws IOException
+		{
+			try { return block.get(); }
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while reading ahead");
+			}
+			catch (ExecutionException e)
+			{
+				if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+				else throw new IOException(e.getCause());
+			}
+		}
+
+		private Window(Store store, List<Link> links)
+		{
+			this.store = store;
+			this.links = links;
+		}
+
+		private final Store store;
+		private final List<Link> links;
+		private final Map<Integer,Future<Option<ByteBuffer>>> pending =
+			new HashMap<Integer,Future<Option<ByteBuffer>>>();
+	}
+
+
+	private final int window;
+	private final ExecutorService pool;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong stallNanos = new AtomicLong();
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.core.data.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * A bounded set of open, read-only {@link FileChannel}s.
+ *
+ * Channels are reference-counted: every {@link #acquire} must be matched by a {@link #release}.
+ * When the pool is full, the least-recently used channel that nobody is using is closed; a
+ * channel that is {@link #invalidate}d while in use is closed when its last user releases it.
+ */
+class ChannelPool
+{
+	ChannelPool(int capacity)
+	{
+		if (capacity <= 0) throw new IllegalArgumentException("Pool capacity must be positive");
+		this.capacity = capacity;
+	}
+
+	/** An open channel, which must be {@link #release}d after use. */
+	synchronized FileChannel acquire(File file) throws IOException
+	{
+		Entry e = open.get(file);
+		if (e == null)
+		{
+			e = new Entry(new RandomAccessFile(file, "r").getChannel());
+			open.put(file, e);
+		}
+
+		// Count ourselves as a user first, so that trimming can't close the channel we return.
+		e.users++;
+		trim();
+
+		return e.channel;
+	}
+
+	synchronized void release(File file, FileChannel channel)
+	{
+		Entry e = open.get(file);
+		if (e != null && e.channel == channel) { e.users--; trim(); }
+		else
+		{
+			// The channel was invalidated while we were using it.
+			Entry orphan = orphans.get(channel);
+			if (orphan != null && --orphan.users == 0)
+			{
+				orphans.remove(channel);
+				close(channel);
+			}
+		}
+	}
+
+	/** Close a file's channel (e.g. because the file is being replaced). */
+	synchronized void invalidate(File file)
+	{
+		Entry e = open.remove(file);
+		if (e == null) return;
+
+		if (e.users == 0) close(e.channel);
+		else orphans.put(e.channel, e);
+	}
+
+	/** Close every channel that isn't in use. */
+	synchronized void close()
+	{
+		Iterator<Entry> i = open.values().iterator();
+		while (i.hasNext())
+		{
+			Entry e = i.next();
+			if (e.users == 0) { close(e.channel); i.remove(); }
+		}
+	}
+
+	synchronized int size() { return open.size() + orphans.size(); }
+
+	private static class Entry
+	{
+		Entry(FileChannel channel) { this.channel = channel; }
+
+		final FileChannel channel;
+		int users;
+	}
+
+	/** Close least-recently used channels (which aren't in use) until we are within capacity. */
+	private void trim()
+	{
+		Iterator<Entry> i = open.values().iterator();
+		while (open.size() > capacity && i.hasNext())
+		{
+			Entry e = i.next();
+			if (e.users > 0) continue;
+
+			close(e.channel);
+			i.remove();
+		}
+	}
+
+	private static void close(FileChannel channel)
+	{
+		try { channel.close(); }
+		catch (IOException e) { log.log(Level.FINE, "Error closing channel", e); }
+	}
+
+	private static final Logger log = Logger.getLogger(ChannelPool.class.getCanonicalName());
+
+	private final int capacity;
+
+	/** Open channels, from least- to most-recently used. */
+	private final Map<File,Entry> open = new LinkedHashMap<File,Entry>(16, 0.75f, true);
+
+	/** Invalidated channels which are still in use. */
+	private final Map<FileChannel,Entry> orphans = new LinkedHashMap<FileChannel,Entry>();
+}
@@ -21,6 +21,7 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -32,17 +33,41 @@ import me.footlights.core.crypto.Fingerprint;
 import me.footlights.core.data.FormatException;
 
 
-/** A block store on disk */
-public class DiskStore extends LocalStore
+/**
+ * A block store on disk, with one file per block.
+ *
+ * Block files are spread across subdirectories named by the first bytes of their fingerprints
+ * (e.g. {@code 3f/a2/urn:sha-256:...}), so no directory grows too large to search quickly.
+ * Blocks stored by older versions directly under the top-level directory are moved into place
+ * when the store is opened.
+ *
+ * Reads share a bounded pool of open {@link FileChannel}s; writes go to a temporary file which
+ * is closed, forced to disk and renamed into place.
+ */
+public class DiskStore extends LocalStore implements Closeable
 {
 	public static class Builder
 	{
-		public DiskStore build() { return new DiskStore(dir, cache); }
+		public DiskStore build()
+		{
+			// By default, cache blocks in memory (as much memory as the preferences allow).
+			if (cache == null) cache = Option.apply((LocalStore) MemoryStore.apply(prefs));
+
+			DiskStore store = new DiskStore(dir, cache, levels, new ChannelPool(openFiles));
+			store.migrateFlatLayout();
+			return store;
+		}
 
 		public Builder setCache(Option<LocalStore> cache)	{ this.cache = cache;	return this; }
 		public Builder setDirectory(File dir)				{ this.dir   = dir;		return this; }
 		public Builder setPreferences(Preferences prefs)	{ this.prefs = prefs;	return this; }
 
+		/** How many levels of subdirectories (each named by one fingerprint byte) to use. */
+		public Builder setShardLevels(int levels)		{ this.levels = levels;	return this; }
+
+		/** How many block files to keep open for reading. */
+		public Builder setMaxOpenFiles(int n)			{ this.openFiles = n;	return this; }
+
 		public Builder setDefaultDirectory()
 		{
 			dir = new File(prefs.getString(FileBackedPreferences.CACHE_DIR_KEY()).get());
@@ -60,43 +85,47 @@ public class DiskStore extends LocalStore
 			return this;
 		}
 
-		private Builder()
-		{
-			cache = Option.apply((LocalStore) new MemoryStore());
-		}
+		private Builder() {}
 
 		private File dir;
 		private Option<LocalStore> cache;
 		private Preferences prefs = Preferences.getDefaultPreferences();
+		private int levels = 2;
+		private int openFiles = 64;
 	}
 
 	public static Builder newBuilder() { return new Builder(); }
 
-	private DiskStore(File storageDirectory, Option<LocalStore> cache)
+	private DiskStore(File storageDirectory, Option<LocalStore> cache, int levels,
+			ChannelPool channels)
 	{
 		super(cache);
 		this.dir = storageDirectory;
+		this.levels = levels;
+		this.channels = channels;
 	}
 
 
 	@Override
 	public Collection<Stat> list() throws IOException
 	{
-		String names[] = dir.list();
+		Collection<Stat> l = new ArrayList<Stat>();
 
-		Collection<Stat> l = new ArrayList<Stat>(names.length);
-		for (String name : names)
+		LinkedList<File> directories = new LinkedList<File>();
+		directories.add(dir);
+		while (!directories.isEmpty())
 		{
-			name = dir + File.separator + name;
-			File f = new File(name);
-			if (!f.exists())
+			File[] files = directories.remove().listFiles();
+			if (files == null) continue;
+
+			for (File f : files)
 			{
-				log.log(Level.SEVERE, "Cached file does not exist: " + name);
-				continue;
-			}
+				if (f.isDirectory()) { directories.add(f); continue; }
+				if (f.getName().endsWith(TEMPORARY_SUFFIX)) continue;
 
-			try { l.add(Stat.apply(f)); }
-			catch (Exception e) { log.log(Level.WARNING, "Problem with cached file's name", e); }
+				try { l.add(Stat.apply(f)); }
+				catch (Exception e) { log.log(Level.WARNING, "Problem with cached file's name", e); }
+			}
 		}
 
 		return l;
@@ -106,19 +135,52 @@ public class DiskStore extends LocalStore
 	@Override
 	public void put(Fingerprint name, ByteBuffer buffer) throws IOException
 	{
-		FileChannel channel = new FileOutputStream(new File(dir, name.encode())).getChannel();
-		channel.write(buffer.duplicate());
-		channel.force(true);
+		File file = fileFor(name);
+		File parent = file.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+			throw new IOException("Unable to create directory " + parent);
+
+		// Write to a temporary file so that readers never see part of a block.
+		File tmp = File.createTempFile("block-", TEMPORARY_SUFFIX, parent);
+		FileOutputStream out = new FileOutputStream(tmp);
+		try
+		{
+			FileChannel channel = out.getChannel();
+			ByteBuffer bytes = buffer.duplicate();
+			while (bytes.hasRemaining()) channel.write(bytes);
+			channel.force(true);
+		}
+		catch (IOException e)
+		{
+			out.close();
+			tmp.delete();
+			throw e;
+		}
+		out.close();
+
+		channels.invalidate(file);
+		if (!tmp.renameTo(file))
+		{
+			// Some platforms won't rename over an existing file.
+			file.delete();
+			if (!tmp.renameTo(file))
+			{
+				tmp.delete();
+				throw new IOException("Unable to move " + tmp + " to " + file);
+			}
+		}
 	}
 
 
 	@Override
 	public Option<ByteBuffer> get(Fingerprint name)
 	{
+		File file = fileFor(name);
+		FileChannel channel = null;
 		try
 		{
-			File file = new File(dir, name.encode());
-			long len = file.length();
+			channel = channels.acquire(file);
+			long len = channel.size();
 
 			if (len <= 0) return Option.apply(null);
 			else if (len > MAX_FILE_SIZE)
@@ -129,15 +191,16 @@ public class DiskStore extends LocalStore
 			}
 
 			// The file is a valid block, smaller than MAX_FILE_SIZE (so < 2^31).
-			// Read it if it's small, mmap it if it's large.
-			FileChannel channel = new FileInputStream(file).getChannel();
-
+			// Read it if it's small, mmap it if it's large (the mapping outlives the channel).
 			if (len > MAX_READ_SIZE)
 				return Option.apply((ByteBuffer) channel.map(MapMode.READ_ONLY, 0, len));
 			else
 			{
 				ByteBuffer buffer = ByteBuffer.allocate((int) len);
-				channel.read(buffer);
+				while (buffer.hasRemaining())
+					if (channel.read(buffer, buffer.position()) < 0)
+						throw new EOFException("Short read from " + file);
+
 				buffer.rewind();
 				return Option.apply(buffer.asReadOnlyBuffer());
 			}
@@ -145,13 +208,64 @@ public class DiskStore extends LocalStore
 		catch(FileNotFoundException e) { log.log(Level.FINE, "Missing block", e); }
 		catch(FormatException e) { log.log(Level.WARNING, "Mangled block", e); }
 		catch(IOException e) { log.log(Level.WARNING, "Error reading file", e); }
+		finally { if (channel != null) channels.release(file, channel); }
 
 		return Option.apply(null);
 	}
 
+	/** Close any files that we have open for reading. */
+	@Override public void close() { channels.close(); }
+
+	/** How many block files are currently open. */
+	int openFiles() { return channels.size(); }
+
 	@Override public String toString() { return "DiskStore { " + dir + " }"; }
 
 
+	/** Where a block is stored, e.g. {@code dir/3f/a2/urn:sha-256:...}. */
+	File fileFor(Fingerprint name)
+	{
+		ByteBuffer hash = name.getBytes();
+		File parent = dir;
+		for (int i = 0; i < levels && hash.hasRemaining(); i++)
+			parent = new File(parent, String.format("%02x", hash.get() & 0xFF));
+
+		return new File(parent, name.encode());
+	}
+
+	/** Move blocks stored directly in our top-level directory into their subdirectories. */
+	private void migrateFlatLayout()
+	{
+		if (levels == 0) return;
+
+		File[] files = dir.listFiles();
+		if (files == null) return;
+
+		int moved = 0;
+		for (File f : files)
+		{
+			if (!f.isFile()) continue;
+
+			Fingerprint name;
+			try { name = Fingerprint.decode(f.getName()); }
+			catch (Exception e) { continue; }
+
+			File target = fileFor(name);
+			target.getParentFile().mkdirs();
+			if (target.exists()) f.delete();
+			else if (!f.renameTo(target))
+			{
+				log.warning("Unable to move " + f + " to " + target);
+				continue;
+			}
+
+			moved++;
+		}
+
+		if (moved > 0) log.info("Moved " + moved + " blocks into subdirectories of " + dir);
+	}
+
+
 	/** The largest block file that we will open - positive 2s-complement. */
 	private static int MAX_FILE_SIZE = 0x7FFFFFFF;
 
@@ -160,6 +274,14 @@ public class DiskStore extends LocalStore
 
 	private static Logger log = Logger.getLogger(DiskStore.class.getCanonicalName());
 
+	/** Blocks being written have names ending in this suffix. */
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+
 	/** The directory that we store files in. */
 	private final File dir;
+
+	/** How many levels of subdirectories to spread block files across. */
+	private final int levels;
+
+	private final ChannelPool channels;
 }
@@ -16,10 +16,13 @@
 package me.footlights.core.data.store;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 
 import scala.Option;
 
+import me.footlights.core.crypto.Fingerprint;
+
 
 /**
  * A store which is in some sense "local" (e.g. in memory, on disk), so the
@@ -37,4 +40,43 @@ public abstract class LocalStore extends Store
 	 * List the blocks that are stored here.
 	 */
 	public abstract Collection<Stat> list() throws IOException;
+
+	/**
+	 * Keep a block (which may not have been stored yet) until it is {@link #unpin}ned.
+	 *
+	 * A {@link Store} pins blocks in its cache until it has flushed them; a cache which evicts
+	 * blocks must not evict pinned ones, since they may not exist anywhere else.
+	 */
+	public void pin(Fingerprint name) {}
+
+	/** The block may now be evicted (if this store ever evicts anything). */
+	public void unpin(Fingerprint name) {}
+
+	/** A block's bytes, lent by {@link LocalStore#borrow} until the loan is closed. */
+	public interface Loan
+	{
+		/** The block's bytes, which must not be used once the loan is closed. */
+		ByteBuffer bytes();
+
+		void close();
+	}
+
+	/**
+	 * Lend a block's bytes, which the caller must stop using when it closes the {@link Loan}.
+	 *
+	 * Bytes from {@link #retrieve} are the caller's to keep, so a store that reuses its memory
+	 * (e.g. {@link OffHeapStore}) has to copy them. A loan can be a view of that memory instead.
+	 * By default, this just lends what {@link #retrieve} returns.
+	 */
+	public Option<Loan> borrow(Fingerprint name)
+	{
+		final Option<ByteBuffer> bytes = retrieve(name);
+		if (bytes.isEmpty()) return Option.apply(null);
+
+		return Option.<Loan>apply(new Loan()
+			{
+				@Override public ByteBuffer bytes() { return bytes.get(); }
+				@Override public void close() {}
+			});
+	}
 }
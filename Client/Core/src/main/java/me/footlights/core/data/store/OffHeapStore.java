@@ -0,0 +1,393 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.core.data.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import scala.Option;
+
+import me.footlights.core.crypto.Fingerprint;
+
+
+/**
+ * A block cache that keeps block bytes outside of the Java heap, in a fixed-size arena.
+ *
+ * The arena is either direct memory or a memory-mapped file. It is divided into slabs, each of
+ * which is carved into slots of one power-of-two size class when it is first needed. A block
+ * occupies the smallest slot that fits it; when a size class runs out of slots (and there are
+ * no more slabs to give it), its least-recently used unpinned block is evicted. Slabs are never
+ * given back, so a workload whose block sizes change over time can strand memory in size
+ * classes it no longer uses.
+ *
+ * Blocks are {@link #borrow}ed as read-only views of the arena, without copying: the slot is
+ * on loan (and so can't be evicted or reused) until the loan is closed. {@link #get} has to copy
+ * the block onto the heap instead, since callers may keep what it returns indefinitely.
+ *
+ * Every block has one entry in the index, keyed by its compact {@link Fingerprint.Key}; the
+ * entry is also a node in its size class's LRU list.
+ */
+public class OffHeapStore extends LocalStore
+{
+	public static class Builder
+	{
+		public OffHeapStore build() throws IOException
+		{
+			if (capacity < slabSize)
+				throw new IllegalArgumentException(
+					"Arena (" + capacity + " B) smaller than one slab (" + slabSize + " B)");
+
+			if (Integer.bitCount(minSlot) != 1 || Integer.bitCount(maxSlot) != 1
+			    || minSlot > maxSlot || maxSlot > slabSize)
+				throw new IllegalArgumentException(
+					"Invalid slot sizes: " + minSlot + "-" + maxSlot + " B (slabs of "
+					 + slabSize + " B)");
+
+			ByteBuffer arena;
+			if (mapFile == null) arena = ByteBuffer.allocateDirect(capacity);
+			else
+			{
+				RandomAccessFile file = new RandomAccessFile(mapFile, "rw");
+				try
+				{
+					file.setLength(capacity);
+					arena = file.getChannel().map(MapMode.READ_WRITE, 0, capacity);
+				}
+				finally { file.close(); }
+			}
+
+			return new OffHeapStore(arena, slabSize, minSlot, maxSlot);
+		}
+
+		/** Total size of the arena (at most 2 GB). */
+		public Builder setCapacity(int bytes)	{ this.capacity = bytes;	return this; }
+
+		/** Size of the slabs that are assigned to size classes. */
+		public Builder setSlabSize(int bytes)	{ this.slabSize = bytes;	return this; }
+
+		/** Smallest and largest slots (powers of two); larger blocks aren't cached. */
+		public Builder setSlotSizes(int min, int max)
+		{
+			this.minSlot = min;
+			this.maxSlot = max;
+			return this;
+		}
+
+		/** Keep the arena in a memory-mapped file rather than direct memory. */
+		public Builder setMappedFile(File file)	{ this.mapFile = file;	return this; }
+
+		private Builder() {}
+
+		private int capacity = 64 << 20;
+		private int slabSize = 1 << 20;
+		private int minSlot = 512;
+		private int maxSlot = 1 << 20;
+		private File mapFile;
+	}
+
+	public static Builder newBuilder() { return new Builder(); }
+
+
+	@Override public synchronized Collection<Stat> list()
+	{
+		Collection<Stat> stats = new ArrayList<Stat>(index.size());
+		for (Slot s : index.values()) stats.add(Stat.apply(s.name.fingerprint(), s.length));
+
+		return stats;
+	}
+
+	/**
+	 * Copy a block into the arena.
+	 *
+	 * @throws IOException    if the block is too large to cache or its size class is full of
+	 *                        pinned (or lent) blocks; any copy already cached is kept
+	 */
+	@Override public synchronized void put(Fingerprint name, ByteBuffer bytes) throws IOException
+	{
+		int length = bytes.remaining();
+		int c = classFor(length);
+		if (c < 0)
+			throw new IOException("Block " + name + " (" + length + " B) larger than largest slot ("
+				+ maxSlot + " B)");
+
+		// Blocks are named by their content, so we may already have exactly these bytes.
+		Slot existing = index.get(name.key());
+		if ((existing != null) && (existing.length == length))
+		{
+			touch(existing);
+			return;
+		}
+
+		// Only give up the existing copy (if any) once we have somewhere to put the new one.
+		int offset = allocate(c);
+		ByteBuffer slot = arena.duplicate();
+		slot.position(offset);
+		slot.put(bytes.duplicate());
+
+		Slot s = new Slot(name.key(), c, offset, length);
+		Slot old = index.put(s.name, s);
+		if (old != null) retire(old);
+
+		append(s);
+		resident += length;
+	}
+
+	@Override public synchronized Option<ByteBuffer> get(Fingerprint name)
+	{
+		Slot s = find(name);
+		if (s == null) return Option.apply(null);
+
+		ByteBuffer copy = ByteBuffer.allocate(s.length);
+		copy.put(view(s));
+		copy.flip();
+		return Option.apply(copy.asReadOnlyBuffer());
+	}
+
+	/** Lend a read-only view of a block's slot, which won't be reused until the loan is closed. */
+	@Override public synchronized Option<Loan> borrow(Fingerprint name)
+	{
+		final Slot s = find(name);
+		if (s == null) return Option.apply(null);
+
+		s.loans++;
+		final ByteBuffer bytes = view(s).slice().asReadOnlyBuffer();
+
+		return Option.<Loan>apply(new Loan()
+			{
+				@Override public ByteBuffer bytes() { return bytes.duplicate(); }
+				@Override public void close()
+				{
+					synchronized (OffHeapStore.this)
+					{
+						if (closed) return;
+						closed = true;
+
+						if ((--s.loans == 0) && s.retired) freeSlots.get(s.sizeClass).add(s.offset);
+					}
+				}
+
+				private boolean closed;
+			});
+	}
+
+	@Override public synchronized void pin(Fingerprint name) { pinned.add(name.key()); }
+	@Override public synchronized void unpin(Fingerprint name) { pinned.remove(name.key()); }
+
+	/** Do nothing; {@link OffHeapStore} always blocks. */
+	@Override public void flush() {}
+
+	public synchronized long hits() { return hits; }
+	public synchronized long misses() { return misses; }
+	public synchronized long evictions() { return evictions; }
+	public synchronized long residentBytes() { return resident; }
+	public int capacity() { return arena.capacity(); }
+
+	@Override public synchronized String toString()
+	{
+		return "OffHeapStore { " + resident + "/" + arena.capacity() + " B in "
+			+ index.size() + " blocks, " + hits + " hits, " + misses + " misses, "
+			+ evictions + " evictions }";
+	}
+
+
+	/** Where a block lives in the arena, and its place in its size class's LRU list. */
+	private static final class Slot
+	{
+		Slot(Fingerprint.Key name, int sizeClass, int offset, int length)
+		{
+			this.name = name;
+			this.sizeClass = sizeClass;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		final Fingerprint.Key name;
+		final int sizeClass;
+		final int offset;
+		final int length;
+
+		/** How many {@link Loan}s of the slot are open. */
+		int loans;
+
+		/** The block has left the index; its slot is free once the last loan is closed. */
+		boolean retired;
+
+		Slot older;
+		Slot newer;
+	}
+
+	/** Look up a block (counting the hit or miss) and make it the most-recently used. */
+	private Slot find(Fingerprint name)
+	{
+		Slot s = index.get(name.key());
+		if (s == null)
+		{
+			misses++;
+			return null;
+		}
+
+		hits++;
+		touch(s);
+		return s;
+	}
+
+	/** A view of a slot's bytes (within the arena). */
+	private ByteBuffer view(Slot s)
+	{
+		ByteBuffer b = arena.duplicate();
+		b.position(s.offset);
+		b.limit(s.offset + s.length);
+		return b;
+	}
+
+	/** The smallest size class whose slots can hold a block, or -1 if it is too large. */
+	private int classFor(int length)
+	{
+		int c = 0;
+		for (int size = minSlot; size <= maxSlot; size <<= 1, c++)
+			if (length <= size) return c;
+
+		return -1;
+	}
+
+	private int slotSize(int c) { return minSlot << c; }
+
+	/** Find a free slot in a size class: from its free list, a new slab, or by eviction. */
+	private int allocate(int c) throws IOException
+	{
+		ArrayDeque<Integer> free = freeSlots.get(c);
+		if (free.isEmpty() && (nextSlab < slabCount))
+		{
+			int start = nextSlab++ * slabSize;
+			for (int offset = start; offset + slotSize(c) <= start + slabSize;
+			     offset += slotSize(c))
+				free.add(offset);
+		}
+
+		if (free.isEmpty())
+		{
+			for (Slot victim = oldest[c]; victim != null; victim = victim.newer)
+			{
+				if ((victim.loans > 0) || pinned.contains(victim.name)) continue;
+
+				unlink(victim);
+				index.remove(victim.name);
+				resident -= victim.length;
+				evictions++;
+
+				return victim.offset;
+			}
+
+			throw new IOException(
+				"No room for a " + slotSize(c) + " B block: every slot is pinned or lent");
+		}
+
+		return free.remove();
+	}
+
+	/** Forget about a block that has been replaced, freeing its slot (once nobody borrows it). */
+	private void retire(Slot s)
+	{
+		unlink(s);
+		resident -= s.length;
+
+		if (s.loans == 0) freeSlots.get(s.sizeClass).add(s.offset);
+		else s.retired = true;
+	}
+
+	/** Make a block the most-recently used in its size class. */
+	private void touch(Slot s)
+	{
+		if (newest[s.sizeClass] == s) return;
+		unlink(s);
+		append(s);
+	}
+
+	private void append(Slot s)
+	{
+		int c = s.sizeClass;
+		s.older = newest[c];
+		s.newer = null;
+
+		if (newest[c] == null) oldest[c] = s;
+		else newest[c].newer = s;
+		newest[c] = s;
+	}
+
+	private void unlink(Slot s)
+	{
+		int c = s.sizeClass;
+		if (s.older == null) oldest[c] = s.newer;
+		else s.older.newer = s.newer;
+
+		if (s.newer == null) newest[c] = s.older;
+		else s.newer.older = s.older;
+
+		s.older = s.newer = null;
+	}
+
+
+	private OffHeapStore(ByteBuffer arena, int slabSize, int minSlot, int maxSlot)
+	{
+		this.arena = arena;
+		this.slabSize = slabSize;
+		this.slabCount = arena.capacity() / slabSize;
+		this.minSlot = minSlot;
+		this.maxSlot = maxSlot;
+
+		int classes = Integer.numberOfTrailingZeros(maxSlot / minSlot) + 1;
+		this.oldest = new Slot[classes];
+		this.newest = new Slot[classes];
+		this.freeSlots = new ArrayList<ArrayDeque<Integer>>(classes);
+		for (int i = 0; i < classes; i++) freeSlots.add(new ArrayDeque<Integer>());
+	}
+
+
+	private final ByteBuffer arena;
+	private final int slabSize;
+	private final int slabCount;
+	private final int minSlot;
+	private final int maxSlot;
+
+	/** Where every block is. */
+	private final Map<Fingerprint.Key,Slot> index = new HashMap<Fingerprint.Key,Slot>();
+
+	/** The ends of each size class's list of blocks, from least- to most-recently used. */
+	private final Slot[] oldest;
+	private final Slot[] newest;
+
+	/** Unused slots (offsets into the arena) in each size class. */
+	private final List<ArrayDeque<Integer>> freeSlots;
+
+	private final Set<Fingerprint.Key> pinned = new HashSet<Fingerprint.Key>();
+
+	private int nextSlab;
+	private long resident;
+	private long hits;
+	private long misses;
+	private long evictions;
+}
@@ -0,0 +1,717 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.core.data.store;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import scala.Option;
+
+import me.footlights.core.FileBackedPreferences;
+import me.footlights.core.Preferences;
+import me.footlights.core.crypto.Fingerprint;
+
+
+/**
+ * A block store on disk which appends blocks to large segment files, rather than creating one
+ * OS file per block.
+ *
+ * Segment records are self-describing (magic, name, length, bytes). An append-only index file
+ * maps block names to (segment, offset, length), so opening the store only has to scan the parts
+ * of segments which were written after their index records were last saved. When compaction
+ * rewrites the index, it also records how far each segment has been indexed: the rewritten index
+ * only describes live blocks, and scanning past them would resurrect removed ones.
+ *
+ * {@link #put} returns once its block is on disk, but puts which arrive while another put is
+ * forcing its data to disk wait for the next fsync and share it (group commit). The store asks
+ * to be flushed by several threads at once so that a batch of blocks costs one or two fsyncs.
+ *
+ * Blocks may be {@link #remove}d; {@link #compact} reclaims their space by copying the live
+ * blocks out of mostly-empty segments and rewriting the index.
+ */
+public class PackStore extends LocalStore implements Closeable
+{
+	/** Preference: how to lay out the local block cache ("files" or "pack"). */
+	public static final String FORMAT_KEY = "cache.disk.format";
+
+	public static class Builder
+	{
+		public PackStore build() throws IOException
+		{
+			if (dir == null) throw new IllegalStateException("No directory set for PackStore");
+			if (cache == null) cache = Option.apply((LocalStore) MemoryStore.apply(prefs));
+
+			dir.mkdirs();
+			return new PackStore(dir, cache, segmentSize, commitDelay, flushThreads);
+		}
+
+		public Builder setCache(Option<LocalStore> cache)	{ this.cache = cache;	return this; }
+		public Builder setDirectory(File dir)				{ this.dir   = dir;		return this; }
+		public Builder setPreferences(Preferences prefs)	{ this.prefs = prefs;	return this; }
+
+		/** Start a new segment once the current one is this large. */
+		public Builder setSegmentSize(long bytes)	{ this.segmentSize = bytes;	return this; }
+
+		/** How long to wait for more blocks before forcing a group commit to disk. */
+		public Builder setCommitDelay(long ms)		{ this.commitDelay = ms;	return this; }
+
+		/** How many threads should put blocks at once (and so share fsyncs) when flushing. */
+		public Builder setFlushThreads(int n)		{ this.flushThreads = n;	return this; }
+
+		public Builder setDefaultDirectory()
+		{
+			dir = new File(prefs.getString(FileBackedPreferences.CACHE_DIR_KEY()).get(), "packs");
+			return this;
+		}
+
+		public Builder createTemporaryDirectory() throws IOException
+		{
+			dir = File.createTempFile("cache", "dir");
+			dir.delete();
+			dir.mkdir();
+
+			return this;
+		}
+
+		private Builder() {}
+
+		private File dir;
+		private Option<LocalStore> cache;
+		private Preferences prefs = Preferences.getDefaultPreferences();
+		private long segmentSize = 64 << 20;
+		private long commitDelay = 0;
+		private int flushThreads = 8;
+	}
+
+	public static Builder newBuilder() { return new Builder(); }
+
+
+	@Override public synchronized Collection<Stat> list()
+	{
+		Collection<Stat> stats = new ArrayList<Stat>(index.size());
+		for (Map.Entry<Fingerprint.Key,Location> e : index.entrySet())
+			stats.add(Stat.apply(e.getKey().fingerprint(), e.getValue().length));
+
+		return stats;
+	}
+
+	/** Append a block to the current segment, returning once it has been committed to disk. */
+	@Override public void put(Fingerprint name, ByteBuffer bytes) throws IOException
+	{
+		long end;
+		synchronized (this)
+		{
+			// Blocks are named by their content: if we already have it, we needn't write it again.
+			Location existing = index.get(name.key());
+			if (existing != null && existing.length == bytes.remaining()) end = appended;
+			else end = append(name, bytes);
+		}
+
+		commit(end);
+	}
+
+	@Override public Option<ByteBuffer> get(Fingerprint name)
+	{
+		// Compaction may move a block (and close its old segment) while we are reading it.
+		for (int attempt = 0; attempt < 3; attempt++)
+		{
+			Location location;
+			FileChannel channel;
+			synchronized (this)
+			{
+				location = index.get(name.key());
+				if (location == null) return Option.apply(null);
+
+				try { channel = segments.get(location.segment).channel(); }
+				catch (IOException e)
+				{
+					log.log(Level.WARNING, "Unable to open segment " + location.segment, e);
+					return Option.apply(null);
+				}
+			}
+
+			try
+			{
+				ByteBuffer buffer = ByteBuffer.allocate(location.length);
+				readFully(channel, buffer, location.offset);
+				buffer.flip();
+				return Option.apply(buffer.asReadOnlyBuffer());
+			}
+			catch (ClosedChannelException e) { log.log(Level.FINE, "Segment closed; retrying", e); }
+			catch (IOException e)
+			{
+				log.log(Level.WARNING, "Error reading " + name + " from " + this, e);
+				return Option.apply(null);
+			}
+		}
+
+		return Option.apply(null);
+	}
+
+	/** Forget about a block. Its space is reclaimed when its segment is {@link #compact}ed. */
+	public synchronized void remove(Fingerprint name) throws IOException
+	{
+		Location location = index.remove(name.key());
+		if (location == null) return;
+
+		segments.get(location.segment).live -= location.length;
+		logIndex(name, new Location(0, 0, TOMBSTONE));
+	}
+
+	/** Flush blocks from our cache, then make sure that everything we've written is on disk. */
+	@Override public void flush()
+	{
+		super.flush();
+
+		try
+		{
+			long end;
+			synchronized (this) { end = appended; }
+			commit(end);
+
+			if (garbage() > segmentSize) compact();
+		}
+		catch (IOException e) { log.log(Level.WARNING, "Error syncing " + this, e); }
+	}
+
+	@Override public int flushThreads() { return flushThreads; }
+
+	/**
+	 * Copy the live blocks out of segments that are mostly garbage, rewrite the index and delete
+	 * the old segments.
+	 *
+	 * @return   the number of bytes reclaimed
+	 */
+	public synchronized long compact() throws IOException
+	{
+		Collection<Segment> victims = new ArrayList<Segment>();
+		for (Segment s : segments.values())
+			if ((s != active) && (s.live < s.size * COMPACTION_THRESHOLD))
+				victims.add(s);
+
+		if (victims.isEmpty()) return 0;
+
+		Set<Integer> ids = new HashSet<Integer>();
+		for (Segment s : victims) ids.add(s.id);
+
+		Map<Fingerprint.Key,Location> moving = new HashMap<Fingerprint.Key,Location>();
+		for (Map.Entry<Fingerprint.Key,Location> e : index.entrySet())
+			if (ids.contains(e.getValue().segment))
+				moving.put(e.getKey(), e.getValue());
+
+		long copied = 0;
+		for (Map.Entry<Fingerprint.Key,Location> e : moving.entrySet())
+		{
+			Location l = e.getValue();
+			ByteBuffer bytes = ByteBuffer.allocate(l.length);
+			readFully(segments.get(l.segment).channel(), bytes, l.offset);
+			bytes.flip();
+
+			append(e.getKey().fingerprint(), bytes);
+			copied += l.length;
+		}
+
+		// The copies (and the index that points at them) must be on disk before the originals go.
+		for (Segment s : segments.values()) if (!ids.contains(s.id)) s.channel().force(true);
+		rewriteIndex();
+		durable = Math.max(durable, appended);
+
+		long reclaimed = -copied;
+		for (Segment s : victims)
+		{
+			segments.remove(s.id);
+			s.close();
+			if (!s.file.delete()) log.warning("Unable to delete compacted segment " + s.file);
+			reclaimed += s.size;
+		}
+
+		log.info("Compacted " + victims.size() + " segments of " + this + ", reclaiming "
+			+ reclaimed + " B");
+		return reclaimed;
+	}
+
+	/** Close all open files; the store may not be used afterwards. */
+	@Override public synchronized void close() throws IOException
+	{
+		for (Segment s : segments.values()) s.close();
+		indexChannel.close();
+	}
+
+	@Override public synchronized String toString()
+	{
+		return "PackStore { " + dir + ", " + index.size() + " blocks in " + segments.size()
+			+ " segments }";
+	}
+
+
+	/** Where a block is stored. */
+	private static class Location
+	{
+		Location(int segment, long offset, int length)
+		{
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		final int segment;
+		final long offset;
+		final int length;
+	}
+
+	/** A segment file (whose channel is reopened if an interrupted reader closes it). */
+	private static class Segment
+	{
+		Segment(int id, File file) throws IOException
+		{
+			this.id = id;
+			this.file = file;
+			this.size = file.length();
+		}
+
+		synchronized FileChannel channel() throws IOException
+		{
+			if (channel == null || !channel.isOpen())
+				channel = new RandomAccessFile(file, "rw").getChannel();
+
+			return channel;
+		}
+
+		synchronized void close() throws IOException { if (channel != null) channel.close(); }
+
+		final int id;
+		final File file;
+
+		/** Bytes written to the segment (including garbage). */
+		long size;
+
+		/** Bytes of blocks in the segment that are still in the index. */
+		long live;
+
+		private FileChannel channel;
+	}
+
+
+	private PackStore(File dir, Option<LocalStore> cache, long segmentSize, long commitDelay,
+			int flushThreads)
+		throws IOException
+	{
+		super(cache);
+
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.commitDelay = commitDelay;
+		this.flushThreads = flushThreads;
+
+		for (String filename : dir.list())
+		{
+			Matcher m = SEGMENT_NAME.matcher(filename);
+			if (!m.matches()) continue;
+
+			int id = Integer.parseInt(m.group(1));
+			segments.put(id, new Segment(id, new File(dir, filename)));
+		}
+
+		File indexFile = new File(dir, INDEX);
+		Map<Integer,Long> indexed = replayIndex(indexFile);
+		indexChannel = new FileOutputStream(indexFile, true).getChannel();
+
+		for (Segment s : segments.values())
+		{
+			Long end = indexed.get(s.id);
+			recover(s, (end == null) ? 0 : end);
+		}
+
+		for (Location l : index.values()) segments.get(l.segment).live += l.length;
+
+		if (segments.isEmpty()) newSegment();
+		active = segments.get(segments.lastKey());
+	}
+
+	/**
+	 * Read the index file, stopping at the first incomplete or corrupt record and truncating the
+	 * file there (so that records appended later can be replayed).
+	 *
+	 * @return   how far into each segment the index covers
+	 */
+	private Map<Integer,Long> replayIndex(File indexFile) throws IOException
+	{
+		Map<Integer,Long> indexed = new HashMap<Integer,Long>();
+		if (!indexFile.exists()) return indexed;
+
+		RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+		try
+		{
+			ByteBuffer buffer = file.getChannel().map(MapMode.READ_ONLY, 0, file.length());
+			int valid = 0;
+			try
+			{
+				while (buffer.hasRemaining())
+				{
+					short nameLength = buffer.getShort();
+					if ((nameLength < 0) || (nameLength > MAX_NAME_BYTES))
+						throw new IOException("Invalid name length: " + nameLength);
+
+					byte[] encoded = new byte[nameLength];
+					buffer.get(encoded);
+					int segment = buffer.getInt();
+					long offset = buffer.getLong();
+					int length = buffer.getInt();
+
+					if ((offset < 0) || (length < HIGH_WATER)
+					    || ((length == HIGH_WATER) != (nameLength == 0)))
+						throw new IOException("Invalid record: " + nameLength + " B name, segment "
+							+ segment + ", offset " + offset + ", length " + length);
+
+					if (length == HIGH_WATER)
+					{
+						Long end = indexed.get(segment);
+						indexed.put(segment, Math.max(offset, (end == null) ? 0 : end));
+					}
+					else
+					{
+						Fingerprint name = Fingerprint.decode(new String(encoded, UTF8));
+						if (length == TOMBSTONE) index.remove(name.key());
+						else if (segments.containsKey(segment))
+						{
+							Long end = indexed.get(segment);
+							indexed.put(segment, Math.max(offset + length, (end == null) ? 0 : end));
+							index.put(name.key(), new Location(segment, offset, length));
+						}
+					}
+
+					// Only now has the record been applied.
+					valid = buffer.position();
+				}
+			}
+			catch (BufferUnderflowException e) {}
+			catch (Exception e) { log.log(Level.WARNING, "Corrupt index record", e); }
+
+			if (valid < file.length())
+			{
+				log.warning("Truncating index " + indexFile + " to " + valid + " B");
+				file.setLength(valid);
+			}
+		}
+		finally { file.close(); }
+
+		return indexed;
+	}
+
+	/** Index any complete records after {@code start}, then drop anything after them. */
+	private void recover(Segment s, long start) throws IOException
+	{
+		FileChannel channel = s.channel();
+		long position = start;
+		int recovered = 0;
+
+		ByteBuffer fixed = ByteBuffer.allocate(6);
+		while (position + fixed.capacity() <= s.size)
+		{
+			fixed.clear();
+			readFully(channel, fixed, position);
+			fixed.flip();
+			if (fixed.getInt() != RECORD_MAGIC) break;
+
+			ByteBuffer header = ByteBuffer.allocate(fixed.getShort() + 4);
+			if (position + fixed.capacity() + header.capacity() > s.size) break;
+			readFully(channel, header, position + fixed.capacity());
+			header.flip();
+
+			byte[] encoded = new byte[header.capacity() - 4];
+			header.get(encoded);
+			int length = header.getInt();
+			long offset = position + fixed.capacity() + header.capacity();
+			if (length < 0 || offset + length > s.size) break;
+
+			Fingerprint name;
+			try { name = Fingerprint.decode(new String(encoded, UTF8)); }
+			catch (Exception e) { break; }
+
+			Location location = new Location(s.id, offset, length);
+			index.put(name.key(), location);
+			logIndex(name, location);
+			recovered++;
+
+			position = offset + length;
+		}
+
+		if (recovered > 0)
+			log.info("Recovered " + recovered + " unindexed blocks from " + s.file);
+
+		if (position < s.size)
+		{
+			log.warning("Truncating " + s.file + " from " + s.size + " to " + position + " B");
+			channel.truncate(position);
+			s.size = position;
+		}
+	}
+
+	/** Append a block record, returning the new end of everything we have appended. */
+	private long append(Fingerprint name, ByteBuffer bytes) throws IOException
+	{
+		if (active.size >= segmentSize) active = newSegment();
+
+		byte[] encoded = name.encode().getBytes(UTF8);
+		int length = bytes.remaining();
+
+		ByteBuffer header = ByteBuffer.allocate(10 + encoded.length);
+		header.putInt(RECORD_MAGIC).putShort((short) encoded.length).put(encoded).putInt(length);
+		header.flip();
+
+		long offset = active.size + header.remaining();
+		FileChannel channel = active.channel();
+		channel.position(active.size);
+
+		ByteBuffer[] record = { header, bytes.duplicate() };
+		while (record[1].hasRemaining()) channel.write(record);
+
+		active.size = offset + length;
+		dirty.add(active);
+		appended += header.capacity() + length;
+
+		Location location = new Location(active.id, offset, length);
+		Location old = index.put(name.key(), location);
+		if (old != null) segments.get(old.segment).live -= old.length;
+		active.live += length;
+
+		logIndex(name, location);
+		return appended;
+	}
+
+	private void logIndex(Fingerprint name, Location location) throws IOException
+	{
+		logIndex(name.encode().getBytes(UTF8), location);
+	}
+
+	/** Record that a segment has been indexed up to its current size. */
+	private void logHighWater(Segment s) throws IOException
+	{
+		logIndex(new byte[0], new Location(s.id, s.size, HIGH_WATER));
+	}
+
+	private void logIndex(byte[] encoded, Location location) throws IOException
+	{
+		ByteBuffer record = ByteBuffer.allocate(18 + encoded.length);
+		record.putShort((short) encoded.length).put(encoded);
+		record.putInt(location.segment).putLong(location.offset).putInt(location.length);
+		record.flip();
+
+		while (record.hasRemaining()) indexChannel.write(record);
+		appended += record.capacity();
+		indexDirty = true;
+	}
+
+	/**
+	 * Wait until everything up to {@code end} is on disk. If nobody else is forcing data to
+	 * disk, we do it for everyone; otherwise, we wait for them (and perhaps go next).
+	 */
+	private void commit(long end) throws IOException
+	{
+		try
+		{
+			synchronized (this)
+			{
+				while (durable < end && syncing) wait();
+				if (durable >= end) return;
+				syncing = true;
+			}
+
+			// Give other writers a chance to join this commit.
+			if (commitDelay > 0) Thread.sleep(commitDelay);
+		}
+		catch (InterruptedException e)
+		{
+			synchronized (this) { syncing = false; notifyAll(); }
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting to commit " + this);
+		}
+
+		long target;
+		Collection<Segment> toSync;
+		boolean syncIndex;
+		FileChannel indexToSync;
+		synchronized (this)
+		{
+			target = appended;
+			toSync = new ArrayList<Segment>(dirty);
+			syncIndex = indexDirty;
+			indexToSync = indexChannel;
+
+			dirty.clear();
+			indexDirty = false;
+		}
+
+		IOException error = null;
+		try
+		{
+			for (Segment s : toSync) s.channel().force(true);
+			if (syncIndex) indexToSync.force(true);
+		}
+		catch (IOException e) { error = e; }
+
+		synchronized (this)
+		{
+			// Compaction may have closed the channel we were forcing, after forcing everything.
+			if (error == null || durable >= target)
+			{
+				durable = Math.max(durable, target);
+				commits++;
+				error = null;
+			}
+			else
+			{
+				// Try again next time.
+				dirty.addAll(toSync);
+				indexDirty |= syncIndex;
+			}
+
+			syncing = false;
+			notifyAll();
+		}
+
+		if (error != null) throw error;
+	}
+
+	/** How many group commits have forced data to disk. */
+	synchronized long commits() { return commits; }
+
+	/** Bytes in segments which belong to removed or overwritten blocks. */
+	private synchronized long garbage()
+	{
+		long garbage = 0;
+		for (Segment s : segments.values()) garbage += s.size - s.live;
+		return garbage;
+	}
+
+	private Segment newSegment() throws IOException
+	{
+		int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+		File file = new File(dir, String.format("segment-%08d.pack", id));
+		file.createNewFile();
+
+		Segment s = new Segment(id, file);
+		segments.put(id, s);
+		return s;
+	}
+
+	/** Replace the index log with a snapshot of the current index. */
+	private void rewriteIndex() throws IOException
+	{
+		File tmp = new File(dir, INDEX + ".tmp");
+		FileChannel out = new FileOutputStream(tmp).getChannel();
+		FileChannel old = indexChannel;
+		try
+		{
+			indexChannel = out;
+			for (Map.Entry<Fingerprint.Key,Location> e : index.entrySet())
+				logIndex(e.getKey().fingerprint(), e.getValue());
+
+			// Removed blocks have no records left; don't recover them from the segments.
+			for (Segment s : segments.values()) logHighWater(s);
+			out.force(true);
+		}
+		finally
+		{
+			indexChannel = old;
+			out.close();
+		}
+
+		if (!tmp.renameTo(new File(dir, INDEX)))
+			throw new IOException("Unable to replace index with " + tmp);
+
+		old.close();
+		indexChannel = new FileOutputStream(new File(dir, INDEX), true).getChannel();
+		indexDirty = false;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+		throws IOException
+	{
+		long start = position - buffer.position();
+		while (buffer.hasRemaining())
+			if (channel.read(buffer, start + buffer.position()) < 0)
+				throw new EOFException("Short read at " + (start + buffer.position()));
+	}
+
+
+	private static final String INDEX = "index";
+	private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.pack");
+
+	/** Marks the start of every record in a segment ("foot block"). */
+	private static final int RECORD_MAGIC = 0xF007B10C;
+
+	/** An index record with this length marks a removed block. */
+	private static final int TOMBSTONE = -1;
+
+	/** An index record with this length (and no name) gives the indexed size of a segment. */
+	private static final int HIGH_WATER = -2;
+
+	/** No encoded fingerprint is anywhere near this long. */
+	private static final int MAX_NAME_BYTES = 1024;
+
+	/** Segments with less than this fraction of live data are compacted. */
+	private static final double COMPACTION_THRESHOLD = 0.5;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final Logger log = Logger.getLogger(PackStore.class.getCanonicalName());
+
+	private final File dir;
+	private final long segmentSize;
+	private final long commitDelay;
+	private final int flushThreads;
+
+	/** Where each block is, by the compact form of its name (there may be millions). */
+	private final Map<Fingerprint.Key,Location> index = new HashMap<Fingerprint.Key,Location>();
+	private final TreeMap<Integer,Segment> segments = new TreeMap<Integer,Segment>();
+	private Segment active;
+	private FileChannel indexChannel;
+
+	/** Segments written to since the last commit. */
+	private final Set<Segment> dirty = new HashSet<Segment>();
+	private boolean indexDirty;
+
+	/** Bytes appended to segments and the index: all of them, and those known to be on disk. */
+	private long appended;
+	private long durable;
+
+	/** Whether some thread is currently forcing data to disk. */
+	private boolean syncing;
+	private long commits;
+}
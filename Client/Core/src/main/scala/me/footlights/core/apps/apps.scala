@@ -128,6 +128,10 @@ object AppWrapper {
 				keychain store f.link
 			}
 
+			override def openLocalFiles = footlights.openLocalFiles tee {
+				_ foreach { case f:data.File => keychain store f.link }
+			}
+
 			override def saveLocalFile(file:api.File) = footlights saveLocalFile file
 
 			override def promptUser(prompt:String) = promptUser(prompt, None)
@@ -113,7 +113,19 @@ object Identity {
 		SigningIdentity(generator generateKeyPair)
 	}
 
-	private def keyFactory(name:String) = KeyFactory getInstance name
+	/** The calling thread's {@link KeyFactory} for an algorithm (they are not thread-safe). */
+	private def keyFactory(name:String) = {
+		val mine = keyFactories.get
+		mine get name getOrElse {
+			val factory = KeyFactory getInstance name
+			mine += (name -> factory)
+			factory
+		}
+	}
+
+	private val keyFactories = new ThreadLocal[collection.mutable.Map[String,KeyFactory]] {
+		override def initialValue = collection.mutable.Map()
+	}
 
 	private def decodeIdentity(keyFactory:KeyFactory)(fields:List[Array[Byte]]) = {
 		fields.toList match {
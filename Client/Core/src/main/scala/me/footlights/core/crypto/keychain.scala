@@ -43,23 +43,24 @@ package me.footlights.core.crypto {
  * 2. asymmetric keys, exposed as {@link SingingIdentity} objects have authority to can sign things.
  */
 trait Keychain extends core.HasBytes {
-	private[crypto] def links:Map[Fingerprint,Link]
+	/** Links, by the compact {@link Fingerprint.Key} of the ciphertext they decrypt. */
+	private[crypto] def links:Map[Fingerprint.Key,Link]
 	private[crypto] def serialized:ByteBuffer
 
 	/** Concatenate with a link to an {@link EncryptedBlock}. */
-	def + (link:Link): Keychain = new ImmutableKeychain(links + (link.fingerprint -> link))
+	def + (link:Link): Keychain = new ImmutableKeychain(links + (link.fingerprint.key -> link))
 
 	def ++ (k:Keychain): Keychain = new ImmutableKeychain(links ++ k.links)
 
 
 	/** Get the {@link Link} which is capable of decrypting the named ciphertext. */
-	def getLink(name:Fingerprint) = links get name
+	def getLink(name:Fingerprint) = links get name.key
 
 	/** Get a serialized representation which can be saved in the CAS. */
 	override def getBytes = serialized.asReadOnlyBuffer 
 
 	// Object overrides
-	override def toString = "Keychain { %s }" format links
+	override def toString = "Keychain { %s }" format links.values
 	override def equals(other:Any) = other match {
 		case o:Keychain => links equals o.links
 		case _ => false
@@ -78,8 +79,8 @@ trait Keychain extends core.HasBytes {
 		// Protect keys with the same password as the keystore itself (common practice).
 		val protection = new KeyStore.PasswordProtection(password.toCharArray)
 
-		for ((fingerprint, link) <- links)
-			store.setEntry(fingerprint.encode, new KeyStore.SecretKeyEntry(link.key.keySpec),
+		for (link <- links.values)
+			store.setEntry(link.fingerprint.encode, new KeyStore.SecretKeyEntry(link.key.keySpec),
 					protection)
 
 		log fine { "Saved %d symmetric keys to Java KeyStore" format links.size }
@@ -111,7 +112,7 @@ class MutableKeychain (private var keychain:Keychain, notify:Keychain => Unit =
 
 /** An immutable {@link Keychain} which can be concatenated with other things. */
 class ImmutableKeychain private[crypto](
-		private[crypto] val links:Map[Fingerprint,Link]) extends Keychain {
+		private[crypto] val links:Map[Fingerprint.Key,Link]) extends Keychain {
 
 	private[crypto] lazy override val serialized =  {
 		val out = new ByteArrayOutputStream()
@@ -124,8 +125,10 @@ class ImmutableKeychain private[crypto](
 
 
 object Keychain {
-	def apply(links:Iterable[(Fingerprint, Link)]): Keychain = apply(Map() ++ links)
-	def apply(links:Map[Fingerprint,Link] = Map()): Keychain = new ImmutableKeychain(links)
+	def apply(links:Iterable[(Fingerprint, Link)]): Keychain =
+		new ImmutableKeychain(Map() ++ (links map { case (name, link) => (name.key, link) }))
+
+	def apply(links:Map[Fingerprint,Link] = Map()): Keychain = apply(links.toIterable)
 
 	def parse(bytes:ByteBuffer): Either[Exception, Keychain] = {
 		val magic = new Array[Byte](Magic.length)
@@ -160,8 +163,8 @@ object Keychain {
 	private[crypto] def serialize(keychain:Keychain, out:WritableByteChannel) = {
 		out << Magic << keychain.links.size
 
-		for ((fingerprint,link) <- keychain.links) {
-			val name = fingerprint.encode
+		for (link <- keychain.links.values) {
+			val name = link.fingerprint.encode
 			val secret = link.key.toUri.toString
 
 			out << name.length << secret.length
@@ -18,6 +18,8 @@ package me.footlights.core.crypto
 import java.nio.ByteBuffer
 import java.security.{Key,KeyPair,MessageDigest,PrivateKey,PublicKey}
 
+import scala.collection.mutable
+
 import me.footlights.core
 
 
@@ -30,10 +32,10 @@ class Signature(val publicKey:PublicKey, val signingAlgorithm:String, rawBytes:B
 			), null)
 
 	def verify(f:Fingerprint) = {
-		val verifier = java.security.Signature getInstance signingAlgorithm
+		val verifier = Signature verifier signingAlgorithm
 
 		verifier initVerify publicKey
-		verifier update f.copyBytes
+		verifier update f.getBytes
 		verifier verify rawBytes.array
 	}
 
@@ -64,6 +66,23 @@ object Signature {
 
 	protected[crypto] def signatureAlgorithm(hashAlgorithm:MessageDigest, key:Key) =
 		java.security.Signature getInstance algorithmName(hashAlgorithm, key)
+
+	/**
+	 * The calling thread's verifier for an algorithm: creating one searches all of the security
+	 * providers, which can take longer than checking an RSA signature.
+	 */
+	private[crypto] def verifier(algorithm:String) = {
+		val mine = verifiers.get
+		mine get algorithm getOrElse {
+			val v = java.security.Signature getInstance algorithm
+			mine += (algorithm -> v)
+			v
+		}
+	}
+
+	private val verifiers = new ThreadLocal[mutable.Map[String,java.security.Signature]] {
+		override def initialValue = mutable.Map()
+	}
 }
 
 
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.nio.ByteBuffer
+import java.security.{GeneralSecurityException,PublicKey}
+import java.util.concurrent.{Callable,ExecutorService,Executors,Future,ThreadFactory}
+import java.util.logging.{Level,Logger}
+
+import scala.collection.mutable
+
+import me.footlights.core
+
+
+package me.footlights.core.crypto {
+
+/**
+ * Verifies batches of signatures (e.g. on the roots of many shared directories) on a pool of
+ * worker threads, rather than one RSA operation at a time.
+ *
+ * Signatures that have been verified are remembered, up to {@link #capacity} of them, so
+ * checking an unchanged root again costs a lookup. Only successes are remembered: nobody can
+ * fill the cache without the private keys to make valid signatures.
+ */
+class BatchVerifier(pool:ExecutorService, val capacity:Int) {
+	if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive")
+
+	/**
+	 * Verify that each {@link Identity} produced the {@link Signature} of a {@link Fingerprint}.
+	 *
+	 * @return   whether each signature is valid, in the same order as the batch
+	 */
+	def verify(batch:Seq[(Fingerprint, Signature, Identity)]):Seq[Boolean] = {
+		// The same signature may appear several times in a batch; only check it once.
+		val pending = mutable.Map[Verified, Future[java.lang.Boolean]]()
+
+		val results = batch map { case (fingerprint, signature, identity) =>
+			val key = Verified(fingerprint, signature)
+
+			if (signature.publicKey != identity.publicKey) { () => false }
+			else if (remembered(key)) { () => true }
+			else {
+				val result = pending getOrElseUpdate (key,
+					pool submit new Callable[java.lang.Boolean] {
+						override def call = check(fingerprint, signature, key)
+					})
+
+				() => result.get.booleanValue
+			}
+		}
+
+		results map { _() }
+	}
+
+	/** Verify a single signature (which might already be remembered). */
+	def verify(fingerprint:Fingerprint, signature:Signature, identity:Identity):Boolean =
+		verify(List((fingerprint, signature, identity))).head
+
+	def hits = synchronized { hitCount }
+	def misses = synchronized { missCount }
+	def size = synchronized { verified.size }
+
+	/** The fraction of signatures that had already been verified. */
+	def hitRate = synchronized {
+		if (hitCount + missCount == 0) 0.0
+		else hitCount.toDouble / (hitCount + missCount)
+	}
+
+	override def toString =
+		"BatchVerifier { %d/%d verified signatures, hit rate %.2f }" format (
+			size, capacity, hitRate)
+
+
+	/** Have we already verified this signature? */
+	private def remembered(key:Verified) = synchronized {
+		val found = verified containsKey key
+		if (found) { hitCount += 1; verified get key }
+		else missCount += 1
+		found
+	}
+
+	/** Check a signature (on a worker thread) and remember it if it's valid. */
+	private def check(fingerprint:Fingerprint, signature:Signature, key:Verified) = {
+		val valid =
+			try { signature verify fingerprint }
+			catch {
+				case e:GeneralSecurityException =>
+					log.log(Level.FINE, "Error verifying signature of %s" format fingerprint, e)
+					false
+			}
+
+		if (valid) synchronized { verified.put(key, Unit) }
+		java.lang.Boolean valueOf valid
+	}
+
+	/** A signature which has been checked: everything that the outcome depends on. */
+	private case class Verified(fingerprint:Fingerprint.Key, algorithm:String,
+			publicKey:PublicKey, signature:ByteBuffer)
+
+	private object Verified {
+		def apply(f:Fingerprint, s:Signature):Verified =
+			Verified(f.key, s.signingAlgorithm, s.publicKey, ByteBuffer wrap s.copyBytes)
+	}
+
+	private var hitCount = 0L
+	private var missCount = 0L
+
+	/** Verified signatures, from least- to most-recently used. */
+	private val verified = new java.util.LinkedHashMap[Verified,Unit](16, 0.75f, true) {
+		override def removeEldestEntry(eldest:java.util.Map.Entry[Verified,Unit]) =
+			size() > capacity
+	}
+
+	private val log = Logger getLogger classOf[BatchVerifier].getCanonicalName
+}
+
+object BatchVerifier {
+	/** Preference: how many threads verify signatures. */
+	val ThreadsKey = "crypto.verify.threads"
+
+	/** Preference: how many verified signatures to remember. */
+	val CapacityKey = "crypto.verify.cache"
+
+	/** A {@link BatchVerifier} with its own worker threads, as configured by preferences. */
+	def apply(prefs:core.Preferences) = {
+		val threads = prefs getInt ThreadsKey map { _.intValue } get
+		val capacity = prefs getInt CapacityKey map { _.intValue } get
+
+		new BatchVerifier(Executors.newFixedThreadPool(threads, new ThreadFactory {
+			override def newThread(r:Runnable) = {
+				val t = new Thread(r, "BatchVerifier")
+				t setDaemon true
+				t
+			}
+		}), capacity)
+	}
+}
+
+}
@@ -22,6 +22,7 @@ import scala.collection.JavaConversions._
 
 import me.footlights.api
 import me.footlights.api.support.Either._
+import me.footlights.api.support.Tee._
 import me.footlights.core
 import me.footlights.core.crypto.Link
 
@@ -99,6 +100,48 @@ class MutableDirectory(var dir:Directory, footlights:core.Footlights, notify:Dir
 		} getOrElse Left(new NoSuchElementException("No such directory entry '%s'" format name))
 	}
 
+	/**
+	 * Changes are applied to the directory as it is when the batch is committed, and parent
+	 * directories are only notified (and so saved) once.
+	 */
+	override def batch:api.Directory.Batch = new api.Directory.Batch {
+		override def save(name:String, file:api.File) = file match {
+			case f:File => add(Right(Entry(name, f)))
+		}
+
+		override def save(name:String, bytes:ByteBuffer) =
+			add(footlights save bytes map { case f:File => Entry(name, f) })
+
+		override def save(name:String, d:api.Directory) = d match {
+			case m:MutableDirectory => add(footlights save m.dir map { Entry(name, _) })
+		}
+
+		override def remove(name:String) = change { d =>
+			d(name) map { d - _ } toRight {
+				new NoSuchElementException("No such directory entry '%s'" format name)
+			}
+		}
+
+		override def commit = {
+			val updated = ((Right(dir):Either[Exception,Directory]) /: changes) { _ flatMap _ }
+			changes.clear
+
+			updated map { d =>
+				if (d ne dir) update(d)
+				MutableDirectory.this
+			}
+		}
+
+		private def add(entry:Either[Exception,Entry]) = change { d => entry map { d + _ } }
+		private def change(f:Directory => Either[Exception,Directory]) = {
+			changes += f
+			this
+		}
+
+		private val changes =
+			collection.mutable.ListBuffer[Directory => Either[Exception,Directory]]()
+	}
+
 	def openMutableDirectory(name:String): Either[Exception,api.Directory] = {
 		var current:Either[Exception,api.Directory] = Right(this)
 		for (component <- name split "/" if !component.isEmpty)
@@ -121,6 +164,11 @@ class MutableDirectory(var dir:Directory, footlights:core.Footlights, notify:Dir
 		e
 	}
 
+	private def update(d:Directory) = {
+		dir = d
+		notify(dir)
+	}
+
 	private def entry2entry(e:Entry): api.Directory.Entry = new api.Directory.Entry {
 		override val isDir = e.isDir
 		override val name = e.name
@@ -151,146 +199,316 @@ object MutableDirectory {
 
 /**
  * Provides a name -> file mapping
+ *
+ * Directories are stored either as a chain of blocks ({@link FlatDirectory}) or as a B-tree of
+ * blocks ({@link TreeDirectory}); new directories use the format named by the
+ * "directory.format" preference, and both formats can always be read.
  */
-class Directory(private val map:Map[String,Entry]) {
-	import Directory._
-
-	def + (mapping:Entry) = Directory { map + (mapping.name -> mapping) }
-	def - (name:String) = Directory { map - name }
+abstract class Directory {
+	def + (mapping:Entry):Directory
+	def - (name:String):Directory
 	def - (mapping:Entry):Directory = this - mapping.name
 
-	def ++ (dir:Directory) = Directory { map ++ dir.map }
+	def ++ (dir:Directory) = (this /: dir.entries) { _ + _ }
 
-	def apply(name:String) = map get name
+	def apply(name:String):Option[Entry]
 
-	def entries = map.values
-	def contains = map.contains _
+	def entries:Iterable[Entry]
+	def contains(name:String) = apply(name).isDefined
 
-	lazy val link = encrypted.head.link
+	def link:Link
 	lazy val name = link.fingerprint.toURI
 
-	override def equals(a:Any) = {
-		if (!a.isInstanceOf[Directory]) false
-		else a.asInstanceOf[Directory].map == map
+	/**
+	 * The blocks that must be stored for this directory to be readable, head (or root) first.
+	 * Blocks that are known to have been stored already may be omitted.
+	 */
+	def encrypted:Iterable[EncryptedBlock]
+
+	/** Record that the blocks from {@link #encrypted} have been stored. */
+	def markStored():Unit = {}
+
+	/**
+	 * Roughly how many blocks this directory holds in memory (e.g. to reuse in later versions),
+	 * which is what it costs to cache.
+	 */
+	def residentBlocks:Int = 1
+
+	override def equals(a:Any) = a match {
+		case d:Directory => (d eq this) || (d.entryMap == entryMap)
+		case _ => false
 	}
 
+	override def hashCode = entryMap.hashCode
+
 	override lazy val toString =
-		if (map.isEmpty) "Directory()"
-		else "Directory(%s)" format (map.values map { _.toString } reduce { _ + ", " + _ })
+		if (entries.isEmpty) "Directory()"
+		else "Directory(%s)" format (entries map { _.toString } reduce { _ + ", " + _ })
 
-	lazy val encrypted:Iterable[EncryptedBlock] = {
-		if (map.size > Short.MaxValue)
-			throw new FormatException("Cannot store %d directory entries" format map.size)
+	private[data] def entryMap = entries map { e => (e.name, e) } toMap
+}
 
-		// Get byte-level representation of directory entries.
-		val entryBytes = map.values map { entry =>
-			val name = entry.name.getBytes
-			val size = entry.link.bytes + name.length
+object Directory {
+	/** The preference that names the format of new directories ("flat" or "tree"). */
+	val FormatKey = "directory.format"
+
+	/** A new directory, in the format named by the {@link #FormatKey} preference. */
+	def apply(entries:Map[String,Entry] = Map()):Directory =
+		core.Preferences.getDefaultPreferences getString FormatKey match {
+			case Some("tree") => TreeDirectory(entries)
+			case _ => FlatDirectory(entries)
+		}
 
-			(size, name, entry.isDir, entry.link)
-		} toSeq
+	/** Parse the plaintext blocks of a {@link FlatDirectory}, from the head of the chain. */
+	def parse(blocks:Iterable[Block]): Either[Exception,Directory] = FlatDirectory parse blocks
+
+	/**
+	 * Open a stored directory (in either format), fetching only the blocks that we need.
+	 *
+	 * @param fetch     retrieves blocks from storage
+	 */
+	def open(link:Link, fetch:Link => Option[EncryptedBlock]):Either[Exception,Directory] =
+		fetch(link) map { head =>
+			magic(head.plaintext) match {
+				case TreeLeaf | TreeNode => TreeDirectory.open(head, fetch)
+				case _ =>
+					var next:Option[EncryptedBlock] = Some(head)
+					val blocks = Iterator continually {
+						next tee { block =>
+							next = block.plaintext.links.headOption flatMap fetch
+						}
+					} takeWhile { _.isDefined } flatten
+
+					FlatDirectory parseCiphertext blocks.toIterable
+			}
+		} getOrElse {
+			Left(new IllegalArgumentException("%s does not link to (valid) blocks" format link))
+		}
+
+	implicit def file2entry(x:(String,File)) = Entry(x._1, x._2)
+	implicit def dir2entry(x:(String,Directory)) = Entry(x._1, x._2)
+
+
+	/** The magic number at the start of a directory block's content. */
+	private[data] def magic(block:Block) = {
+		val bytes = new Array[Byte](Magic.length)
+		block.content get bytes
+		bytes.toSeq
+	}
+
+	/** The byte-level representation of an entry's name (its link is stored separately). */
+	private[data] def encodeName(name:String, isDir:Boolean) = {
+		val bytes = name.getBytes
+		if (bytes.length > (Short.MaxValue / 2))
+			throw new FormatException("Name too long (%d B): '%s[...]'" format (
+					bytes.length, new String(bytes, 0, 30)
+				))
+
+		val namelen = (bytes.length.toShort & 0x7FFF) + (if (isDir) 0x8000 else 0) toShort
+
+		val buffer = ByteBuffer allocate bytes.length + 2
+		buffer putShort namelen
+		buffer put bytes
+		buffer.flip
+		buffer
+	}
+
+	/** Read an encoded name (and whether or not it names a directory). */
+	private[data] def decodeName(content:ByteBuffer) = {
+		val namelen = content getShort
+		val isDir = (namelen & 0x8000) == 0x8000
+		val name = new Array[Byte](namelen & 0x7FFF)
+		content get name
+
+		(new String(name), isDir)
+	}
+
+	/** Magic constant for a Footlights directory: vaguely "FOOTDIR" in hexaleet. */
+	private[data] val Magic = Seq(0xF0, 0x07, 0xD1, 0x12) map { _.toByte }
+
+	/** Special magic for the last block in the directory chain. */
+	private[data] val Terminator = Seq(0xF0, 0x07, 0xD1, 0x13) map { _.toByte }
 
+	/** Magic for a leaf of a {@link TreeDirectory}, which holds entries. */
+	private[data] val TreeLeaf = Seq(0xF0, 0x07, 0xD1, 0x14) map { _.toByte }
 
-		// Build content blocks in reverse order, adding entries until they are full.
+	/** Magic for an interior node of a {@link TreeDirectory}, which links to other nodes. */
+	private[data] val TreeNode = Seq(0xF0, 0x07, 0xD1, 0x15) map { _.toByte }
+
+	private[data] val BlockSize = 4096   // TODO: something more generic
+}
+
+
+/**
+ * A directory stored as a chain of blocks.
+ *
+ * Entries are kept in the order that they were added (replacing an entry moves it to the end)
+ * and are encoded oldest-first, starting from the tail of the block chain, so adding an entry
+ * only changes the head block. Blocks that don't change are reused, byte for byte, from the
+ * previous version of the directory (or from the blocks it was parsed from): they needn't be
+ * re-encrypted, and the CAS already has them.
+ */
+class FlatDirectory private(private val map:Map[String,Entry], order:Map[String,Long],
+		nextPosition:Long, previous:FlatDirectory.Chunks) extends Directory {
+	import Directory._
+	import FlatDirectory._
+
+	override def + (mapping:Entry):FlatDirectory =
+		if (map get mapping.name exists { _ == mapping }) this
+		else new FlatDirectory(map + (mapping.name -> mapping),
+				order + (mapping.name -> nextPosition), nextPosition + 1, reusable)
+
+	override def - (name:String):FlatDirectory =
+		if (!(map contains name)) this
+		else new FlatDirectory(map - name, order - name, nextPosition, reusable)
+
+	override def ++ (dir:Directory) = dir match {
+		case flat:FlatDirectory => (this /: flat.ordered) { _ + _ }
+		case other => (this /: other.entries) { _ + _ }
+	}
+
+	override def apply(name:String) = map get name
+
+	override def entries = map.values
+	override def contains(name:String) = map contains name
+
+	override lazy val link = encrypted.head.link
+	override lazy val encrypted:Iterable[EncryptedBlock] = encoding._1
+
+	/** How many of our blocks were reused from an earlier version, rather than encrypted anew. */
+	def reusedBlocks = encoding._2
+
+	override def residentBlocks = math.max(1, reusable.size)
+
+	override private[data] def entryMap = map
+
+	/** Entries, oldest first. */
+	private def ordered = map.values.toSeq sortBy { e => order(e.name) }
+
+	/** Blocks that later versions can reuse: those of our own encoding, once we have one. */
+	@volatile private var reusable = previous
+
+	private lazy val encoding = {
+		if (map.size > Short.MaxValue)
+			throw new FormatException("Cannot store %d directory entries" format map.size)
+
+		val old = reusable
+		var chunks:Chunks = Map()
+		var reused = 0
+
+		// Build content blocks from the tail of the chain, adding entries until they are full.
 		var ciphertext = List[EncryptedBlock]()
-		var blocks = List(
-			Block.newBuilder setDesiredSize BlockSize addContent Directory.Terminator.toArray
-		)
-
-		def createNewBlock = {
-			val oldHead = blocks.head
-			val encrypted = oldHead.build.encrypt
-
-			// The first link is to the next block.
-			val b =
-				Block.newBuilder
-					.setDesiredSize(BlockSize)
-					.addContent(Directory.Magic toArray)
-					.addLink(encrypted.link)
-
-			blocks ::= b
-			ciphertext ::= encrypted
+		var next:Option[Link] = None
+		var current = newBlock(next)
+		var contents = List[Entry]()
+
+		/** Finish the current block, reusing the ciphertext of an identical earlier one. */
+		def finish = {
+			val chunk = Chunk(next, contents.reverse)
+			val encrypted = old get chunk match {
+				case Some(e) => reused += 1; e
+				case None => current.build.encrypt
+			}
 
-			b
+			chunks += (chunk -> encrypted)
+			ciphertext ::= encrypted
+			encrypted
 		}
 
-		// Walk through directory entries in reverse order, adding them to blocks.
-		//
-		// There's no reason we couldn't do another ordering, putting the most-shared things
-		// at the end of the block chain and allowing sharing of partial directories.
-		//
-		// Future work.
-		var current = blocks.head
-		entryBytes.reverseIterator foreach { case Tuple4(size, name, isDir, link) =>
-			if (size > current.remaining) current = createNewBlock
-
-			if (name.length > (Short.MaxValue / 2))
-				throw new FormatException("Name too long (%d B): '%s[...]'" format (
-						name.length, new String(name, 0, 30)
-					))
-			val namelen = (name.length.toShort & 0x7FFF) + (if (isDir) 0x8000 else 0) toShort
-
-			val entry = ByteBuffer allocate name.length + 2
-			entry putShort namelen
-			entry put name
-			entry flip
-
-			current addLink link
-			current addContent entry
+		// Oldest entries go at the end of the chain, where they are shared by later versions.
+		ordered foreach { entry =>
+			val name = encodeName(entry.name, entry.isDir)
+			if (entry.link.bytes + name.remaining > current.remaining) {
+				next = Some(finish.link)
+				current = newBlock(next)
+				contents = Nil
+			}
+
+			current addLink entry.link
+			current addContent name
+			contents ::= entry
 		}
 
-		current.build.encrypt :: ciphertext
+		finish
+		reusable = chunks
+
+		(ciphertext, reused)
 	}
 
-	private val BlockSize = 4096   // TODO: something more generic
+	/** A new block: the tail of the chain (if there's no next block) or a link in it. */
+	private def newBlock(next:Option[Link]) = next match {
+		case None => Block.newBuilder setDesiredSize BlockSize addContent Terminator.toArray
+		case Some(link) =>
+			Block.newBuilder setDesiredSize BlockSize addContent Magic.toArray addLink link
+	}
 }
 
-object Directory {
-	def apply(entries:Map[String,Entry] = Map()) = new Directory(entries)
-
-	def parse(blocks:Iterable[Block]): Either[Exception,Directory] = {
-		if (blocks.isEmpty) Left(new IllegalArgumentException("A Directory must have blocks"))
-		else {
-			var terminated = false
-			val entries = blocks map { block =>
-				if (terminated) Nil
-				else {
-					val content = block.content
-					val magic = new Array[Byte](Magic.length)
-					content get magic
-
-					val isTerminator = magic.toSeq match {
-						case Terminator => true
-						case Magic => false
-						case other:Any =>
-							return Left(new FormatException("Bad directory magic %s" format other))
-					}
-					terminated = isTerminator
-
-					val links:Iterable[Link] = if (isTerminator) block.links else block.links.tail
-					for (link <- links) yield {
-						val namelen = content getShort
-						val isDir = (namelen & 0x8000) == 0x8000
-						val name = new Array[Byte](namelen & 0x7FFF)
-						content get name
-
-						(new String(name) -> new Entry(new String(name), isDir, link))
-					}
-				}
-			} reduce { _ ++ _ } toMap
+object FlatDirectory {
+	import Directory._
 
-			Right(new Directory(entries))
+	def apply(entries:Map[String,Entry] = Map()) =
+		(new FlatDirectory(Map(), Map(), 0, Map()) /: entries.keys.toSeq.sorted) { (d, name) =>
+			d + entries(name)
 		}
-	}
 
-	implicit def file2entry(x:(String,File)) = Entry(x._1, x._2)
-	implicit def dir2entry(x:(String,Directory)) = Entry(x._1, x._2)
+	/** Parse plaintext blocks, from the head of the chain. */
+	def parse(blocks:Iterable[Block]): Either[Exception,FlatDirectory] =
+		decode(blocks map { (_, None) })
+
+	/**
+	 * Parse encrypted blocks, from the head of the chain; later versions of the directory can
+	 * reuse these blocks rather than encrypting new ones.
+	 */
+	def parseCiphertext(blocks:Iterable[EncryptedBlock]): Either[Exception,FlatDirectory] =
+		decode(blocks map { e => (e.plaintext, Some(e)) })
+
+	private def decode(blocks:Iterable[(Block,Option[EncryptedBlock])])
+			:Either[Exception,FlatDirectory] = {
+		val chunks = collection.mutable.ListBuffer[(Chunk,Option[EncryptedBlock])]()
+
+		// The chain's tail may link to other things (its first entry), so stop at the terminator.
+		val i = blocks.iterator
+		var terminated = false
+		while (!terminated && i.hasNext) {
+			val (block, ciphertext) = i.next
+			val content = block.content
+			val magic = new Array[Byte](Magic.length)
+			content get magic
+
+			terminated = magic.toSeq match {
+				case Terminator => true
+				case Magic => false
+				case other:Any =>
+					return Left(new FormatException("Bad directory magic %s" format other))
+			}
 
-	/** Magic constant for a Footlights directory: vaguely "FOOTDIR" in hexaleet. */
-	private val Magic = Seq(0xF0, 0x07, 0xD1, 0x12) map { _.toByte }
+			val next = if (terminated) None else Some(block.links.head)
+			val links:Iterable[Link] = if (terminated) block.links else block.links.tail
+			val entries = links map { link =>
+				val (name, isDir) = decodeName(content)
+				new Entry(name, isDir, link)
+			} toList
 
-	/** Special magic for the last block in the directory chain. */
-	private val Terminator = Seq(0xF0, 0x07, 0xD1, 0x13) map { _.toByte }
+			chunks += ((Chunk(next, entries), ciphertext))
+		}
+
+		if (chunks.isEmpty) Left(new IllegalArgumentException("A Directory must have blocks"))
+		else {
+			// The oldest entries are at the tail of the chain.
+			val entries = chunks.reverse flatMap { _._1.entries }
+			val reusable = chunks collect { case (chunk, Some(e)) => (chunk, e) } toMap
+
+			Right(new FlatDirectory(
+				entries map { e => (e.name, e) } toMap,
+				entries.zipWithIndex map { case (e, i) => (e.name, i.toLong) } toMap,
+				entries.size,
+				reusable))
+		}
+	}
+
+	/** The entries in one block of a directory, and the block that it links to (if any). */
+	private[data] case class Chunk(next:Option[Link], entries:List[Entry])
+	private[data] type Chunks = Map[Chunk,EncryptedBlock]
 }
 
 
@@ -306,6 +524,7 @@ class Entry(val name:String, val isDir:Boolean, val link:Link) {
 	def file = if (isDir) None else Some(link)
 
 	override lazy val toString = name + (if (isDir) "/" else "")
+	override def hashCode = name.hashCode ^ link.hashCode
 	override def equals(a:Any) = {
 		if (!a.isInstanceOf[Entry]) false
 		else {
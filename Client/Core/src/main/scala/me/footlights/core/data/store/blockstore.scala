@@ -13,10 +13,12 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-import java.io.{IOException,PrintWriter}
+import java.io.{IOException,OutputStreamWriter,PrintWriter}
 import java.nio.ByteBuffer
-import java.nio.channels.Channels
+import java.security.GeneralSecurityException
 import java.net.{HttpURLConnection,MalformedURLException,URL,URLConnection,URLEncoder}
+import java.util.concurrent.{Callable,Executors,ThreadFactory}
+import java.util.concurrent.atomic.AtomicLong
 import java.util.logging.Level._
 import java.util.logging.Logger
 
@@ -29,7 +31,7 @@ import me.footlights.api.support.Tee._
 
 import me.footlights.core.{Kernel,Preferences,Resolver}
 import me.footlights.core.crypto.{Fingerprint,Link}
-import me.footlights.core.data.{Block,Directory,EncryptedBlock,File}
+import me.footlights.core.data.{Block,Directory,EncryptedBlock,File,ReadAhead}
 
 
 package me.footlights.core.data.store {
@@ -42,6 +44,22 @@ abstract class Store protected(cache:Option[LocalStore]) extends me.footlights.c
 
 	protected def get(name:Fingerprint): Option[ByteBuffer]
 
+	/** Get several blocks at once (by default, one at a time). */
+	protected def getAll(names:Seq[Fingerprint]):Seq[Option[ByteBuffer]] = names map get
+
+	/**
+	 * Put several blocks at once, returning the outcome for each block (in the same order).
+	 *
+	 * By default, this just calls {@link #put} for each block; stores with a per-request cost
+	 * (e.g. network round trips) should do better.
+	 */
+	protected def putAll(blocks:Seq[(Fingerprint,ByteBuffer)])
+			:Seq[Either[IOException,Fingerprint]] =
+		blocks map { case (name, bytes) =>
+			try { put(name, bytes); Right(name) }
+			catch { case e:IOException => Left(e) }
+		}
+
 	if (cache == null) throw new NullPointerException("null cache")
 	if (cache.isDefined && cache.get == null) throw new NullPointerException("null cache")
 
@@ -53,8 +71,24 @@ abstract class Store protected(cache:Option[LocalStore]) extends me.footlights.c
 	}
 
 	def retrieve(name:Fingerprint):Option[ByteBuffer] =
-		cache flatMap { _ retrieve name } orElse {
-			this get name tee { bytes => cache foreach { _ store (name, bytes) } }
+		cache flatMap { _ retrieve name } orElse { this get name tee { addToCache(name, _) } }
+
+	/** Retrieve several blocks, fetching any that we haven't cached all together. */
+	def retrieveAll(names:Seq[Fingerprint]):Seq[Option[ByteBuffer]] = {
+		val cached = names map { name => (name, cache flatMap { _ retrieve name }) }
+		val missing = cached collect { case (name, None) => name } distinct
+		val fetched =
+			if (missing.isEmpty) Map[Fingerprint,Option[ByteBuffer]]()
+			else (missing zip getAll(missing)).toMap
+
+		fetched foreach { case (name, bytes) => bytes foreach { addToCache(name, _) } }
+		cached map { case (name, bytes) => bytes orElse fetched(name) }
+	}
+
+	/** Retrieve the ciphertext of several blocks (which are in the store if they are defined). */
+	def retrieveCiphertext(links:java.util.List[Link]):java.util.List[Option[EncryptedBlock]] =
+		links zip retrieveAll(links map { _.fingerprint }) map { case (link, bytes) =>
+			bytes map { EncryptedBlock.newBuilder.setLink(link).setCiphertext(_).build }
 		}
 
 	def retrieveCiphertext(link:Link) = retrieve(link.fingerprint) map {
@@ -64,6 +98,22 @@ abstract class Store protected(cache:Option[LocalStore]) extends me.footlights.c
 			.build
 	}
 
+	/**
+	 * Retrieve and decrypt a block, without keeping its ciphertext.
+	 *
+	 * Cached ciphertext is only {@link LocalStore#borrow}ed while it is decrypted, so caches
+	 * that lend out their own memory (e.g. {@link OffHeapStore}) needn't copy it.
+	 */
+	@throws(classOf[GeneralSecurityException])
+	def decrypt(link:Link):Option[Block] = withCiphertext(link.fingerprint) { link decrypt _ }
+
+	/** Use (but don't keep) a block's bytes, borrowing them from the cache if we can. */
+	private def withCiphertext[T](name:Fingerprint)(use:ByteBuffer => T):Option[T] =
+		cache flatMap { _ borrow name } match {
+			case Some(loan) => try Some(use(loan.bytes)) finally loan.close
+			case None => this get name tee { addToCache(name, _) } map use
+		}
+
 	/**
 	 * Retrieve a list of {@link Block} names which are known to exist in the {@link Store}.
 	 *
@@ -72,44 +122,48 @@ abstract class Store protected(cache:Option[LocalStore]) extends me.footlights.c
 	 */
 	def listBlocks:Iterable[Stat] = cache map { _.list } flatten
 
-	/** Retrieve a stored (and encrypted) {@link File}. */
-	def fetch(link:Link):Option[File] = {
-		val encryptedHeader = retrieveCiphertext(link)
-		encryptedHeader map { _.plaintext } map {
-			_.links map retrieveCiphertext
-		} filter { _.size > 0 } filter { _ forall { _.isDefined } } map { _.flatten } map {
-			File.from(encryptedHeader.get, _)
+	/**
+	 * Retrieve a stored (and encrypted) {@link File}.
+	 *
+	 * Only the header is retrieved now; content blocks are retrieved as the file is read.
+	 */
+	def fetch(link:Link):Option[File] = retrieveCiphertext(link) flatMap { header =>
+		try { Some(File.from(header, this, readAhead)) }
+		catch {
+			case e:Exception =>
+				log log (WARNING, "Unable to open file %s" format link, e)
+				None
 		}
 	}
 
-	/** Retrieve a stored {@link Directory}. */
-	def fetchDirectory(link:Link):Either[Exception,Directory] = {
-		var next = Option(link)
-		val plaintext = Iterator continually {
-			next flatMap retrieveCiphertext map { _.plaintext } tee { block =>
-				next = block.links match {
-					case links if links.length > 0 => Option(links.head)
-					case _ => None
-				}
-			}
-		} takeWhile { _.isDefined } flatten
+	/** How (if at all) to retrieve file content before readers need it. */
+	def readAhead:Option[ReadAhead] = None
 
-		if (plaintext.isEmpty)
-			Left(new IllegalArgumentException("%s does not link to (valid) blocks" format link))
-		else
-			Directory parse plaintext.toIterable
-	}
+	/**
+	 * Retrieve a stored {@link Directory}.
+	 *
+	 * Tree-structured directories only have their root fetched now; other nodes are fetched as
+	 * lookups need them.
+	 */
+	def fetchDirectory(link:Link):Either[Exception,Directory] =
+		Directory open (link, retrieveCiphertext(_:Link))
 
 	/**
 	 * If we have a cache, this method should not block for I/O. To ensure that the block has
-	 * really been written to disk, the network, etc., call {@link #flush()}.
+	 * really been written to disk, the network, etc., call {@link #drain()}.
 	 */
 	private def store(name:Fingerprint, bytes:ByteBuffer): Unit =
 		cache map { c =>
-			c.store(name, bytes.asReadOnlyBuffer)
-			synchronized {
-				journal += name
-				notify
+			c.pin(name)
+			try {
+				c.store(name, bytes.asReadOnlyBuffer)
+				journal add name
+			} catch {
+				// Bounded caches may not have room for the block; store it directly instead.
+				case e:IOException =>
+					log log (FINE, "%s cannot cache %s; storing directly" format (c, name), e)
+					c.unpin(name)
+					put(name, bytes.asReadOnlyBuffer)
 			}
 		} orElse {
 			put(name, bytes.asReadOnlyBuffer)
@@ -117,67 +171,156 @@ abstract class Store protected(cache:Option[LocalStore]) extends me.footlights.c
 		}
 
 
+	private def addToCache(name:Fingerprint, bytes:ByteBuffer) =
+		try { cache foreach { _ store (name, bytes) } }
+		catch {
+			case e:IOException => log log (FINE, "Unable to cache %s" format name, e)
+		}
+
+
+	/** How many blocks to {@link #put} at once when flushing. */
+	def flushThreads = 1
+
+	/** How many blocks to flush in one call to {@link #putAll}. */
+	def flushBatchSize = 1
+
 	/** Wait until we have something to flush. */
 	override def await = {
-		Thread sleep flushTimeout_ms
-		synchronized { while (journal.isEmpty) wait() }
+		Thread sleep BatchDelay_ms
+		journal.await
 	}
 
-	/** Flush any stored blocks to disk/network, blocking until all I/O is complete. */
-	override def flush = while (journal.size > 0) {
-		val toFlush = synchronized { journal }
-		log fine "%s: flushing %d blocks".format (this, toFlush.size)
-
-		var flushResults = toFlush map { name =>
-			cache toRight {
-				new Exception("Cache-less store %s has non-empty journal!" format this)
-			} flatMap {
-				_ retrieve name toRight {
-					new Exception("Cache inconsistency! %s not in cache %s" format (name, cache))
-				}
-			} flatMap { bytes =>
-				try { put(name, bytes); Right(name) }
-				catch { case e:IOException => Left(e) }
-			}
-		}
+	/**
+	 * Flush the stored blocks that are due to disk/network, blocking until their I/O is complete.
+	 *
+	 * This is one pass for a background {@link Flusher}: it doesn't flush blocks whose retry
+	 * (after a failure) isn't due yet or blocks stored while it runs, and blocks which fail
+	 * are left for later calls. To flush everything, call {@link #drain()}.
+	 */
+	override def flush = flushing synchronized { flushEntries(journal.due) }
 
-		for (Left(ex) <- flushResults) log log (WARNING, "Error flushing block store", ex)
-		var flushed = flushResults collect { case Right(name) => name}
+	/**
+	 * Flush every stored block to disk/network, blocking until their I/O is complete (e.g. on
+	 * shutdown).
+	 *
+	 * Blocks which fail to flush are retried straight away, ignoring their backoff, for up to
+	 * {@link #DrainAttempts} passes; any that still fail are left for later calls.
+	 *
+	 * @return   whether every block was flushed
+	 */
+	def drain:Boolean = drain(DrainAttempts)
 
-		synchronized {
-			journal --= flushed
-			log fine "%s: flushed %d blocks, %d remain".format(this, flushed size, journal size)
+	def drain(attempts:Int):Boolean = {
+		for (i <- 1 to attempts if !journal.isEmpty)
+			flushing synchronized { flushEntries(journal.all) }
 
-			if (journal.isEmpty) resetTimeout
-			else increaseTimeout
-		}
+		// Let subclasses finish off whatever they do when flushing.
+		flush
+		journal.isEmpty
 	}
 
-	private val InitialTimeout_ms = 500
-	private val MaxTimeout_ms = 120000
+	/** How many passes {@link #drain()} makes over blocks that fail to flush. */
+	def DrainAttempts = 3
+
+	/** Flush some entries taken from the journal, putting any that fail back into it. */
+	private def flushEntries(toFlush:Seq[journal.Entry]) = {
+		if (!toFlush.isEmpty) {
+			log fine "%s: flushing %d blocks".format (this, toFlush.size)
+
+			// Entries taken from the journal that must go back if we don't get to them.
+			val unsettled = collection.mutable.Set(toFlush:_*)
+			var flushed = 0
+
+			try {
+				val batches = (toFlush grouped flushBatchSize).toList
+				val results =
+					if (flushThreads > 1 && batches.size > 1)
+						flushPool invokeAll {
+							batches map { batch =>
+								new Callable[Seq[(journal.Entry, Either[Exception,Fingerprint])]] {
+									override def call = tryFlush(batch)
+								}
+							}
+						} flatMap { _.get }
+					else batches flatMap tryFlush
+
+				results foreach { result =>
+					result match {
+						case (e, Right(name)) =>
+							cache foreach { _ unpin name }
+							journal done e
+							flushed += 1
+
+						case (e, Left(ex:IOException)) =>
+							val attempt = e.failures + 1
+							log log (WARNING,
+								"Error flushing %s (attempt %d)" format (e.name, attempt), ex)
+							journal failed e
+
+						case (e, Left(ex)) =>
+							log log (SEVERE, "Unable to flush %s; giving up" format e.name, ex)
+							cache foreach { _ unpin e.name }
+							journal done e
+					}
+
+					unsettled -= result._1
+				}
+			} finally {
+				unsettled foreach journal.failed
+			}
 
-	/** How long (in ms) to sleep between flush attempts. */
-	private var flushTimeout_ms = InitialTimeout_ms
-	private def increaseTimeout = flushTimeout_ms = math.min(2 * flushTimeout_ms, MaxTimeout_ms)
-	private def resetTimeout = flushTimeout_ms = InitialTimeout_ms
+			log fine "%s: flushed %d blocks, %d remain".format(this, flushed, journal.size)
+		}
+	}
 
-	private var journal = Set[Fingerprint]()
-	private val log = java.util.logging.Logger getLogger classOf[Store].getCanonicalName
-}
+	/** Flush a batch, treating unexpected exceptions as (retryable) I/O errors. */
+	private def tryFlush(batch:Seq[journal.Entry]) =
+		try { flush(batch) }
+		catch {
+			case e:RuntimeException =>
+				val error = new IOException("Error flushing %d blocks" format batch.size, e)
+				batch map { (_, Left(error)) }
+		}
 
+	/** Flush a batch of blocks from the cache. */
+	private def flush(batch:Seq[journal.Entry])
+			:Seq[(journal.Entry, Either[Exception,Fingerprint])] = {
+		val (missing, found) = batch map { e =>
+			cache toRight {
+				new Exception("Cache-less store %s has non-empty journal!" format this)
+			} flatMap {
+				_ retrieve e.name toRight {
+					new Exception("Cache inconsistency! %s not in cache %s" format (e.name, cache))
+				}
+			} match {
+				case Left(ex) => Left((e, Left(ex)))
+				case Right(bytes) => Right((e, bytes))
+			}
+		} partition { _.isLeft }
 
+		val toPut = found map { _.right.get }
+		val results =
+			if (toPut.isEmpty) Nil
+			else toPut map { _._1 } zip putAll(toPut map { case (e, bytes) => (e.name, bytes) })
 
-/** A block store in memory. */
-class MemoryStore extends LocalStore {
-	val blocks = collection.mutable.Map[Fingerprint,ByteBuffer]()
+		(missing map { _.left.get }) ++ results
+	}
 
-	override def put(name:Fingerprint, bytes:ByteBuffer) = blocks.put(name, bytes)
-	override def get(name:Fingerprint) = blocks.get(name) map { _.asReadOnlyBuffer }
+	/** How long to wait after blocks are stored before flushing them, so we flush in batches. */
+	private val BatchDelay_ms = 500
 
-	override def list = for ((name,bytes) <- blocks) yield Stat(name, bytes.remaining)
+	private val journal = new Journal
 
-	/** Do nothing; {@link MemoryStore} always blocks. */
-	override def flush = Unit
+	/** Held while flushing, so that {@link #drain()} doesn't miss blocks being flushed. */
+	private val flushing = new Object
+	private lazy val flushPool = Executors.newFixedThreadPool(flushThreads, new ThreadFactory {
+		override def newThread(r:Runnable) = {
+			val t = new Thread(r, "%s flusher" format Store.this)
+			t setDaemon true
+			t
+		}
+	})
+	private val log = java.util.logging.Logger getLogger classOf[Store].getCanonicalName
 }
 
 
@@ -185,35 +328,174 @@ class MemoryStore extends LocalStore {
 /** A client for the Footlights Content-Addressible Store (CAS). */
 class CASClient private[store](
 		downloadUrl:Fingerprint => Option[URL], uploadUrl:() => Option[URL],
-		uploadKey:Option[String], cache:Option[LocalStore])
+		uploadKey:Option[String], cache:Option[LocalStore],
+		override val readAhead:Option[ReadAhead] = None, override val flushThreads:Int = 1,
+		override val flushBatchSize:Int = 1, transport:HttpTransport = new HttpTransport)
 	extends Store(cache) {
 
 	override def toString() = "CASClient"
 
 
-	override protected[store] def get(name:Fingerprint) = {
-		downloadUrl(name) flatMap { _.openConnection match {
-				case http:HttpURLConnection => Option(http)
-				case _ =>
-					log severe "Non-HTTP response for block " + name
+	override protected[store] def get(name:Fingerprint) = getAll(List(name)).head
+
+	/** Download blocks over pooled, keep-alive (and pipelined) connections. */
+	override protected def getAll(names:Seq[Fingerprint]) = {
+		val urls = names map downloadUrl
+		val responses = (transport getAll urls.flatten).iterator
+
+		names zip urls map {
+			case (name, Some(url)) => responses.next match {
+				case Right(response) => validResponse(name, response)
+				case Left(e) =>
+					log log (WARNING, "Error downloading %s" format name, e)
 					None
 			}
-		} filter validHttpResponse map { connection =>
-			val buffer = ByteBuffer allocate connection.getContentLength
-			val channel = Channels newChannel connection.getInputStream
-
-			while (buffer.remaining > 0) channel read buffer
 
-			buffer.flip
-			buffer.asReadOnlyBuffer
+			case (name, None) => None
 		}
 	}
 
 	override protected[store] def put(name:Fingerprint, bytes:ByteBuffer) = {
+		val c = post(Map("EXPECTED_NAME" -> name.encode), List("upload" -> bytes))
+
+		new java.io.BufferedReader(new java.io.InputStreamReader(c.getInputStream)) readLine match {
+			case s if s == name.encode => // The upload server returned the name that we expected.
+			case other => throw new IOException("Bad name: " + other + " != " + name)
+		}
+	}
+
+	/**
+	 * Upload the blocks that the CAS doesn't already have.
+	 *
+	 * Before uploading anything, we ask the CAS which of the blocks it is {@link #missing}: when
+	 * saving a lightly-edited directory, it will already have most of them. If it can't tell us,
+	 * we upload them all.
+	 */
+	override protected def putAll(blocks:Seq[(Fingerprint,ByteBuffer)])
+			:Seq[Either[IOException,Fingerprint]] = {
+		val names = blocks map { _._1 }
+		val wanted =
+			if (!canAskWhatCASHas) names.toSet
+			else missing(names) match {
+				case Right(m) => m
+				case Left(e) =>
+					log log (FINE, "Unable to ask CAS which blocks it has; uploading them all", e)
+					names.toSet
+			}
+
+		val (toUpload, toSkip) = blocks partition { case (name, _) => wanted contains name }
+		if (!toSkip.isEmpty) {
+			val bytes = toSkip map { _._2.remaining.toLong } sum
+
+			blocksAvoided addAndGet toSkip.size
+			bytesAvoided addAndGet bytes
+			log fine { "CAS already has %d of %d blocks (%d B)" format (
+				toSkip.size, blocks.size, bytes) }
+		}
+
+		val uploaded = (toUpload map { _._1 } zip upload(toUpload)).toMap
+		names map { name => uploaded getOrElse (name, Right(name)) }
+	}
+
+	/** How many blocks we haven't had to upload, because the CAS already had them. */
+	def blocksNotUploaded = blocksAvoided.get
+
+	/** How many bytes we haven't had to upload, because the CAS already had them. */
+	def bytesNotUploaded = bytesAvoided.get
+
+	/**
+	 * Upload several blocks in one request.
+	 *
+	 * The server replies with one line per block: its name, an HTTP status code and (if the
+	 * block wasn't stored) an explanation.
+	 */
+	private def upload(blocks:Seq[(Fingerprint,ByteBuffer)]):Seq[Either[IOException,Fingerprint]] =
+		if (blocks.isEmpty) Nil
+		else if (blocks.size == 1) super.putAll(blocks)
+		else try {
+			val c = post(Map("BATCH" -> "true"), blocks map { case (name, b) => (name.encode, b) })
+
+			val status = scala.io.Source.fromInputStream(c.getInputStream, "utf-8").getLines map {
+				_ split (" ", 3)
+			} collect {
+				case Array(name, code, rest @ _*) => (name, (code, rest.headOption getOrElse ""))
+			} toMap
+
+			blocks map { case (name, _) =>
+				status get name.encode match {
+					case Some(("200", _)) => Right(name)
+					case Some((code, message)) =>
+						Left(new IOException("Error %s uploading %s: %s" format (code, name, message)))
+					case None => Left(new IOException("No upload status for " + name))
+				}
+			}
+		} catch {
+			case e:IOException => blocks map { _ => Left(e) }
+		}
+
+	/**
+	 * Ask the CAS which of some blocks it doesn't have, so that we needn't upload the rest.
+	 *
+	 * The CAS answers at "have" (relative to the upload URL), given one name per line: it lists
+	 * the names that it has, as {@link CASClient#HaveType}. We only skip a block if the CAS has
+	 * positively confirmed that it has it; any other reply (an error, an older server's reply or
+	 * a proxy's catch-all page) means that we upload everything. If the CAS can't answer at all,
+	 * we stop asking it.
+	 */
+	def missing(names:Seq[Fingerprint]):Either[IOException,Set[Fingerprint]] = try {
+		val url = uploadUrl() map { new URL(_, "have") } getOrElse {
+			throw new IOException("No upload URL")
+		}
+
+		val c = url.openConnection.asInstanceOf[HttpURLConnection]
+		c setDoOutput true
+		c setInstanceFollowRedirects false
+		c.setRequestProperty("Content-Type", "text/plain; charset=utf-8")
+
+		val out = new PrintWriter(new OutputStreamWriter(c.getOutputStream, "utf-8"))
+		names foreach { out append _.encode append "\n" }
+		out.close
+
+		val code = c.getResponseCode
+		if (code != 200) {
+			val message = "CAS error: HTTP code %d asking for %d names" format (code, names.size)
+
+			// Server errors may be transient; anything else means we shouldn't ask again.
+			if (code >= 500) throw new IOException(message)
+			else unrecognized(message)
+		}
+
+		val contentType = Option(c.getContentType) map { _ takeWhile { _ != ';' } trim }
+		if (contentType != Some(CASClient.HaveType))
+			unrecognized("Unexpected reply from CAS (%s)" format (contentType getOrElse "untyped"))
+
+		val byName = names map { n => (n.encode, n) } toMap
+		val answer = scala.io.Source.fromInputStream(c.getInputStream, "utf-8").getLines map {
+			_.trim } filterNot { _.isEmpty } toList
+
+		answer find { !byName.contains(_) } foreach { name =>
+			unrecognized("CAS claims to have a block we didn't ask about: '%s'" format name)
+		}
+
+		Right(names.toSet -- (answer map byName))
+	} catch {
+		case e:IOException => Left(e)
+	}
+
+	/** Give up on asking what the CAS has, since it doesn't understand the question. */
+	private def unrecognized(message:String):Nothing = {
+		canAskWhatCASHas = false
+		throw new IOException(message)
+	}
+
+	/** Whether the CAS understands requests to "have" (until it shows otherwise). */
+	@volatile private var canAskWhatCASHas = true
+
+	/** POST a multipart/form-data request containing text fields and files. */
+	private def post(fields:Map[String,String], files:Seq[(String,ByteBuffer)]) = {
 		if (uploadKey.isEmpty) throw new IOException("No upload key set")
 
-		val textFields = Map("AUTHENTICATOR" -> uploadKey.get, "EXPECTED_NAME" -> name.encode)
-		val files = Map("upload" -> bytes)
+		val textFields = Map("AUTHENTICATOR" -> uploadKey.get) ++ fields
 
 		val CRLF = "\r\n"
 		val boundary = "CASClientMIMEBoundary"
@@ -225,7 +507,7 @@ class CASClient private[store](
 		c.setRequestProperty("Content-Type",
 				"""multipart/form-data; boundary=%s""" format boundary)
 
-		val out = c.getOutputStream
+		val out = new java.io.BufferedOutputStream(c.getOutputStream)
 		val writer = new PrintWriter(out, true)
 
 		textFields foreach { case (key, value) =>
@@ -246,7 +528,7 @@ class CASClient private[store](
 						"""filename="%s"""" format name,
 				"Content-Type: application/octet-stream",
 				"Content-Transfer-Encoding: binary",
-//				"Content-Length: %d" format bytes.remaining,
+				"Content-Length: %d" format bytes.remaining,
 				""
 			) foreach { writer append _ append CRLF }
 			writer.flush
@@ -271,37 +553,36 @@ class CASClient private[store](
 		out.flush
 		out.close
 
-		new java.io.BufferedReader(new java.io.InputStreamReader(c.getInputStream)) readLine match {
-			case s if s == name.encode => // The upload server returned the name that we expected.
-			case other => throw new IOException("Bad name: " + other + " != " + name)
-		}
+		c
 	}
 
 
-	private def validHttpResponse(http:HttpURLConnection) = {
-		try {
-			http.getResponseCode match {
-				case 200 =>
-					if (!http.getContentType.equals("application/octet-stream"))
-						throw new IOException("Unknown mime-type: " + http.getContentType)
-					true
+	private def validResponse(name:Fingerprint, response:HttpResponse) =
+		response.status match {
+			case 200 =>
+				response header "Content-Type" match {
+					case Some("application/octet-stream") => Some(response.body)
+					case other =>
+						log severe "Unknown mime-type for %s: %s".format(name, other getOrElse "")
+						None
+				}
 
-				case other =>
-					log severe "CAS error: HTTP code " + other
-					false
-			}
-		} catch {
-			case e:javax.net.ssl.SSLKeyException =>
-				log.log(SEVERE, "SSL error connecting to CAS", e)
-				false
+			case other =>
+				log severe "CAS error: HTTP code " + other
+				None
 		}
-	}
+
+	private val blocksAvoided = new AtomicLong
+	private val bytesAvoided = new AtomicLong
 
 	private val log = CASClient.log
 }
 
 
 object CASClient {
+	/** The media type of the CAS's list of the blocks it has (see {@link CASClient#missing}). */
+	val HaveType = "text/x-footlights-have"
+
 	def apply(prefs:Preferences, resolver:Resolver, cache:Option[LocalStore],
 			uploadSecret:Option[String] = None) = {
 
@@ -346,7 +627,20 @@ object CASClient {
 		// The key used to upload content. If None, we can still use the CASClient for downloading.
 		val uploadKey = uploadSecret orElse { prefs getString PrefPrefix + "secret" }
 
-		val c = new CASClient(downloadUrl, uploadUrl, uploadKey, cache)
+		// How many blocks to upload at once.
+		val uploadThreads = prefs getInt PrefPrefix + "uploadThreads" map { _.intValue } getOrElse 4
+
+		// How many blocks to upload in each request.
+		val uploadBatch = prefs getInt PrefPrefix + "uploadBatch" map { _.intValue } getOrElse 32
+
+		// How many connections to open to each CAS host, and how many requests to send down each
+		// connection before waiting for responses.
+		val transport = new HttpTransport(
+			prefs getInt PrefPrefix + "connectionsPerHost" map { _.intValue } getOrElse 4,
+			prefs getInt PrefPrefix + "pipelineDepth" map { _.intValue } getOrElse 8)
+
+		val c = new CASClient(downloadUrl, uploadUrl, uploadKey, cache,
+			ReadAhead create prefs, uploadThreads, uploadBatch, transport)
 		me.footlights.core.Flusher(c).start
 		c
 	}
@@ -16,7 +16,7 @@
 import java.io.IOException
 import java.net.URI
 import java.nio.ByteBuffer
-import java.nio.channels.Channels
+import java.nio.channels.ReadableByteChannel
 
 import scala.collection.JavaConversions._
 
@@ -65,8 +65,9 @@ trait Filesystem extends Footlights {
 				Left(new NoSuchElementException("Key for '%s' not known" format name))
 			}
 
+	/** Stored directories are immutable, so we can keep (a bounded number of) them parsed. */
 	override def openDirectory(link:Link):Either[Exception,Directory] =
-		store fetchDirectory link
+		directoryCache(link) { store fetchDirectory link }
 
 	/** We cannot meaningfully create a {@link MutableDirectory} without a persistent name. */
 	override def openDirectory(name:String) = rootDirectory flatMap { _.openDirectory(name) }
@@ -83,8 +84,8 @@ trait Filesystem extends Footlights {
 					val path = names reduce { _ + "/" + _ }
 					Left(new Exception("'%s' not a directory (in path '%s'" format (name, path))) }
 			} map {
-			_.link } flatMap
-			store.fetchDirectory
+			_.link } flatMap {
+			openDirectory(_:Link) }
 		}
 
 		dir
@@ -120,6 +121,26 @@ trait Filesystem extends Footlights {
 	override def save(data:ByteBuffer):Either[Exception,api.File] =
 		save { File.newBuilder.setContent(data).freeze }
 
+	/**
+	 * Save everything that can be read from a channel to a {@link File}.
+	 *
+	 * Unlike {@link #save(ByteBuffer)}, the content is encrypted and stored as it is read, so it
+	 * never needs to be held in memory all at once.
+	 */
+	override def save(in:ReadableByteChannel):Either[Exception,api.File] = try {
+		val writer = File newWriter store
+		val buffer = ByteBuffer allocate ReadBufferSize
+		while (in.read(buffer) >= 0) {
+			buffer.flip
+			writer write buffer
+			buffer.clear
+		}
+		writer.close
+
+		log fine { "saved %d B from channel as '%s'" format (writer.length, writer.link) }
+		open(writer.link)
+	} catch { case ex:Exception => Left(ex) }
+
 	/** Save a {@link File} that has already been generated to the {@link Store}. */
 	def save(file:File) = {
 		store store file.toSave
@@ -130,7 +151,9 @@ trait Filesystem extends Footlights {
 	/** Save an immutable {@link Directory} to the {@link Store}. */
 	def save(dir:Directory) = {
 		store store dir.encrypted
-		log fine { "saved dir '%s'" format dir }
+		dir.markStored()
+		directoryCache put (dir.link, dir)
+		if (log isLoggable java.util.logging.Level.FINE) log fine { "saved dir '%s'" format dir }
 		Right(dir)
 	}
 
@@ -144,7 +167,7 @@ trait Filesystem extends Footlights {
 		val tmp = java.io.File.createTempFile("tmp-", "", filename.getParentFile)
 		val out = io writer tmp
 
-		out transferFrom (Channels newChannel f.getInputStream, 0, f.stat.length)
+		out transferFrom (f.getChannel, 0, f.stat.length)
 		out force true
 		out close
 
@@ -152,6 +175,11 @@ trait Filesystem extends Footlights {
 		Right(f)
 	} catch { case ex:Exception => Left(ex) }
 
+	/** Directories that we have recently opened or saved. */
+	lazy val directoryCache = new DirectoryCache(
+		prefs getInt DirectoryCache.CapacityKey map { _.intValue } getOrElse 256,
+		prefs getInt DirectoryCache.BlocksKey map { _.intValue } getOrElse 4096)
+
 	/** List some of the files in the filesystem (not exhaustive!). */
 	override def listFiles = store.listBlocks
 
@@ -187,12 +215,91 @@ trait Filesystem extends Footlights {
 		}
 	}
 
+	/** How much to read from a channel at a time when saving it. */
+	private val ReadBufferSize = 64 * 1024
+
 	/** The key used to identify the global preference with the root name. */
 	private val RootPrefKey = "root"
 
 	private val log = java.util.logging.Logger getLogger classOf[Filesystem].getCanonicalName
 }
 
+/**
+ * Parsed {@link Directory} objects, keyed by the {@link Link} that names them.
+ *
+ * Stored directories are immutable and named by their content, so cached directories never
+ * need to be invalidated. A directory can hold many blocks in memory (see
+ * {@link Directory#residentBlocks}), so the least-recently used are evicted once there are more
+ * than {@link #capacity} directories or they hold more than {@link #maxBlocks} blocks. A
+ * directory can fetch more blocks while it's cached, so it is weighed again whenever it's found.
+ */
+class DirectoryCache(val capacity:Int, val maxBlocks:Int = Int.MaxValue) {
+	if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive")
+	if (maxBlocks <= 0) throw new IllegalArgumentException("Block limit must be positive")
+
+	/** Retrieve a cached directory, or open (and cache) it. */
+	def apply(link:Link)(open: => Either[Exception,Directory]) =
+		synchronized {
+			val cached = Option(directories get link)
+			if (cached.isDefined) { hitCount += 1; weigh(link, cached.get) } else missCount += 1
+			cached
+		} map { Right(_) } getOrElse {
+			// Don't hold the lock while fetching: opening the same directory twice is harmless.
+			open tee { put(link, _) }
+		}
+
+	def put(link:Link, dir:Directory) = synchronized {
+		directories.put(link, dir)
+		weigh(link, dir)
+	}
+
+	def hits = synchronized { hitCount }
+	def misses = synchronized { missCount }
+	def size = synchronized { directories.size }
+
+	/** How many blocks the cached directories held when we last weighed them. */
+	def blocks = synchronized { blockCount }
+
+	/** The fraction of lookups that found a parsed directory here. */
+	def hitRate = synchronized {
+		if (hitCount + missCount == 0) 0.0
+		else hitCount.toDouble / (hitCount + missCount)
+	}
+
+	override def toString =
+		"DirectoryCache { %d/%d directories, %d/%d blocks, hit rate %.2f }" format (
+			size, capacity, blocks, maxBlocks, hitRate)
+
+	/** Record a directory's current weight, then evict directories until we're within limits. */
+	private def weigh(link:Link, dir:Directory) = {
+		val weight = dir.residentBlocks
+		blockCount += weight - (weights put (link, weight) getOrElse 0)
+
+		val i = directories.keySet.iterator
+		while ((directories.size > capacity || blockCount > maxBlocks) && i.hasNext) {
+			val eldest = i.next
+			i.remove
+			blockCount -= weights remove eldest getOrElse 0
+		}
+	}
+
+	private var hitCount = 0L
+	private var missCount = 0L
+	private var blockCount = 0L
+
+	/** Iterates from least- to most-recently accessed. */
+	private val directories = new java.util.LinkedHashMap[Link,Directory](16, 0.75f, true)
+	private val weights = collection.mutable.Map[Link,Int]()
+}
+
+object DirectoryCache {
+	/** Preference: how many parsed directories to keep in memory. */
+	val CapacityKey = "cache.directories"
+
+	/** Preference: how many blocks the cached directories may hold in memory. */
+	val BlocksKey = "cache.directories.blocks"
+}
+
 class Stat(val name: Fingerprint, val length: Long) {
 	override val toString = "File '%s' (%d B)" format (name, length)
 }
@@ -0,0 +1,513 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.{BufferedInputStream,BufferedOutputStream,EOFException,IOException,InputStream}
+import java.net.{HttpURLConnection,InetSocketAddress,Proxy,ProxySelector,Socket,URL}
+import java.nio.ByteBuffer
+import java.security.cert.X509Certificate
+import java.util.concurrent.{Callable,ConcurrentHashMap,Executors,Semaphore,ThreadFactory}
+import java.util.concurrent.atomic.AtomicLong
+import java.util.logging.Level._
+import java.util.logging.Logger
+
+import javax.net.ssl.{HttpsURLConnection,SSLPeerUnverifiedException,SSLSession,SSLSocket}
+import javax.net.ssl.SSLSocketFactory
+
+import scala.collection.JavaConversions._
+import scala.collection.mutable
+
+
+package me.footlights.core.data.store {
+
+/** An HTTP response, with its body read into memory. */
+case class HttpResponse(status:Int, headers:Map[String,String], body:ByteBuffer) {
+	def header(name:String) = headers get name.toLowerCase
+}
+
+/**
+ * A small HTTP/1.1 client for GETting blocks, which keeps connections to each host alive and
+ * pipelines requests on them.
+ *
+ * At most {@link #maxConnections} requests (or pipelines of requests) run against any one host at
+ * a time; connections are reused until the server closes them. {@link #getAll} sends up to
+ * {@link #pipelineDepth} requests down each connection before reading any responses. If the
+ * server closes a connection before answering everything sent down it, the unanswered requests
+ * are sent again on another connection.
+ *
+ * Like {@link java.net.HttpURLConnection}, this client follows redirects (up to
+ * {@link #maxRedirects} of them) and honours the system's {@link ProxySelector}: URLs that
+ * should go through a proxy are fetched with {@link java.net.HttpURLConnection} instead.
+ */
+class HttpTransport(val maxConnections:Int = 4, val pipelineDepth:Int = 8,
+		timeout_ms:Int = 30000, val maxRedirects:Int = 5) {
+
+	if (maxConnections < 1) throw new IllegalArgumentException("Need at least one connection")
+	if (pipelineDepth < 1) throw new IllegalArgumentException("Pipeline depth must be positive")
+
+	/** GET one resource. */
+	def get(url:URL):Either[Exception,HttpResponse] = getAll(List(url)).head
+
+	/**
+	 * GET several resources, returning their responses in the same order.
+	 *
+	 * Redirects are followed, up to {@link #maxRedirects} of them per resource.
+	 */
+	def getAll(urls:Seq[URL]):Seq[Either[Exception,HttpResponse]] = getAll(urls, maxRedirects)
+
+	/** Close all idle connections. */
+	def close = pools.values foreach { _.close }
+
+	/** How many connections we have opened (e.g. to check that they are being reused). */
+	def connectionsOpened = opened.get
+
+	override def toString = "HttpTransport { %d connections/host, pipeline depth %d }" format (
+		maxConnections, pipelineDepth)
+
+
+	/** GET some resources, following up to {@code redirects} more redirects. */
+	private def getAll(urls:Seq[URL], redirects:Int):Seq[Either[Exception,HttpResponse]] = {
+		val responses = fetchAll(urls)
+
+		val targets = urls zip responses collect {
+			case (u, Right(r)) if Redirects contains r.status => (u.toExternalForm, redirect(u, r))
+		} toMap
+
+		if (targets.isEmpty) responses
+		else {
+			val next = targets.values collect { case Right(target) => target } toList
+			val followed =
+				if (redirects <= 0) Map[String,Either[Exception,HttpResponse]]()
+				else next map { _.toExternalForm } zip getAll(next, redirects - 1) toMap
+
+			urls zip responses map { case (u, r) =>
+				targets get u.toExternalForm map {
+					case Left(e) => Left(e)
+					case Right(target) => followed get target.toExternalForm getOrElse {
+						Left(new IOException("Too many redirects from %s" format u))
+					}
+				} getOrElse r
+			}
+		}
+	}
+
+	/** Where a redirect points (which must be another HTTP resource). */
+	private def redirect(from:URL, response:HttpResponse):Either[Exception,URL] =
+		response header "location" match {
+			case None =>
+				Left(new IOException("%d redirect from %s without a Location" format (
+					response.status, from)))
+
+			case Some(location) =>
+				try {
+					val target = new URL(from, location)
+					if (Set("http", "https") contains target.getProtocol.toLowerCase) Right(target)
+					else Left(new IOException("%s redirected to non-HTTP %s" format (from, target)))
+				} catch { case e:java.net.MalformedURLException => Left(e) }
+		}
+
+	/** GET some resources (without following redirects), in the same order. */
+	private def fetchAll(urls:Seq[URL]):Seq[Either[Exception,HttpResponse]] = {
+		// Key URLs by their text: URL.equals() can involve DNS lookups.
+		val unique = urls map { u => (u.toExternalForm, u) } toMap
+		val (indirect, direct) = unique.values partition proxied
+
+		val byHost = (direct groupBy { u => Host(u) }).toList
+		val pipelines = byHost flatMap { case (host, urls) =>
+			urls.toList grouped pipelineDepth map { (host, _) }
+		}
+
+		val tasks =
+			(pipelines map { case (host, urls) => () => fetch(host, urls) }) ++
+			(indirect map { u => () => List((u, fetchViaProxy(u))) })
+
+		val responses =
+			if (tasks.size == 1) tasks map { _() }
+			else workers invokeAll {
+				tasks map { task =>
+					new Callable[Seq[(URL, Either[Exception,HttpResponse])]] {
+						override def call = task()
+					}
+				}
+			} map { _.get }
+
+		val results = responses.flatten map { case (u, r) => (u.toExternalForm, r) } toMap
+
+		urls map { u => results(u.toExternalForm) }
+	}
+
+	/** Does the system's {@link ProxySelector} want us to reach a URL through a proxy? */
+	private def proxied(url:URL) =
+		Option(ProxySelector.getDefault) exists { selector =>
+			try { selector select url.toURI exists { _.`type` != Proxy.Type.DIRECT } }
+			catch { case e:java.net.URISyntaxException => false }
+		}
+
+	/**
+	 * Fetch a URL through a proxy, which we leave to {@link HttpURLConnection} (without keeping
+	 * connections alive or pipelining).
+	 */
+	private def fetchViaProxy(url:URL):Either[Exception,HttpResponse] = try {
+		val c = url.openConnection.asInstanceOf[HttpURLConnection]
+		c setConnectTimeout timeout_ms
+		c setReadTimeout timeout_ms
+		c setInstanceFollowRedirects false
+
+		val status = c.getResponseCode
+		val headers = c.getHeaderFields collect {
+			case (k, v) if k != null => (k.toLowerCase, v mkString ", ")
+		} toMap
+
+		val in = if (status >= 400) Option(c.getErrorStream) else Some(c.getInputStream)
+		val body = in map { s => try HttpTransport.readAll(s) finally s.close } getOrElse {
+			ByteBuffer allocate 0
+		}
+
+		Right(HttpResponse(status, headers, body.asReadOnlyBuffer))
+	} catch {
+		case e:IOException => Left(e)
+	}
+
+	/** Fetch some URLs from one host down one connection (or more, if the server hangs up). */
+	private def fetch(host:Host, urls:Seq[URL]):Seq[(URL, Either[Exception,HttpResponse])] = {
+		val pool = pools.get(host) match {
+			case null =>
+				pools.putIfAbsent(host, new HostPool(host))
+				pools get host
+			case p => p
+		}
+
+		val results = mutable.ListBuffer[(URL, Either[Exception,HttpResponse])]()
+		var remaining = urls.toList
+		var failures = 0
+
+		while (!remaining.isEmpty) {
+			pool use { _ pipeline remaining } match {
+				case Right(responses) if !responses.isEmpty =>
+					results ++= remaining zip (responses map { Right(_) })
+					remaining = remaining drop responses.size
+					failures = 0
+
+				case other =>
+					// We may have used a connection that the server had already closed (and so,
+					// probably, has closed all of our other idle connections): try a new one.
+					pool.close
+					failures += 1
+
+					if (failures > 1) {
+						val e = other.left.toOption getOrElse {
+							new IOException("%s closed connection without responding" format host)
+						}
+						results ++= remaining map { (_, Left(e)) }
+						remaining = Nil
+					}
+			}
+		}
+
+		results.toList
+	}
+
+	/** Where we connect to. */
+	private case class Host(scheme:String, name:String, port:Int) {
+		override def toString = "%s://%s:%d" format (scheme, name, port)
+	}
+
+	private object Host {
+		def apply(url:URL):Host = {
+			val scheme = url.getProtocol.toLowerCase
+			val port = if (url.getPort >= 0) url.getPort else url.getDefaultPort
+			Host(scheme, url.getHost, port)
+		}
+	}
+
+	/** The idle connections to one host, and a limit on how many may be in use. */
+	private class HostPool(host:Host) {
+		/** Run something with a connection, returning the connection to the pool afterwards. */
+		def use[A](f:Connection => A):Either[IOException,A] = {
+			permits.acquire
+			try {
+				val c = synchronized { if (idle.isEmpty) None else Some(idle.pop) } getOrElse {
+					new Connection(host)
+				}
+
+				try {
+					val result = f(c)
+					if (c.reusable) synchronized { idle push c } else c.close
+					Right(result)
+				} catch {
+					case e:IOException =>
+						c.close
+						Left(e)
+
+					case e:RuntimeException =>
+						c.close
+						throw e
+				}
+			} catch {
+				case e:IOException => Left(e)
+			} finally { permits.release }
+		}
+
+		def close = synchronized { while (!idle.isEmpty) idle.pop.close }
+
+		private val permits = new Semaphore(maxConnections)
+		private val idle = mutable.Stack[Connection]()
+	}
+
+	/** A keep-alive connection to a host. */
+	private class Connection(host:Host) {
+		/**
+		 * Send some requests, then read as many responses as the server gives us before closing
+		 * the connection (which should be all of them).
+		 */
+		def pipeline(urls:Seq[URL]) = {
+			urls foreach { url =>
+				val path = Option(url.getFile) filter { !_.isEmpty } getOrElse "/"
+				val request =
+					"GET %s HTTP/1.1\r\nHost: %s\r\nConnection: keep-alive\r\n\r\n" format (
+						path, url.getAuthority)
+				out write (request getBytes "iso-8859-1")
+			}
+			out.flush
+
+			val responses = mutable.ListBuffer[HttpResponse]()
+			try {
+				while (reusable && responses.size < urls.size) responses += read
+			} catch {
+				// The server may close an idle connection just before we try to use it.
+				case e:IOException =>
+					log log (FINE, "%s closed after %d responses" format (host, responses.size), e)
+					reusable = false
+			}
+
+			responses.toList
+		}
+
+		var reusable = true
+		def close = try { socket.close } catch { case e:IOException => }
+
+		/** Read one response. */
+		private def read:HttpResponse = {
+			var status = 100
+			var headers = Map[String,String]()
+
+			// Skip any "100 Continue" responses.
+			while (status / 100 == 1) {
+				val statusLine = readLine split (" ", 3)
+				if (statusLine.length < 2 || !statusLine(0).startsWith("HTTP/"))
+					throw new IOException("Bad HTTP status line from %s" format host)
+
+				status = number(statusLine(1), 10, "status code")
+				headers = Iterator continually readLine takeWhile { !_.isEmpty } map {
+					_ split (":", 2) } collect {
+					case Array(k, v) => (k.trim.toLowerCase, v.trim)
+				} toMap
+
+				val keepAlive = statusLine(0) == "HTTP/1.1"
+				headers get "connection" map { _.toLowerCase } match {
+					case Some("close") => reusable = false
+					case Some("keep-alive") =>
+					case _ => if (!keepAlive) reusable = false
+				}
+			}
+
+			val body =
+				if (headers.get("transfer-encoding") exists { _.toLowerCase contains "chunked" })
+					readChunked
+				else headers get "content-length" map { number(_, 10, "Content-Length") } match {
+					case Some(length) if length < 0 =>
+						throw new IOException("Negative Content-Length from %s" format host)
+
+					case Some(length) => readFully(length)
+					case None =>
+						// No length given: the body ends when the connection does.
+						reusable = false
+						readToEnd
+				}
+
+			HttpResponse(status, headers, body.asReadOnlyBuffer)
+		}
+
+		private def readChunked = {
+			val chunks = Iterator continually {
+				number(readLine takeWhile { _ != ';' }, 16, "chunk length")
+			} takeWhile { _ > 0 } map { length =>
+				val chunk = readFully(length)
+				readLine
+				chunk
+			} toList
+
+			// Skip any trailers.
+			Iterator continually readLine takeWhile { !_.isEmpty } foreach { _ => }
+
+			val body = ByteBuffer allocate (chunks map { _.remaining } sum)
+			chunks foreach body.put
+			body.flip
+			body
+		}
+
+		private def readFully(length:Int) = {
+			val bytes = new Array[Byte](length)
+			var read = 0
+			while (read < length) {
+				val n = in.read(bytes, read, length - read)
+				if (n < 0) throw new EOFException("%s closed connection mid-response" format host)
+				read += n
+			}
+
+			ByteBuffer wrap bytes
+		}
+
+		private def readToEnd = HttpTransport readAll in
+
+		/** Parse a number in a response; the server is at fault (not us) if we can't. */
+		private def number(text:String, radix:Int, what:String) =
+			try { Integer.parseInt(text.trim, radix) }
+			catch {
+				case e:NumberFormatException =>
+					throw new IOException("Bad %s from %s: '%s'" format (what, host, text))
+			}
+
+		private def readLine = {
+			val line = new StringBuilder
+			var c = in.read
+			if (c < 0) throw new EOFException("%s closed connection" format host)
+
+			while (c >= 0 && c != '\n') {
+				if (c != '\r') line append c.toChar
+				c = in.read
+			}
+
+			line.toString
+		}
+
+		private val socket = {
+			val s = new Socket
+			s.connect(new InetSocketAddress(host.name, host.port), timeout_ms)
+			s setSoTimeout timeout_ms
+			s setTcpNoDelay true
+
+			host.scheme match {
+				case "http" => s
+				case "https" =>
+					val ssl = SSLSocketFactory.getDefault.asInstanceOf[SSLSocketFactory].createSocket(
+						s, host.name, host.port, true).asInstanceOf[SSLSocket]
+
+					// SSL sockets check the certificate chain, but not whom it was issued to.
+					try {
+						ssl.startHandshake
+						if (!HttpTransport.verify(host.name, ssl.getSession))
+							throw new SSLPeerUnverifiedException(
+								"Certificate from %s is not for '%s'" format (host, host.name))
+					} catch {
+						case e:IOException =>
+							ssl.close
+							throw e
+					}
+
+					ssl
+				case other =>
+					s.close
+					throw new IOException("Unsupported protocol: " + other)
+			}
+		}
+
+		private val in = new BufferedInputStream(socket.getInputStream)
+		private val out = new BufferedOutputStream(socket.getOutputStream)
+
+		opened.incrementAndGet
+	}
+
+
+	private val pools = new ConcurrentHashMap[Host,HostPool]
+	private val opened = new AtomicLong
+
+	private lazy val workers = Executors.newCachedThreadPool(new ThreadFactory {
+		override def newThread(r:Runnable) = {
+			val t = new Thread(r, "%s worker" format HttpTransport.this)
+			t setDaemon true
+			t
+		}
+	})
+
+	/** Statuses that redirect us to the Location header. */
+	private val Redirects = Set(301, 302, 303, 307, 308)
+
+	private val log = Logger getLogger classOf[HttpTransport].getCanonicalName
+}
+
+object HttpTransport {
+	/** Read everything from a stream. */
+	private[store] def readAll(in:InputStream) = {
+		val out = new java.io.ByteArrayOutputStream
+		val buffer = new Array[Byte](4096)
+		Iterator continually { in read buffer } takeWhile { _ >= 0 } foreach {
+			out.write(buffer, 0, _)
+		}
+
+		ByteBuffer wrap out.toByteArray
+	}
+
+	/**
+	 * Was a server's certificate issued for the host that we meant to connect to?
+	 *
+	 * We check the certificate's DNS names (or, if it has none, its common name) ourselves, as
+	 * {@link HttpsURLConnection} does. Like that class, if they don't match, we defer to the
+	 * default {@link javax.net.ssl.HostnameVerifier}, which rejects everything unless an
+	 * application has installed another one.
+	 */
+	private[store] def verify(host:String, session:SSLSession) =
+		(session.getPeerCertificates.headOption collect {
+			case cert:X509Certificate => certificateNames(cert) exists { nameMatches(_, host) }
+		} getOrElse false) || HttpsURLConnection.getDefaultHostnameVerifier.verify(host, session)
+
+	/** The host names that a certificate was issued for (RFC 2818, section 3.1). */
+	private[store] def certificateNames(cert:X509Certificate):Seq[String] = {
+		val altNames = Option(cert.getSubjectAlternativeNames) map { _.toList } getOrElse Nil
+		val dnsNames = altNames map { _.toList } collect {
+			case List(kind:Integer, name:String) if kind == DNSName => name
+		}
+
+		if (!dnsNames.isEmpty) dnsNames
+		else commonNames(cert.getSubjectX500Principal.getName)
+	}
+
+	/** The CN attributes of an RFC 2253 distinguished name. */
+	private[store] def commonNames(dn:String) =
+		(CommonName findAllIn dn).matchData map { m =>
+			m group 1 replaceAll ("""\\(.)""", "$1")
+		} toList
+
+	/** Does a certificate's name (which may start with a "*." wildcard) match a host name? */
+	private[store] def nameMatches(pattern:String, host:String) = {
+		val p = pattern.toLowerCase
+		val h = host.toLowerCase
+
+		if (p startsWith "*.") {
+			// The wildcard stands for exactly one label.
+			val suffix = p drop 1
+			(h endsWith suffix) && (h.length > suffix.length) &&
+				!(h take (h.length - suffix.length) contains '.')
+		}
+		else p == h
+	}
+
+	/** The type of a dNSName in X509Certificate.getSubjectAlternativeNames. */
+	private val DNSName = 2
+
+	/** A CN attribute in an RFC 2253 name; values may contain escaped commas. */
+	private val CommonName = """(?:^|,)\s*(?i:CN)=((?:[^,\\]|\\.)*)""".r
+}
+
+}
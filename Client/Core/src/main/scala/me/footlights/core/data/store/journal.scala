@@ -0,0 +1,92 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.concurrent.{ConcurrentHashMap,ConcurrentLinkedQueue,Semaphore,TimeUnit}
+
+import scala.collection.JavaConversions._
+
+import me.footlights.core.crypto.Fingerprint
+
+
+package me.footlights.core.data.store {
+
+/**
+ * The names of blocks which have been stored in a cache but not yet flushed to their
+ * {@link Store}.
+ *
+ * Producers never block each other: names go onto a lock-free queue (once each, however many
+ * times they are stored) and a semaphore wakes up whoever is waiting to flush them. Blocks that
+ * fail to flush go back onto the queue, but aren't due again until an exponential backoff has
+ * passed.
+ */
+class Journal(initialBackoff_ms:Long = 500, maxBackoff_ms:Long = 120000) {
+	/** A block waiting to be flushed. */
+	case class Entry(name:Fingerprint, failures:Int, retryAt:Long) {
+		/** The same block, after another failure. */
+		def retry = {
+			val backoff = math.min(maxBackoff_ms, initialBackoff_ms << math.min(failures, 30))
+			Entry(name, failures + 1, System.currentTimeMillis + backoff)
+		}
+	}
+
+	/** Note that a block needs to be flushed. */
+	def add(name:Fingerprint) =
+		if (pending.putIfAbsent(name, name) == null) {
+			queue add Entry(name, 0, 0)
+			signal.release
+		}
+
+	/** Take all of the entries that are due to be flushed now. */
+	def due:Seq[Entry] = {
+		val now = System.currentTimeMillis
+		val taken = Iterator continually { queue.poll } takeWhile { _ != null } toList
+		val (ready, later) = taken partition { _.retryAt <= now }
+		later foreach queue.add
+		ready
+	}
+
+	/** Take all of the entries, even those which are backing off after a failure. */
+	def all:Seq[Entry] = Iterator continually { queue.poll } takeWhile { _ != null } toList
+
+	/** An entry has been flushed (or can never be, so we should give up on it). */
+	def done(e:Entry) = pending remove e.name
+
+	/** An entry failed to flush; try again later. */
+	def failed(e:Entry) = queue add e.retry
+
+	/** Block until some entry is due to be flushed. */
+	def await = {
+		signal.drainPermits
+		while (nextDue map { _ > System.currentTimeMillis } getOrElse true) {
+			val timeout = nextDue map { _ - System.currentTimeMillis } getOrElse maxBackoff_ms
+			signal.tryAcquire(math.max(1, timeout), TimeUnit.MILLISECONDS)
+		}
+	}
+
+	def size = pending.size
+	def isEmpty = pending.isEmpty
+
+	/** When the next entry will be due, if there are any. */
+	private def nextDue = queue.toList map { _.retryAt } match {
+		case Nil => None
+		case times => Some(times.min)
+	}
+
+	private val queue = new ConcurrentLinkedQueue[Entry]
+	private val pending = new ConcurrentHashMap[Fingerprint,Fingerprint]
+	private val signal = new Semaphore(0)
+}
+
+}
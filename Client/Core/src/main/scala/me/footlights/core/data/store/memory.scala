@@ -0,0 +1,277 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.nio.ByteBuffer
+import java.util.logging.Logger
+
+import scala.collection.JavaConversions._
+import scala.collection.mutable
+
+import me.footlights.core.Preferences
+import me.footlights.core.crypto.Fingerprint
+
+
+package me.footlights.core.data.store {
+
+/**
+ * A block store in memory, which holds at most {@link #capacity} bytes of blocks.
+ *
+ * When it is full, blocks are evicted according to a {@link CachePolicy}, except for blocks
+ * which have been {@link #pin}ned (e.g. because they haven't been flushed to a slower store yet).
+ */
+class MemoryStore(val capacity:Long, policy:CachePolicy) extends LocalStore {
+	/** An unbounded {@link MemoryStore} (which never evicts anything). */
+	def this() = this(Long.MaxValue, new LRUPolicy)
+
+	if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive")
+
+	// Blocks may be retrieved (and so cached) by several reader threads at once.
+	override def put(name:Fingerprint, bytes:ByteBuffer) = synchronized {
+		policy remove name.key foreach { old => resident -= old.remaining }
+		policy put (name.key, bytes)
+		resident += bytes.remaining
+
+		while (resident > capacity && evictOne) {}
+	}
+
+	override def get(name:Fingerprint) = synchronized {
+		val result = policy get name.key
+		if (result.isDefined) hitCount += 1 else missCount += 1
+		result
+	} map { _.asReadOnlyBuffer }
+
+	override def list = synchronized {
+		for ((key,bytes) <- policy.entries.toList) yield Stat(key.fingerprint, bytes.remaining)
+	}
+
+	override def pin(name:Fingerprint):Unit = synchronized { pinned += name.key }
+	override def unpin(name:Fingerprint):Unit = synchronized {
+		pinned -= name.key
+		while (resident > capacity && evictOne) {}
+	}
+
+	/** Do nothing; {@link MemoryStore} always blocks. */
+	override def flush = Unit
+
+	def hits = synchronized { hitCount }
+	def misses = synchronized { missCount }
+	def evictions = synchronized { evictionCount }
+	def residentBytes = synchronized { resident }
+
+	/** The fraction of retrievals that found their block here. */
+	def hitRate = synchronized {
+		if (hitCount + missCount == 0) 0.0
+		else hitCount.toDouble / (hitCount + missCount)
+	}
+
+	override def toString =
+		"MemoryStore { %s, %d/%d B, hit rate %.2f, %d evictions }" format (
+			policy, residentBytes, capacity, hitRate, evictions)
+
+	/** Evict one unpinned block, if there is one. */
+	private def evictOne = policy evict pinned.contains match {
+		case Some(bytes) =>
+			resident -= bytes.remaining
+			evictionCount += 1
+			true
+
+		case None =>
+			log fine { "%s is over capacity, but everything is pinned" format this }
+			false
+	}
+
+	private var resident = 0L
+	private var hitCount = 0L
+	private var missCount = 0L
+	private var evictionCount = 0L
+	private val pinned = mutable.Set[Fingerprint.Key]()
+
+	private val log = Logger getLogger classOf[MemoryStore].getCanonicalName
+}
+
+object MemoryStore {
+	/** Preference: how many bytes of blocks to keep in memory. */
+	val CapacityKey = "cache.memory.bytes"
+
+	/** Preference: how to choose blocks to evict ("lru" or "arc"). */
+	val PolicyKey = "cache.memory.policy"
+
+	/** Create a bounded {@link MemoryStore} as configured by {@link Preferences}. */
+	def apply(prefs:Preferences) = {
+		val capacity = prefs getString CapacityKey map { _.toLong } get
+		val policy = prefs getString PolicyKey map { _.toLowerCase } match {
+			case Some("arc") => new ARCPolicy(capacity)
+			case Some("lru") => new LRUPolicy
+			case other => throw new me.footlights.core.ConfigurationError(
+				"Unknown memory cache policy '%s'" format other.getOrElse(""))
+		}
+
+		new MemoryStore(capacity, policy)
+	}
+}
+
+
+/**
+ * Decides which blocks a {@link MemoryStore} keeps. Policies are not thread-safe; the store
+ * synchronizes access to them.
+ *
+ * Blocks are named by compact {@link Fingerprint.Key}s, which are cheaper to hash, compare and
+ * keep than whole {@link Fingerprint}s.
+ */
+abstract class CachePolicy {
+	/** Retrieve a block, noting that it has been used. */
+	def get(name:Fingerprint.Key):Option[ByteBuffer]
+
+	/** Add a block (which is not already resident). */
+	def put(name:Fingerprint.Key, bytes:ByteBuffer)
+
+	/** Remove a block without counting it as an eviction. */
+	def remove(name:Fingerprint.Key):Option[ByteBuffer]
+
+	/** Evict the block that is least worth keeping, skipping any that must be kept. */
+	def evict(keep:Fingerprint.Key => Boolean):Option[ByteBuffer]
+
+	/** All resident blocks. */
+	def entries:Iterable[(Fingerprint.Key,ByteBuffer)]
+}
+
+/** Least-recently used blocks are evicted first. */
+class LRUPolicy extends CachePolicy {
+	override def get(name:Fingerprint.Key) = Option(blocks get name)
+	override def put(name:Fingerprint.Key, bytes:ByteBuffer) = blocks.put(name, bytes)
+	override def remove(name:Fingerprint.Key) = Option(blocks remove name)
+	override def entries = blocks
+
+	override def evict(keep:Fingerprint.Key => Boolean) =
+		blocks.iterator find { case (name, _) => !keep(name) } map { case (name, bytes) =>
+			blocks remove name
+			bytes
+		}
+
+	override def toString = "LRU"
+
+	/** Iterates from least- to most-recently accessed. */
+	private val blocks = new java.util.LinkedHashMap[Fingerprint.Key,ByteBuffer](16, 0.75f, true)
+}
+
+/**
+ * Adaptive Replacement Cache (Megiddo and Modha, FAST 2003), weighted by bytes rather than
+ * entries.
+ *
+ * Resident blocks are either in T1 (seen once recently) or T2 (seen at least twice). Ghost lists
+ * B1 and B2 remember the names and sizes of blocks recently evicted from each; a miss that hits
+ * a ghost list shifts the target size of T1 ({@link #target}) towards recency or frequency.
+ */
+class ARCPolicy(capacity:Long) extends CachePolicy {
+	override def get(name:Fingerprint.Key) =
+		Option(t1 remove name) map { bytes =>
+			t1Bytes -= bytes.remaining
+			t2.put(name, bytes)
+			t2Bytes += bytes.remaining
+			bytes
+		} orElse Option(t2 get name)
+
+	override def put(name:Fingerprint.Key, bytes:ByteBuffer) = {
+		val size = bytes.remaining
+		if (b1 containsKey name) {
+			// We evicted this recently-used block too soon: favour recency.
+			val ratio = if (b1Bytes >= b2Bytes) 1.0 else b2Bytes.toDouble / b1Bytes
+			target = math.min(capacity, target + math.max(size, (size * ratio).toLong))
+			b1Bytes -= b1.remove(name).longValue
+			inFrequent = false
+			t2.put(name, bytes)
+			t2Bytes += size
+		} else if (b2 containsKey name) {
+			// We evicted this frequently-used block too soon: favour frequency.
+			val ratio = if (b2Bytes >= b1Bytes) 1.0 else b1Bytes.toDouble / b2Bytes
+			target = math.max(0, target - math.max(size, (size * ratio).toLong))
+			b2Bytes -= b2.remove(name).longValue
+			inFrequent = true
+			t2.put(name, bytes)
+			t2Bytes += size
+		} else {
+			inFrequent = false
+			t1.put(name, bytes)
+			t1Bytes += size
+		}
+	}
+
+	override def remove(name:Fingerprint.Key) =
+		Option(t1 remove name) map { b => t1Bytes -= b.remaining; b } orElse {
+			Option(t2 remove name) map { b => t2Bytes -= b.remaining; b }
+		}
+
+	override def evict(keep:Fingerprint.Key => Boolean) = {
+		val fromT1 = (t1Bytes > 0) && ((t1Bytes > target) || (inFrequent && t1Bytes == target))
+
+		val victim =
+			if (fromT1) evictFrom(t1, b1, keep) orElse evictFrom(t2, b2, keep)
+			else evictFrom(t2, b2, keep) orElse evictFrom(t1, b1, keep)
+
+		trimGhosts
+		victim
+	}
+
+	override def entries = t1 ++ t2
+
+	override def toString = "ARC (T1 target %d B)" format target
+
+	/** Move the least-recently used, evictable block of a resident list to a ghost list. */
+	private def evictFrom(list:java.util.LinkedHashMap[Fingerprint.Key,ByteBuffer],
+			ghost:java.util.LinkedHashMap[Fingerprint.Key,java.lang.Long],
+			keep:Fingerprint.Key => Boolean) =
+		list.iterator find { case (name, _) => !keep(name) } map { case (name, bytes) =>
+			val size = bytes.remaining
+			list remove name
+			ghost.put(name, java.lang.Long valueOf size)
+
+			if (list eq t1) { t1Bytes -= size; b1Bytes += size }
+			else { t2Bytes -= size; b2Bytes += size }
+
+			bytes
+		}
+
+	/** Ghost lists only need to remember as many bytes' worth of blocks as the cache holds. */
+	private def trimGhosts = {
+		while (b1Bytes > 0 && t1Bytes + b1Bytes > capacity) b1Bytes -= dropOldest(b1)
+		while (b2Bytes > 0 && t1Bytes + t2Bytes + b1Bytes + b2Bytes > 2 * capacity)
+			b2Bytes -= dropOldest(b2)
+	}
+
+	private def dropOldest(ghost:java.util.LinkedHashMap[Fingerprint.Key,java.lang.Long]) = {
+		val i = ghost.entrySet.iterator
+		val size = i.next.getValue.longValue
+		i.remove
+		size
+	}
+
+	private val t1 = new java.util.LinkedHashMap[Fingerprint.Key,ByteBuffer](16, 0.75f, true)
+	private val t2 = new java.util.LinkedHashMap[Fingerprint.Key,ByteBuffer](16, 0.75f, true)
+	private val b1 = new java.util.LinkedHashMap[Fingerprint.Key,java.lang.Long]()
+	private val b2 = new java.util.LinkedHashMap[Fingerprint.Key,java.lang.Long]()
+
+	private var t1Bytes = 0L
+	private var t2Bytes = 0L
+	private var b1Bytes = 0L
+	private var b2Bytes = 0L
+
+	/** How many bytes T1 should hold (ARC's "p"). */
+	private var target = 0L
+
+	/** Whether the most recent miss was found in B2 (which biases eviction towards T1). */
+	private var inFrequent = false
+}
+
+}
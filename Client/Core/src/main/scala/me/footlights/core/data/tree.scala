@@ -0,0 +1,353 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException
+
+import scala.collection.JavaConversions._
+
+import me.footlights.core.crypto.Link
+
+
+package me.footlights.core.data {
+
+/**
+ * A directory stored as a B-tree of blocks, keyed by entry name.
+ *
+ * Leaves hold entries (encoded as in a {@link FlatDirectory}); interior nodes hold the smallest
+ * name under each child, along with a link to it. Opening a stored directory only fetches its
+ * root: other nodes are fetched as lookups need them, so finding, adding or removing an entry
+ * touches O(log n) blocks. Changing an entry re-encrypts the nodes on the path to it; every other
+ * block is shared with the previous version of the directory.
+ *
+ * Nodes are split when they outgrow a block, but not merged when entries are removed: empty
+ * nodes are dropped, and a root with only one child is replaced by that child.
+ */
+class TreeDirectory private(root:TreeDirectory.Node) extends Directory {
+	import TreeDirectory._
+
+	override def + (mapping:Entry):TreeDirectory =
+		if (root get mapping.name exists { _ == mapping }) this
+		else new TreeDirectory(root insert mapping match {
+			case Seq(node) => node
+			case nodes => new Interior(nodes map { new Built(_) } toIndexedSeq)
+		})
+
+	override def - (name:String):TreeDirectory =
+		if (!(root get name).isDefined) this
+		else new TreeDirectory(collapse(root remove name getOrElse Empty))
+
+	override def ++ (dir:Directory) = (this /: dir.entries) { _ + _ }
+
+	override def apply(name:String) = root get name
+
+	/** All of the entries, in name order (fetching every node on first use). */
+	override lazy val entries:Iterable[Entry] = root.entries.toList
+
+	override lazy val link = root.encrypted.link
+
+	/** The root block and any other nodes that haven't been stored yet. */
+	override def encrypted:Iterable[EncryptedBlock] = root.encrypted :: root.unstoredBelow.toList
+
+	override def markStored() = root.markStored
+
+	/** The nodes that we have built or fetched. */
+	override def residentBlocks = root.resident
+
+	/** How many levels of nodes there are between the root and the entries. */
+	def depth:Int = root.depth
+
+	/** Describe the tree without fetching every node (as listing its entries would). */
+	override lazy val toString = "TreeDirectory(%s, depth %d)" format (link.fingerprint, depth)
+}
+
+object TreeDirectory {
+	import Directory._
+
+	def apply(entries:Map[String,Entry] = Map()) =
+		(new TreeDirectory(Empty) /: entries.keys.toSeq.sorted) { (d, name) => d + entries(name) }
+
+	/**
+	 * Open a stored tree from its root block; other nodes are fetched when they are needed.
+	 *
+	 * If a node cannot be fetched later, the operation that needs it throws an IOException.
+	 */
+	def open(root:EncryptedBlock, fetch:Link => Option[EncryptedBlock])
+			:Either[Exception,TreeDirectory] =
+		try { Right(new TreeDirectory(load(root, fetch))) }
+		catch { case e:Exception => Left(e) }
+
+
+	/** A node of the tree (which may have been stored already, or may be new). */
+	private[data] abstract class Node(original:Option[EncryptedBlock]) {
+		/** The smallest name under this node. */
+		def key:String
+		def depth:Int
+
+		def get(name:String):Option[Entry]
+
+		/** Add an entry, returning the replacement for this node (or several, if it is split). */
+		def insert(entry:Entry):Seq[Node]
+
+		/** Remove an entry, returning the replacement for this node (if it isn't empty). */
+		def remove(name:String):Option[Node]
+
+		def entries:Iterator[Entry]
+
+		/** How many nodes we have in memory, from this one down. */
+		def resident:Int
+
+		/** Blocks under this node (not including its own) that haven't been stored yet. */
+		def unstoredBelow:Iterator[EncryptedBlock]
+
+		def markStored:Unit = if (!stored) {
+			encrypted
+			stored = true
+			children foreach { _.markStored }
+		}
+
+		lazy val encrypted = original getOrElse encode
+
+		/** Whether this node's block has been stored (it's been loaded from storage, or saved). */
+		@volatile var stored = original.isDefined
+
+		/** Nodes that we built (rather than loaded): they may need to be stored. */
+		protected def children:Iterable[Node]
+
+		protected def encode:EncryptedBlock
+	}
+
+	/** A node that holds entries, sorted by name. */
+	private[data] class Leaf(items:IndexedSeq[Entry], original:Option[EncryptedBlock] = None)
+			extends Node(original) {
+
+		override def key = items.head.name
+		override def depth = 0
+
+		override def get(name:String) = {
+			val i = lowerBound(items.size, items(_).name, name)
+			if (i < items.size && items(i).name == name) Some(items(i)) else None
+		}
+
+		override def insert(entry:Entry) = {
+			val i = lowerBound(items.size, items(_).name, entry.name)
+			val replace = if (i < items.size && items(i).name == entry.name) 1 else 0
+
+			split(items.patch(i, Seq(entry), replace)) { entries =>
+				entries.size <= MaxLinks &&
+					(0 /: entries) { (sum, e) => sum + e.link.bytes + nameBytes(e.name) } <= Capacity
+			} { new Leaf(_) }
+		}
+
+		override def remove(name:String) = {
+			val remaining = items filter { _.name != name }
+			if (remaining.isEmpty) None
+			else if (remaining.size == items.size) Some(this)
+			else Some(new Leaf(remaining))
+		}
+
+		override def entries = items.iterator
+		override def resident = 1
+		override def unstoredBelow = Iterator.empty
+		override protected def children = Nil
+
+		override protected def encode = {
+			val builder = Block.newBuilder setDesiredSize BlockSize addContent TreeLeaf.toArray
+			items foreach { e =>
+				builder addLink e.link
+				builder addContent encodeName(e.name, e.isDir)
+			}
+			builder.build.encrypt
+		}
+	}
+
+	/** A node that links to other nodes, each labelled with the smallest name under it. */
+	private[data] class Interior(val subtrees:IndexedSeq[Child],
+			original:Option[EncryptedBlock] = None) extends Node(original) {
+
+		override def key = subtrees.head.key
+		override def depth = 1 + subtrees.head.node.depth
+
+		override def get(name:String) = subtrees(childFor(name)).node get name
+
+		override def insert(entry:Entry) = {
+			val i = childFor(entry.name)
+			val replacements = subtrees(i).node insert entry map { new Built(_) }
+
+			split(subtrees.patch(i, replacements, 1)) { children =>
+				children.size <= MaxLinks &&
+					(0 /: children) { (sum, c) => sum + c.bytes + nameBytes(c.key) } <= Capacity
+			} { new Interior(_) }
+		}
+
+		override def remove(name:String) = {
+			val i = childFor(name)
+			val child = subtrees(i).node
+			child remove name match {
+				case Some(same) if same eq child => Some(this)
+				case Some(replacement) =>
+					Some(new Interior(subtrees.updated(i, new Built(replacement))))
+				case None =>
+					if (subtrees.size == 1) None
+					else Some(new Interior(subtrees.patch(i, Nil, 1)))
+			}
+		}
+
+		override def entries = subtrees.iterator flatMap { _.node.entries }
+		override def resident = (1 /: subtrees) { _ + _.resident }
+
+		override def unstoredBelow = children.iterator filter { !_.stored } flatMap { n =>
+			Iterator(n.encrypted) ++ n.unstoredBelow
+		}
+
+		override protected def children = subtrees collect { case b:Built => b.node }
+
+		override protected def encode = {
+			val builder = Block.newBuilder setDesiredSize BlockSize addContent TreeNode.toArray
+			subtrees foreach { c =>
+				builder addLink c.link
+				builder addContent encodeName(c.key, false)
+			}
+			builder.build.encrypt
+		}
+
+		/** The child whose subtree would contain a name. */
+		private def childFor(name:String) =
+			math.max(0, upperBound(subtrees.size, subtrees(_).key, name) - 1)
+	}
+
+	/** A reference from an interior node to a child. */
+	private[data] abstract class Child {
+		def key:String
+		def link:Link
+		def node:Node
+
+		/** How many bytes the link takes up in the parent's block. */
+		def bytes:Int
+
+		/** How many nodes we have in memory under (and including) this child. */
+		def resident:Int
+	}
+
+	/** A child that we have in memory (its link is known once it's been encrypted). */
+	private[data] class Built(val node:Node) extends Child {
+		override def key = node.key
+		override def link = node.encrypted.link
+		override def bytes = LinkBytes
+		override def resident = node.resident
+	}
+
+	/** A child that has been stored, which is only fetched if we need it. */
+	private[data] class Stored(val key:String, val link:Link, fetch:Link => Option[EncryptedBlock])
+			extends Child {
+		override lazy val node = {
+			val n = load(
+				fetch(link) getOrElse { throw new IOException("Unable to fetch %s" format link) },
+				fetch)
+
+			loaded = true
+			n
+		}
+
+		override def bytes = link.bytes
+		override def resident = if (loaded) node.resident else 0
+
+		/** Whether {@link #node} has been fetched. */
+		@volatile private var loaded = false
+	}
+
+
+	private val Empty = new Leaf(IndexedSeq())
+
+	/** Replace a root that has only one child with that child. */
+	private def collapse(node:Node):Node = node match {
+		case i:Interior if i.subtrees.size == 1 => collapse(i.subtrees.head.node)
+		case n => n
+	}
+
+	/** Parse a stored node. */
+	private def load(block:EncryptedBlock, fetch:Link => Option[EncryptedBlock]):Node = {
+		val plaintext = block.plaintext
+		val content = plaintext.content
+		val magic = new Array[Byte](TreeLeaf.length)
+		content get magic
+
+		magic.toSeq match {
+			case TreeLeaf =>
+				new Leaf(plaintext.links map { link =>
+					val (name, isDir) = decodeName(content)
+					new Entry(name, isDir, link)
+				} toIndexedSeq, Some(block))
+
+			case TreeNode =>
+				new Interior(plaintext.links map { link =>
+					new Stored(decodeName(content)._1, link, fetch)
+				} toIndexedSeq, Some(block))
+
+			case other => throw new FormatException("Bad directory tree magic %s" format other)
+		}
+	}
+
+	/**
+	 * Split some items into as few nodes as we need, halving them until each half fits.
+	 *
+	 * @param  fits       whether some items will fit into one node
+	 */
+	private def split[A](items:IndexedSeq[A])(fits:IndexedSeq[A] => Boolean)
+			(node:IndexedSeq[A] => Node):Seq[Node] =
+		if (fits(items)) Seq(node(items))
+		else if (items.size < 2)
+			throw new FormatException("Directory entry too large for a %d B block" format BlockSize)
+		else {
+			val (left, right) = items splitAt (items.size / 2)
+			split(left)(fits)(node) ++ split(right)(fits)(node)
+		}
+
+	/** The first of n sorted keys that is not less than a name. */
+	private def lowerBound(n:Int, key:Int => String, name:String) = {
+		var (low, high) = (0, n)
+		while (low < high) {
+			val mid = (low + high) >>> 1
+			if (key(mid) < name) low = mid + 1 else high = mid
+		}
+		low
+	}
+
+	/** The first of n sorted keys that is greater than a name. */
+	private def upperBound(n:Int, key:Int => String, name:String) = {
+		var (low, high) = (0, n)
+		while (low < high) {
+			val mid = (low + high) >>> 1
+			if (key(mid) <= name) low = mid + 1 else high = mid
+		}
+		low
+	}
+
+	private def nameBytes(name:String) = name.getBytes.length + 2
+
+	/** How much room there is for links and names in a node's block. */
+	private lazy val Capacity =
+		(Block.newBuilder setDesiredSize BlockSize addContent TreeLeaf.toArray).remaining
+
+	/** Blocks can't have more than 127 links; leave some room. */
+	private val MaxLinks = 120
+
+	/**
+	 * How many bytes we set aside for the link to a node that hasn't been encrypted yet: links
+	 * to blocks of the same size are all the same size, but leave some slack.
+	 */
+	private lazy val LinkBytes = Empty.encrypted.link.bytes + 16
+}
+
+}
@@ -33,11 +33,18 @@ class Flusher(name:String, flush:()=>Unit, wait:()=>Unit, log:java.util.logging.
 	override def run() =
 		try {
 			while (true) {
-				flush()
+				// One failed flush shouldn't stop us flushing for the rest of the process.
+				try { flush() }
+				catch {
+					case e:InterruptedException => throw e
+					case e:Exception => log.log(Level.WARNING, "Error flushing " + name, e)
+				}
+
 				wait()
 			}
 		} catch {
-			case e:Exception => log.log(Level.WARNING, "Error flushing " + name, e)
+			case e:InterruptedException => log.fine("Stopped flushing " + name)
+			case e:Exception => log.log(Level.WARNING, "Error waiting to flush " + name, e)
 		}
 }
 
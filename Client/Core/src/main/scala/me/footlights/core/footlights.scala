@@ -16,6 +16,7 @@
 package me.footlights.core
 
 import java.net.URI
+import java.nio.channels.ReadableByteChannel
 
 import me.footlights.api
 
@@ -48,6 +49,9 @@ trait Footlights extends api.KernelInterface {
 	/** Save a generated {@link File} to the filesystem. */
 	def save(file:File): Either[Exception,File]
 
+	/** Save the content of a channel (read until end-of-stream) to the filesystem. */
+	def save(in:ReadableByteChannel): Either[Exception,api.File]
+
 	/** Save an immutable {@link Directory} to the filesystem. */
 	def save(dir:Directory): Either[Exception,Directory]
 
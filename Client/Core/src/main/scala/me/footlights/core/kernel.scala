@@ -33,7 +33,7 @@ package me.footlights.core {
 
 import apps.AppWrapper
 import crypto.{Fingerprint,Keychain,MutableKeychain}
-import data.store.{CASClient, DiskStore, Store}
+import data.store.{CASClient, DiskStore, LocalStore, PackStore, Store}
 
 
 /**
@@ -44,6 +44,7 @@ import data.store.{CASClient, DiskStore, Store}
  *
  * It is abstract, since it does not implement:
  *  - openLocalFile()
+ *  - openLocalFiles()
  *
  * These methods should be mixed in (e.g. "with {@link SwingDialogs}") on instantiation, as
  * should {@link KernelPrivilege} if running in a privilege-constrained environment.
@@ -55,7 +56,7 @@ abstract class Kernel(
 	protected val keychain: MutableKeychain,
 	protected val loadedApps: mutable.HashMap[URI,AppWrapper],
 	protected val uis: mutable.Set[UI],
-	protected val cache: DiskStore)
+	protected val cache: LocalStore)
 
 	extends Footlights
 		with data.store.Filesystem
@@ -135,14 +136,32 @@ object Kernel {
 		val apps = new mutable.HashMap[URI,AppWrapper]
 		val uis = new mutable.HashSet[UI]
 
-		// Local disk cache for the network-based store.
-		val cache =
-			DiskStore.newBuilder
-				.setPreferences(prefs)
-				.setDefaultDirectory
-				.build
+		// Local disk cache for the network-based store: one file per block, or packfiles.
+		val cache:LocalStore = prefs getString PackStore.FORMAT_KEY match {
+			case Some("pack") =>
+				PackStore.newBuilder
+					.setPreferences(prefs)
+					.setDefaultDirectory
+					.build
+
+			case _ =>
+				DiskStore.newBuilder
+					.setPreferences(prefs)
+					.setDefaultDirectory
+					.build
+		}
 		Flusher(cache) start
 
+		// Nothing else closes the cache, so write out what we can and close its files on exit.
+		Runtime.getRuntime addShutdownHook new Thread("Closing " + cache) {
+			override def run = try {
+				cache.drain
+				cache match { case c:java.io.Closeable => c.close; case _ => }
+			} catch {
+				case e:java.io.IOException => log.log(WARNING, "Error closing " + cache, e)
+			}
+		}
+
 		new Kernel(io, appLoader, fileBackedPrefs, keychain, apps, uis, cache)
 			with SwingPowerboxes
 			with security.KernelPrivilege
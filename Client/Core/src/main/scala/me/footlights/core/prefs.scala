@@ -128,7 +128,18 @@ class Preferences(engine:Option[PreferenceStorageEngine])
 	private val defaultPrefs =
 		cryptoDefaults(security.CryptoBackend.get) +
 		("init.setup" -> "http://footlights.me/settings/cas.json") +
-		("home" -> homeDir)
+		("home" -> homeDir) +
+		(data.ReadAhead.WINDOW_KEY -> "8") +
+		(data.ReadAhead.THREADS_KEY -> "4") +
+		(data.store.MemoryStore.CapacityKey -> (64 << 20).toString) +
+		(data.store.MemoryStore.PolicyKey -> "lru") +
+		(data.store.DirectoryCache.CapacityKey -> "256") +
+		(data.store.DirectoryCache.BlocksKey -> "4096") +
+		(data.store.PackStore.FORMAT_KEY -> "files") +
+		(data.Directory.FormatKey -> "flat") +
+		(data.Block.FORMAT_KEY -> "legacy") +
+		(crypto.BatchVerifier.ThreadsKey -> Runtime.getRuntime.availableProcessors.toString) +
+		(crypto.BatchVerifier.CapacityKey -> "4096")
 
 	private val defaults = PreferenceStorageEngine wrap defaultPrefs
 
@@ -36,6 +36,7 @@ package me.footlights.core.security {
 trait KernelPrivilege extends Footlights {
 	abstract override def open(name:URI)           = Privilege.sudo { () => super.open(name) }
 	abstract override def openLocalFile()          = Privilege.sudo { () => super.openLocalFile() }
+	abstract override def openLocalFiles()         = Privilege.sudo { () => super.openLocalFiles() }
 	abstract override def open(link:Link)          = Privilege.sudo { () => super.open(link) }
 	abstract override def openDirectory(l:Link)    = Privilege.sudo { () => super.openDirectory(l) }
 	abstract override def openat(path:Iterable[String], base:core.data.Directory) =
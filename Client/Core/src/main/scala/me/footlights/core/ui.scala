@@ -163,6 +163,20 @@ trait SwingPowerboxes extends Footlights {
 		filename flatMap io.read flatMap save
 	}
 
+	override def openLocalFiles():Either[Exception,java.lang.Iterable[api.File]] = {
+		val d = new JFileChooser
+		d setMultiSelectionEnabled true
+		d.showOpenDialog(null) match {
+			case JFileChooser.APPROVE_OPTION =>
+				val files = d.getSelectedFiles.toList map { io read _ flatMap save }
+				files find { _.isLeft } map { _.left.get } toLeft {
+					scala.collection.JavaConversions asJavaIterable { files map { _.right.get } }
+				}
+
+			case _ => Left(new CanceledException)
+		}
+	}
+
 	override def saveLocalFile(file:me.footlights.api.File):Either[Exception,api.File] = {
 		val f = file match { case f:me.footlights.core.data.File => f }
 
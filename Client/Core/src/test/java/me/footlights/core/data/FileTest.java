@@ -19,13 +19,23 @@ import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 
+import me.footlights.core.crypto.Fingerprint;
+import me.footlights.core.crypto.Link;
 import me.footlights.core.data.File;
+import me.footlights.core.data.store.MemoryStore;
 
 import org.junit.Test;
 
+import scala.Option;
+import scala.concurrent.forkjoin.ForkJoinPool;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 
 public class FileTest
@@ -91,4 +101,237 @@ public class FileTest
 		int bytes = f.getInputStream().read(copy);
 		assertEquals(orig.length, bytes);
 	}
+
+	/** Encrypting blocks in parallel should not change the order of the file's content. */
+	@Test public void parallelFreeze() throws Throwable
+	{
+		byte[] orig = new byte[4096];
+		for (int i = 0; i < orig.length; i++) orig[i] = (byte) i;
+
+		File f = File.newBuilder()
+			.setContent(Arrays.asList(ByteBuffer.wrap(orig)))
+			.setDesiredBlockSize(64)
+			.setEncryptionPool(new ForkJoinPool(4))
+			.freeze();
+
+		assertTrue(f.content().size() > 16);
+
+		byte[] copy = new byte[orig.length];
+		int bytes = f.getInputStream().read(copy);
+		assertEquals(orig.length, bytes);
+		assertArrayEquals(orig, copy);
+	}
+
+	/** Files with more blocks than a header can link to need indirect blocks. */
+	@Test public void largeFile() throws Throwable
+	{
+		byte[] orig = new byte[16384];
+		for (int i = 0; i < orig.length; i++) orig[i] = (byte) i;
+
+		File f = File.newBuilder()
+			.setContent(Arrays.asList(ByteBuffer.wrap(orig)))
+			.setDesiredBlockSize(64)
+			.freeze();
+
+		assertTrue(f.content().size() > FileHeader.LINKS_PER_BLOCK);
+		assertTrue(f.toSave().size() > f.content().size() + 1);
+
+		MemoryStore store = new MemoryStore();
+		for (EncryptedBlock b : f.toSave()) store.store(b);
+
+		File fetched = store.fetch(f.link()).get();
+		assertEquals(f.content(), fetched.content());
+	}
+
+	/** Content written through a {@link File.Writer} should be stored block by block. */
+	@Test public void streamingWriter() throws Throwable
+	{
+		byte[] orig = new byte[16384];
+		for (int i = 0; i < orig.length; i++) orig[i] = (byte) (i * 7);
+
+		MemoryStore store = new MemoryStore();
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+
+		File.Writer writer = File.newWriter(store)
+			.setEncryptionPool(pool)
+			.setWindow(4)
+			.setDesiredBlockSize(64);
+
+		// Write in awkwardly-sized pieces that don't line up with block boundaries.
+		for (int i = 0; i < orig.length; i += 100)
+			writer.write(ByteBuffer.wrap(orig, i, Math.min(100, orig.length - i)));
+
+		writer.close();
+		pool.shutdown();
+
+		File f = store.fetch(writer.link()).get();
+		assertEquals(orig.length, f.stat().length());
+
+		File frozen = File.newBuilder()
+			.setContent(Arrays.asList(ByteBuffer.wrap(orig)))
+			.setDesiredBlockSize(64)
+			.freeze();
+
+		assertEquals(frozen.content(), f.content());
+	}
+
+	/** Opening a stored file should not retrieve its content until it is read. */
+	@Test public void lazyRead() throws Throwable
+	{
+		byte[] orig = new byte[16384];
+		for (int i = 0; i < orig.length; i++) orig[i] = (byte) (i * 3);
+
+		File f = File.newBuilder()
+			.setContent(Arrays.asList(ByteBuffer.wrap(orig)))
+			.setDesiredBlockSize(64)
+			.freeze();
+
+		final int[] retrieved = new int[1];
+		MemoryStore store = new MemoryStore()
+		{
+			@Override public Option<ByteBuffer> get(Fingerprint name)
+			{
+				retrieved[0]++;
+				return super.get(name);
+			}
+		};
+		for (EncryptedBlock b : f.toSave()) store.store(b);
+
+		File opened = store.fetch(f.link()).get();
+		assertEquals(1, retrieved[0]);
+		assertEquals(f, opened);
+		assertEquals(orig.length, opened.stat().length());
+
+		// Reading the first few bytes needs the indirect blocks, then one content block.
+		byte[] start = new byte[8];
+		assertEquals(start.length, opened.getInputStream().read(start));
+		assertArrayEquals(Arrays.copyOf(orig, start.length), start);
+		int indirect = f.toSave().size() - f.content().size() - 1;
+		assertEquals(1 + indirect + 1, retrieved[0]);
+	}
+
+	/** Headers must not claim content that their blocks can't hold. */
+	@Test public void rejectImpossibleHeaders() throws Throwable
+	{
+		Link link = Block.newBuilder().addContent(new byte[] { 1 }).build().encrypt().link();
+		FileHeader.BlockSink sink = new FileHeader.BlockSink()
+		{
+			@Override public void store(EncryptedBlock block) {}
+		};
+
+		// Content in blocks of zero bytes can't be found (or held).
+		try
+		{
+			FileHeader.parse(new FileHeader.Builder(sink).add(link, 10).build(0).plaintext());
+			fail("Accepted non-empty file with empty blocks");
+		}
+		catch (FormatException e) {}
+
+		// Two blocks of 64 B can't hold 200 B.
+		try
+		{
+			FileHeader.parse(new FileHeader.Builder(sink).add(link, 64).add(link, 136)
+				.build(64).plaintext());
+			fail("Accepted file longer than its blocks");
+		}
+		catch (FormatException e) {}
+
+		FileHeader header = FileHeader.parse(new FileHeader.Builder(sink).add(link, 64)
+			.add(link, 36).build(64).plaintext());
+		assertEquals(100, header.length());
+		assertEquals(0,
+			FileHeader.parse(new FileHeader.Builder(sink).build(0).plaintext()).length());
+	}
+
+	/** Reading content that a header promises but its blocks don't hold should fail cleanly. */
+	@Test(timeout = 10000) public void blocksShorterThanHeader() throws Throwable
+	{
+		MemoryStore store = new MemoryStore();
+		FileHeader.Builder builder = new FileHeader.Builder(new FileHeader.BlockSink()
+			{
+				@Override public void store(EncryptedBlock block) {}
+			});
+
+		// Two blocks that should hold 64 B each, but only hold 10 B.
+		for (int i = 0; i < 2; i++)
+		{
+			EncryptedBlock block = Block.newBuilder().addContent(new byte[10]).build().encrypt();
+			store.store(block);
+			builder.add(block.link(), 64);
+		}
+
+		EncryptedBlock header = builder.build(64);
+		store.store(header);
+
+		File.Reader reader = File.from(header, store).getChannel();
+		assertEquals(128, reader.size());
+
+		// Reading up to (but not past) the end of the first block's real content is fine.
+		assertEquals(10, reader.read(ByteBuffer.allocate(10)));
+
+		for (long position : new long[] { 10, 30, 64 + 10 })
+		{
+			try
+			{
+				reader.position(position).read(ByteBuffer.allocate(100));
+				fail("Read missing content at " + position);
+			}
+			catch (java.io.IOException e) {}
+		}
+	}
+
+	/** Reading from the middle of a stored file should only retrieve the blocks read. */
+	@Test public void randomAccess() throws Throwable
+	{
+		byte[] orig = new byte[16384];
+		for (int i = 0; i < orig.length; i++) orig[i] = (byte) (i * 5);
+
+		File f = File.newBuilder()
+			.setContent(Arrays.asList(ByteBuffer.wrap(orig)))
+			.setDesiredBlockSize(64)
+			.freeze();
+
+		final List<Fingerprint> retrieved = new java.util.ArrayList<Fingerprint>();
+		MemoryStore store = new MemoryStore()
+		{
+			@Override public Option<ByteBuffer> get(Fingerprint name)
+			{
+				retrieved.add(name);
+				return super.get(name);
+			}
+		};
+		for (EncryptedBlock b : f.toSave()) store.store(b);
+
+		File.Reader reader = store.fetch(f.link()).get().getChannel();
+		assertEquals(orig.length, reader.size());
+
+		// Prime the offset table (which needs the indirect blocks).
+		reader.read(ByteBuffer.allocate(1));
+
+		for (int start : new int[] { 10000, 37, 16380, 5000 })
+		{
+			retrieved.clear();
+
+			ByteBuffer range = ByteBuffer.allocate(Math.min(100, orig.length - start));
+			reader.position(start);
+			assertEquals(range.capacity(), reader.read(range));
+			assertEquals(start + range.capacity(), reader.position());
+			assertArrayEquals(Arrays.copyOfRange(orig, start, start + range.capacity()),
+				range.array());
+
+			// 100 B spans at most three blocks of (less than) 64 B.
+			assertTrue(retrieved.size() <= 3);
+		}
+
+		reader.position(orig.length);
+		assertEquals(-1, reader.read(ByteBuffer.allocate(1)));
+
+		// Frozen (in-memory) files have the same view of their content.
+		File.Reader frozen = f.getChannel();
+		ByteBuffer tail = ByteBuffer.allocate(1000);
+		frozen.position(orig.length - tail.capacity());
+		assertEquals(tail.capacity(), frozen.read(tail));
+		assertArrayEquals(Arrays.copyOfRange(orig, orig.length - tail.capacity(), orig.length),
+			tail.array());
+	}
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.nio.ByteBuffer
+
+import javax.crypto.Cipher
+
+import org.junit.runner.RunWith
+
+import org.scalatest.FreeSpec
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers
+
+import me.footlights.core.tags.{Benchmark,Benchmarking}
+
+
+package me.footlights.core.crypto {
+
+/**
+ * Compares encryption and decryption throughput with a new {@link Cipher} per block (as
+ * {@link SecretKey.CipherBuilder#build} gives us) against ciphers from a {@link CipherPool}.
+ *
+ * Every block has its own (convergent) key, so pooled ciphers still need re-initializing; the
+ * "same key" case shows what a reader of one block (e.g. a directory head) saves.
+ */
+@RunWith(classOf[JUnitRunner])
+class CipherBenchmark extends FreeSpec with ShouldMatchers with Benchmarking {
+	private val BlockSizes = List(256, 4096)
+	private val Blocks = 4096
+
+	private lazy val keys = (1 to 64) map { i => SecretKey.newGenerator setKeyLength 32 generate }
+
+	import SecretKey.Operation._
+
+	for (size <- BlockSizes) {
+		("Encrypting %d blocks of %d B" format (Blocks, size)) - {
+			"with a new cipher per block" taggedAs(Benchmark) in {
+				throughput("new", size,
+					run(size) { k => k.newCipherBuilder setOperation ENCRYPT build })
+			}
+
+			"with pooled ciphers" taggedAs(Benchmark) in {
+				throughput("pooled", size,
+					run(size) { k => k.newCipherBuilder setOperation ENCRYPT borrow })
+			}
+
+			"with a pooled cipher and the same key" taggedAs(Benchmark) in {
+				throughput("pooled, one key", size,
+					run(size) { k => keys.head.newCipherBuilder setOperation ENCRYPT borrow })
+			}
+		}
+
+		("Decrypting %d blocks of %d B" format (Blocks, size)) - {
+			"with a new cipher per block" taggedAs(Benchmark) in {
+				throughput("new", size,
+					run(size) { k => k.newCipherBuilder setOperation DECRYPT build })
+			}
+
+			"with pooled ciphers" taggedAs(Benchmark) in {
+				throughput("pooled", size,
+					run(size) { k => k.newCipherBuilder setOperation DECRYPT borrow })
+			}
+		}
+	}
+
+	/** Best-of-N wall-clock time (in ns) to process every block. */
+	private def run(size:Int)(cipher:SecretKey => Cipher) = {
+		val plaintext = new Array[Byte](size)
+		new java.util.Random(0) nextBytes plaintext
+
+		val out = ByteBuffer allocate 2 * size
+		bestOf {
+			for (i <- 0 until Blocks) {
+				out.clear
+				cipher(keys(i % keys.size)).doFinal(ByteBuffer wrap plaintext, out)
+			}
+		}
+	}
+
+	private def throughput(label:String, size:Int, ns:Long) =
+		report("%5d B %-16s %8.1f MB/s, %6.2f us/block",
+			size, label, megabytesPerSecond(Blocks.toDouble * size, ns), ns / 1e3 / Blocks)
+}
+
+}
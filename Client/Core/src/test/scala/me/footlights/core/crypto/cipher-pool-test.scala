@@ -0,0 +1,98 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.concurrent.{Callable,Executors}
+
+import scala.collection.JavaConversions._
+
+import org.junit.runner.RunWith
+
+import org.scalatest.FreeSpec
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers
+
+import me.footlights.core.data.Block
+
+
+package me.footlights.core.crypto {
+
+@RunWith(classOf[JUnitRunner])
+class CipherPoolTest extends FreeSpec with ShouldMatchers {
+	"A CipherPool" - {
+		"should lend the same cipher for the same key" in {
+			val key = newKey
+			val first = key.newCipherBuilder setOperation SecretKey.Operation.ENCRYPT borrow
+			val created = CipherPool.created
+
+			val second = key.newCipherBuilder setOperation SecretKey.Operation.ENCRYPT borrow
+
+			second should be theSameInstanceAs (first)
+			CipherPool.created should equal (created)
+		}
+
+		"should lend a different cipher for a different operation" in {
+			val key = newKey
+			val e = key.newCipherBuilder setOperation SecretKey.Operation.ENCRYPT borrow
+			val d = key.newCipherBuilder setOperation SecretKey.Operation.DECRYPT borrow
+
+			d should not be theSameInstanceAs (e)
+		}
+
+		"should not lend a discarded cipher" in {
+			val key = newKey
+			val first = key.newCipherBuilder borrow
+
+			CipherPool discard first
+			key.newCipherBuilder.borrow should not be theSameInstanceAs (first)
+		}
+
+		"should re-initialize old ciphers rather than creating new ones" in {
+			for (i <- 1 to 16) newKey.newCipherBuilder.borrow
+			val created = CipherPool.created
+
+			for (i <- 1 to 16) newKey.newCipherBuilder.borrow
+			CipherPool.created should equal (created)
+		}
+
+		"should encrypt and decrypt correctly from several threads at once" in {
+			val blocks = (1 to 32) map { i =>
+				Block.newBuilder addContent ("block %d" format i).getBytes build
+			}
+			val encrypted = blocks map { _.encrypt }
+
+			val pool = Executors newFixedThreadPool 8
+			val results = pool invokeAll {
+				(1 to 8) map { t =>
+					new Callable[Boolean] {
+						override def call = (1 to 20) forall { i =>
+							val decrypted = encrypted forall { e =>
+								e.link.decrypt(e.ciphertext) == e.plaintext
+							}
+							decrypted && (blocks forall { b => b.encrypt.plaintext == b })
+						}
+					}
+				}
+			}
+			pool.shutdown
+
+			results map { _.get } should equal (List.fill(8)(true))
+		}
+	}
+
+	/** A key of the size used for blocks (the generator's default length is in bits). */
+	private def newKey = SecretKey.newGenerator setKeyLength 32 generate
+}
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.nio.ByteBuffer
+
+import org.junit.runner.RunWith
+
+import org.scalatest.FreeSpec
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers
+
+import me.footlights.core.tags.{Benchmark,Benchmarking}
+
+
+package me.footlights.core.crypto {
+
+/**
+ * Compares hash maps with millions of block names, keyed by {@link Fingerprint},
+ * {@link Fingerprint.Key} and the names' text form (as we used to parse them into).
+ *
+ * Lookups use different (but equal) instances from the ones inserted, as when a name has been
+ * parsed from a link or an index. Memory use is a rough estimate from the heap size.
+ */
+@RunWith(classOf[JUnitRunner])
+class FingerprintBenchmark extends FreeSpec with ShouldMatchers with Benchmarking {
+	private val Sizes = List(1 << 20, 2 << 20)
+
+	for (size <- Sizes) {
+		("A map of %d names" format size) - {
+			"keyed by Fingerprint" taggedAs(Benchmark) in {
+				run("Fingerprint", size) { f => f }
+			}
+
+			"keyed by Fingerprint.Key" taggedAs(Benchmark) in {
+				run("Fingerprint.Key", size) { _.key }
+			}
+
+			"keyed by encoded name" taggedAs(Benchmark) in {
+				run("String", size) { _.encode }
+			}
+		}
+	}
+
+	private def run[K <: AnyRef](label:String, size:Int)(key:Fingerprint => K) = {
+		val before = heap
+		val map = new java.util.HashMap[K,Integer]
+		for (i <- 0 until size) map.put(key(name(i)), i)
+		val bytesPerEntry = (heap - before) / size
+
+		// Equal names, but not the same objects.
+		val probes = new Array[AnyRef](size)
+		for (i <- 0 until size) probes(i) = key(name(i))
+
+		val ns = bestOf {
+			var found = 0
+			for (p <- probes) if (map get p ne null) found += 1
+			found should equal (size)
+		}
+
+		report("%8d names, %-16s %6.1f ns/lookup, ~%4d B/entry",
+			size, label, ns.toDouble / size, bytesPerEntry)
+	}
+
+	private def name(i:Int) = Fingerprint of (ByteBuffer allocate 4 putInt i array)
+
+	private def heap = {
+		val r = Runtime.getRuntime
+		for (i <- 1 to 3) System.gc
+		r.totalMemory - r.freeMemory
+	}
+}
+
+}
@@ -13,8 +13,11 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-import java.io.ByteArrayInputStream
+import java.io.{ByteArrayInputStream,FileOutputStream,RandomAccessFile}
 import java.nio.ByteBuffer
+import java.nio.channels.Channels
+
+import scala.collection.JavaConversions.seqAsJavaList
 
 import org.junit.runner.RunWith
 
@@ -50,4 +53,125 @@ class FingerprintIT extends FreeSpec with BeforeAndAfter with MockitoSugar with
 	}
 }
 
+@RunWith(classOf[JUnitRunner])
+class FingerprintBuilderTest extends FreeSpec with ShouldMatchers {
+	"A Fingerprint.Builder should " - {
+		"hash content fed incrementally like content set at once." in {
+			val incremental = Fingerprint.newBuilder
+				.update(data take 100)
+				.update(ByteBuffer.wrap(data, 100, 1000))
+				.update(seqAsJavaList(List(ByteBuffer.wrap(data, 1100, 10), ByteBuffer.wrap(data, 1110, 1000))))
+				.update(data drop 2110)
+				.build
+
+			incremental should equal (expected)
+		}
+
+		"hash slices and direct buffers without moving their positions." in {
+			val padded = new Array[Byte](data.length + 20)
+			System.arraycopy(data, 0, padded, 10, data.length)
+			val slice = ByteBuffer.wrap(padded, 10, data.length).slice
+
+			val direct = ByteBuffer allocateDirect data.length
+			direct put data
+			direct.flip
+
+			for (b <- List(slice, slice.asReadOnlyBuffer, direct)) {
+				Fingerprint.newBuilder setContent b build() should equal (expected)
+				b.remaining should equal (data.length)
+			}
+		}
+
+		"hash channels, whether read or memory-mapped." in {
+			val small = new Array[Byte](1000)
+			val large = new Array[Byte](1 << 20)
+			List(small, large) foreach { new java.util.Random(1) nextBytes _ }
+
+			for (content <- List(small, large)) {
+				val file = java.io.File.createTempFile("fingerprint", ".tmp")
+				file.deleteOnExit
+				val out = new FileOutputStream(file)
+				out write content
+				out.close
+
+				val channel = new RandomAccessFile(file, "r").getChannel
+				Fingerprint of channel should equal (Fingerprint of content)
+				channel.position should equal (content.length)
+				channel.close
+
+				val stream = Channels newChannel new ByteArrayInputStream(content)
+				Fingerprint of stream should equal (Fingerprint of content)
+			}
+		}
+
+		"be reusable after building." in {
+			val builder = Fingerprint.newBuilder update data
+			builder.build should equal (expected)
+			builder setContent data build() should equal (expected)
+			builder.build should equal (Fingerprint of new Array[Byte](0))
+		}
+
+		"reuse digests on the same thread." in {
+			Fingerprint of data
+			val created = DigestPool.created
+
+			for (i <- 1 to 100) Fingerprint of data
+			DigestPool.created should equal (created)
+		}
+
+		"not let the algorithm change part-way through." in {
+			evaluating {
+				Fingerprint.newBuilder update data setAlgorithm "sha-1"
+			} should produce [IllegalStateException]
+		}
+	}
+
+	private val data = {
+		val bytes = new Array[Byte](4096)
+		new java.util.Random(0) nextBytes bytes
+		bytes
+	}
+
+	private val expected = Fingerprint.newBuilder setContent data build
+}
+
+@RunWith(classOf[JUnitRunner])
+class FingerprintKeyTest extends FreeSpec with ShouldMatchers {
+	"A Fingerprint.Key should " - {
+		"be equal for equal fingerprints, however they were made." in {
+			val decoded = Fingerprint decode f.encode
+			decoded.key should equal (f.key)
+			decoded.key.hashCode should equal (f.key.hashCode)
+			decoded should equal (f)
+		}
+
+		"name the fingerprint that it came from." in {
+			f.key.fingerprint should equal (f)
+			f.key.fingerprint.encode should equal (f.encode)
+			f.key.fingerprint.toURI should equal (f.toURI)
+			f.key.toString should equal (f.encode)
+		}
+
+		"distinguish between hash algorithms." in {
+			val sha1 = Fingerprint.newBuilder setAlgorithm "sha-1" setContent bytes build
+			val sha256 = Fingerprint.newBuilder setAlgorithm "SHA-256" setContent bytes build
+
+			sha1.key should not equal (sha256.key)
+			sha256.key should equal (f.key)
+			sha256.encode should startWith ("urn:sha-256:")
+		}
+
+		"work as a map key." in {
+			val names = (1 to 1000) map { i => Fingerprint of (ByteBuffer allocate 4 putInt i array) }
+			val map = Map() ++ (names.zipWithIndex map { case (n, i) => (n.key, i) })
+
+			for ((n, i) <- names.zipWithIndex)
+				map get (Fingerprint decode n.encode).key should equal (Some(i))
+		}
+	}
+
+	private val bytes = List(1, 2, 3, 4) map { _.toByte } toArray
+	private val f = Fingerprint.newBuilder setAlgorithm "sha-256" setContent bytes build
+}
+
 }
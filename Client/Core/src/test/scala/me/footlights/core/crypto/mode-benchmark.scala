@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.nio.ByteBuffer
+import java.util.concurrent.Executors
+
+import org.junit.runner.RunWith
+
+import org.scalatest.FreeSpec
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers
+
+import me.footlights.core.tags.{Benchmark,Benchmarking}
+
+
+package me.footlights.core.crypto {
+
+/**
+ * Compares block encryption throughput in the legacy format (the preferred mode, usually CBC,
+ * with a zero IV) against {@link CounterMode}, both on one thread and with large blocks split
+ * across a pool. Throughput is reported per block and per core used.
+ */
+@RunWith(classOf[JUnitRunner])
+class CipherModeBenchmark extends FreeSpec with ShouldMatchers with Benchmarking {
+	private val BlockSizes = List(4096, 1 << 20)
+	private val Bytes = 64 << 20
+	private val Cores = Runtime.getRuntime.availableProcessors
+
+	private lazy val secret = SecretKey.newGenerator setKeyLength 32 generate
+
+	for (size <- BlockSizes) {
+		("Encrypting %d MB in blocks of %d B" format (Bytes >> 20, size)) - {
+			"in the legacy format" taggedAs(Benchmark) in {
+				val cipher = secret.newCipherBuilder setOperation SecretKey.Operation.ENCRYPT
+				val out = ByteBuffer allocate size
+				throughput("legacy", size, 1, run(size) { in =>
+					out.clear
+					cipher.borrow.doFinal(in, out)
+				})
+			}
+
+			"in CTR mode" taggedAs(Benchmark) in {
+				throughput("ctr", size, 1, run(size) { in =>
+					CounterMode.encrypt(secret, Array(in), size, null)
+				})
+			}
+
+			"in CTR mode, in parallel" taggedAs(Benchmark) in {
+				val pool = Executors newFixedThreadPool Cores
+				try {
+					throughput("ctr, parallel", size, Cores, run(size) { in =>
+						CounterMode.encrypt(secret, Array(in), size, pool)
+					})
+				} finally pool.shutdown
+			}
+		}
+	}
+
+	/** Best-of-N wall-clock time (in ns) to encrypt {@link #Bytes}. */
+	private def run(size:Int)(encrypt:ByteBuffer => Any) = {
+		val plaintext = new Array[Byte](size)
+		new java.util.Random(0) nextBytes plaintext
+
+		bestOf { for (i <- 0 until Bytes / size) encrypt(ByteBuffer wrap plaintext) }
+	}
+
+	private def throughput(label:String, size:Int, cores:Int, ns:Long) = {
+		val rate = megabytesPerSecond(Bytes, ns)
+		report("%7d B %-14s %8.1f MB/s, %8.1f MB/s per core (%d)",
+			size, label, rate, rate / cores, cores)
+	}
+}
+
+}
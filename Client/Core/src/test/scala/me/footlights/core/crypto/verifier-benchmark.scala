@@ -0,0 +1,82 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.concurrent.Executors
+
+import org.junit.runner.RunWith
+
+import org.scalatest.FreeSpec
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers
+
+import me.footlights.core.tags.{Benchmark,Benchmarking}
+
+
+package me.footlights.core.crypto {
+
+/**
+ * Compares checking a batch of shared-root signatures one at a time with {@link Identity#verify}
+ * against a {@link BatchVerifier}, both the first time (every signature is checked) and again
+ * (every signature has been verified before).
+ */
+@RunWith(classOf[JUnitRunner])
+class VerifierBenchmark extends FreeSpec with ShouldMatchers with Benchmarking {
+	private val Signers = 16
+	private val Roots = 1024
+	private val Cores = Runtime.getRuntime.availableProcessors
+
+	private lazy val batch = {
+		val signers = List.fill(Signers)(Identity.generate())
+		(0 until Roots) map { i =>
+			val f = Fingerprint of (java.nio.ByteBuffer allocate 4 putInt i array)
+			val s = signers(i % Signers)
+			(f, s sign f, s:Identity)
+		}
+	}
+
+	("Verifying %d root signatures" format Roots) - {
+		"one at a time" taggedAs(Benchmark) in {
+			throughput("serial", 1, bestOf {
+				for ((f, s, id) <- batch) id verify (f -> s) should equal (true)
+			})
+		}
+
+		"in a batch" taggedAs(Benchmark) in {
+			val pool = Executors newFixedThreadPool Cores
+			try {
+				throughput("batch", Cores, bestOf {
+					new BatchVerifier(pool, Roots) verify batch forall { x => x } should equal (true)
+				})
+			} finally pool.shutdown
+		}
+
+		"in a batch, already verified" taggedAs(Benchmark) in {
+			val pool = Executors newFixedThreadPool Cores
+			try {
+				val verifier = new BatchVerifier(pool, Roots)
+				verifier verify batch
+				throughput("batch, cached", Cores, bestOf {
+					verifier verify batch forall { x => x } should equal (true)
+				})
+			} finally pool.shutdown
+		}
+	}
+
+	private def throughput(label:String, cores:Int, ns:Long) =
+		report("%-14s %10.1f signatures/s, %8.1f us each (%d cores)",
+			label, Roots / (ns / 1e9), ns / 1e3 / Roots, cores)
+}
+
+}
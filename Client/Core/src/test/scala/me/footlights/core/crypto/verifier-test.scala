@@ -0,0 +1,99 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.nio.ByteBuffer
+import java.util.concurrent.Executors
+
+import org.junit.runner.RunWith
+
+import org.scalatest.{BeforeAndAfter,FreeSpec}
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers
+
+
+package me.footlights.core.crypto {
+
+@RunWith(classOf[JUnitRunner])
+class BatchVerifierTest extends FreeSpec with BeforeAndAfter with ShouldMatchers {
+	"A BatchVerifier" - {
+		"accepts good signatures and rejects bad ones, in order." in {
+			val forged = signer sign fingerprints(1)
+			val results = verifier verify List(
+				(fingerprints(0), signer sign fingerprints(0), signer),
+				(fingerprints(0), forged, signer),
+				(fingerprints(1), forged, other),
+				(fingerprints(2), signer sign fingerprints(2), signer)
+			)
+
+			results should equal (List(true, false, false, true))
+		}
+
+		"remembers signatures that it has already verified." in {
+			val batch = fingerprints map { f => (f, signer sign f, signer) }
+
+			verifier verify batch should equal (batch map { _ => true })
+			verifier.hits should equal (0)
+			verifier.size should equal (batch.size)
+
+			verifier verify batch should equal (batch map { _ => true })
+			verifier.hits should equal (batch.size)
+			verifier.hitRate should equal (0.5)
+		}
+
+		"only checks a repeated signature once per batch." in {
+			val f = fingerprints(0)
+			val s = signer sign f
+
+			verifier verify List.fill(8)((f, s, signer)) should equal (List.fill(8)(true))
+			verifier.size should equal (1)
+		}
+
+		"doesn't remember bad signatures." in {
+			val f = fingerprints(0)
+			val forged = signer sign fingerprints(1)
+
+			verifier.verify(f, forged, signer) should equal (false)
+			verifier.verify(f, forged, signer) should equal (false)
+			verifier.hits should equal (0)
+			verifier.size should equal (0)
+		}
+
+		"rejects malformed signatures." in {
+			val good = signer sign fingerprints(0)
+			val garbage = new Signature(good.publicKey, good.signingAlgorithm,
+				ByteBuffer wrap Array[Byte](1, 2, 3))
+
+			verifier.verify(fingerprints(0), garbage, signer) should equal (false)
+		}
+
+		"is bounded." in {
+			val small = new BatchVerifier(pool, 2)
+			small verify (fingerprints map { f => (f, signer sign f, signer) })
+			small.size should equal (2)
+		}
+	}
+
+	before { verifier = new BatchVerifier(pool, 16) }
+
+	private var verifier:BatchVerifier = _
+
+	private val pool = Executors newFixedThreadPool 4
+	private val signer = Identity.generate()
+	private val other = Identity.generate()
+	private val fingerprints =
+		(0 until 4) map { i => Fingerprint of Array[Byte](i.toByte) } toList
+}
+
+}
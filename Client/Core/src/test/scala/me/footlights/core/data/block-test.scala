@@ -137,6 +137,53 @@ class BlockTest extends FreeSpec with BeforeAndAfter with MockitoSugar with Shou
 			}
 		}
 
+		"build blocks from several content slices without changing their bytes." in {
+			val data = 0 until 100 map { _.toByte } toArray
+			val slices = List(0 -> 7, 7 -> 50, 50 -> 100) map { case (from, to) =>
+				ByteBuffer.wrap(data, from, to - from) }
+
+			val gathered = slices.foldLeft(Block.newBuilder) { _ addContent _ } build
+			val parsed = Block parse gathered.getBytes
+
+			parsed.content should equal (ByteBuffer wrap data)
+			parsed.name should equal (gathered.name)
+			gathered.content should equal (ByteBuffer wrap data)
+		}
+
+		"write blocks to a gathering channel." in {
+			val block = Block.newBuilder
+				.addContent(List[Byte](1, 2, 3).toArray)
+				.addContent(List[Byte](4, 5, 6).toArray)
+				.addLink(link)
+				.build
+
+			val file = java.io.File.createTempFile("block", ".tmp")
+			file.deleteOnExit
+			val channel = new java.io.RandomAccessFile(file, "rw").getChannel
+			block writeTo channel should equal (block.bytes)
+			channel.close
+
+			val written = ByteBuffer allocate block.bytes
+			val in = new java.io.FileInputStream(file).getChannel
+			in read written
+			in.close
+			written.flip
+
+			written should equal (block.getBytes)
+			Block parse written should equal (block)
+		}
+
+		"encrypt gathered blocks exactly like contiguous ones." in {
+			val gathered = Block.newBuilder
+				.addContent(List[Byte](1, 2).toArray)
+				.addContent(List[Byte](3, 4).toArray)
+				.build
+
+			val encrypted = gathered.encrypt
+			encrypted.plaintext should equal (gathered)
+			encrypted.link.decrypt(encrypted.ciphertext).getBytes should equal (gathered.getBytes)
+		}
+
 		"name blocks correctly." in {
 			val block = Block.newBuilder()
 				.addContent { List[Byte](1,2,3).toArray }
@@ -149,6 +196,70 @@ class BlockTest extends FreeSpec with BeforeAndAfter with MockitoSugar with Shou
 						setContent encrypted.ciphertext
 						build)
 		}
+
+		"encrypt and decrypt blocks in CTR mode." in {
+			val block = Block.newBuilder addContent List[Byte](1, 2, 3).toArray build
+			val encrypted = block.encrypt(Block.Format.CTR, null)
+
+			encrypted.ciphertext.remaining should equal (block.bytes + 16)
+			encrypted.link.decrypt(encrypted.ciphertext) should equal (block)
+		}
+
+		"give every CTR-mode block its own nonce." in {
+			val block = Block.newBuilder addContent List[Byte](1, 2, 3).toArray build
+			val first = block.encrypt(Block.Format.CTR, null)
+			val second = block.encrypt(Block.Format.CTR, null)
+
+			first.ciphertext should not equal (second.ciphertext)
+			second.link.decrypt(second.ciphertext) should equal (block)
+		}
+
+		"encrypt large CTR-mode blocks in parallel." in {
+			val content = new Array[Byte](1 << 20)
+			new java.util.Random(42) nextBytes content
+			val block = Block.newBuilder setDesiredSize (2 << 20) addContent content build
+
+			val pool = java.util.concurrent.Executors newFixedThreadPool 4
+			val encrypted = block.encrypt(Block.Format.CTR, pool)
+			pool.shutdown
+
+			encrypted.link.decrypt(encrypted.ciphertext) should equal (block)
+		}
+
+		"explain why a damaged CTR-mode block can't be decrypted." in {
+			val block = Block.newBuilder addContent List[Byte](1, 2, 3).toArray build
+			val encrypted = block.encrypt(Block.Format.CTR, null)
+
+			val damaged = ByteBuffer allocate encrypted.ciphertext.remaining
+			damaged put encrypted.ciphertext.duplicate
+			damaged.flip
+			damaged.put(16, (damaged.get(16) ^ 0xff).toByte)
+
+			val e = evaluating { encrypted.link decrypt damaged } should produce [
+				java.security.GeneralSecurityException]
+			e.getMessage should include ("CTR")
+			e.getCause.isInstanceOf[FormatException] should be (true)
+		}
+
+		"decrypt legacy blocks, whatever the preferred format." in {
+			val block = Block.newBuilder addContent List[Byte](4, 5, 6).toArray build
+			val legacy = block.encrypt(Block.Format.LEGACY, null)
+
+			legacy.ciphertext.remaining should equal (block.bytes)
+			legacy.link.decrypt(legacy.ciphertext) should equal (block)
+		}
+
+		"choose a format by preference." in {
+			Block.preferredFormat(Preferences wrap Map()) should equal (Block.Format.LEGACY)
+			Block.preferredFormat(Preferences wrap Map(Block.FORMAT_KEY -> "ctr")) should equal (
+				Block.Format.CTR)
+		}
+
+		"refuse to choose an unknown format." in {
+			evaluating {
+				Block.preferredFormat(Preferences wrap Map(Block.FORMAT_KEY -> "rot13"))
+			} should produce [me.footlights.core.ConfigurationError]
+		}
 	}
 
 	private val prefs = Preferences.loadFromDefaultLocation
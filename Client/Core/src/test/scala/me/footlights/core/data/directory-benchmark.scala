@@ -0,0 +1,108 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.junit.runner.RunWith
+
+import org.scalatest.FreeSpec
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers
+
+import me.footlights.core.crypto.{Fingerprint,Link,SecretKey}
+import me.footlights.core.tags.{Benchmark,Benchmarking}
+
+
+package me.footlights.core.data {
+
+/**
+ * Measures the cost of adding an entry to a {@link Directory} (and encoding it) as the
+ * directory grows, compared with encoding the whole directory from scratch (for a
+ * {@link FlatDirectory}) and with the blocks that a {@link TreeDirectory} writes.
+ */
+@RunWith(classOf[JUnitRunner])
+class DirectoryBenchmark extends FreeSpec with ShouldMatchers with Benchmarking {
+	private val Sizes = List(100, 1000, 10000)
+	private val Inserts = 20
+
+	"Adding an entry to a directory of" - {
+		for (size <- Sizes)
+			("%d entries" format size) taggedAs(Benchmark) in {
+				val dir = directory(size)
+				dir.encrypted
+
+				// Incremental: each version reuses what it can of the previous one.
+				var current = dir
+				var reused = 0
+				val incremental = time {
+					for (i <- 1 to Inserts) {
+						current += entry("new %d" format i)
+						current.encrypted
+						reused += current.reusedBlocks
+					}
+				}
+
+				// From scratch: encode every version without reference to the previous one.
+				val scratch = time {
+					for (i <- 1 to Inserts) FlatDirectory(Map("x" -> entry("x"))) ++ dir encrypted
+				}
+
+				val blocks = current.encrypted.size
+				report("%6d entries, %4d blocks: %8.2f ms/insert (%5.1f%% blocks reused), %8.2f ms from scratch",
+						size, blocks, incremental / 1e6 / Inserts,
+						100.0 * reused / (blocks * Inserts), scratch / 1e6 / Inserts)
+			}
+	}
+
+	"Adding an entry to a tree directory of" - {
+		for (size <- Sizes)
+			("%d entries" format size) taggedAs(Benchmark) in {
+				val dir = (TreeDirectory() /: (1 to size)) { (d, i) =>
+					d + entry("photo-%06d.jpg" format i)
+				}
+				dir.encrypted
+				dir.markStored()
+
+				// Only the nodes on the path to the new entry should need to be written.
+				var current = dir
+				var written = 0
+				val incremental = time {
+					for (i <- 1 to Inserts) {
+						current += entry("new %d" format i)
+						written += current.encrypted.size
+						current.markStored()
+					}
+				}
+
+				report("%6d entries, depth %d: %8.2f ms/insert (%4.1f blocks written/insert)",
+						size, current.depth, incremental / 1e6 / Inserts, written.toDouble / Inserts)
+			}
+	}
+
+	private def directory(size:Int) = (FlatDirectory() /: (1 to size)) { (d, i) =>
+		d + entry("photo-%06d.jpg" format i)
+	}
+
+	private def entry(name:String) = {
+		val link = Link.newBuilder
+			.setFingerprint(Fingerprint.newBuilder setContent name.getBytes build)
+			.setKey(secret)
+			.build
+
+		new Entry(name, false, link)
+	}
+
+	private lazy val secret = SecretKey.newGenerator.generate
+}
+
+}
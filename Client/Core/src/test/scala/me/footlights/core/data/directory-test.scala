@@ -23,7 +23,7 @@ import org.junit.runner.RunWith
 
 import org.mockito
 import org.mockito.Matchers._
-import org.mockito.Mockito.{when,verify}
+import org.mockito.Mockito.{never,times,when,verify}
 
 import org.powermock.api.mockito.PowerMockito
 
@@ -95,6 +95,32 @@ class DirectoryTest extends FreeSpec with BeforeAndAfter with MockitoSugar with
 			val parsed = Directory parse decrypted
 			parsed should equal (Right(d))
 		}
+
+		"reuse unchanged blocks when an entry is added." in {
+			val d = big.encrypted
+			val bigger = big + ("new" -> file1)
+
+			bigger.encrypted.size should be >= (d.size)
+			bigger.reusedBlocks should be >= (d.size - 1)
+			bigger.encrypted.toList takeRight (d.size - 1) should equal (d.toList.tail)
+		}
+
+		"only rewrite blocks up to a replaced entry." in {
+			val d = big.encrypted
+			val changed = big + ("entry 100" -> file2)
+
+			changed.encrypted.size should equal (d.size)
+			changed.reusedBlocks should be > (0)
+			changed.reusedBlocks should be < (d.size)
+		}
+
+		"re-encode a parsed directory as the same blocks." in {
+			val parsed = FlatDirectory parseCiphertext big.encrypted
+
+			parsed should equal (Right(big))
+			parsed.right.get.link should equal (big.link)
+			parsed.right.get.reusedBlocks should equal (big.encrypted.size)
+		}
 	}
 
 	"A %s should be able to ".format(classOf[MutableDirectory].getSimpleName) - {
@@ -109,6 +135,28 @@ class DirectoryTest extends FreeSpec with BeforeAndAfter with MockitoSugar with
 				case _ => fail("mutable('%s') should return Some(entry)" format DirName)
 			}
 		}
+
+		"apply a batch of changes with one notification." in {
+			val changed = mock[Directory => Unit]
+			val m = MutableDirectory(footlights)(Directory() + ("old" -> file2))(changed)
+
+			m.batch save ("foo", file1) save ("bar", file2) remove "old" commit() should be ('right)
+
+			m("foo") map { _.name } should equal (Some("foo"))
+			m("bar") map { _.name } should equal (Some("bar"))
+			m("old") should equal (None)
+			verify(changed, times(1)) apply any[Directory]()
+		}
+
+		"apply none of a batch if any change fails." in {
+			val changed = mock[Directory => Unit]
+			val m = MutableDirectory(footlights)(Directory())(changed)
+
+			m.batch save ("foo", file1) remove "nonexistent" commit() should be ('left)
+
+			m("foo") should equal (None)
+			verify(changed, never()) apply any[Directory]()
+		}
 	}
 
 	private val link1 = crypto.Link.newBuilder
@@ -131,6 +179,17 @@ class DirectoryTest extends FreeSpec with BeforeAndAfter with MockitoSugar with
 	when { dir2.link } thenReturn link1
 	when { file2.link } thenReturn link2
 
+	/** A directory that spans several blocks. */
+	private lazy val big = (FlatDirectory() /: (1 to 400)) { (d, i) =>
+		val link = crypto.Link.newBuilder
+			.setFingerprint(crypto.Fingerprint.newBuilder setContent("%d".format(i).getBytes) build)
+			.setKey(bigKey)
+			.build
+
+		d + new Entry("entry %d" format i, false, link)
+	}
+	private lazy val bigKey = crypto.SecretKey.newGenerator.generate
+
 	private var footlights:core.Footlights = _
 	private var mutable:MutableDirectory = _
 	private val mutableChanged = mock[Directory => Unit]
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.nio.ByteBuffer
+
+import scala.concurrent.forkjoin.ForkJoinPool
+
+import org.junit.runner.RunWith
+
+import org.scalatest.FreeSpec
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers
+
+import me.footlights.core.tags.{Benchmark,Benchmarking}
+
+
+package me.footlights.core.data {
+
+/**
+ * Measures how {@link File.MutableFile#freeze} throughput scales with the number of cores.
+ */
+@RunWith(classOf[JUnitRunner])
+class FreezeBenchmark extends FreeSpec with ShouldMatchers with Benchmarking {
+	private val FileSize = 96 * 4000
+	private val FileCount = 32
+	private val Size = FileSize * FileCount
+
+	private lazy val content = {
+		val b = ByteBuffer allocate FileSize
+		new java.util.Random(0) nextBytes b.array
+		b.asReadOnlyBuffer
+	}
+
+	("Freezing %d files of %d kB" format (FileCount, FileSize / 1000)) - {
+		"sequentially" taggedAs(Benchmark) in {
+			throughput("sequential", freezeAll { File.newBuilder setContent content.duplicate freeze })
+		}
+
+		val cores = Runtime.getRuntime.availableProcessors
+		for (threads <- Iterator.iterate(1) { _ * 2 } takeWhile { _ <= cores })
+			("with a %d-thread pool" format threads) taggedAs(Benchmark) in {
+				val pool = new ForkJoinPool(threads)
+				throughput("%d threads" format threads, freezeAll {
+					File.newBuilder setContent content.duplicate setEncryptionPool pool freeze
+				})
+				pool.shutdown
+			}
+	}
+
+	/** Best-of-N wall-clock time (in ns) to freeze all of the files. */
+	private def freezeAll(f: => Any) = bestOf { for (j <- 1 to FileCount) f }
+
+	private def throughput(label:String, ns:Long) =
+		report("%-16s %8.1f MB/s", label, megabytesPerSecond(Size, ns))
+}
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.nio.ByteBuffer
+import java.util.concurrent.{Executors,TimeUnit}
+
+import scala.collection.JavaConversions._
+
+import org.junit.runner.RunWith
+
+import org.scalatest.{BeforeAndAfter,FreeSpec}
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers
+
+import me.footlights.core.{Preferences,PreferenceStorageEngine}
+import me.footlights.core.crypto.Fingerprint
+import me.footlights.core.data.store.MemoryStore
+
+
+package me.footlights.core.data {
+
+@RunWith(classOf[JUnitRunner])
+class ReadAheadTest extends FreeSpec with BeforeAndAfter with ShouldMatchers {
+	private val Size = 4096
+	private val BlockSize = 256
+
+	private var pool = Executors newFixedThreadPool 4
+	private var store:SlowStore = _
+	private var file:File = _
+
+	before {
+		store = new SlowStore
+		file = File.newBuilder setContent { ByteBuffer wrap content } setDesiredBlockSize
+			BlockSize freeze
+
+		store store file.toSave
+	}
+
+	after { pool.shutdownNow; pool = Executors newFixedThreadPool 4 }
+
+	"Read-ahead should" - {
+		"be configurable through Preferences" in {
+			ReadAhead create Preferences.getDefaultPreferences should be ('defined)
+
+			val disabled = Preferences(Some(PreferenceStorageEngine wrap
+				Map(ReadAhead.WINDOW_KEY -> "0", ReadAhead.THREADS_KEY -> "4")))
+			ReadAhead create disabled should equal (None)
+		}
+
+		"not change what is read" in {
+			val readAhead = new ReadAhead(4, pool)
+			val opened = File.from(file.encryptedHeader, store, Some(readAhead))
+			read(opened) should equal (content.toList)
+		}
+
+		"retrieve blocks before a sequential reader needs them" in {
+			val readAhead = new ReadAhead(4, pool)
+			val opened = File.from(file.encryptedHeader, store, Some(readAhead))
+
+			val in = opened.getChannel
+			val buffer = ByteBuffer allocate BlockSize
+			while (in.read(buffer) >= 0) {
+				buffer.clear
+				Thread sleep (2 * SlowStore.Delay_ms)    // consume the block slowly
+			}
+
+			val blocks = file.content.size
+			(readAhead.hits + readAhead.misses) should equal (blocks)
+			readAhead.hits should be >= (blocks - 2L)
+			readAhead.stallTime(TimeUnit.MILLISECONDS) should be < (blocks * SlowStore.Delay_ms / 2L)
+		}
+
+		"stop retrieving blocks that a reader has skipped past" in {
+			val readAhead = new ReadAhead(2, pool)
+			val in = File.from(file.encryptedHeader, store, Some(readAhead)).getChannel
+
+			in.read(ByteBuffer allocate 1)
+			in.position(Size - 1)
+			in.read(ByteBuffer allocate 1)
+			Thread sleep (4 * SlowStore.Delay_ms)
+
+			// The header, two blocks read and at most two read ahead after the first one.
+			store.retrieved should be <= 5
+		}
+
+		"read ahead for each reader of a file separately" in {
+			val readAhead = new ReadAhead(4, pool)
+			val opened = File.from(file.encryptedHeader, store, Some(readAhead))
+
+			// Two readers, interleaved: one reads the first half, the other the second half.
+			val readers = List(opened.getChannel, opened.getChannel position (Size / 2))
+			val buffer = ByteBuffer allocate BlockSize
+			for (i <- 0 until Size / 2 / BlockSize; in <- readers) {
+				buffer.clear
+				while (buffer.hasRemaining && in.read(buffer) > 0) {}
+				Thread sleep (2 * SlowStore.Delay_ms)
+			}
+			readers foreach { _.close }
+
+			// Each reader misses at most its first block and the one after it.
+			readAhead.misses should be <= 4L
+			readAhead.hits should be >= (readAhead.misses * 2)
+		}
+	}
+
+	private def read(f:File) = {
+		val bytes = new Array[Byte](Size)
+		val buffer = ByteBuffer wrap bytes
+		val in = f.getChannel
+		while (in.read(buffer) > 0) {}
+		bytes.toList
+	}
+
+	private lazy val content = {
+		val bytes = new Array[Byte](Size)
+		new java.util.Random(0) nextBytes bytes
+		bytes
+	}
+}
+
+/** A block store that takes a while to retrieve each block (like a network store would). */
+class SlowStore extends MemoryStore {
+	@volatile var retrieved = 0
+
+	override def get(name:Fingerprint) = {
+		Thread sleep SlowStore.Delay_ms
+		synchronized { retrieved += 1 }
+		super.get(name)
+	}
+}
+
+object SlowStore {
+	val Delay_ms = 20L
+}
+
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.net.{InetSocketAddress,URL}
+
+import com.sun.net.httpserver.{HttpExchange,HttpHandler,HttpServer}
+
+import org.junit.runner.RunWith
+
+import org.scalatest.{BeforeAndAfter,FreeSpec}
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers
+
+import me.footlights.core.crypto.Fingerprint
+import me.footlights.core.data.Block
+
+
+package me.footlights.core.data.store {
+
+@RunWith(classOf[JUnitRunner])
+class CASBatchTest extends FreeSpec with BeforeAndAfter with ShouldMatchers {
+
+	private var server:HttpServer = _
+	private var requests = 0
+	private var uploaded = 0
+	private var rejected = Set[String]()
+	private var stored = Set[String]()
+	private var questions = 0
+
+	/** How "have" replies, given the names it was asked about (by default, like the CAS). */
+	private var haveReply:List[String] => (String, String) = _
+
+	before {
+		requests = 0
+		uploaded = 0
+		rejected = Set()
+		stored = Set()
+		questions = 0
+		haveReply = names => (CASClient.HaveType + "; charset=UTF-8", names filter stored map {
+			_ + "\n" } mkString "")
+
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0)
+		server.createContext("/upload", new HttpHandler {
+			override def handle(exchange:HttpExchange) = {
+				val body = scala.io.Source.fromInputStream(exchange.getRequestBody, "iso-8859-1")
+					.mkString
+				val names = "filename=\"([^\"]+)\"".r findAllIn body map {
+					case FileName(name) => name
+				} toList
+
+				requests += 1
+				uploaded += names.size
+				val response =
+					if (body contains "name=\"BATCH\"")
+						names map { n =>
+							if (rejected contains n) n + " 400 Bad block" else n + " 200"
+						} mkString ("", "\n", "\n")
+					else
+						"EXPECTED_NAME\"\r\n.*\r\n\r\n(.*)\r\n".r findFirstMatchIn body map {
+							_ group 1 } getOrElse ""
+
+				val bytes = response getBytes "utf-8"
+				exchange.sendResponseHeaders(200, bytes.length)
+				exchange.getResponseBody write bytes
+				exchange.close
+			}
+		})
+		server.createContext("/have", new HttpHandler {
+			override def handle(exchange:HttpExchange) = {
+				val names = scala.io.Source.fromInputStream(exchange.getRequestBody, "utf-8")
+					.getLines.toList
+
+				questions += 1
+				val (contentType, reply) = haveReply(names)
+				val bytes = reply getBytes "utf-8"
+				exchange.getResponseHeaders.set("Content-Type", contentType)
+				exchange.sendResponseHeaders(200, bytes.length)
+				exchange.getResponseBody write bytes
+				exchange.close
+			}
+		})
+		server.start
+	}
+
+	after { server stop 0 }
+
+	"A CAS client" - {
+		"should upload several blocks in one request" in {
+			val cas = client(batch = 8)
+			blocks foreach { cas store _ }
+			cas.flush
+
+			requests should equal (2)
+			cas.flushed should equal (blocks.size)
+		}
+
+		"should retry only the blocks that the server rejects" in {
+			val cas = client(batch = 16)
+			rejected = Set(blocks(3).name.encode)
+			blocks foreach { cas store _ }
+			cas.flush
+
+			requests should equal (1)
+			cas.flushed should equal (blocks.size - 1)
+		}
+
+		"should upload lone blocks individually" in {
+			val cas = client(batch = 16)
+			cas store blocks(0)
+			cas.flush
+
+			requests should equal (1)
+			cas.flushed should equal (1)
+		}
+
+		"should ask which blocks the server is missing" in {
+			val cas = client(batch = 16)
+			stored = (blocks take 10 map { _.name.encode }).toSet
+
+			cas missing (blocks map { _.name }) should equal (Right((blocks drop 10 map { _.name }).toSet))
+			cas missing Nil should equal (Right(Set()))
+		}
+
+		"should only upload blocks that the server is missing" in {
+			val cas = client(batch = 16)
+			stored = (blocks take 10 map { _.name.encode }).toSet
+			blocks foreach { cas store _ }
+			cas.flush
+
+			requests should equal (1)
+			uploaded should equal (6)
+			cas.flushed should equal (blocks.size)
+			cas.blocksNotUploaded should equal (10)
+			cas.bytesNotUploaded should equal (blocks take 10 map { _.getBytes.remaining } sum)
+		}
+
+		"should upload everything if it can't ask what the server is missing" in {
+			server removeContext "/have"
+			val cas = client(batch = 16)
+			blocks foreach { cas store _ }
+			cas.flush
+
+			uploaded should equal (blocks.size)
+			cas.flushed should equal (blocks.size)
+			cas.bytesNotUploaded should equal (0)
+		}
+
+		"should upload everything if the answer isn't from the CAS" in {
+			stored = (blocks map { _.name.encode }).toSet
+			haveReply = _ => ("text/html", "")
+
+			val cas = client(batch = 8)
+			blocks foreach { cas store _ }
+			cas.flush
+
+			uploaded should equal (blocks.size)
+			cas.bytesNotUploaded should equal (0)
+			questions should equal (1)
+		}
+
+		"should upload everything if an older CAS lists the blocks it's missing" in {
+			stored = (blocks take 10 map { _.name.encode }).toSet
+			haveReply = names => ("text/plain", names filterNot stored map { _ + "\n" } mkString "")
+
+			val cas = client(batch = 16)
+			blocks foreach { cas store _ }
+			cas.flush
+
+			uploaded should equal (blocks.size)
+			cas.bytesNotUploaded should equal (0)
+		}
+
+		"should upload everything if the CAS claims blocks we didn't ask about" in {
+			haveReply = names => (CASClient.HaveType, (names map { _ + "\n" } mkString "") + "bogus\n")
+
+			val cas = client(batch = 16)
+			cas missing (blocks map { _.name }) should be ('left)
+
+			blocks foreach { cas store _ }
+			cas.flush
+			uploaded should equal (blocks.size)
+			questions should equal (1)
+		}
+
+		"should report errors asking which blocks are missing" in {
+			server removeContext "/have"
+			client(batch = 16) missing (blocks map { _.name }) should be ('left)
+		}
+	}
+
+	private var cache:MemoryStore = _
+
+	private def client(batch:Int) = {
+		cache = new MemoryStore
+		val url = new URL("http://localhost:%d/upload" format server.getAddress.getPort)
+		new CASClient(_ => None, () => Some(url), Some("secret"), Some(cache),
+				flushBatchSize = batch) {
+			/** Count the blocks that have been flushed (and so unpinned). */
+			var flushed = 0
+			override def putAll(blocks:Seq[(Fingerprint,java.nio.ByteBuffer)]) = {
+				val results = super.putAll(blocks)
+				flushed += results count { _.isRight }
+				results
+			}
+		}
+	}
+
+	private val FileName = "filename=\"([^\"]+)\"".r
+
+	private val blocks = (1 to 16) map { i =>
+		Block.newBuilder.addContent(Array[Byte](i.toByte)).build
+	}
+}
+
+}
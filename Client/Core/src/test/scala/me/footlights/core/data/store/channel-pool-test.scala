@@ -0,0 +1,82 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.File
+
+import org.junit.runner.RunWith
+
+import org.scalatest.{BeforeAndAfter,FreeSpec}
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers
+
+
+package me.footlights.core.data.store {
+
+@RunWith(classOf[JUnitRunner])
+class ChannelPoolTest extends FreeSpec with BeforeAndAfter with ShouldMatchers {
+	private var pool:ChannelPool = _
+	before { pool = new ChannelPool(1) }
+	after { pool.close }
+
+	"A ChannelPool" - {
+		"should reuse a file's open channel" in {
+			val c = pool acquire files(0)
+			pool release (files(0), c)
+			pool acquire files(0) should be theSameInstanceAs (c)
+		}
+
+		"should close unused channels beyond its capacity" in {
+			val first = pool acquire files(0)
+			pool release (files(0), first)
+
+			val second = pool acquire files(1)
+			first.isOpen should equal (false)
+			second.isOpen should equal (true)
+			pool.size should equal (1)
+		}
+
+		"should not close channels which are in use, even when over capacity" in {
+			val first = pool acquire files(0)
+			val second = pool acquire files(1)
+
+			first.isOpen should equal (true)
+			second.isOpen should equal (true)
+			pool.size should equal (2)
+
+			pool release (files(0), first)
+			first.isOpen should equal (false)
+			second.isOpen should equal (true)
+			pool.size should equal (1)
+		}
+
+		"should close invalidated channels once their last user releases them" in {
+			val c = pool acquire files(0)
+			pool invalidate files(0)
+			c.isOpen should equal (true)
+
+			pool release (files(0), c)
+			c.isOpen should equal (false)
+			pool.size should equal (0)
+		}
+	}
+
+	private lazy val files = (1 to 2) map { i =>
+		val f = File.createTempFile("channel-pool", ".tmp")
+		f.deleteOnExit
+		f
+	}
+}
+
+}
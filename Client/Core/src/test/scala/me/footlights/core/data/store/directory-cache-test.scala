@@ -0,0 +1,124 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException
+
+import org.junit.runner.RunWith
+
+import org.scalatest.FreeSpec
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers
+
+import me.footlights.core.crypto.{Fingerprint,Link,SecretKey}
+import me.footlights.core.data.{Directory,Entry}
+
+
+package me.footlights.core.data.store {
+
+@RunWith(classOf[JUnitRunner])
+class DirectoryCacheTest extends FreeSpec with ShouldMatchers {
+	"A DirectoryCache" - {
+		"should only open a directory once" in {
+			val cache = new DirectoryCache(4)
+			var opened = 0
+			def open = { opened += 1; Right(dirs(0)) }
+
+			cache(links(0))(open) should equal (Right(dirs(0)))
+			cache(links(0))(open) should equal (Right(dirs(0)))
+
+			opened should equal (1)
+			cache.misses should equal (1)
+			cache.hits should equal (1)
+			cache.hitRate should equal (0.5)
+		}
+
+		"should not cache failures" in {
+			val cache = new DirectoryCache(4)
+			cache(links(0))(Left(new IOException("no such block"))) should be ('left)
+			cache(links(0))(Right(dirs(0))) should equal (Right(dirs(0)))
+			cache.size should equal (1)
+		}
+
+		"should evict the least-recently used directory" in {
+			val cache = new DirectoryCache(2)
+			cache(links(0))(Right(dirs(0)))
+			cache(links(1))(Right(dirs(1)))
+			cache(links(0))(fail("should be cached"))
+			cache(links(2))(Right(dirs(2)))
+
+			cache.size should equal (2)
+			cache(links(0))(fail("should be cached")) should equal (Right(dirs(0)))
+			cache(links(1))(Left(new IOException("evicted"))) should be ('left)
+		}
+
+		"should evict directories to keep the blocks that they hold under a limit" in {
+			big.residentBlocks should be > (2)
+
+			val cache = new DirectoryCache(16, big.residentBlocks + 1)
+			cache(links(0))(Right(dirs(0)))
+			cache(links(1))(Right(dirs(1)))
+			cache(links(2))(Right(big))
+
+			cache.blocks should equal (big.residentBlocks + 1)
+			cache(links(0))(Left(new IOException("evicted"))) should be ('left)
+			cache(links(1))(fail("should be cached")) should equal (Right(dirs(1)))
+			cache(links(2))(fail("should be cached")) should equal (Right(big))
+		}
+
+		"should not keep a directory which holds more blocks than the limit" in {
+			val cache = new DirectoryCache(16, big.residentBlocks - 1)
+			cache(links(0))(Right(big))
+			cache.size should equal (0)
+			cache.blocks should equal (0)
+		}
+
+		"should weigh directories again when they are found" in {
+			val cache = new DirectoryCache(16, 1000)
+			val d = bigEntries.foldLeft(Directory()) { _ + _ }
+			cache(links(0))(Right(d))
+			cache.blocks should equal (1)
+
+			// Encoding the directory keeps its blocks (so that later versions can reuse them).
+			d.encrypted
+			cache(links(0))(fail("should be cached"))
+			cache.blocks should equal (d.residentBlocks)
+			cache.blocks should be > (1L)
+		}
+	}
+
+	private val links = (0 to 2) map { i =>
+		Link.newBuilder
+			.setFingerprint(Fingerprint.newBuilder setContent "%d".format(i).getBytes build)
+			.setKey(SecretKey.newGenerator.generate)
+			.build
+	}
+
+	private val dirs = links.zipWithIndex map { case (link, i) =>
+		Directory() + new Entry("file %d" format i, false, link)
+	}
+
+	private val bigEntries = (1 to 500) map { i =>
+		new Entry("a file with a fairly long name, number %d" format i, false, links(i % links.size))
+	}
+
+	/** A directory that holds several blocks in memory (once it has been encoded). */
+	private lazy val big = {
+		val d = bigEntries.foldLeft(Directory()) { _ + _ }
+		d.encrypted
+		d
+	}
+}
+
+}
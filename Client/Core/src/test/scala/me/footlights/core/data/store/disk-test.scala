@@ -74,6 +74,53 @@ class DiskStoreTest extends FreeSpec with BeforeAndAfter with MockitoSugar with
 			store store file.toSave
 			store fetch file.link should equal (Some(file))
 		}
+
+		"should spread blocks across subdirectories" in {
+			store store b1
+			val f = store fileFor b1.name
+			f.exists should equal (true)
+			f.getParentFile.getParentFile.getParentFile should equal (store.fileFor(b2.name)
+				.getParentFile.getParentFile.getParentFile)
+
+			store.list map { _.name } should equal (List(b1.name))
+		}
+
+		"should move blocks out of the old, flat layout" in {
+			val dir = store.fileFor(b1.name).getParentFile.getParentFile.getParentFile
+			val flat = new java.io.File(dir, b1.name.encode)
+			val out = new java.io.FileOutputStream(flat)
+			out.getChannel write b1.getBytes
+			out.close
+
+			store = DiskStore.newBuilder.setDirectory(dir).setCache(None).build
+			flat.exists should equal (false)
+			Block parse { store retrieve b1.name get } should equal (b1)
+		}
+
+		"should limit how many files it keeps open" in {
+			store = DiskStore.newBuilder
+				.createTemporaryDirectory
+				.setCache(None)
+				.setMaxOpenFiles(4)
+				.build
+
+			val blocks = (1 to 16) map { i =>
+				Block.newBuilder.addContent(Array[Byte](i.toByte)).build
+			}
+			blocks foreach { store store _ }
+			blocks foreach { b => Block parse { store retrieve b.name get } should equal (b) }
+
+			store.openFiles should be <= (4)
+			store.close
+			store.openFiles should equal (0)
+		}
+
+		"should read blocks that are replaced while open" in {
+			store store b1
+			store retrieve b1.name should be ('defined)
+			store store b1
+			Block parse { store retrieve b1.name get } should equal (b1)
+		}
 	}
 
 	private val b1 = Block.newBuilder()
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.{BufferedReader,InputStreamReader,IOException}
+import java.net.{InetAddress,ServerSocket,Socket,URL}
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicInteger
+
+import org.junit.runner.RunWith
+
+import org.scalatest.{BeforeAndAfter,FreeSpec}
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers
+
+import me.footlights.core.crypto.Fingerprint
+import me.footlights.core.data.Block
+
+
+package me.footlights.core.data.store {
+
+@RunWith(classOf[JUnitRunner])
+class HttpTransportTest extends FreeSpec with BeforeAndAfter with ShouldMatchers {
+
+	private var server:StandInCAS = _
+	before { server = new StandInCAS(blocks map { b => (b.name.encode, b) } toMap) }
+	after { server.close }
+
+	"An HttpTransport" - {
+		"should reuse connections" in {
+			val transport = new HttpTransport
+			blocks foreach { b => body(transport get url(b)) should equal (b.getBytes) }
+
+			transport.connectionsOpened should equal (1)
+			server.connections.get should equal (1)
+		}
+
+		"should pipeline requests" in {
+			val transport = new HttpTransport(maxConnections = 2, pipelineDepth = 8)
+			val responses = transport getAll (blocks map url)
+
+			responses map body should equal (blocks map { _.getBytes })
+			transport.connectionsOpened should be <= (2L)
+			server.pipelined should equal (true)
+		}
+
+		"should resend requests that a closed connection didn't answer" in {
+			server.closeAfter = 3
+			val transport = new HttpTransport(maxConnections = 1, pipelineDepth = 16)
+			val responses = transport getAll (blocks map url)
+
+			responses map body should equal (blocks map { _.getBytes })
+			transport.connectionsOpened should equal (blocks.size / 3 + 1)
+		}
+
+		"should read chunked responses" in {
+			server.chunked = true
+			val transport = new HttpTransport
+			body(transport get url(blocks(0))) should equal (blocks(0).getBytes)
+			body(transport get url(blocks(1))) should equal (blocks(1).getBytes)
+			transport.connectionsOpened should equal (1)
+		}
+
+		"should report errors" in {
+			val transport = new HttpTransport
+			transport get new URL(server.url + "/nothing") match {
+				case Right(response) => response.status should equal (404)
+				case Left(e) => fail(e.toString)
+			}
+
+			new HttpTransport get new URL("http://localhost:1/") should be ('left)
+		}
+
+		"should report malformed responses as I/O errors" in {
+			server.status = Some("2x0 OK")
+			new HttpTransport get url(blocks(0)) match {
+				case Left(e:IOException) =>
+				case other => fail("Expected IOException, got " + other)
+			}
+
+			server.status = None
+			server.contentLength = Some("lots")
+			new HttpTransport get url(blocks(0)) match {
+				case Left(e:IOException) =>
+				case other => fail("Expected IOException, got " + other)
+			}
+		}
+
+		"should follow redirects" in {
+			val (first, second) = (blocks(0).name.encode, blocks(1).name.encode)
+			server.redirects = Map("a" -> ("/" + first), "b" -> (server.url + "/a"),
+				"loop" -> "/loop", "elsewhere" -> "ftp://example.com/")
+
+			val transport = new HttpTransport(maxRedirects = 3)
+			val responses = transport getAll List(
+				new URL(server.url + "/a"), new URL(server.url + "/b"), url(blocks(1)))
+			responses map body should equal (List(blocks(0), blocks(0), blocks(1)) map {
+				_.getBytes })
+
+			transport get new URL(server.url + "/loop") should be ('left)
+			transport get new URL(server.url + "/elsewhere") should be ('left)
+		}
+
+		"should use the system's proxy" in {
+			val proxy = new java.net.Proxy(java.net.Proxy.Type.HTTP,
+				new java.net.InetSocketAddress("localhost", new URL(server.url).getPort))
+
+			val original = java.net.ProxySelector.getDefault
+			java.net.ProxySelector setDefault new java.net.ProxySelector {
+				override def select(uri:java.net.URI) =
+					java.util.Collections singletonList {
+						if (uri.getHost == "cas.invalid") proxy else java.net.Proxy.NO_PROXY
+					}
+
+				override def connectFailed(uri:java.net.URI, address:java.net.SocketAddress,
+					e:IOException) = {}
+			}
+
+			try {
+				val transport = new HttpTransport
+				val name = blocks(0).name.encode
+				body(transport get new URL("http://cas.invalid/" + name)) should equal (
+					blocks(0).getBytes)
+				server.proxied.get should equal (1)
+
+				body(transport get url(blocks(1))) should equal (blocks(1).getBytes)
+				server.proxied.get should equal (1)
+			} finally { java.net.ProxySelector setDefault original }
+		}
+
+		"should match certificate names to hosts" in {
+			HttpTransport.nameMatches("cas.footlights.me", "CAS.footlights.me") should equal (true)
+			HttpTransport.nameMatches("cas.footlights.me", "evil.example.com") should equal (false)
+
+			HttpTransport.nameMatches("*.footlights.me", "cas.footlights.me") should equal (true)
+			HttpTransport.nameMatches("*.footlights.me", "footlights.me") should equal (false)
+			HttpTransport.nameMatches("*.footlights.me", "a.cas.footlights.me") should equal (false)
+			HttpTransport.nameMatches("*.footlights.me", "evilfootlights.me") should equal (false)
+
+			HttpTransport.commonNames("CN=cas.footlights.me,O=Footlights\\, Inc.,C=GB") should equal (
+				List("cas.footlights.me"))
+			HttpTransport.commonNames("O=cn=evil.com,C=GB") should equal (Nil)
+		}
+	}
+
+	"A CAS client" - {
+		"should download blocks over pooled connections" in {
+			val transport = new HttpTransport(maxConnections = 2)
+			val cas = new CASClient(
+				name => Some(new URL(server.url + "/" + name.encode)), () => None, None, None,
+				transport = transport)
+
+			cas retrieveAll (blocks map { _.name }) map { _ map Block.parse } should equal (
+				blocks map { Some(_) })
+
+			cas retrieve blocks(0).name map Block.parse should equal (Some(blocks(0)))
+			cas retrieve Block.newBuilder.build.name should equal (None)
+			transport.connectionsOpened should be <= (2L)
+		}
+
+		"should treat malformed responses as missing blocks" in {
+			server.contentLength = Some("lots")
+			val cas = new CASClient(
+				name => Some(new URL(server.url + "/" + name.encode)), () => None, None, None)
+
+			cas retrieve blocks(0).name should equal (None)
+		}
+	}
+
+	private def url(b:Block) = new URL(server.url + "/" + b.name.encode)
+	private def body(r:Either[Exception,HttpResponse]) = r.right.get.body
+
+	private val blocks = (1 to 16) map { i =>
+		Block.newBuilder.addContent(Array[Byte](i.toByte)).build
+	}
+}
+
+
+/** A local stand-in for the CAS download server, which serves blocks over HTTP/1.1. */
+class StandInCAS(blocks:Map[String,Block]) {
+	def url = "http://localhost:%d" format socket.getLocalPort
+	def close = socket.close
+
+	/** Hang up on clients after this many responses. */
+	@volatile var closeAfter = Int.MaxValue
+
+	/** Send responses with chunked transfer encoding. */
+	@volatile var chunked = false
+
+	/** Send this status (code and reason) instead of the real one. */
+	@volatile var status:Option[String] = None
+
+	/** Send this Content-Length instead of the real one. */
+	@volatile var contentLength:Option[String] = None
+
+	/** Redirect requests for these names to these locations. */
+	@volatile var redirects = Map[String,String]()
+
+	/** How many requests have come through us as a proxy (i.e. for absolute URLs). */
+	val proxied = new AtomicInteger
+
+	val connections = new AtomicInteger
+
+	/** Whether a client has sent a request before we responded to the previous one. */
+	@volatile var pipelined = false
+
+	private val socket = new ServerSocket(0, 50, InetAddress getByName "localhost")
+
+	private val acceptor = new Thread {
+		override def run = try {
+			while (true) {
+				val client = socket.accept
+				connections.incrementAndGet
+				new Thread { override def run = serve(client) } start
+			}
+		} catch { case e:IOException => }
+	}
+	acceptor setDaemon true
+	acceptor.start
+
+	private def serve(client:Socket) = {
+		val in = new BufferedReader(new InputStreamReader(client.getInputStream, "iso-8859-1"))
+		val out = client.getOutputStream
+
+		try {
+			var served = 0
+			while (served < closeAfter) {
+				val request = in.readLine
+				if (request == null) throw new IOException("Client closed connection")
+				while (!in.readLine.isEmpty) {}
+
+				// Give a pipelining client time to send more requests before we respond.
+				if (served == 0) Thread sleep 20
+				if (in.ready) pipelined = true
+
+				respond(request, out)
+				served += 1
+			}
+		} catch {
+			case e:IOException =>
+		} finally {
+			// Let the client read everything we've sent before we close the connection.
+			try {
+				client.shutdownOutput
+				while (in.read >= 0) {}
+			} catch { case e:IOException => }
+			client.close
+		}
+	}
+
+	private def respond(request:String, out:java.io.OutputStream) = {
+		val target = request split " " apply 1
+		val path =
+			if (target startsWith "/") target
+			else { proxied.incrementAndGet; new URL(target).getPath }
+
+		val name = java.net.URLDecoder.decode(path drop 1, "utf-8")
+		val (code, body) = blocks get name match {
+			case _ if redirects contains name => ("307 Temporary Redirect", Array[Byte]())
+			case Some(b) =>
+				val bytes = new Array[Byte](b.getBytes.remaining)
+				b.getBytes get bytes
+				("200 OK", bytes)
+
+			case None => ("404 Not Found", "no such block".getBytes)
+		}
+
+		val headers =
+			"HTTP/1.1 %s\r\nContent-Type: application/octet-stream\r\n" format (status getOrElse code)
+		val location = redirects get name map { "Location: %s\r\n" format _ } getOrElse ""
+
+		if (chunked) {
+			out write (headers + location + "Transfer-Encoding: chunked\r\n\r\n").getBytes(
+				"iso-8859-1")
+			body grouped 7 foreach { chunk =>
+				out write "%x\r\n".format(chunk.length).getBytes("iso-8859-1")
+				out write chunk
+				out write "\r\n".getBytes("iso-8859-1")
+			}
+			out write "0\r\n\r\n".getBytes("iso-8859-1")
+		} else {
+			val length = contentLength getOrElse body.length.toString
+			out write (headers + location + "Content-Length: %s\r\n\r\n".format(length)).getBytes
+			out write body
+		}
+		out.flush
+	}
+}
+
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException
+import java.nio.ByteBuffer
+
+import scala.collection.mutable
+
+import org.junit.runner.RunWith
+
+import org.scalatest.{BeforeAndAfter,FreeSpec}
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers
+
+import me.footlights.core.crypto.Fingerprint
+import me.footlights.core.data.Block
+
+
+package me.footlights.core.data.store {
+
+@RunWith(classOf[JUnitRunner])
+class JournalTest extends FreeSpec with BeforeAndAfter with ShouldMatchers {
+	"A Journal" - {
+		"should only record each block once" in {
+			val journal = new Journal
+			journal add b1.name
+			journal add b1.name
+			journal add b2.name
+
+			journal.size should equal (2)
+			val due = journal.due
+			due map { _.name } should equal (List(b1.name, b2.name))
+
+			due foreach journal.done
+			journal.isEmpty should equal (true)
+		}
+
+		"should back off before retrying failed blocks" in {
+			val journal = new Journal(initialBackoff_ms = 50)
+			journal add b1.name
+			journal.due foreach journal.failed
+
+			journal.size should equal (1)
+			journal.due should equal (Nil)
+
+			val start = System.currentTimeMillis
+			journal.await
+			(System.currentTimeMillis - start) should be >= (40L)
+
+			val retry = journal.due
+			retry map { _.name } should equal (List(b1.name))
+			retry.head.failures should equal (1)
+		}
+
+		"should wake up a waiting flusher" in {
+			val journal = new Journal
+			new Thread { override def run = { Thread sleep 20; journal add b1.name } } start
+
+			journal.await
+			journal.due map { _.name } should equal (List(b1.name))
+		}
+	}
+
+	"A Store" - {
+		"should flush blocks with parallel workers" in {
+			val store = new FlakyStore(failures = 0, threads = 4)
+			val blocks = (1 to 32) map block
+			blocks foreach { store store _ }
+
+			store.flush
+			store.stored should equal (blocks.map { _.name } toSet)
+			store.maxConcurrent should be > (1)
+		}
+
+		"should retry blocks that fail to flush" in {
+			val store = new FlakyStore(failures = 1, threads = 2)
+			store store b1
+			store store b2
+
+			store.flush
+			store.stored should equal (Set())
+
+			// Blocks aren't retried until their backoff (500 ms at first) has passed.
+			store.flush
+			store.stored should equal (Set())
+
+			Thread sleep 600
+			store.flush
+			store.stored should equal (Set(b1.name, b2.name))
+		}
+
+		for (threads <- List(1, 2))
+			("should retry blocks whose flush throws unexpectedly (%d threads)" format threads) in {
+				val store = new FlakyStore(failures = 1, threads = threads,
+					error = new IllegalStateException(_))
+				store store b1
+				store store b2
+
+				store.flush
+				store.stored should equal (Set())
+
+				Thread sleep 600
+				store.flush
+				store.stored should equal (Set(b1.name, b2.name))
+				store.local.pinned should equal (Set())
+			}
+
+		"should drain every block, retrying failures straight away" in {
+			val store = new FlakyStore(failures = 2, threads = 2)
+			val blocks = (1 to 8) map block
+			blocks foreach { store store _ }
+
+			store.drain should equal (true)
+			store.stored should equal (blocks.map { _.name } toSet)
+			store.local.pinned should equal (Set())
+		}
+
+		"should stop draining blocks that keep failing" in {
+			val store = new FlakyStore(failures = 10, threads = 1)
+			store store b1
+
+			store.drain should equal (false)
+			store.attemptsAt(b1.name) should equal (store.DrainAttempts)
+			store.local.pinned should equal (Set(b1.name))
+		}
+
+		"should wait for a background flush before draining" in {
+			val store = new FlakyStore(failures = 0, threads = 1)
+			val blocks = (1 to 8) map block
+			blocks foreach { store store _ }
+
+			val background = new Thread { override def run = store.flush }
+			background.start
+			Thread sleep 5
+
+			store.drain should equal (true)
+			store.stored should equal (blocks.map { _.name } toSet)
+			background.join
+		}
+
+		"should unpin blocks that it gives up on" in {
+			val store = new FlakyStore(failures = 0, threads = 1)
+			store store b1
+			store.local.pinned should equal (Set(b1.name))
+
+			// The cache has lost the block, so it can never be flushed.
+			store.local.lost = true
+			store.flush
+			store.stored should equal (Set())
+			store.local.pinned should equal (Set())
+		}
+	}
+
+	private def block(i:Int) = Block.newBuilder.addContent(Array[Byte](i.toByte)).build
+	private val b1 = block(1)
+	private val b2 = block(2)
+}
+
+/** A store whose puts are slow and fail the first few times for each block. */
+class FlakyStore(failures:Int, threads:Int, error:String => Exception = new IOException(_),
+		val local:PinTrackingStore = new PinTrackingStore)
+	extends Store(Some(local)) {
+	override def flushThreads = threads
+
+	override def put(name:Fingerprint, bytes:ByteBuffer) = {
+		val attempt = synchronized {
+			attempts(name) = attempts.getOrElse(name, 0) + 1
+			running += 1
+			maxConcurrent = math.max(maxConcurrent, running)
+			attempts(name)
+		}
+
+		try {
+			Thread sleep 10
+			if (attempt <= failures) throw error("failing " + name)
+			synchronized { stored += name }
+		} finally { synchronized { running -= 1 } }
+	}
+
+	override def get(name:Fingerprint) = None
+
+	def attemptsAt(name:Fingerprint) = synchronized { attempts.getOrElse(name, 0) }
+
+	var stored = Set[Fingerprint]()
+	var maxConcurrent = 0
+
+	private var running = 0
+	private val attempts = mutable.Map[Fingerprint,Int]()
+}
+
+/** A cache that records which blocks are pinned (and can be made to lose its blocks). */
+class PinTrackingStore extends MemoryStore {
+	override def pin(name:Fingerprint) = synchronized { super.pin(name); pinned += name }
+	override def unpin(name:Fingerprint) = synchronized { super.unpin(name); pinned -= name }
+	override def get(name:Fingerprint) = if (lost) None else super.get(name)
+
+	@volatile var lost = false
+	var pinned = Set[Fingerprint]()
+}
+
+}
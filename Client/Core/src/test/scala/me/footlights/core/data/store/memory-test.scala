@@ -32,6 +32,7 @@ import org.scalatest.junit.JUnitRunner
 import org.scalatest.matchers.ShouldMatchers
 import org.scalatest.mock.MockitoSugar
 
+import me.footlights.core
 import me.footlights.core.data.Block
 import me.footlights.core.data
 
@@ -55,8 +56,67 @@ class MemoryStoreTest extends FreeSpec with BeforeAndAfter with MockitoSugar wit
 			Block parse { store retrieve block.name get } should equal(block)
 		}
 
-		"should use LRU or something" in (pending)
+		"should evict least-recently used blocks beyond its capacity" in {
+			store = new MemoryStore(3 * BlockBytes, new LRUPolicy)
+			val blocks = (1 to 4) map block
+
+			blocks take 3 foreach { store store _ }
+			store retrieve blocks(0).name should be ('defined)     // now b1 is more recent than b2
+
+			store store blocks(3)
+			store retrieve blocks(1).name should equal (None)
+			List(0, 2, 3) foreach { i => store retrieve blocks(i).name should be ('defined) }
+
+			store.evictions should equal (1)
+			store.residentBytes should equal (3 * BlockBytes)
+			store.hits should equal (4)
+			store.misses should equal (1)
+			store.hitRate should equal (0.8)
+		}
+
+		"should keep frequently-used blocks through a scan with ARC" in {
+			store = new MemoryStore(4 * BlockBytes, new ARCPolicy(4 * BlockBytes))
+			val hot = (1 to 2) map block
+			hot foreach { store store _ }
+			for (i <- 1 to 3; b <- hot) store retrieve b.name
+
+			// A long scan of blocks that are only used once shouldn't push out the hot set.
+			(100 to 120) map block foreach { b => store store b; store retrieve b.name }
+			hot foreach { b => store retrieve b.name should be ('defined) }
+			store.residentBytes should be <= (4 * BlockBytes)
+		}
+
+		"should not evict pinned blocks" in {
+			store = new MemoryStore(2 * BlockBytes, new LRUPolicy)
+			val blocks = (1 to 4) map block
+
+			store pin blocks(0).name
+			blocks foreach { store store _ }
+			store retrieve blocks(0).name should be ('defined)
+			store.residentBytes should equal (2 * BlockBytes)
+
+			store unpin blocks(0).name
+			(5 to 6) map block foreach { store store _ }
+			store retrieve blocks(0).name should equal (None)
+		}
+
+		"should be configurable with Preferences" in {
+			val prefs = core.Preferences(Some(core.PreferenceStorageEngine wrap Map(
+				MemoryStore.CapacityKey -> "1024", MemoryStore.PolicyKey -> "ARC")))
+
+			store = MemoryStore(prefs)
+			store.capacity should equal (1024)
+			store.toString should include ("ARC")
+		}
 	}
+
+	/** A distinct block of {@link BlockBytes} bytes. */
+	private def block(i:Int):Block = Block.newBuilder
+		.addContent(Array[Byte](i.toByte, (i >> 8).toByte))
+		.setDesiredSize(BlockBytes.toInt)
+		.build
+
+	private val BlockBytes = 64L
 }
 
 }
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException
+import java.nio.ByteBuffer
+
+import scala.collection.JavaConversions._
+
+import org.junit.runner.RunWith
+
+import org.scalatest.{BeforeAndAfter,FreeSpec}
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers
+
+import me.footlights.core.data.Block
+import me.footlights.core.data
+
+
+package me.footlights.core.data.store {
+
+@RunWith(classOf[JUnitRunner])
+class OffHeapStoreTest extends FreeSpec with BeforeAndAfter with ShouldMatchers {
+
+	private var store:OffHeapStore = _
+	before {
+		store = OffHeapStore.newBuilder
+			.setCapacity(4 * SlabSize)
+			.setSlabSize(SlabSize)
+			.setSlotSizes(64, SlabSize)
+			.build
+	}
+
+	"An OffHeapStore" - {
+		"should return the same bytes that get stored" in {
+			val b = block(1, 64)
+			store store b
+
+			val bytes = store retrieve b.name get;
+			bytes.isReadOnly should equal (true)
+			Block parse bytes should equal (b)
+
+			store.list map { _.name } should equal (List(b.name))
+			store.residentBytes should equal (64)
+		}
+
+		"should evict least-recently used blocks of the same size" in {
+			// Each slab holds two 512 B slots; after four slabs, we have to evict.
+			val blocks = (1 to 8) map { block(_, SlabSize / 2) }
+			blocks foreach { store store _ }
+			store retrieve blocks(0).name should be ('defined)
+
+			store store block(9, SlabSize / 2)
+			store retrieve blocks(1).name should equal (None)
+			store retrieve blocks(0).name should be ('defined)
+			store.evictions should equal (1)
+		}
+
+		"should not evict pinned blocks" in {
+			val blocks = (1 to 8) map { block(_, SlabSize) }
+			blocks take 4 foreach { b => store pin b.name; store store b }
+
+			evaluating { store store blocks(4) } should produce [IOException]
+
+			store unpin blocks(0).name
+			store store blocks(4)
+			store retrieve blocks(0).name should equal (None)
+		}
+
+		"should return bytes that outlive their block's eviction" in {
+			val blocks = (1 to 8) map { block(_, SlabSize / 2) }
+			blocks foreach { store store _ }
+			val bytes = store retrieve blocks(0).name get
+
+			// Evict everything, reusing every slot.
+			(9 to 16) foreach { i => store store block(i, SlabSize / 2) }
+			store retrieve blocks(0).name should equal (None)
+
+			Block parse bytes should equal (blocks(0))
+		}
+
+		"should return consistent bytes while blocks are evicted concurrently" in {
+			val blocks = (1 to 8) map { block(_, SlabSize / 2) }
+			blocks foreach { store store _ }
+
+			// Keep evicting and re-storing blocks of the same size class...
+			@volatile var running = true
+			val evictor = new Thread {
+				override def run = {
+					var i = 0
+					while (running) { store store blocks(i % blocks.size); i += 1 }
+				}
+			}
+			evictor.start
+
+			// ... while reading them, holding each one for a while before parsing it.
+			try {
+				for (i <- 1 to 2000; b <- blocks; bytes <- store retrieve b.name) {
+					Thread.`yield`
+					Block parse bytes should equal (b)
+				}
+			} finally {
+				running = false
+				evictor.join
+			}
+		}
+
+		"should lend blocks without copying them" in {
+			val b = block(1, 64)
+			store store b
+
+			val loan = store borrow b.name get;
+			loan.bytes.isDirect should equal (true)
+			loan.bytes.isReadOnly should equal (true)
+			Block parse loan.bytes should equal (b)
+			loan.close
+
+			store borrow block(2, 64).name should equal (None)
+		}
+
+		"should not reuse a lent slot until the loan is closed" in {
+			val blocks = (1 to 4) map { block(_, SlabSize) }
+			blocks foreach { store store _ }
+
+			// The oldest block can't be evicted while it's on loan...
+			val loan = store borrow blocks(0).name get;
+			store retrieve blocks(1).name should be ('defined)
+			store retrieve blocks(2).name should be ('defined)
+			store retrieve blocks(3).name should be ('defined)
+
+			store store block(5, SlabSize)
+			store retrieve blocks(0).name should be ('defined)
+			store retrieve blocks(1).name should equal (None)
+
+			(6 to 8) foreach { i => store store block(i, SlabSize) }
+			Block parse loan.bytes should equal (blocks(0))
+			store.list map { _.name } should contain (blocks(0).name)
+
+			// ... but it can once the loan is closed.
+			loan.close
+			loan.close
+			store store block(9, SlabSize)
+			store retrieve blocks(0).name should equal (None)
+		}
+
+		"should keep the cached copy if it can't make room for a new one" in {
+			val blocks = (1 to 4) map { block(_, SlabSize) }
+			blocks foreach { b => store pin b.name; store store b }
+
+			// A (corrupt) copy of a different size needs a slot that can't be found.
+			evaluating {
+				store.put(blocks(0).name, ByteBuffer allocate (SlabSize / 2))
+			} should produce [IOException]
+
+			Block parse { store retrieve blocks(0).name get } should equal (blocks(0))
+			store.residentBytes should equal (4 * SlabSize)
+		}
+
+		"should lend consistent bytes while blocks are evicted concurrently" in {
+			val blocks = (1 to 8) map { block(_, SlabSize / 2) }
+			blocks foreach { store store _ }
+
+			@volatile var running = true
+			val evictor = new Thread {
+				override def run = {
+					var i = 0
+					while (running) {
+						try { store store block(100 + (i % 16), SlabSize / 2) }
+						catch { case e:IOException => }  // everything else is lent out
+						i += 1
+					}
+				}
+			}
+			evictor.start
+
+			try {
+				for (i <- 1 to 500; b <- blocks; loan <- store borrow b.name) {
+					try {
+						Thread.`yield`
+						Block parse loan.bytes should equal (b)
+					} finally loan.close
+				}
+			} finally {
+				running = false
+				evictor.join
+			}
+		}
+
+		"should refuse blocks larger than its largest slot" in {
+			evaluating { store store block(1, 2 * SlabSize) } should produce [IOException]
+		}
+
+		"should work in a memory-mapped file" in {
+			val f = java.io.File.createTempFile("arena", ".tmp")
+			f.deleteOnExit
+
+			store = OffHeapStore.newBuilder
+				.setCapacity(SlabSize)
+				.setSlabSize(SlabSize)
+				.setSlotSizes(64, SlabSize)
+				.setMappedFile(f)
+				.build
+
+			val b = block(1, 256)
+			store store b
+			Block parse { store retrieve b.name get } should equal (b)
+			f.length should equal (SlabSize)
+		}
+
+		"should work as a cache for another store" in {
+			val disk = DiskStore.newBuilder
+				.createTemporaryDirectory
+				.setCache(Some(store))
+				.build
+
+			val file = data.File.newBuilder setContent ByteBuffer.allocate(10000) freeze;
+			disk store file.toSave
+			disk.flush
+
+			disk fetch file.link should equal (Some(file))
+			store.hits should be > (0L)
+		}
+	}
+
+	/** A block of a given (power-of-two) size. */
+	private def block(i:Int, size:Int):Block =
+		Block.newBuilder
+			.addContent(Array[Byte](i.toByte, (i >> 8).toByte))
+			.setDesiredSize(size)
+			.build
+
+	private val SlabSize = 1024
+}
+
+}
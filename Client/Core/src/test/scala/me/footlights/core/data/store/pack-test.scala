@@ -0,0 +1,211 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.{File,FileOutputStream}
+import java.nio.ByteBuffer
+
+import scala.collection.JavaConversions._
+
+import org.junit.runner.RunWith
+
+import org.scalatest.{BeforeAndAfter,FreeSpec}
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers
+
+import me.footlights.core.data.Block
+import me.footlights.core.data
+
+
+package me.footlights.core.data.store {
+
+@RunWith(classOf[JUnitRunner])
+class PackStoreTest extends FreeSpec with BeforeAndAfter with ShouldMatchers {
+
+	private var dir:File = _
+	private var store:PackStore = _
+	before {
+		dir = File.createTempFile("packs", "dir")
+		dir.delete
+		store = open
+	}
+
+	after { store.close }
+
+	"A PackStore" - {
+		"should return the blocks that get stored" in {
+			blocks foreach { store store _ }
+			blocks foreach { b => Block parse { store retrieve b.name get } should equal (b) }
+
+			names should equal (blocks.map { _.name } toSet)
+			segments.size should be > (1)
+		}
+
+		"should not write the same block twice" in {
+			store store blocks(0)
+			val length = segments.head.length
+			store store blocks(0)
+
+			segments.head.length should equal (length)
+		}
+
+		"should find its blocks again after being reopened" in {
+			blocks foreach { store store _ }
+			reopen
+
+			blocks foreach { b => Block parse { store retrieve b.name get } should equal (b) }
+		}
+
+		"should recover blocks that are missing from the index" in {
+			blocks foreach { store store _ }
+			store.close
+			new File(dir, "index").delete
+			store = open
+
+			store.list.size should equal (blocks.size)
+			blocks foreach { b => Block parse { store retrieve b.name get } should equal (b) }
+		}
+
+		"should discard a partially-written record" in {
+			blocks foreach { store store _ }
+			store.close
+
+			val last = segments.last
+			val length = last.length
+			val out = new FileOutputStream(last, true)
+			out write Array[Byte](0xF0.toByte, 0x07, 0xB1.toByte, 0x0C, 0, 10, 1, 2)
+			out.close
+
+			store = open
+			last.length should equal (length)
+			store.list.size should equal (blocks.size)
+		}
+
+		"should share fsyncs between concurrent puts" in {
+			store.close
+			store = PackStore.newBuilder
+				.setDirectory(dir)
+				.setCache(None)
+				.setCommitDelay(5)
+				.build
+
+			val threads = blocks map { b => new Thread { override def run = store store b } }
+			threads foreach { _.start }
+			threads foreach { _.join }
+
+			store.list.size should equal (blocks.size)
+			store.commits should be < (blocks.size.toLong)
+		}
+
+		"should reclaim space from removed blocks" in {
+			blocks foreach { store store _ }
+			val (removed, kept) = blocks splitAt (blocks.size - 2)
+			removed foreach { store remove _.name }
+
+			val before = segments.map { _.length } sum;
+			store.compact should be > (0L)
+			segments.map { _.length }.sum should be < (before)
+
+			removed foreach { b => store retrieve b.name should equal (None) }
+			kept foreach { b => Block parse { store retrieve b.name get } should equal (b) }
+
+			reopen
+			names should equal (kept.map { _.name } toSet)
+			kept foreach { b => Block parse { store retrieve b.name get } should equal (b) }
+		}
+
+		"should not resurrect removed blocks after compacting and reopening" in {
+			blocks foreach { store store _ }
+
+			// Empty the first segment (so it gets compacted), but also remove blocks from the
+			// end of the active segment and the one before it, which won't be compacted.
+			val removed = (blocks take 3) ++ (blocks takeRight 2)
+			val kept = blocks filterNot removed.contains
+			removed foreach { store remove _.name }
+			store.compact should be > (0L)
+
+			reopen
+			names should equal (kept.map { _.name } toSet)
+			removed foreach { b => store retrieve b.name should equal (None) }
+			kept foreach { b => Block parse { store retrieve b.name get } should equal (b) }
+		}
+
+		"should truncate the index before a corrupt record, not after it" in {
+			val (first, second) = (blocks(0), blocks(1))
+			store store first
+			store store second
+			store.close
+
+			// Corrupt the second block's name (but not the record's framing).
+			val index = new File(dir, "index")
+			val bytes = contents(index)
+			val at = bytes indexOfSlice (second.name.encode getBytes "iso-8859-1")
+			at should be > (0)
+			bytes(at + 2) = 'x'
+			val corrupt = bytes.slice(at, at + 10)
+			val out = new FileOutputStream(index)
+			out write bytes
+			out.close
+
+			// The corrupt record is dropped (and the block recovered from its segment)...
+			store = open
+			names should equal (Set(first.name, second.name))
+			contents(index) indexOfSlice corrupt should equal (-1)
+
+			// ... so a removal recorded after it isn't lost behind it.
+			store remove first.name
+			reopen
+			names should equal (Set(second.name))
+		}
+
+		"should work as a cached store" in {
+			store.close
+			store = PackStore.newBuilder
+				.setDirectory(dir)
+				.setCache(Some(new MemoryStore))
+				.build
+
+			val file = data.File.newBuilder setContent ByteBuffer.allocate(100000) freeze;
+			store store file.toSave
+			store.flush
+
+			names should equal (file.toSave.map { _.name } toSet)
+			reopen
+			store fetch file.link should equal (Some(file))
+		}
+	}
+
+	private def open =
+		PackStore.newBuilder
+			.setDirectory(dir)
+			.setCache(None)
+			.setSegmentSize(SegmentSize)
+			.build
+
+	private def reopen = { store.close; store = open }
+	private def names = store.list.map { _.name }.toSet
+	private def contents(f:File) = io.Source.fromFile(f, "iso-8859-1").map { _.toByte }.toArray
+
+	private def segments = dir.listFiles filter { _.getName endsWith ".pack" } sortBy { _.getName }
+
+	private val SegmentSize = 4096
+	private val blocks = (1 to 16) map { i =>
+		Block.newBuilder
+			.addContent(Array[Byte](i.toByte))
+			.setDesiredSize(1024)
+			.build
+	}
+}
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.junit.runner.RunWith
+
+import org.scalatest.FreeSpec
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers
+
+import me.footlights.core.crypto.{Fingerprint,Link,SecretKey}
+
+
+package me.footlights.core.data {
+
+@RunWith(classOf[JUnitRunner])
+class TreeDirectoryTest extends FreeSpec with ShouldMatchers {
+	"A TreeDirectory should be able to " - {
+		"store and replace entries." in {
+			val d = TreeDirectory() + entry("foo") + entry("bar")
+			d("foo") should equal (Some(entry("foo")))
+			d("bar") should equal (Some(entry("bar")))
+			d("baz") should equal (None)
+
+			val replaced = d + entry("foo", "other")
+			replaced("foo") should equal (Some(entry("foo", "other")))
+			replaced.entries.size should equal (2)
+		}
+
+		"split into several levels of blocks." in {
+			big.depth should be > (0)
+			big.encrypted.size should be > (1)
+
+			big.entries map { _.name } should equal (names.sorted)
+			names foreach { name => big(name) should equal (Some(entry(name))) }
+		}
+
+		"remove entries." in {
+			val (gone, kept) = names partition { _.hashCode % 2 == 0 }
+			val smaller = (big /: gone) { _ - _ }
+
+			gone foreach { name => smaller(name) should equal (None) }
+			kept foreach { name => smaller(name) should equal (Some(entry(name))) }
+			smaller.entries.size should equal (kept.size)
+
+			val empty = (smaller /: kept) { _ - _ }
+			empty.entries should be ('empty)
+			empty.depth should equal (0)
+			empty should equal (TreeDirectory())
+		}
+
+		"be opened from its root block." in {
+			val (opened, _) = open(big)
+
+			opened.right.get should equal (big)
+			opened.right.get.link should equal (big.link)
+		}
+
+		"look up entries without fetching every block." in {
+			val (opened, fetched) = open(big)
+			fetched.length should equal (1)
+
+			val d = opened.right.get
+			d(names(42)) should equal (Some(entry(names(42))))
+			fetched.length should equal (big.depth + 1)
+			fetched.length should be < (big.encrypted.size)
+		}
+
+		"only count the nodes that it has fetched as resident." in {
+			val (opened, fetched) = open(big)
+			val d = opened.right.get
+			d.residentBlocks should equal (1)
+
+			d(names(42))
+			d.residentBlocks should equal (big.depth + 1)
+
+			d.entries
+			d.residentBlocks should equal (big.encrypted.size)
+		}
+
+		"describe itself without fetching every block." in {
+			val (opened, fetched) = open(big)
+			opened.right.get.toString should include (big.link.fingerprint.toString)
+			fetched.length should equal (big.depth + 1)
+			fetched.length should be < (big.encrypted.size)
+		}
+
+		"write only the blocks on the path to a new entry." in {
+			val (opened, fetched) = open(big)
+			val bigger = opened.right.get + entry("new")
+
+			bigger("new") should equal (Some(entry("new")))
+			bigger.encrypted.size should be <= (2 * (big.depth + 1))
+			fetched.length should equal (big.depth + 1)
+		}
+
+		"not rewrite blocks that have been stored." in {
+			val d = TreeDirectory() ++ big
+			val all = d.encrypted.size
+			d.markStored()
+
+			val bigger = d + entry("new")
+			bigger.encrypted.size should be <= (2 * (d.depth + 1))
+			bigger.encrypted.size should be < (all)
+		}
+	}
+
+	"Directory.open should be able to read flat directories." in {
+		val flat = FlatDirectory() ++ big
+		val blocks = flat.encrypted map { b => (b.link.fingerprint, b) } toMap
+		val opened = Directory open (flat.link, { l:Link => blocks get l.fingerprint })
+
+		opened should equal (Right(big))
+		opened.right.get.isInstanceOf[FlatDirectory] should be (true)
+	}
+
+
+	/** Open a directory, recording the blocks that we fetch. */
+	private def open(d:Directory) = {
+		val blocks = d.encrypted map { b => (b.link.fingerprint, b) } toMap
+		val fetched = collection.mutable.ListBuffer[Link]()
+		val opened = Directory open (d.link, { l:Link =>
+			fetched += l
+			blocks get l.fingerprint
+		})
+
+		(opened, fetched)
+	}
+
+	private def entry(name:String, content:String = "") = {
+		val link = Link.newBuilder
+			.setFingerprint(Fingerprint.newBuilder setContent (name + content).getBytes build)
+			.setKey(secret)
+			.build
+
+		new Entry(name, false, link)
+	}
+
+	private lazy val names = (1 to 2000) map { "entry %d" format _ } toList
+	private lazy val big = (TreeDirectory() /: names) { (d, name) => d + entry(name) }
+	private lazy val secret = SecretKey.newGenerator.generate
+}
+
+}
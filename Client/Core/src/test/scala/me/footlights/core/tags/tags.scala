@@ -19,3 +19,34 @@ import org.scalatest.Tag
 
 object InternetAccess extends Tag("me.footlights.tags.InternetAccess")
 object LocalCAS extends Tag("me.footlights.tags.LocalCAS")
+object Benchmark extends Tag("me.footlights.tags.Benchmark")
+
+
+/**
+ * Timing and reporting for tests tagged as a {@link Benchmark}. Benchmarks are not run by
+ * default; name them explicitly, e.g. "mvn -Dtest=FreezeBenchmark test".
+ */
+trait Benchmarking {
+	/** How many timed runs {@link #bestOf} chooses from. */
+	protected val Trials = 3
+
+	/** Wall-clock time (in ns) of a single run. */
+	protected def time(run: => Any) = {
+		val start = System.nanoTime
+		run
+		System.nanoTime - start
+	}
+
+	/** Best-of-{@link #Trials} wall-clock time (in ns), after an untimed warm-up run. */
+	protected def bestOf(run: => Any) = {
+		run
+		(1 to Trials) map { i => time(run) } min
+	}
+
+	/** Throughput, in MB/s. */
+	protected def megabytesPerSecond(bytes:Double, ns:Long) = bytes / (1 << 20) / (ns / 1e9)
+
+	/** Print one line of results, labelled with the benchmark's name. */
+	protected def report(format:String, args:Any*) =
+		println("%-20s %s" format (getClass.getSimpleName, format.format(args:_*)))
+}
@@ -73,7 +73,7 @@ class Ajax(app:PhotosApp) extends AjaxHandler
 				app album name map { album =>
 					clear ::
 					addTool("Back to albums", JavaScript ajax RefreshTopView) ::
-					addTool("Add photo", JavaScript ajax UploadImage(name)) ::
+					addTool("Add photos", JavaScript ajax UploadImage(name)) ::
 					setStatus { "Opened album '%s'" format name } ::
 					(album.photos map addPhoto toList)
 				} fold (
@@ -37,6 +37,14 @@ class Album private(val name:String, val dir:Directory) {
 		dir.entries filter { !_.isDir } map { entry => "/%s/%s" format (name, entry.name) }
 
 	def add(file:File) = dir save ("photo-%d" format System.currentTimeMillis, file)
+
+	/** Add several photos at once (saving the album, and everything above it, only once). */
+	def addAll(files:Iterable[File]) = {
+		val batch = dir.batch
+		val now = System.currentTimeMillis
+		files.zipWithIndex foreach { case (f, i) => batch save ("photo-%d-%d" format (now, i), f) }
+		batch.commit map { dir => this }
+	}
 	def remove(name:String) = dir remove name map { dir => this }
 }
 
@@ -72,7 +80,7 @@ class PhotosApp(kernel:KernelInterface, prefs:ModifiablePreferences, log:Logger)
 	def deleteAlbum(name:String) = root remove name map { success => this }
 
 	def uploadInto(album:Album) = {
-		kernel.openLocalFile flatMap album.add
+		kernel.openLocalFiles flatMap { album addAll _ }
 	}
 
 	// If get() fails (a serious error), an exception will be thrown to propagate up the stack.
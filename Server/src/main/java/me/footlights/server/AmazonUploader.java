@@ -15,37 +15,50 @@
  */
 package me.footlights.server;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
-import java.security.AccessControlException;
-import java.security.NoSuchAlgorithmException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.UUID;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import me.footlights.core.Preferences;
 import me.footlights.core.ConfigurationError;
-import me.footlights.core.crypto.Fingerprint;
+
+import javax.servlet.http.HttpServletResponse;
 
 import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 
 import com.google.inject.Inject;
 
 
 /**
  * Uploads user data blocks to Amazon S3.
+ *
+ * Blocks are fingerprinted as they stream through to S3. Since we don't know a block's name until
+ * we've seen all of it, a block whose length is known in advance is streamed to a temporary key
+ * and then copied (within S3) to its real name; a block of unknown length has to be spooled to
+ * local disk first, since S3 requires a length up front.
  */
-public final class AmazonUploader implements Uploader
+public final class AmazonUploader extends StreamingUploader
 {
 	@Inject
 	public AmazonUploader(Preferences preferences)
 	{
-		this.prefs = preferences;
-		this.authSecret = getMandatoryPreference("cas.secret");
+		super(preferences);
 
 		final String keyId = getMandatoryPreference("amazon.keyId");
 		final String secret = getMandatoryPreference("amazon.secretKey");
@@ -68,62 +81,120 @@ public final class AmazonUploader implements Uploader
 	 *  - invalid request
 	 *  - not authorized
 	 *  - incorrect size
-	 * 
-	 * @return the name of the uploaded file (which is a fingerprint)
+	 *  - we already have it
 	 */
-	@Override public String upload(final Block block)
-		throws AccessControlException, IOException, NoSuchAlgorithmException, RuntimeException
+	@Override String store(InputStream in, MessageDigest digest, Block block)
+		throws IOException, RuntimeException
 	{
-		log.entering(AmazonUploader.class.getName(), "upload", block);
-
-		if (!checkAuth(block.getAuthorization()))
-			throw new AccessControlException("Authorization failure");
+		try
+		{
+			if (block.getLength() < 0) return spoolAndUpload(in, digest, block);
+			else return uploadAndRename(in, block.getLength(), digest, block);
+		}
+		catch (AmazonClientException e) { throw new RuntimeException(e); }
+	}
 
-		// Does the actual fingerprint match the expected one (if any)?
-		Fingerprint.Builder fingerprintBuilder =
-			Fingerprint.newBuilder()
-				.setContent(block.getBytes());
+	/** Ask S3 (with a HEAD request) whether it has a block. */
+	@Override boolean exists(String name) throws IOException
+	{
+		try
+		{
+			s3.getObjectMetadata(USER_DATA_BUCKET, name);
+			return true;
+		}
+		catch (AmazonServiceException e)
+		{
+			if (e.getStatusCode() == HttpServletResponse.SC_NOT_FOUND) return false;
+			throw new IOException("Error checking for " + name + ": " + e.getMessage());
+		}
+		catch (AmazonClientException e)
+		{
+			throw new IOException("Error checking for " + name + ": " + e.getMessage());
+		}
+	}
 
-		if (!block.getFingerprintAlgorithm().isEmpty())
-			fingerprintBuilder.setAlgorithm(block.getFingerprintAlgorithm());
+	/** List the bucket's blocks (S3 gives us up to 1,000 names per request). */
+	@Override void list(BlockIndex.Listing listing) throws IOException
+	{
+		try
+		{
+			ObjectListing objects = s3.listObjects(USER_DATA_BUCKET);
+			while (true)
+			{
+				for (S3ObjectSummary o : objects.getObjectSummaries())
+					if (!o.getKey().startsWith(TEMPORARY_PREFIX)) listing.found(o.getKey());
+
+				if (!objects.isTruncated()) break;
+				objects = s3.listNextBatchOfObjects(objects);
+			}
+		}
+		catch (AmazonClientException e)
+		{
+			throw new IOException("Error listing " + USER_DATA_BUCKET + ": " + e.getMessage());
+		}
+	}
 
-		final String actualName = fingerprintBuilder.build().encode();
-		String expected = block.getExpectedName();
-		if (!expected.isEmpty() && !expected.equals(actualName))
-			throw new IllegalArgumentException(
-					"Block name (" + actualName
-					 + ") does not match expected name (" + block.getExpectedName()
-					 + ")");
 
-		final ByteBuffer bytes = block.getBytes();
+	/** Stream a block of known length to a temporary key, then copy it to its real name. */
+	private String uploadAndRename(InputStream in, long length, MessageDigest digest, Block block)
+		throws IOException
+	{
+		final String temporary = TEMPORARY_PREFIX + UUID.randomUUID();
 
 		final ObjectMetadata metadata = new ObjectMetadata();
-		metadata.setContentLength(bytes.remaining());
-
-		InputStream stream = new ByteArrayInputStream(bytes.array());
+		metadata.setContentLength(length);
 
 		try
 		{
-			s3.putObject(USER_DATA_BUCKET, actualName, stream, metadata);
-			s3.setObjectAcl(USER_DATA_BUCKET, actualName, DEFAULT_ACL);
-		}
-		catch (AmazonClientException e) { throw new RuntimeException(e); }
+			s3.putObject(USER_DATA_BUCKET, temporary, in, metadata);
 
-		return actualName;
-	}
+			final String actualName = name(digest, block);
+			if (has(actualName)) return actualName;
 
+			s3.copyObject(
+				new CopyObjectRequest(USER_DATA_BUCKET, temporary, USER_DATA_BUCKET, actualName)
+					.withCannedAccessControlList(DEFAULT_ACL));
 
-	/** In the future, this will be much more sophisticated! */
-	private boolean checkAuth(String authenticator)
-	{
-		return (authenticator.equals(authSecret));
+			return actualName;
+		}
+		finally
+		{
+			try { s3.deleteObject(USER_DATA_BUCKET, temporary); }
+			catch (AmazonClientException e)
+			{
+				log.log(Level.WARNING, "Failed to delete temporary object " + temporary, e);
+			}
+		}
 	}
 
-	private String getMandatoryPreference(String name) throws ConfigurationError
+	/** Spool a block of unknown length to disk (hashing it on the way), then upload it. */
+	private String spoolAndUpload(InputStream in, MessageDigest digest, Block block)
+		throws IOException
 	{
-		scala.Option<String> value = prefs.getString(name);
-		if (value.isEmpty()) throw new ConfigurationError(name + " not set");
-		else return value.get();
+		final File spool = File.createTempFile("upload-", ".block");
+		try
+		{
+			final OutputStream out = new BufferedOutputStream(new FileOutputStream(spool));
+			try
+			{
+				byte[] buffer = new byte[BUFFER_SIZE];
+				for (int n; (n = in.read(buffer)) >= 0; ) out.write(buffer, 0, n);
+			}
+			finally { out.close(); }
+
+			final String actualName = name(digest, block);
+			if (has(actualName)) return actualName;
+
+			s3.putObject(
+				new PutObjectRequest(USER_DATA_BUCKET, actualName, spool)
+					.withCannedAcl(DEFAULT_ACL));
+
+			return actualName;
+		}
+		finally
+		{
+			if (!spool.delete()) log.warning("Failed to delete " + spool);
+		}
 	}
 
 
@@ -133,15 +204,12 @@ public final class AmazonUploader implements Uploader
 	/** The S3 bucket to store user data in. */
 	private static final String USER_DATA_BUCKET = "footlights-cas";
 
+	/** Where blocks are streamed to before we know their names. */
+	private static final String TEMPORARY_PREFIX = "incoming/";
+
 	/** Class-specific logger. */
 	private static final Logger log = Logger.getLogger(AmazonUploader.class.getCanonicalName());
 
-	/** Configuration data. */
-	private final Preferences prefs;
-
 	/** Amazon S3 client. */
 	private final AmazonS3Client s3;
-
-	/** Secret used to authenticate uploads. */
-	private final String authSecret;
 }
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * An index of the blocks that we already have, so that we needn't store them again.
+ *
+ * The index is an in-memory Bloom filter; if it thinks that we might have a block, we ask the
+ * backing {@link Store} (e.g. with an S3 HEAD request). A negative answer from the filter only
+ * means that we don't have a block once the filter has seen every name in the store: the first
+ * time the index is used, it lists the store in the background, and until that finishes we ask
+ * the store about every block.
+ *
+ * If given a log file, the index records every name added to it there (including those found by
+ * listing the store, followed by a marker once the listing is complete), so that the filter can
+ * be rebuilt when the server restarts without listing the store again.
+ */
+class BlockIndex
+{
+	/** Where blocks are actually stored. */
+	interface Store
+	{
+		/** Whether or not a block is definitely stored (this may be expensive). */
+		boolean exists(String name) throws IOException;
+
+		/** Report the name of every stored block (this may be very expensive). */
+		void list(Listing listing) throws IOException;
+	}
+
+	/** Receives block names from {@link Store#list}. */
+	interface Listing
+	{
+		void found(String name) throws IOException;
+	}
+
+	/**
+	 * @param expected       how many blocks we expect to index (which sizes the Bloom filter)
+	 * @param log            where to record names (or null, to forget them on restart)
+	 */
+	BlockIndex(Store store, int expected, File log) throws IOException
+	{
+		if (expected <= 0) throw new IllegalArgumentException("Expected block count must be > 0");
+
+		this.store = store;
+
+		// Optimal size and hash count for a 1% false-positive rate.
+		final double ln2 = Math.log(2);
+		bits = (int) Math.min(Integer.MAX_VALUE,
+			Math.ceil(-expected * Math.log(FALSE_POSITIVE_RATE) / (ln2 * ln2)));
+		hashes = Math.max(1, (int) Math.round(ln2 * bits / expected));
+		filter = new BitSet(bits);
+
+		if (log == null) this.log = null;
+		else
+		{
+			if (log.exists()) replay(log);
+			this.log = new OutputStreamWriter(new FileOutputStream(log, true), CHARSET);
+		}
+	}
+
+	/** Whether or not we have a block, according to the filter and (if need be) the store. */
+	boolean contains(String name) throws IOException
+	{
+		startListing();
+
+		boolean maybe = mightContain(name);
+		if (complete && !maybe) return false;
+
+		lookups.incrementAndGet();
+		if (store.exists(name)) return true;
+
+		if (maybe) falsePositives.incrementAndGet();
+		return false;
+	}
+
+	/** Record that a block has been stored. */
+	synchronized void add(String name) throws IOException
+	{
+		startListing();
+		record(name);
+		if (log != null) log.flush();
+	}
+
+	/** Whether the filter has seen every stored block (so that its negative answers are right). */
+	boolean isComplete() { return complete; }
+
+	/** Whether the Bloom filter thinks that we might have a block (cheap but inaccurate). */
+	synchronized boolean mightContain(String name)
+	{
+		int h1 = name.hashCode();
+		int h2 = secondHash(name);
+		for (int i = 0; i < hashes; i++)
+			if (!filter.get(index(h1, h2, i))) return false;
+
+		return true;
+	}
+
+	/** How many times we've had to ask the store whether it has a block. */
+	long lookups() { return lookups.get(); }
+
+	/** How many times the Bloom filter has sent us to the store for nothing. */
+	long falsePositives() { return falsePositives.get(); }
+
+	@Override public String toString()
+	{
+		return "BlockIndex { " + bits + " bits, " + hashes + " hashes, "
+			+ lookups + " lookups, " + falsePositives + " false positives }";
+	}
+
+
+	/** Rebuild the filter from a log of names. */
+	private void replay(File file) throws IOException
+	{
+		BufferedReader reader =
+			new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+
+		int count = 0;
+		try
+		{
+			for (String name; (name = reader.readLine()) != null; )
+				if (name.equals(COMPLETE)) complete = true;
+				else if (!name.isEmpty()) { set(name); count++; }
+		}
+		finally { reader.close(); }
+
+		logger.info("Loaded " + count + " block names from " + file
+			+ (complete ? "" : " (incomplete; will list the store)"));
+	}
+
+	/** The first time that we're used, start listing the store (unless our log covers it). */
+	private void startListing()
+	{
+		if (complete || !listing.compareAndSet(false, true)) return;
+
+		Thread t = new Thread("BlockIndex: listing stored blocks")
+		{
+			@Override public void run() { listStore(); }
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/** Add every name in the store to the filter. */
+	private void listStore()
+	{
+		final AtomicLong count = new AtomicLong();
+		try
+		{
+			store.list(new Listing()
+				{
+					@Override public void found(String name) throws IOException
+					{
+						synchronized (BlockIndex.this) { record(name); }
+						count.incrementAndGet();
+					}
+				});
+
+			synchronized (this)
+			{
+				if (log != null)
+				{
+					log.write(COMPLETE);
+					log.write('\n');
+					log.flush();
+				}
+			}
+
+			complete = true;
+			logger.info("Indexed " + count + " stored blocks");
+		}
+		catch (IOException e)
+		{
+			// We'll just have to keep asking the store about every block.
+			logger.log(Level.WARNING, "Unable to list stored blocks (after " + count + ")", e);
+		}
+	}
+
+	/** Add a name to the filter (and the log, which the caller must flush). */
+	private void record(String name) throws IOException
+	{
+		set(name);
+		if (log != null)
+		{
+			log.write(name);
+			log.write('\n');
+		}
+	}
+
+	private void set(String name)
+	{
+		int h1 = name.hashCode();
+		int h2 = secondHash(name);
+		for (int i = 0; i < hashes; i++) filter.set(index(h1, h2, i));
+	}
+
+	/** The i'th bit for a name, by double hashing (Kirsch and Mitzenmacher). */
+	private int index(int h1, int h2, int i)
+	{
+		int h = h1 + i * h2;
+		return (h & Integer.MAX_VALUE) % bits;
+	}
+
+	/** FNV-1a: independent enough of {@link String#hashCode} for our purposes. */
+	private static int secondHash(String s)
+	{
+		int h = 0x811C9DC5;
+		for (int i = 0; i < s.length(); i++)
+		{
+			h ^= s.charAt(i);
+			h *= 0x01000193;
+		}
+
+		return h | 1;
+	}
+
+
+	private static final double FALSE_POSITIVE_RATE = 0.01;
+
+	/** Written to the log once every stored block's name has been written to it. */
+	private static final String COMPLETE = "#complete";
+	private static final String CHARSET = "UTF-8";
+	private static final Logger logger = Logger.getLogger(BlockIndex.class.getCanonicalName());
+
+	private final Store store;
+	private final BitSet filter;
+	private final int bits;
+	private final int hashes;
+	private final Writer log;
+
+	/** Whether the filter holds every stored block's name. */
+	private volatile boolean complete;
+	private final AtomicBoolean listing = new AtomicBoolean();
+
+	private final AtomicLong lookups = new AtomicLong();
+	private final AtomicLong falsePositives = new AtomicLong();
+}
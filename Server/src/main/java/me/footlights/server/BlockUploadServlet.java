@@ -15,11 +15,12 @@
  */
 package me.footlights.server;
 
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.security.AccessControlException;
 import java.security.NoSuchAlgorithmException;
-import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -29,10 +30,8 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.tomcat.util.http.fileupload.DefaultFileItemFactory;
-import org.apache.tomcat.util.http.fileupload.FileItem;
-import org.apache.tomcat.util.http.fileupload.FileUpload;
-import org.apache.tomcat.util.http.fileupload.FileUploadException;
+import me.footlights.core.Preferences;
+import me.footlights.core.crypto.Fingerprint;
 
 import com.google.common.collect.Maps;
 import com.google.inject.Guice;
@@ -42,19 +41,34 @@ import static javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST;
 import static javax.servlet.http.HttpServletResponse.SC_FORBIDDEN;
 import static javax.servlet.http.HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
 import static javax.servlet.http.HttpServletResponse.SC_OK;
+import static javax.servlet.http.HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE;
 
 
 /**
  * Servlet to manage the uploading of user data blocks.
+ *
+ * Clients can ask which blocks we already have (so that they needn't upload them) at "/have":
+ * a HEAD or GET request with a "name" parameter gets 200 OK if we have the named block or 404
+ * Not Found if not, and a POST of names (one per line) gets back those names that we do have, as
+ * {@link #HAVE_TYPE}. Clients only skip uploading blocks that we have positively confirmed, so a
+ * reply that isn't ours (e.g. from a proxy) can't make them lose data.
+ *
+ * Blocks are streamed from the request to the {@link Uploader} without being buffered in memory,
+ * so text fields (e.g. AUTHENTICATOR) must precede the FILE_CONTENTS they apply to. Requests
+ * larger than "upload.maxRequestBytes" and blocks larger than "upload.maxBlockBytes" are rejected
+ * (with 413 Request Entity Too Large); if the client declares its lengths, they are rejected
+ * before we read any content.
  */
 public class BlockUploadServlet extends HttpServlet
 {
 	public BlockUploadServlet()
 	{
-		uploadArena = new FileUpload(new DefaultFileItemFactory());
-
 		Injector injector = Guice.createInjector(new WebAppGuiceModule());
 		uploader = injector.getInstance(Uploader.class);
+
+		Preferences prefs = injector.getInstance(Preferences.class);
+		maxRequestBytes = limit(prefs, "upload.maxRequestBytes", DEFAULT_MAX_REQUEST_BYTES);
+		maxBlockBytes = limit(prefs, "upload.maxBlockBytes", DEFAULT_MAX_BLOCK_BYTES);
 	}
 
 
@@ -63,36 +77,84 @@ public class BlockUploadServlet extends HttpServlet
 	 *  - invalid request
 	 *  - not authorized
 	 *  - incorrect size
+	 *
+	 * If the form contains a BATCH field, it may contain several blocks (see {@link #uploadBatch}).
 	 */
 	public void doPost(HttpServletRequest request, HttpServletResponse response)
 			throws ServletException, IOException {
 
 		log.entering(BlockUploadServlet.class.getName(), "doPost", new Object[] { request, response });
 
+		if (HAVE_PATH.equals(request.getServletPath()))
+		{
+			findStored(request, response);
+			return;
+		}
+
 		// We only accept enctype="multipart/form-data".
-		if (!FileUpload.isMultipartContent(request))
+		final String contentType = request.getContentType();
+		final String boundary = MultipartParser.boundary(contentType);
+		if (contentType == null || !contentType.toLowerCase().startsWith("multipart/")
+		    || boundary == null)
 		{
 			response.sendError(SC_BAD_REQUEST, "File not attached");
 			return;
 		}
 
+		if (request.getContentLength() > maxRequestBytes)
+		{
+			response.sendError(SC_REQUEST_ENTITY_TOO_LARGE,
+				"Request larger than " + maxRequestBytes + " B");
+			return;
+		}
 
-		// Parse the form.
-		final Uploader.Block toUpload;
-		try { toUpload = parseForm(request); }
-		catch (FileUploadException e)
+
+		// Parse the form's text fields, up to the first attached file.
+		final Form form;
+		try
+		{
+			InputStream in = new LimitedInputStream(request.getInputStream(), maxRequestBytes);
+			form = new Form(new MultipartParser(in, boundary));
+		}
+		catch (LimitedInputStream.TooLargeException e)
+		{
+			response.sendError(SC_REQUEST_ENTITY_TOO_LARGE, e.getMessage());
+			return;
+		}
+		catch (IllegalArgumentException e)
+		{
+			log.log(Level.INFO, request.getRemoteAddr() + ": invalid form", e);
+			response.sendError(SC_BAD_REQUEST, "Upload failed: " + e.getMessage());
+			return;
+		}
+		catch (IOException e)
 		{
 			log.log(Level.INFO, "Upload failed", e);
-			response.sendError(SC_INTERNAL_SERVER_ERROR, "Upload failed.");
+			response.sendError(SC_BAD_REQUEST, "Upload failed: " + e.getMessage());
 			return;
 		}
 		catch (Throwable t)
 		{
-			log.log(Level.SEVERE, "Uncaught exception in BlockUploadServlet.parseForm()", t);
+			log.log(Level.SEVERE, "Uncaught exception parsing upload form", t);
 			response.sendError(SC_INTERNAL_SERVER_ERROR, t.getMessage());
 			return;
 		}
 
+		if (form.params.containsKey(FormFields.BATCH))
+		{
+			uploadBatch(form, request, response);
+			return;
+		}
+
+		final MultipartParser.Part file = form.file;
+		if (file.contentLength() > maxBlockBytes)
+		{
+			response.sendError(SC_REQUEST_ENTITY_TOO_LARGE, "Block larger than " + maxBlockBytes + " B");
+			return;
+		}
+
+		final Uploader.Block toUpload = form.block(file, form.string(FormFields.EXPECTED_NAME));
+
 
 		// Upload the block.
 		try
@@ -124,6 +186,12 @@ public class BlockUploadServlet extends HttpServlet
 			response.sendError(SC_BAD_REQUEST, e.getMessage());
 			return;
 		}
+		catch (LimitedInputStream.TooLargeException e)
+		{
+			log.log(Level.INFO, request.getRemoteAddr() + ": block too large", e);
+			response.sendError(SC_REQUEST_ENTITY_TOO_LARGE, e.getMessage());
+			return;
+		}
 		catch (Throwable t)
 		{
 			log.log(Level.SEVERE, "Uncaught exception in uploader.upload()", t);
@@ -133,44 +201,206 @@ public class BlockUploadServlet extends HttpServlet
 	}
 
 
-	/** Parse a multipart/form-data POST request. */
-	private Uploader.Block parseForm(HttpServletRequest request) throws FileUploadException
+	/** Do we have a block? */
+	@Override public void doGet(HttpServletRequest request, HttpServletResponse response)
+		throws ServletException, IOException
+	{
+		if (!HAVE_PATH.equals(request.getServletPath()))
+		{
+			response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+			return;
+		}
+
+		final String name = request.getParameter("name");
+		if (!validName(name))
+		{
+			response.sendError(SC_BAD_REQUEST, "Invalid block name");
+			return;
+		}
+
+		if (uploader.has(name)) response.setStatus(SC_OK);
+		else response.sendError(HttpServletResponse.SC_NOT_FOUND);
+	}
+
+	/** Which of the blocks named in a request (one per line) do we have? */
+	private void findStored(HttpServletRequest request, HttpServletResponse response)
+		throws IOException
+	{
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(
+			new LimitedInputStream(request.getInputStream(), MAX_QUERY_BYTES), "UTF-8"));
+
+		final StringBuilder stored = new StringBuilder();
+		try
+		{
+			for (String name; (name = reader.readLine()) != null; )
+			{
+				name = name.trim();
+				if (name.isEmpty()) continue;
+
+				if (!validName(name))
+				{
+					response.sendError(SC_BAD_REQUEST, "Invalid block name");
+					return;
+				}
+
+				if (uploader.has(name)) stored.append(name).append('\n');
+			}
+		}
+		catch (LimitedInputStream.TooLargeException e)
+		{
+			response.sendError(SC_REQUEST_ENTITY_TOO_LARGE, e.getMessage());
+			return;
+		}
+
+		response.setContentType(HAVE_TYPE + "; charset=UTF-8");
+		response.setStatus(SC_OK);
+		response.getWriter().write(stored.toString());
+	}
+
+	/** Names must be canonically-encoded fingerprints (not, e.g., relative paths). */
+	private static boolean validName(String name)
+	{
+		if (name == null) return false;
+
+		scala.Option<Fingerprint> f = Fingerprint.unapply(name);
+		return f.isDefined() && f.get().encode().equals(name);
+	}
+
+
+	/**
+	 * Upload several blocks, each named (by the client) in its FILE_CONTENTS filename.
+	 *
+	 * The response has one line per block: "[name] [HTTP status code] [explanation]". An
+	 * authorization failure fails the whole request.
+	 */
+	private void uploadBatch(Form form, HttpServletRequest request, HttpServletResponse response)
+		throws IOException
 	{
-		@SuppressWarnings("unchecked")
-		List<FileItem> items = uploadArena.parseRequest(request);
+		StringBuilder status = new StringBuilder();
+		for (MultipartParser.Part file = form.file; file != null; file = form.parser.next())
+		{
+			if (!file.name().equals(FormFields.FILE_CONTENTS.name()))
+			{
+				response.sendError(SC_BAD_REQUEST, "Unexpected field after files: " + file.name());
+				return;
+			}
 
-		final Map<FormFields,byte[]> params = Maps.newHashMap();
-		for (FileItem i: items)
-			params.put(FormFields.valueOf(i.getFieldName()), i.get());
+			final String expected = file.filename();
+			final Uploader.Block block = form.block(file, expected);
 
-		if (!params.containsKey(FormFields.FILE_CONTENTS))
-			throw new FileUploadException("No file attached");
+			int code;
+			String message = "";
+			try
+			{
+				if (file.contentLength() > maxBlockBytes)
+					throw new LimitedInputStream.TooLargeException(maxBlockBytes);
 
-		if (!params.containsKey(FormFields.AUTHENTICATOR))
-			throw new FileUploadException("No authentication given");
+				String name = uploader.upload(block);
+				if (!expected.isEmpty() && !name.equals(expected))
+					throw new IllegalArgumentException("Uploaded " + name + ", not " + expected);
 
-		byte[] rawBytes = params.get(FormFields.FILE_CONTENTS);
-		final ByteBuffer bytes = ByteBuffer.wrap(rawBytes);
+				code = SC_OK;
+			}
+			catch (AccessControlException e)
+			{
+				log.info(
+					"checkAuth() failed on request from " + request.getRemoteAddr()
+					 + "; auth = '" + block.getAuthorization() + "'");
+				response.sendError(SC_FORBIDDEN);
+				return;
+			}
+			catch (NoSuchAlgorithmException e)
+			{
+				log.log(Level.INFO, request.getRemoteAddr() + ": invalid naming algorithm", e);
+				code = HttpServletResponse.SC_NOT_IMPLEMENTED;
+				message = "Invalid naming algorithm: " + e.getMessage();
+			}
+			catch (IllegalArgumentException e)
+			{
+				log.log(Level.INFO, request.getRemoteAddr() + ": invalid argument", e);
+				code = SC_BAD_REQUEST;
+				message = e.getMessage();
+			}
+			catch (LimitedInputStream.TooLargeException e)
+			{
+				log.log(Level.INFO, request.getRemoteAddr() + ": block too large", e);
+				code = SC_REQUEST_ENTITY_TOO_LARGE;
+				message = e.getMessage();
+			}
+			catch (Throwable t)
+			{
+				log.log(Level.SEVERE, "Uncaught exception in uploader.upload()", t);
+				code = SC_INTERNAL_SERVER_ERROR;
+				message = t.getMessage();
+			}
+
+			status.append(expected).append(' ').append(code);
+			if (message != null && !message.isEmpty())
+				status.append(' ').append(message.replaceAll("[\\r\\n]+", " "));
+			status.append('\n');
+		}
+
+		response.setContentType("text/plain");
+		response.setStatus(SC_OK);
+		response.getWriter().write(status.toString());
+	}
 
-		final String auth = new String(params.get(FormFields.AUTHENTICATOR));
 
-		// Optional arguments; might be null byte arrays.
-		final byte[] algorithm = params.get(FormFields.DIGEST_ALGORITHM);
-		final byte[] expectedName = params.get(FormFields.EXPECTED_NAME);
+	/**
+	 * The text fields submitted in a form, which are read as soon as the form is opened, and
+	 * the first attached file (subsequent files are read from {@link #parser}).
+	 */
+	private class Form
+	{
+		Form(MultipartParser parser) throws IOException, IllegalArgumentException
+		{
+			this.parser = parser;
 
-		return new Uploader.Block()
+			MultipartParser.Part part;
+			while ((part = parser.next()) != null)
 			{
-				@Override public ByteBuffer getBytes() { return bytes; }
-				@Override public String getAuthorization() { return auth; }
-				@Override public String getFingerprintAlgorithm()
-				{
-					return (algorithm == null) ? "" : new String(algorithm);
-				}
-				@Override public String getExpectedName()
+				FormFields field = FormFields.valueOf(part.name());
+				if (field == FormFields.FILE_CONTENTS) break;
+				else params.put(field, part.readString(MAX_FIELD_LENGTH));
+			}
+
+			if (part == null)
+				throw new IllegalArgumentException("No file attached");
+
+			if (!params.containsKey(FormFields.AUTHENTICATOR))
+				throw new IllegalArgumentException("No authentication given");
+
+			this.file = part;
+		}
+
+		/** A block to upload, with the authenticator and algorithm given for the whole form. */
+		Uploader.Block block(MultipartParser.Part file, final String expectedName)
+		{
+			final InputStream in = new LimitedInputStream(file.body(), maxBlockBytes);
+			final long length = file.contentLength();
+			final String auth = string(FormFields.AUTHENTICATOR);
+			final String algorithm = string(FormFields.DIGEST_ALGORITHM);
+
+			return new Uploader.Block()
 				{
-					return (expectedName == null) ? "" : new String(expectedName);
-				}
-			};
+					@Override public InputStream getInputStream() { return in; }
+					@Override public long getLength() { return length; }
+					@Override public String getAuthorization() { return auth; }
+					@Override public String getFingerprintAlgorithm() { return algorithm; }
+					@Override public String getExpectedName() { return expectedName; }
+				};
+		}
+
+		/** An optional text field (empty if not given). */
+		String string(FormFields field)
+		{
+			String value = params.get(field);
+			return (value == null) ? "" : value;
+		}
+
+		final MultipartParser parser;
+		final Map<FormFields,String> params = Maps.newHashMap();
+		final MultipartParser.Part file;
 	}
 
 
@@ -178,20 +408,46 @@ public class BlockUploadServlet extends HttpServlet
 	private enum FormFields
 	{
 		AUTHENTICATOR,
+		BATCH,
 		DIGEST_ALGORITHM,
 		EXPECTED_NAME,
 		FILE_CONTENTS,
 	}
 
 
+	private static int limit(Preferences prefs, String key, int defaultValue)
+	{
+		scala.Option<Integer> value = prefs.getInt(key);
+		return value.isDefined() ? value.get() : defaultValue;
+	}
+
+
 	private static final Logger log = Logger.getLogger(BlockUploadServlet.class.getCanonicalName());
 
-	/** Temporary storage for uploaded files. */
-	private final FileUpload uploadArena;
+	private static final int DEFAULT_MAX_REQUEST_BYTES = 64 * 1024 * 1024;
+	private static final int DEFAULT_MAX_BLOCK_BYTES = 8 * 1024 * 1024;
+
+	/** Where clients ask which blocks we have. */
+	private static final String HAVE_PATH = "/have";
+
+	/** The media type of our list of the blocks we have (which CASClient checks for). */
+	static final String HAVE_TYPE = "text/x-footlights-have";
+
+	/** The longest list of names that we will check. */
+	private static final int MAX_QUERY_BYTES = 1024 * 1024;
+
+	/** The longest text field that we will accept. */
+	private static final int MAX_FIELD_LENGTH = 4096;
 
 	/** The client that actually uploads blocks to a backend service. */
 	private final Uploader uploader;
 
+	/** The largest request that we will accept. */
+	private final int maxRequestBytes;
+
+	/** The largest block that we will accept. */
+	private final int maxBlockBytes;
+
 
 	private static final long serialVersionUID =
 		("22 Jun 2011 0942h" + BlockUploadServlet.class.getCanonicalName())
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/** A stream which fails, rather than returning more than a fixed number of bytes. */
+class LimitedInputStream extends FilterInputStream
+{
+	/** Thrown when the underlying stream has more than {@link #limit} bytes. */
+	static class TooLargeException extends IOException
+	{
+		TooLargeException(long limit) { super("More than " + limit + " B of content"); }
+
+		private static final long serialVersionUID =
+			("3 Aug 2012 1412h" + TooLargeException.class.getCanonicalName()).hashCode();
+	}
+
+	LimitedInputStream(InputStream in, long limit)
+	{
+		super(in);
+		this.limit = limit;
+	}
+
+	/** How many bytes have been read so far. */
+	long count() { return count; }
+
+	@Override public int read() throws IOException
+	{
+		int b = super.read();
+		if (b >= 0) count(1);
+		return b;
+	}
+
+	@Override public int read(byte[] b, int off, int len) throws IOException
+	{
+		int n = super.read(b, off, len);
+		if (n > 0) count(n);
+		return n;
+	}
+
+	@Override public long skip(long n) throws IOException
+	{
+		long skipped = super.skip(n);
+		count(skipped);
+		return skipped;
+	}
+
+	@Override public boolean markSupported() { return false; }
+
+	private void count(long n) throws TooLargeException
+	{
+		count += n;
+		if (count > limit) throw new TooLargeException(limit);
+	}
+
+	private final long limit;
+	private long count;
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.logging.Logger;
+
+import me.footlights.core.ConfigurationError;
+import me.footlights.core.Preferences;
+
+import com.google.inject.Inject;
+
+
+/**
+ * Stores uploaded blocks in a local directory (named by the "upload.local.dir" preference), e.g.
+ * for testing without S3.
+ *
+ * Blocks are written to a temporary file while they are being fingerprinted, then renamed.
+ */
+public final class LocalUploader extends StreamingUploader
+{
+	@Inject
+	public LocalUploader(Preferences preferences)
+	{
+		super(preferences);
+
+		directory = new File(getMandatoryPreference("upload.local.dir"));
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new ConfigurationError("Unable to create upload directory " + directory);
+	}
+
+
+	@Override String store(InputStream in, MessageDigest digest, Block block) throws IOException
+	{
+		final File temporary = File.createTempFile(TEMPORARY_PREFIX, ".tmp", directory);
+		try
+		{
+			final OutputStream out = new BufferedOutputStream(new FileOutputStream(temporary));
+			try
+			{
+				byte[] buffer = new byte[BUFFER_SIZE];
+				for (int n; (n = in.read(buffer)) >= 0; ) out.write(buffer, 0, n);
+			}
+			finally { out.close(); }
+
+			final String actualName = name(digest, block);
+			final File file = new File(directory, actualName);
+
+			// Blocks are immutable: if we already have this one, we're done.
+			if (!exists(actualName) && !temporary.renameTo(file) && !exists(actualName))
+				throw new IOException("Unable to rename " + temporary + " to " + file);
+
+			return actualName;
+		}
+		finally
+		{
+			if (temporary.exists() && !temporary.delete())
+				log.warning("Failed to delete " + temporary);
+		}
+	}
+
+
+	@Override boolean exists(String name) { return new File(directory, name).exists(); }
+
+	@Override void list(BlockIndex.Listing listing) throws IOException
+	{
+		String[] names = directory.list();
+		if (names == null) throw new IOException("Unable to list " + directory);
+
+		for (String name : names)
+			if (!name.startsWith(TEMPORARY_PREFIX)) listing.found(name);
+	}
+
+
+	/** Blocks are written to files with this prefix until we know their names. */
+	private static final String TEMPORARY_PREFIX = "upload-";
+
+	/** Class-specific logger. */
+	private static final Logger log = Logger.getLogger(LocalUploader.class.getCanonicalName());
+
+	/** Where we store blocks. */
+	private final File directory;
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Reads the parts of a multipart/form-data request one at a time, as streams.
+ *
+ * Nothing is buffered beyond a small window that is used to find boundaries, so a part's body
+ * must be read (or skipped) before the next part can be read.
+ */
+class MultipartParser
+{
+	/** One part of a form. */
+	class Part
+	{
+		/** The form field's name. */
+		String name() { return name; }
+
+		/** The name of an attached file, or "" if none was given. */
+		String filename() { return filename; }
+
+		/** The part's length, if the client gave one, else -1. */
+		long contentLength() { return contentLength; }
+
+		/** The part's content, which ends at the next boundary. */
+		InputStream body() { return body; }
+
+		/** Read a (short) text field. */
+		String readString(int limit) throws IOException
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[256];
+			for (int n; (n = body.read(buffer)) >= 0; )
+			{
+				out.write(buffer, 0, n);
+				if (out.size() > limit)
+					throw new IOException("Field " + name + " longer than " + limit + " B");
+			}
+
+			return out.toString(CHARSET);
+		}
+
+		private Part(String name, String filename, long contentLength)
+		{
+			this.name = name;
+			this.filename = filename;
+			this.contentLength = contentLength;
+		}
+
+		private final String name;
+		private final String filename;
+		private final long contentLength;
+		private final Body body = new Body();
+	}
+
+	/** Parse the multipart stream with the given boundary. */
+	MultipartParser(InputStream in, String boundary) throws UnsupportedEncodingException
+	{
+		this.in = in;
+		this.delimiter = ("\r\n--" + boundary).getBytes(CHARSET);
+		this.buffer = new byte[Math.max(8192, 2 * delimiter.length)];
+
+		// The first boundary isn't preceded by CRLF; pretend that it is.
+		buffer[tail++] = '\r';
+		buffer[tail++] = '\n';
+	}
+
+	/** The boundary declared in a multipart Content-Type header, if any. */
+	static String boundary(String contentType)
+	{
+		if (contentType == null) return null;
+
+		Matcher m = BOUNDARY.matcher(contentType);
+		return m.find() ? ((m.group(1) != null) ? m.group(1) : m.group(2)) : null;
+	}
+
+	/**
+	 * The next part of the form, or null at the end of the form. Any unread content of the
+	 * current part is skipped.
+	 */
+	Part next() throws IOException
+	{
+		if (finished) return null;
+
+		if (current == null) skipTo(true);
+		else
+		{
+			byte[] skip = new byte[4096];
+			while (current.body.read(skip) >= 0) {}
+		}
+
+		// After a delimiter comes "--" (the end) or CRLF (another part).
+		String rest = readLine();
+		if (rest.startsWith("--"))
+		{
+			finished = true;
+			return null;
+		}
+
+		String name = null;
+		String filename = "";
+		long length = -1;
+		int headerBytes = 0;
+		for (String header; !(header = readLine()).isEmpty(); )
+		{
+			headerBytes += header.length();
+			if (headerBytes > MAX_HEADER_BYTES)
+				throw new IOException("Part headers longer than " + MAX_HEADER_BYTES + " B");
+
+			int colon = header.indexOf(':');
+			if (colon < 0) continue;
+			String key = header.substring(0, colon).trim().toLowerCase();
+			String value = header.substring(colon + 1).trim();
+
+			if (key.equals("content-disposition"))
+			{
+				name = parameter(value, "name");
+				String f = parameter(value, "filename");
+				if (f != null) filename = f;
+			}
+			else if (key.equals("content-length"))
+			{
+				try { length = Long.parseLong(value); }
+				catch (NumberFormatException e)
+				{
+					throw new IOException("Invalid part Content-Length: " + value);
+				}
+			}
+		}
+
+		if (name == null) throw new IOException("Form part has no name");
+
+		current = new Part(name, filename, length);
+		return current;
+	}
+
+
+	/** The content of the current part. */
+	private class Body extends InputStream
+	{
+		@Override public int read() throws IOException
+		{
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+		}
+
+		@Override public int read(byte[] b, int off, int len) throws IOException
+		{
+			if (done) return -1;
+			if (len == 0) return 0;
+
+			int available = readable(true);
+			if (available == 0)
+			{
+				head += delimiter.length;
+				done = true;
+				return -1;
+			}
+
+			int n = Math.min(len, available);
+			System.arraycopy(buffer, head, b, off, n);
+			head += n;
+			return n;
+		}
+
+		private boolean done;
+	}
+
+
+	/**
+	 * How many bytes (possibly zero) can be read from the buffer before the next delimiter.
+	 * If there isn't a delimiter in the buffer, we leave enough bytes to recognize one that
+	 * is only partly buffered.
+	 */
+	private int readable(boolean mustFind) throws IOException
+	{
+		if (tail - head < delimiter.length) fill();
+
+		int found = find();
+		if (found >= 0) return found - head;
+		if (eof)
+		{
+			if (mustFind) throw new IOException("Multipart stream ended without a boundary");
+			return tail - head;
+		}
+
+		return tail - head - delimiter.length + 1;
+	}
+
+	/** Skip past the next delimiter (e.g. the preamble before the first one). */
+	private void skipTo(boolean mustFind) throws IOException
+	{
+		while (true)
+		{
+			int n = readable(mustFind);
+			head += n;
+			if (find() == head)
+			{
+				head += delimiter.length;
+				return;
+			}
+		}
+	}
+
+	/** Where the delimiter starts in the buffer, or -1. */
+	private int find()
+	{
+		outer:
+		for (int i = head; i <= tail - delimiter.length; i++)
+		{
+			for (int j = 0; j < delimiter.length; j++)
+				if (buffer[i + j] != delimiter[j]) continue outer;
+
+			return i;
+		}
+
+		return -1;
+	}
+
+	/** Read more bytes into the buffer (after moving unread bytes to the front). */
+	private void fill() throws IOException
+	{
+		if (head > 0)
+		{
+			System.arraycopy(buffer, head, buffer, 0, tail - head);
+			tail -= head;
+			head = 0;
+		}
+
+		while (!eof && tail < buffer.length)
+		{
+			int n = in.read(buffer, tail, buffer.length - tail);
+			if (n < 0) eof = true;
+			else if (n == 0) break;
+			else
+			{
+				tail += n;
+				if (tail - head >= delimiter.length) break;
+			}
+		}
+	}
+
+	/** Read a CRLF-terminated line of headers. */
+	private String readLine() throws IOException
+	{
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		while (true)
+		{
+			if (head == tail)
+			{
+				fill();
+				if (head == tail) throw new IOException("Multipart stream ended in headers");
+			}
+
+			byte b = buffer[head++];
+			if (b == '\n') break;
+			if (b != '\r') line.write(b);
+			if (line.size() > MAX_HEADER_BYTES)
+				throw new IOException("Header line longer than " + MAX_HEADER_BYTES + " B");
+		}
+
+		return line.toString(CHARSET);
+	}
+
+	/** A parameter of a header value, e.g. {@code name} in {@code form-data; name="x"}. */
+	private static String parameter(String value, String name)
+	{
+		Matcher m = Pattern.compile("(?:^|;)\\s*" + name + "=(?:\"([^\"]*)\"|([^;\\s]*))")
+			.matcher(value);
+
+		return m.find() ? ((m.group(1) != null) ? m.group(1) : m.group(2)) : null;
+	}
+
+
+	private static final String CHARSET = "ISO-8859-1";
+	private static final int MAX_HEADER_BYTES = 8192;
+	private static final Pattern BOUNDARY =
+		Pattern.compile("boundary=(?:\"([^\"]+)\"|([^;\\s]+))", Pattern.CASE_INSENSITIVE);
+
+	private final InputStream in;
+	private final byte[] delimiter;
+	private final byte[] buffer;
+	private int head;
+	private int tail;
+	private boolean eof;
+
+	private Part current;
+	private boolean finished;
+}
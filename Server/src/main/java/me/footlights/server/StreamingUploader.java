@@ -0,0 +1,188 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.AccessControlException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import me.footlights.core.ConfigurationError;
+import me.footlights.core.Preferences;
+import me.footlights.core.crypto.Fingerprint;
+
+
+/**
+ * Machinery shared by {@link Uploader}s that fingerprint blocks as they stream them to storage.
+ *
+ * Since blocks are content-addressed, we needn't store a block that we already have: a
+ * {@link BlockIndex} remembers what we have stored. It learns what was stored before it existed
+ * by {@link #list}ing the backend, which it records in "upload.index.file" (if set) so that
+ * restarts needn't list it again.
+ */
+abstract class StreamingUploader implements Uploader
+{
+	StreamingUploader(Preferences preferences)
+	{
+		this.prefs = preferences;
+		this.authSecret = getMandatoryPreference("cas.secret");
+
+		scala.Option<Integer> expected = prefs.getInt("upload.index.expectedBlocks");
+		scala.Option<String> log = prefs.getString("upload.index.file");
+
+		try
+		{
+			index = new BlockIndex(
+				new BlockIndex.Store()
+				{
+					@Override public boolean exists(String name) throws IOException
+					{
+						return StreamingUploader.this.exists(name);
+					}
+
+					@Override public void list(BlockIndex.Listing listing) throws IOException
+					{
+						StreamingUploader.this.list(listing);
+					}
+				},
+				expected.isDefined() ? expected.get() : DEFAULT_EXPECTED_BLOCKS,
+				log.isDefined() ? new File(log.get()) : null);
+		}
+		catch (IOException e) { throw new ConfigurationError("Unable to open block index: " + e); }
+	}
+
+
+	/**
+	 * Upload a block (if we don't already have it).
+	 *
+	 * @return the name of the uploaded block (which is a fingerprint)
+	 */
+	@Override public final String upload(Block block)
+		throws AccessControlException, IOException, NoSuchAlgorithmException, RuntimeException
+	{
+		log.entering(getClass().getName(), "upload", block);
+
+		checkAuth(block);
+
+		final MessageDigest digest = digest(block);
+		final InputStream in = new DigestInputStream(block.getInputStream(), digest);
+
+		// If we already have the block that the client says it's sending, we only need to
+		// check that it's telling the truth.
+		if (!block.getExpectedName().isEmpty() && has(block.getExpectedName()))
+		{
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (in.read(buffer) >= 0) {}
+
+			final String name = name(digest, block);
+			duplicates.incrementAndGet();
+			log.fine("Already have " + name);
+			return name;
+		}
+
+		final String name = store(in, digest, block);
+		index.add(name);
+		return name;
+	}
+
+	@Override public boolean has(String name) throws IOException { return index.contains(name); }
+
+	/** How many uploads were of blocks that we already had. */
+	long duplicates() { return duplicates.get(); }
+
+
+	/**
+	 * Store a block under its name, which is known once the content has streamed through the
+	 * digest (see {@link #name}). If {@link #has} the block by then, it needn't be stored.
+	 *
+	 * @return the block's name
+	 */
+	abstract String store(InputStream in, MessageDigest digest, Block block)
+		throws IOException, RuntimeException;
+
+	/** Whether or not the backend definitely has a block (may be expensive). */
+	abstract boolean exists(String name) throws IOException;
+
+	/** Report the names of all of the backend's blocks (may be very expensive). */
+	abstract void list(BlockIndex.Listing listing) throws IOException;
+
+	/** Fail unless the block's uploader is authorized to upload. */
+	void checkAuth(Block block) throws AccessControlException
+	{
+		// In the future, this will be much more sophisticated!
+		if (!block.getAuthorization().equals(authSecret))
+			throw new AccessControlException("Authorization failure");
+	}
+
+	/** A fresh digest for the algorithm that the block is to be named with. */
+	static MessageDigest digest(Block block) throws NoSuchAlgorithmException
+	{
+		String algorithm = block.getFingerprintAlgorithm();
+		if (algorithm.isEmpty())
+			algorithm = Preferences.getDefaultPreferences().getString("crypto.hash.algorithm").get();
+
+		return MessageDigest.getInstance(algorithm);
+	}
+
+	/**
+	 * The name of the content that has streamed through a digest.
+	 *
+	 * @throws IllegalArgumentException   if the client expected a different name
+	 */
+	static String name(MessageDigest digest, Block block) throws IllegalArgumentException
+	{
+		final String actualName = Fingerprint.of(digest).encode();
+		final String expected = block.getExpectedName();
+
+		if (!expected.isEmpty() && !expected.equals(actualName))
+			throw new IllegalArgumentException(
+					"Block name (" + actualName
+					 + ") does not match expected name (" + expected + ")");
+
+		return actualName;
+	}
+
+	String getMandatoryPreference(String name) throws ConfigurationError
+	{
+		scala.Option<String> value = prefs.getString(name);
+		if (value.isEmpty()) throw new ConfigurationError(name + " not set");
+		else return value.get();
+	}
+
+
+	static final int BUFFER_SIZE = 8192;
+
+	/** Class-specific logger. */
+	private static final Logger log = Logger.getLogger(StreamingUploader.class.getCanonicalName());
+
+	private static final int DEFAULT_EXPECTED_BLOCKS = 1 << 20;
+
+	/** Configuration data. */
+	final Preferences prefs;
+
+	/** The blocks that we already have. */
+	private final BlockIndex index;
+
+	private final AtomicLong duplicates = new AtomicLong();
+
+	/** Secret used to authenticate uploads. */
+	private final String authSecret;
+}
@@ -16,19 +16,31 @@
 package me.footlights.server;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.io.InputStream;
 import java.security.AccessControlException;
 import java.security.NoSuchAlgorithmException;
 
 
-/** Something which can upload blocks to a remote server. */
+/**
+ * Something which can upload blocks to a remote server.
+ *
+ * Blocks are streamed through the uploader rather than buffered in memory: implementations
+ * should fingerprint the content as it passes through.
+ */
 interface Uploader
 {
-	/** A block of data that the user has uploaded. */
+	/** A block of data that the user is uploading. */
 	interface Block
 	{
-		/** Read-only view of the uploaded bytes. Guaranteed not to be null. */
-		ByteBuffer getBytes();
+		/**
+		 * The uploaded bytes, which can only be read once. Guaranteed not to be null.
+		 *
+		 * The stream fails with an {@link IOException} if the block is larger than permitted.
+		 */
+		InputStream getInputStream();
+
+		/** The length of the block, if the client declared it, or -1 if unknown. */
+		long getLength();
 
 		String getAuthorization();
 		String getFingerprintAlgorithm();
@@ -37,4 +49,7 @@ interface Uploader
 
 	String upload(Block file)
 		throws AccessControlException, IOException, NoSuchAlgorithmException, RuntimeException;
+
+	/** Whether or not a block has already been uploaded. */
+	boolean has(String name) throws IOException;
 }
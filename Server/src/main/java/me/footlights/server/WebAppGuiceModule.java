@@ -39,7 +39,13 @@ public class WebAppGuiceModule extends AbstractModule
 		}
 
 		bind(Preferences.class).toInstance(preferences);
-		bind(Uploader.class).to(AmazonUploader.class);
+
+		// Blocks go to S3 unless we're configured to keep them locally (e.g. for testing).
+		scala.Option<String> backend = preferences.getString("upload.backend");
+		if (backend.isDefined() && backend.get().equals("local"))
+			bind(Uploader.class).to(LocalUploader.class);
+		else
+			bind(Uploader.class).to(AmazonUploader.class);
 	}
 
 	private static final Logger log = Logger.getLogger(WebAppGuiceModule.class.getName());
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class BlockIndexTest
+{
+	/** Until we've listed the store, the filter's negative answers aren't trustworthy. */
+	@Test public void negativesBeforeListing() throws Throwable
+	{
+		FakeStore store = new FakeStore("old");
+		BlockIndex index = new BlockIndex(store, 1000, null);
+
+		assertTrue(index.contains("old"));
+		assertFalse(index.isComplete());
+		assertFalse(index.contains("new"));
+		assertEquals(2, index.lookups());
+	}
+
+	/** Once we have, we needn't ask the store about blocks that the filter has never seen. */
+	@Test public void negativesAfterListing() throws Throwable
+	{
+		FakeStore store = new FakeStore("old");
+		BlockIndex index = new BlockIndex(store, 1000, null);
+
+		index.contains("old");
+		store.listed.countDown();
+		awaitComplete(index);
+		assertTrue(index.mightContain("old"));
+
+		long lookups = index.lookups();
+		assertFalse(index.contains("new"));
+		assertEquals(lookups, index.lookups());
+
+		// Positives still need to be confirmed by the store.
+		assertTrue(index.contains("old"));
+		assertEquals(lookups + 1, index.lookups());
+	}
+
+	/** Blocks added while the store is being listed are not forgotten. */
+	@Test public void addDuringListing() throws Throwable
+	{
+		FakeStore store = new FakeStore("old");
+		BlockIndex index = new BlockIndex(store, 1000, null);
+
+		index.add("new");
+		store.names.add("new");
+		store.listed.countDown();
+		awaitComplete(index);
+
+		assertTrue(index.contains("new"));
+		assertTrue(index.contains("old"));
+	}
+
+	/** If we can't list the store, we just keep asking it. */
+	@Test public void listingFails() throws Throwable
+	{
+		FakeStore store = new FakeStore("old");
+		store.fail = true;
+		BlockIndex index = new BlockIndex(store, 1000, null);
+
+		index.contains("old");
+		store.listed.countDown();
+		store.finished.await(10, TimeUnit.SECONDS);
+
+		assertFalse(index.isComplete());
+		assertFalse(index.contains("new"));
+		assertTrue(index.contains("old"));
+	}
+
+	/** A complete log means that we needn't list the store again. */
+	@Test public void replayLog() throws Throwable
+	{
+		log = File.createTempFile("block-index", ".log");
+
+		FakeStore store = new FakeStore("old");
+		BlockIndex index = new BlockIndex(store, 1000, log);
+		index.contains("old");
+		store.listed.countDown();
+		awaitComplete(index);
+		index.add("new");
+
+		FakeStore restarted = new FakeStore();
+		index = new BlockIndex(restarted, 1000, log);
+		assertTrue(index.isComplete());
+		assertTrue(index.mightContain("old"));
+		assertTrue(index.mightContain("new"));
+		assertFalse(index.contains("other"));
+		assertEquals(0, index.lookups());
+		assertEquals(0, restarted.listings);
+	}
+
+	/** An incomplete log still needs the store to be listed. */
+	@Test public void replayIncompleteLog() throws Throwable
+	{
+		log = File.createTempFile("block-index", ".log");
+
+		FakeStore store = new FakeStore("old");
+		BlockIndex index = new BlockIndex(store, 1000, log);
+		index.add("new");
+
+		index = new BlockIndex(new FakeStore("old", "new"), 1000, log);
+		assertFalse(index.isComplete());
+		assertTrue(index.mightContain("new"));
+		assertFalse(index.contains("other"));
+		assertEquals(1, index.lookups());
+	}
+
+	@After public void tearDown()
+	{
+		if (log != null) log.delete();
+	}
+
+
+	/** A store which doesn't finish listing its blocks until {@link #listed} is counted down. */
+	private static class FakeStore implements BlockIndex.Store
+	{
+		FakeStore(String... names) { Collections.addAll(this.names, names); }
+
+		@Override public boolean exists(String name) { return names.contains(name); }
+
+		@Override public void list(BlockIndex.Listing listing) throws IOException
+		{
+			listings++;
+			try
+			{
+				listed.await();
+				if (fail) throw new IOException("Unable to list blocks");
+				for (String name : names) listing.found(name);
+			}
+			catch (InterruptedException e) { throw new IOException(e.toString()); }
+			finally { finished.countDown(); }
+		}
+
+		final Set<String> names =
+			Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+
+		final CountDownLatch listed = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(1);
+		volatile boolean fail;
+		volatile int listings;
+	}
+
+	private static void awaitComplete(BlockIndex index) throws InterruptedException
+	{
+		for (int i = 0; !index.isComplete() && (i < 1000); i++) Thread.sleep(10);
+		assertTrue("Listing finished", index.isComplete());
+	}
+
+	private File log;
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+
+public class LimitedInputStreamTest
+{
+	@Test public void readUpToLimit() throws Throwable
+	{
+		LimitedInputStream in = new LimitedInputStream(stream(100), 100);
+
+		byte[] buffer = new byte[30];
+		int total = 0;
+		for (int n; (n = in.read(buffer)) >= 0; ) total += n;
+
+		assertEquals(100, total);
+		assertEquals(100, in.count());
+	}
+
+	@Test public void readPastLimit() throws Throwable
+	{
+		LimitedInputStream in = new LimitedInputStream(stream(101), 100);
+
+		byte[] buffer = new byte[30];
+		try
+		{
+			while (in.read(buffer) >= 0) {}
+			fail("Read 101 B with a limit of 100 B");
+		}
+		catch (LimitedInputStream.TooLargeException e) {}
+	}
+
+	@Test public void singleBytes() throws Throwable
+	{
+		LimitedInputStream in = new LimitedInputStream(stream(2), 1);
+		assertEquals(0, in.read());
+
+		try
+		{
+			in.read();
+			fail("Read 2 B with a limit of 1 B");
+		}
+		catch (LimitedInputStream.TooLargeException e) {}
+	}
+
+	/** Skipped bytes count against the limit, too. */
+	@Test public void skip() throws Throwable
+	{
+		LimitedInputStream in = new LimitedInputStream(stream(200), 100);
+		assertEquals(100, in.skip(100));
+
+		try
+		{
+			in.skip(1);
+			fail("Skipped 101 B with a limit of 100 B");
+		}
+		catch (LimitedInputStream.TooLargeException e) {}
+	}
+
+	/** We can't rewind (and un-count) bytes. */
+	@Test public void noMark() throws Throwable
+	{
+		assertFalse(new LimitedInputStream(stream(1), 1).markSupported());
+	}
+
+
+	private static InputStream stream(int length)
+	{
+		return new ByteArrayInputStream(new byte[length]);
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.AccessControlException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import me.footlights.core.PreferenceStorageEngine;
+import me.footlights.core.Preferences;
+import me.footlights.core.crypto.Fingerprint;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import scala.Option;
+import scala.collection.JavaConversions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/** Tests {@link StreamingUploader}'s upload path, without any need for S3. */
+public class LocalUploaderTest
+{
+	@Before public void setUp() throws Throwable
+	{
+		directory = File.createTempFile("uploads", "");
+		assertTrue(directory.delete());
+
+		Map<String,String> prefs = new HashMap<String,String>();
+		prefs.put("cas.secret", SECRET);
+		prefs.put("upload.local.dir", directory.getAbsolutePath());
+		prefs.put("upload.index.expectedBlocks", "1000");
+
+		uploader = new LocalUploader(Preferences.create(Option.apply(
+			PreferenceStorageEngine.wrap(JavaConversions.mapAsScalaMap(prefs)))));
+	}
+
+	@After public void tearDown()
+	{
+		for (File f : directory.listFiles()) f.delete();
+		directory.delete();
+	}
+
+
+	@Test public void upload() throws Throwable
+	{
+		byte[] content = bytes(1000);
+		String name = nameOf(content);
+
+		assertFalse(uploader.has(name));
+		assertEquals(name, uploader.upload(block(content, "")));
+		assertTrue(uploader.has(name));
+
+		assertEquals(Arrays.asList(name), Arrays.asList(directory.list()));
+		assertArrayEquals(content, read(new File(directory, name)));
+	}
+
+	@Test public void expectedName() throws Throwable
+	{
+		byte[] content = bytes(1000);
+		String name = nameOf(content);
+
+		assertEquals(name, uploader.upload(block(content, name)));
+		assertEquals(0, uploader.duplicates());
+	}
+
+	/** A block that we already have is read (to check its name) but not stored again. */
+	@Test public void duplicate() throws Throwable
+	{
+		byte[] content = bytes(1000);
+		String name = nameOf(content);
+
+		uploader.upload(block(content, name));
+		File stored = new File(directory, name);
+		assertTrue(stored.setLastModified(0));
+
+		assertEquals(name, uploader.upload(block(content, name)));
+		assertEquals(1, uploader.duplicates());
+		assertEquals(0, stored.lastModified());
+		assertEquals(1, directory.list().length);
+	}
+
+	/** If the content doesn't match the name that the client expects, nothing is stored. */
+	@Test public void wrongName() throws Throwable
+	{
+		byte[] content = bytes(1000);
+		String wrong = nameOf(bytes(999));
+
+		try
+		{
+			uploader.upload(block(content, wrong));
+			fail("Uploaded a block under the wrong name");
+		}
+		catch (IllegalArgumentException e) {}
+
+		assertEquals(0, directory.list().length);
+		assertFalse(uploader.has(nameOf(content)));
+	}
+
+	/** A client can't pass off new content as a block that we already have. */
+	@Test public void wrongNameForDuplicate() throws Throwable
+	{
+		byte[] original = bytes(1000);
+		String name = uploader.upload(block(original, ""));
+
+		try
+		{
+			uploader.upload(block(bytes(999), name));
+			fail("Accepted different content as a duplicate of " + name);
+		}
+		catch (IllegalArgumentException e) {}
+
+		assertEquals(0, uploader.duplicates());
+		assertArrayEquals(original, read(new File(directory, name)));
+	}
+
+	@Test public void unauthorized() throws Throwable
+	{
+		byte[] content = bytes(1000);
+		try
+		{
+			uploader.upload(block(content, "", "wrong secret", Long.MAX_VALUE));
+			fail("Accepted an upload with the wrong authorization");
+		}
+		catch (AccessControlException e) {}
+
+		assertEquals(0, directory.list().length);
+	}
+
+	/** A block which is too large is abandoned as soon as we've read too much of it. */
+	@Test public void tooLarge() throws Throwable
+	{
+		byte[] content = bytes(100000);
+		try
+		{
+			uploader.upload(block(content, "", SECRET, content.length - 1));
+			fail("Accepted a block larger than the limit");
+		}
+		catch (LimitedInputStream.TooLargeException e) {}
+
+		assertEquals(0, directory.list().length);
+		assertFalse(uploader.has(nameOf(content)));
+	}
+
+
+	private static Uploader.Block block(byte[] content, String expectedName)
+	{
+		return block(content, expectedName, SECRET, Long.MAX_VALUE);
+	}
+
+	/** A block, as {@link BlockUploadServlet} would give it to the uploader. */
+	private static Uploader.Block block(final byte[] content, final String expectedName,
+		final String auth, long limit)
+	{
+		final InputStream in = new LimitedInputStream(new ByteArrayInputStream(content), limit);
+
+		return new Uploader.Block()
+			{
+				@Override public InputStream getInputStream() { return in; }
+				@Override public long getLength() { return content.length; }
+				@Override public String getAuthorization() { return auth; }
+				@Override public String getFingerprintAlgorithm() { return "SHA-256"; }
+				@Override public String getExpectedName() { return expectedName; }
+			};
+	}
+
+	private static byte[] bytes(int length)
+	{
+		byte[] b = new byte[length];
+		for (int i = 0; i < length; i++) b[i] = (byte) i;
+		return b;
+	}
+
+	private static String nameOf(byte[] content) { return Fingerprint.of(content).encode(); }
+
+	private static byte[] read(File file) throws IOException
+	{
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			byte[] content = new byte[(int) file.length()];
+			for (int off = 0, n; off < content.length; off += n)
+				if ((n = in.read(content, off, content.length - off)) < 0)
+					throw new IOException("Unexpected end of " + file);
+
+			return content;
+		}
+		finally { in.close(); }
+	}
+
+	private static final String SECRET = "secret";
+
+	private File directory;
+	private LocalUploader uploader;
+}
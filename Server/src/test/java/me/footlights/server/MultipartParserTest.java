@@ -0,0 +1,255 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+
+public class MultipartParserTest
+{
+	@Test public void boundaryFromContentType()
+	{
+		assertEquals(BOUNDARY,
+			MultipartParser.boundary("multipart/form-data; boundary=" + BOUNDARY));
+		assertEquals("a b",
+			MultipartParser.boundary("multipart/form-data; boundary=\"a b\"; charset=UTF-8"));
+		assertNull(MultipartParser.boundary("multipart/form-data"));
+		assertNull(MultipartParser.boundary(null));
+	}
+
+	@Test public void fieldsAndFiles() throws Throwable
+	{
+		byte[] content = binary(20000);
+		MultipartParser parser = parser(form(
+			field("AUTHENTICATOR", "secret"),
+			file("FILE_CONTENTS", "block", content)), Integer.MAX_VALUE);
+
+		MultipartParser.Part auth = parser.next();
+		assertEquals("AUTHENTICATOR", auth.name());
+		assertEquals("", auth.filename());
+		assertEquals(-1, auth.contentLength());
+		assertEquals("secret", auth.readString(100));
+
+		MultipartParser.Part file = parser.next();
+		assertEquals("FILE_CONTENTS", file.name());
+		assertEquals("block", file.filename());
+		assertEquals(content.length, file.contentLength());
+		assertArrayEquals(content, readAll(file.body()));
+
+		assertNull(parser.next());
+	}
+
+	/** The underlying stream may give us a boundary in several pieces. */
+	@Test public void boundarySplitAcrossReads() throws Throwable
+	{
+		// Content which almost (but not quite) contains the delimiter is especially tricky.
+		byte[] content = ("abc\r\n--" + BOUNDARY.substring(0, 5) + "\r\n--"
+			+ BOUNDARY.substring(0, BOUNDARY.length() - 1) + "x")
+			.getBytes("ISO-8859-1");
+
+		for (int chunk = 1; chunk <= BOUNDARY.length() + 6; chunk++)
+		{
+			MultipartParser parser = parser(form(
+				file("FILE_CONTENTS", "a", content),
+				field("EXPECTED_NAME", "b")), chunk);
+
+			assertArrayEquals("read " + chunk + " B at a time",
+				content, readAll(parser.next().body()));
+
+			assertEquals("read " + chunk + " B at a time", "b", parser.next().readString(10));
+			assertNull(parser.next());
+		}
+	}
+
+	/** Anything before the first boundary or after the last one is to be ignored. */
+	@Test public void preambleAndEpilogue() throws Throwable
+	{
+		String form = "This is a preamble, not a part.\r\n"
+			+ form(field("AUTHENTICATOR", "secret"))
+			+ "\r\nThis is an epilogue; it isn't a part either.\r\n";
+
+		MultipartParser parser = parser(form, 1);
+		assertEquals("secret", parser.next().readString(100));
+		assertNull(parser.next());
+		assertNull(parser.next());
+	}
+
+	/** Unread content is skipped when the next part is requested. */
+	@Test public void skipUnreadParts() throws Throwable
+	{
+		MultipartParser parser = parser(form(
+			file("FILE_CONTENTS", "a", binary(30000)),
+			field("EXPECTED_NAME", "b")), 1000);
+
+		parser.next().body().read();
+		assertEquals("b", parser.next().readString(10));
+		assertNull(parser.next());
+	}
+
+	@Test public void missingFinalBoundary() throws Throwable
+	{
+		String form = form(field("AUTHENTICATOR", "secret"));
+		form = form.substring(0, form.lastIndexOf("\r\n--" + BOUNDARY));
+
+		MultipartParser parser = parser(form, 100);
+		MultipartParser.Part part = parser.next();
+		try
+		{
+			part.readString(100);
+			fail("Read a part that wasn't terminated by a boundary");
+		}
+		catch (IOException e) {}
+	}
+
+	@Test public void longHeaderLine() throws Throwable
+	{
+		StringBuilder name = new StringBuilder();
+		for (int i = 0; i < 10000; i++) name.append('x');
+
+		try
+		{
+			parser(form(field(name.toString(), "value")), 4096).next();
+			fail("Accepted a 10 kB header line");
+		}
+		catch (IOException e) {}
+	}
+
+	@Test public void tooManyHeaders() throws Throwable
+	{
+		StringBuilder headers = new StringBuilder();
+		for (int i = 0; i < 1000; i++) headers.append("X-Header-" + i + ": value\r\n");
+
+		String form = "--" + BOUNDARY + "\r\n"
+			+ headers
+			+ "Content-Disposition: form-data; name=\"AUTHENTICATOR\"\r\n"
+			+ "\r\n"
+			+ "secret\r\n"
+			+ "--" + BOUNDARY + "--\r\n";
+
+		try
+		{
+			parser(form, 4096).next();
+			fail("Accepted " + headers.length() + " B of part headers");
+		}
+		catch (IOException e) {}
+	}
+
+	@Test public void longField() throws Throwable
+	{
+		MultipartParser parser = parser(form(field("AUTHENTICATOR", new String(new char[200]))),
+			Integer.MAX_VALUE);
+
+		try
+		{
+			parser.next().readString(100);
+			fail("Read a 200 B field with a limit of 100 B");
+		}
+		catch (IOException e) {}
+	}
+
+	@Test public void unnamedPart() throws Throwable
+	{
+		String form = "--" + BOUNDARY + "\r\n"
+			+ "Content-Type: text/plain\r\n"
+			+ "\r\n"
+			+ "value\r\n"
+			+ "--" + BOUNDARY + "--\r\n";
+
+		try
+		{
+			parser(form, Integer.MAX_VALUE).next();
+			fail("Accepted a form part without a name");
+		}
+		catch (IOException e) {}
+	}
+
+
+	/** A stream which returns no more than a few bytes from each read. */
+	private static class Trickle extends FilterInputStream
+	{
+		Trickle(InputStream in, int chunk)
+		{
+			super(in);
+			this.chunk = chunk;
+		}
+
+		@Override public int read(byte[] b, int off, int len) throws IOException
+		{
+			return super.read(b, off, Math.min(len, chunk));
+		}
+
+		private final int chunk;
+	}
+
+	private static MultipartParser parser(String form, int chunk) throws IOException
+	{
+		return new MultipartParser(
+			new Trickle(new ByteArrayInputStream(form.getBytes("ISO-8859-1")), chunk), BOUNDARY);
+	}
+
+	private static String form(String... parts)
+	{
+		StringBuilder form = new StringBuilder();
+		for (String part : parts) form.append("--").append(BOUNDARY).append("\r\n").append(part);
+		form.append("--").append(BOUNDARY).append("--\r\n");
+
+		return form.toString();
+	}
+
+	private static String field(String name, String value)
+	{
+		return "Content-Disposition: form-data; name=\"" + name + "\"\r\n\r\n" + value + "\r\n";
+	}
+
+	private static String file(String name, String filename, byte[] content) throws IOException
+	{
+		return "Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + filename
+			+ "\"\r\n"
+			+ "Content-Type: application/octet-stream\r\n"
+			+ "Content-Length: " + content.length + "\r\n"
+			+ "\r\n"
+			+ new String(content, "ISO-8859-1") + "\r\n";
+	}
+
+	/** Content which includes every byte value (including CR and LF). */
+	private static byte[] binary(int length)
+	{
+		byte[] b = new byte[length];
+		for (int i = 0; i < length; i++) b[i] = (byte) (i * 31);
+		return b;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1000];
+		for (int n; (n = in.read(buffer)) >= 0; ) out.write(buffer, 0, n);
+		return out.toByteArray();
+	}
+
+	private static final String BOUNDARY = "----FootlightsBoundary7MA4YWxkTrZu0gW";
+}